@@ -0,0 +1,93 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of single connection shared by concurrent callers.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConcurrentCallsBenchmark {
+
+	@Param({"pipe", "socket"})
+	public String transport;
+
+	@Param({"100"})
+	public int payloadSize;
+
+	private GatewayPair pair;
+	private EchoService service;
+	private byte[] payload;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		pair = new GatewayPair(transport);
+		service = pair.remote(new EchoService.Factory());
+		payload = new byte[payloadSize];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		pair.close();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public int threads1() {
+		return service.size(payload);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public int threads4() {
+		return service.size(payload);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public int threads16() {
+		return service.size(payload);
+	}
+
+	@Benchmark
+	@Threads(64)
+	public int threads64() {
+		return service.size(payload);
+	}
+}
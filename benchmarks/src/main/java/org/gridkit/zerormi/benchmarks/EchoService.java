@@ -0,0 +1,71 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi.benchmarks;
+
+import java.io.Serializable;
+import java.rmi.Remote;
+import java.util.concurrent.Callable;
+
+/**
+ * Remote service used by benchmarks.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public interface EchoService extends Remote {
+
+	public int size(byte[] payload);
+
+	/**
+	 * Calls back to the caller side.
+	 */
+	public int callback(Callback callback, int value);
+
+	public interface Callback extends Remote {
+
+		public int call(int value);
+
+	}
+
+	public static class Impl implements EchoService {
+
+		@Override
+		public int size(byte[] payload) {
+			return payload == null ? -1 : payload.length;
+		}
+
+		@Override
+		public int callback(Callback callback, int value) {
+			return callback.call(value);
+		}
+	}
+
+	public static class CallbackImpl implements Callback {
+
+		@Override
+		public int call(int value) {
+			return value + 1;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public static class Factory implements Callable<EchoService>, Serializable {
+
+		@Override
+		public EchoService call() {
+			return new Impl();
+		}
+	}
+}
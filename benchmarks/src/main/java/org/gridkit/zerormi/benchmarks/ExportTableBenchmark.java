@@ -0,0 +1,183 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.gridkit.zerormi.RemoteRef;
+import org.gridkit.zerormi.RmiChannel1;
+import org.gridkit.zerormi.SmartRmiMarshaler;
+import org.gridkit.zerormi.zlog.ZLogFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of stream replace/resolve hooks of single {@link RmiChannel1}
+ * shared by caller threads. Argument graph mixes plain serializable objects
+ * with exported remote objects, so every write consults export tables.
+ * <p>
+ * Score of multithreaded variants should grow with thread count,
+ * hooks do not take channel lock on common path.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ExportTableBenchmark {
+
+	private static final int GRAPH_SIZE = 64;
+	private static final int REMOTES = 8;
+
+	private RmiChannel1 channel;
+	private List<Object> graph;
+	private RemoteRef[] refs;
+
+	@Setup
+	public void setup() throws IOException {
+		// output is never used, nothing is sent by replace/resolve hooks
+		channel = new RmiChannel1("bench", null, null, new SmartRmiMarshaler(), ZLogFactory.getDefaultRootLogger(), Collections.<String, Object>emptyMap());
+		graph = new ArrayList<Object>();
+		refs = new RemoteRef[REMOTES];
+		for(int i = 0; i != GRAPH_SIZE; ++i) {
+			if (i % (GRAPH_SIZE / REMOTES) == 0) {
+				Object remote = new EchoService.Impl();
+				graph.add(remote);
+				refs[i / (GRAPH_SIZE / REMOTES)] = (RemoteRef) channel.streamReplaceObject(remote);
+			}
+			else {
+				graph.add(new Item("item-" + i, i));
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		channel.close(null);
+	}
+
+	@State(Scope.Thread)
+	public static class Buffer {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 << 10);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public int serialize_1(Buffer buffer) throws IOException {
+		return serialize(buffer);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public int serialize_4(Buffer buffer) throws IOException {
+		return serialize(buffer);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public int serialize_8(Buffer buffer) throws IOException {
+		return serialize(buffer);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Object resolve_1() throws IOException {
+		return resolve();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object resolve_4() throws IOException {
+		return resolve();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Object resolve_8() throws IOException {
+		return resolve();
+	}
+
+	private int serialize(Buffer buffer) throws IOException {
+		buffer.bytes.reset();
+		ReplacingStream oos = new ReplacingStream(buffer.bytes, channel);
+		for(Object o: graph) {
+			oos.writeObject(o);
+		}
+		oos.close();
+		return buffer.bytes.size();
+	}
+
+	private Object resolve() throws IOException {
+		Object last = null;
+		for(RemoteRef ref: refs) {
+			last = channel.streamResolveObject(ref);
+		}
+		return last;
+	}
+
+	/**
+	 * Same hook as in RMI output stream, which is not accessible outside of ZeroRMI package.
+	 */
+	private static class ReplacingStream extends ObjectOutputStream {
+
+		private final RmiChannel1 channel;
+
+		public ReplacingStream(OutputStream out, RmiChannel1 channel) throws IOException {
+			super(out);
+			this.channel = channel;
+			enableReplaceObject(true);
+		}
+
+		@Override
+		protected Object replaceObject(Object obj) throws IOException {
+			return channel.streamReplaceObject(obj);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public static class Item implements Serializable {
+
+		String name;
+		int value;
+
+		public Item(String name, int value) {
+			this.name = name;
+			this.value = value;
+		}
+	}
+}
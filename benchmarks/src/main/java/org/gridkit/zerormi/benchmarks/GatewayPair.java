@@ -0,0 +1,127 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.gridkit.zerormi.DuplexStream;
+import org.gridkit.zerormi.NamedStreamPair;
+import org.gridkit.zerormi.RmiGateway;
+import org.gridkit.zerormi.SocketStream;
+
+/**
+ * Two connected {@link RmiGateway}s in same JVM.
+ * <p>
+ * Supported transports are <code>pipe</code> (in-memory) and
+ * <code>socket</code> (loopback TCP).
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class GatewayPair {
+
+	private static final int PIPE_BUFFER = 1 << 20;
+
+	final RmiGateway left = new RmiGateway("left");
+	final RmiGateway right = new RmiGateway("right");
+
+	public GatewayPair(String transport) throws Exception {
+		DuplexStream[] streams;
+		if ("pipe".equals(transport)) {
+			streams = createPipe();
+		}
+		else if ("socket".equals(transport)) {
+			streams = createSocket();
+		}
+		else {
+			throw new IllegalArgumentException("Unknown transport: " + transport);
+		}
+		connect(streams[0], streams[1]);
+	}
+
+	private DuplexStream[] createPipe() {
+		MemoryPipe l2r = new MemoryPipe(PIPE_BUFFER);
+		MemoryPipe r2l = new MemoryPipe(PIPE_BUFFER);
+		return new DuplexStream[] {
+			new NamedStreamPair("LEFT", r2l.getInputStream(), l2r.getOutputStream()),
+			new NamedStreamPair("RIGHT", l2r.getInputStream(), r2l.getOutputStream())
+		};
+	}
+
+	private DuplexStream[] createSocket() throws IOException {
+		ServerSocket ss = new ServerSocket();
+		try {
+			ss.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+			Socket ls = new Socket();
+			ls.connect(ss.getLocalSocketAddress());
+			Socket rs = ss.accept();
+			ls.setTcpNoDelay(true);
+			rs.setTcpNoDelay(true);
+			return new DuplexStream[] {new SocketStream(ls), new SocketStream(rs)};
+		}
+		finally {
+			ss.close();
+		}
+	}
+
+	/**
+	 * Handshake is symmetric, so both sides have to connect concurrently.
+	 */
+	private void connect(final DuplexStream ls, final DuplexStream rs) throws Exception {
+		ExecutorService starter = Executors.newFixedThreadPool(2);
+		try {
+			Future<Void> lf = starter.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					left.connect(ls);
+					return null;
+				}
+			});
+			Future<Void> rf = starter.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					right.connect(rs);
+					return null;
+				}
+			});
+			lf.get();
+			rf.get();
+		}
+		finally {
+			starter.shutdown();
+		}
+	}
+
+	/**
+	 * Executes task on the right side and returns its result to the left side.
+	 * Remote objects created by task are returned as proxies.
+	 */
+	public <T> T remote(Callable<T> task) throws Exception {
+		return left.getRemoteExecutorService().submit(task).get();
+	}
+
+	public void close() {
+		left.shutdown(null);
+		right.shutdown(null);
+	}
+}
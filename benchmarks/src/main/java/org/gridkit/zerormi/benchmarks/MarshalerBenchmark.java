@@ -0,0 +1,134 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.gridkit.zerormi.SmartRmiMarshaler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link SmartRmiMarshaler} replacement alone and as part of
+ * object serialization.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MarshalerBenchmark {
+
+	@Param({"string", "bean", "remote", "anonymous"})
+	public String kind;
+
+	private SmartRmiMarshaler marshaler;
+	private Object value;
+	private ByteArrayOutputStream buffer;
+
+	@Setup
+	public void setup() {
+		marshaler = new SmartRmiMarshaler();
+		buffer = new ByteArrayOutputStream(4096);
+		if ("string".equals(kind)) {
+			value = "The quick brown fox jumps over the lazy dog";
+		}
+		else if ("bean".equals(kind)) {
+			value = new Bean("bean", 42, new long[16]);
+		}
+		else if ("remote".equals(kind)) {
+			value = new EchoService.Impl();
+		}
+		else if ("anonymous".equals(kind)) {
+			value = new Callable<String>() {
+				@Override
+				public String call() {
+					return kind;
+				}
+			};
+		}
+		else {
+			throw new IllegalArgumentException("Unknown kind: " + kind);
+		}
+	}
+
+	@Benchmark
+	public Object writeReplace() throws IOException {
+		return marshaler.writeReplace(value);
+	}
+
+	@Benchmark
+	public int serialize() throws IOException {
+		buffer.reset();
+		MarshalingStream oos = new MarshalingStream(buffer, marshaler);
+		oos.writeObject(value);
+		oos.close();
+		return buffer.size();
+	}
+
+	/**
+	 * Mimics marshaling part of RMI output stream. Exported objects are written
+	 * as placeholder strings, real stream replaces them with remote references.
+	 */
+	private static class MarshalingStream extends ObjectOutputStream {
+
+		private final SmartRmiMarshaler marshaler;
+
+		public MarshalingStream(OutputStream out, SmartRmiMarshaler marshaler) throws IOException {
+			super(out);
+			this.marshaler = marshaler;
+			enableReplaceObject(true);
+		}
+
+		@Override
+		protected Object replaceObject(Object obj) throws IOException {
+			Object r = marshaler.writeReplace(obj);
+			return r instanceof Serializable ? r : obj.toString();
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public static class Bean implements Serializable {
+
+		String name;
+		int value;
+		long[] data;
+
+		public Bean(String name, int value, long[] data) {
+			this.name = name;
+			this.value = value;
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * In-memory unidirectional byte pipe, used to measure RMI overhead
+ * without network stack.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class MemoryPipe {
+
+	private final byte[] buffer;
+	private int in;
+	private int out;
+	private int inBuffer;
+	private boolean closed;
+
+	public MemoryPipe(int bufferSize) {
+		buffer = new byte[bufferSize];
+	}
+
+	public InputStream getInputStream() {
+		return new PipeIn();
+	}
+
+	public OutputStream getOutputStream() {
+		return new PipeOut();
+	}
+
+	private synchronized int read(byte[] target, int offs, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while(inBuffer == 0) {
+			if (closed) {
+				return -1;
+			}
+			waitForPeer();
+		}
+		int run = Math.min(len, inBuffer);
+		run = Math.min(run, buffer.length - in);
+		System.arraycopy(buffer, in, target, offs, run);
+		in = (in + run) % buffer.length;
+		inBuffer -= run;
+		notifyAll();
+		return run;
+	}
+
+	private synchronized void write(byte[] data, int offs, int len) throws IOException {
+		while(len > 0) {
+			while(inBuffer == buffer.length) {
+				if (closed) {
+					throw new IOException("Pipe is closed");
+				}
+				waitForPeer();
+			}
+			if (closed) {
+				throw new IOException("Pipe is closed");
+			}
+			int run = Math.min(len, buffer.length - inBuffer);
+			run = Math.min(run, buffer.length - out);
+			System.arraycopy(data, offs, buffer, out, run);
+			out = (out + run) % buffer.length;
+			inBuffer += run;
+			offs += run;
+			len -= run;
+			notifyAll();
+		}
+	}
+
+	private void waitForPeer() throws IOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	private synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	private class PipeOut extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			MemoryPipe.this.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			MemoryPipe.this.close();
+		}
+	}
+
+	private class PipeIn extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] bb = new byte[1];
+			return read(bb, 0, 1) < 0 ? -1 : (0xFF & bb[0]);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return MemoryPipe.this.read(b, off, len);
+		}
+
+		@Override
+		public int available() {
+			synchronized(MemoryPipe.this) {
+				return inBuffer;
+			}
+		}
+
+		@Override
+		public void close() {
+			MemoryPipe.this.close();
+		}
+	}
+}
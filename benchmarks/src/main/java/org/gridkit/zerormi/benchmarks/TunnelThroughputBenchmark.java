@@ -0,0 +1,163 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.gridkit.util.concurrent.FutureBox;
+import org.gridkit.vicluster.telecontrol.bootstraper.Tunneller;
+import org.gridkit.vicluster.telecontrol.bootstraper.TunnellerConnection;
+import org.gridkit.vicluster.telecontrol.bootstraper.TunnellerConnection.FileHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * File push through tunneller over in-memory pipe. Throughput is
+ * <code>fileSize</code> divided by average time.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TunnelThroughputBenchmark {
+
+	private static final int PIPE_BUFFER = 1 << 20;
+
+	@Param({"false", "true"})
+	public boolean compression;
+
+	@Param({"1048576", "16777216"})
+	public int fileSize;
+
+	private TunnellerConnection connection;
+	private File targetDir;
+	private byte[] chunk;
+	private int fileNo;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		MemoryPipe m2s = new MemoryPipe(PIPE_BUFFER);
+		MemoryPipe s2m = new MemoryPipe(PIPE_BUFFER);
+		final InputStream slaveIn = m2s.getInputStream();
+		final OutputStream slaveOut = s2m.getOutputStream();
+		Thread slave = new Thread("Tunneller") {
+			@Override
+			public void run() {
+				new Tunneller().process(slaveIn, slaveOut);
+			}
+		};
+		slave.setDaemon(true);
+		slave.start();
+
+		System.setProperty(TunnellerConnection.PROP_COMPRESSION, String.valueOf(compression));
+		try {
+			connection = new TunnellerConnection("bench", s2m.getInputStream(), m2s.getOutputStream(), new PrintStream(new NullOutputStream()), 5, TimeUnit.SECONDS);
+		}
+		finally {
+			System.clearProperty(TunnellerConnection.PROP_COMPRESSION);
+		}
+
+		targetDir = File.createTempFile("tunnel-bench", "");
+		targetDir.delete();
+		targetDir.mkdirs();
+		// text like content, so compression has something to do
+		chunk = new byte[64 << 10];
+		for(int i = 0; i != chunk.length; ++i) {
+			chunk[i] = (byte) ('a' + (i * 31 + i / 17) % 26);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		connection.close();
+		targetDir.delete();
+	}
+
+	@Benchmark
+	public long filePush() throws Exception {
+		File target = new File(targetDir, "file-" + (fileNo++));
+		PushHandler handler = new PushHandler();
+		connection.pushFile(target.getPath(), handler);
+		OutputStream out = handler.stream.get();
+		int n = 0;
+		while(n < fileSize) {
+			int len = Math.min(chunk.length, fileSize - n);
+			out.write(chunk, 0, len);
+			n += len;
+		}
+		out.close();
+		long size = handler.size.get();
+		target.delete();
+		if (size != fileSize) {
+			throw new IOException("Size mismatch " + size);
+		}
+		return size;
+	}
+
+	private static class PushHandler implements FileHandler {
+
+		final FutureBox<OutputStream> stream = new FutureBox<OutputStream>();
+		final FutureBox<Long> size = new FutureBox<Long>();
+
+		@Override
+		public void accepted(OutputStream out) {
+			stream.setData(out);
+		}
+
+		@Override
+		public void confirmed(String path, long size) {
+			this.size.setData(size);
+		}
+
+		@Override
+		public void failed(String path, String error) {
+			IOException e = new IOException(error);
+			stream.setError(e);
+			size.setError(e);
+		}
+	}
+
+	private static class NullOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package org.gridkit.nanocloud.jmx;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.gridkit.zerormi.LatencyHistogram;
+import org.gridkit.zerormi.RmiMetrics;
+import org.gridkit.zerormi.RmiMetrics.MessageType;
+import org.gridkit.zerormi.RmiMetrics.MethodMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exposes {@link RmiMetrics} of a connection. Snapshots are
+ * built on attribute read, so recording side is not affected.
+ */
+public class RmiMetricsBean implements RmiMetricsMXBean {
+
+	public static final String DOMAIN = "org.gridkit.nanocloud";
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RmiMetricsBean.class);
+
+	private static final int MAX_INSTANCES = 1000;
+
+	public static ObjectName nameFor(String peer) {
+		return name(DOMAIN + ":type=ZeroRmi,peer=" + ObjectName.quote(peer));
+	}
+
+	/**
+	 * Name used on master for metrics collected by slave side
+	 * of connection to a node.
+	 */
+	public static ObjectName remoteNameFor(String node) {
+		return name(nameFor(node) + ",side=remote");
+	}
+
+	private static ObjectName name(String name) {
+		try {
+			return new ObjectName(name);
+		} catch (MalformedObjectNameException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Registers bean, errors are logged, metrics are not essential.
+	 *
+	 * @return name of registered bean or <code>null</code>
+	 * @see #register(MBeanRegistrator, ObjectName, Object)
+	 */
+	public static ObjectName register(MBeanRegistrator registrator, String peer, RmiMetrics metrics) {
+		return register(registrator, nameFor(peer), new RmiMetricsBean(peer, metrics));
+	}
+
+	/**
+	 * Registers bean, if name is already taken (e.g. several nodes
+	 * with same name in one JVM) <code>instance</code> key is appended.
+	 * Other errors are logged, metrics are not essential.
+	 *
+	 * @return name of registered bean or <code>null</code>
+	 */
+	public static ObjectName register(MBeanRegistrator registrator, ObjectName name, Object bean) {
+		ObjectName candidate = name;
+		for(int n = 2; n <= MAX_INSTANCES; ++n) {
+			try {
+				registrator.registerMBean(candidate, bean);
+				return candidate;
+			} catch (InstanceAlreadyExistsException e) {
+				candidate = name(name + ",instance=" + n);
+			} catch (Exception e) {
+				LOGGER.warn("Failed to register " + candidate + ": " + e.toString());
+				return null;
+			}
+		}
+		LOGGER.warn("Failed to register " + name + ": too many instances");
+		return null;
+	}
+
+	public static void unregister(MBeanRegistrator registrator, ObjectName name) {
+		if (name != null) {
+			try {
+				registrator.unregisterMBean(name);
+			} catch (Exception e) {
+				// ignore
+			}
+		}
+	}
+
+	private final String peer;
+	private final RmiMetrics metrics;
+
+	public RmiMetricsBean(String peer, RmiMetrics metrics) {
+		this.peer = peer;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public String getPeer() {
+		return peer;
+	}
+
+	@Override
+	public int getOutboundInFlight() {
+		return metrics.getOutboundInFlight();
+	}
+
+	@Override
+	public int getInboundInFlight() {
+		return metrics.getInboundInFlight();
+	}
+
+	@Override
+	public int getInboundExecuting() {
+		return metrics.getInboundExecuting();
+	}
+
+	@Override
+	public Map<String, Long> getMessagesIn() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for(MessageType type: MessageType.values()) {
+			result.put(type.name(), metrics.getMessagesIn(type));
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getMessagesOut() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for(MessageType type: MessageType.values()) {
+			result.put(type.name(), metrics.getMessagesOut(type));
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getBytesIn() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for(MessageType type: MessageType.values()) {
+			result.put(type.name(), metrics.getBytesIn(type));
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getBytesOut() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for(MessageType type: MessageType.values()) {
+			result.put(type.name(), metrics.getBytesOut(type));
+		}
+		return result;
+	}
+
+	@Override
+	public long getClassCacheHits() {
+		return metrics.getClassCacheHits();
+	}
+
+	@Override
+	public long getClassCacheMisses() {
+		return metrics.getClassCacheMisses();
+	}
+
+	@Override
+	public long getOutboundTimeouts() {
+		return metrics.getOutboundTimeouts();
+	}
+
+	@Override
+	public long getOutboundCancels() {
+		return metrics.getOutboundCancels();
+	}
+
+	@Override
+	public long getInboundCancels() {
+		return metrics.getInboundCancels();
+	}
+
+	@Override
+	public long getInboundExpired() {
+		return metrics.getInboundExpired();
+	}
+
+	@Override
+	public LatencyStats getKeepAliveRtt() {
+		return stats(metrics.getKeepAliveRtt());
+	}
+
+	@Override
+	public double getLastKeepAliveRttMicros() {
+		long rtt = metrics.getLastKeepAliveRttNanos();
+		return rtt < 0 ? -1 : rtt / 1000d;
+	}
+
+	@Override
+	public List<MethodStats> getMethods() {
+		List<MethodStats> result = new ArrayList<MethodStats>();
+		for(MethodMetrics mm: metrics.getMethods()) {
+			result.add(new MethodStats(mm.getSignature().toString(),
+					mm.getOutboundCalls(), mm.getOutboundErrors(),
+					mm.getInboundCalls(), mm.getInboundErrors(),
+					stats(mm.getEndToEnd()), stats(mm.getSerialize()),
+					stats(mm.getQueueWait()), stats(mm.getExecute())));
+		}
+		return result;
+	}
+
+	private static LatencyStats stats(LatencyHistogram h) {
+		return new LatencyStats(h.getCount(), h.getMeanMicros(),
+				h.getPercentileMicros(0.5), h.getPercentileMicros(0.9), h.getPercentileMicros(0.99),
+				h.getMaxNanos() / 1000d);
+	}
+}
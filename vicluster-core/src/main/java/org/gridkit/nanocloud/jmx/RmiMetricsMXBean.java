@@ -0,0 +1,164 @@
+package org.gridkit.nanocloud.jmx;
+
+import java.beans.ConstructorProperties;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Call statistics of single ZeroRMI connection.
+ * Bean is registered on both ends of connection under
+ * <code>org.gridkit.nanocloud:type=ZeroRmi,peer=...</code> name.
+ */
+public interface RmiMetricsMXBean {
+
+	public String getPeer();
+
+	public int getOutboundInFlight();
+
+	public int getInboundInFlight();
+
+	public int getInboundExecuting();
+
+	public Map<String, Long> getMessagesIn();
+
+	public Map<String, Long> getMessagesOut();
+
+	public Map<String, Long> getBytesIn();
+
+	public Map<String, Long> getBytesOut();
+
+	public long getClassCacheHits();
+
+	public long getClassCacheMisses();
+
+	public long getOutboundTimeouts();
+
+	public long getOutboundCancels();
+
+	public long getInboundCancels();
+
+	public long getInboundExpired();
+
+	public LatencyStats getKeepAliveRtt();
+
+	/** -1 if no keep alive probe was answered yet */
+	public double getLastKeepAliveRttMicros();
+
+	public List<MethodStats> getMethods();
+
+	public static class MethodStats {
+
+		private final String method;
+		private final long outboundCalls;
+		private final long outboundErrors;
+		private final long inboundCalls;
+		private final long inboundErrors;
+		private final LatencyStats endToEnd;
+		private final LatencyStats serialize;
+		private final LatencyStats queueWait;
+		private final LatencyStats execute;
+
+		@ConstructorProperties({"method", "outboundCalls", "outboundErrors", "inboundCalls", "inboundErrors", "endToEnd", "serialize", "queueWait", "execute"})
+		public MethodStats(String method, long outboundCalls, long outboundErrors, long inboundCalls, long inboundErrors, LatencyStats endToEnd, LatencyStats serialize, LatencyStats queueWait, LatencyStats execute) {
+			this.method = method;
+			this.outboundCalls = outboundCalls;
+			this.outboundErrors = outboundErrors;
+			this.inboundCalls = inboundCalls;
+			this.inboundErrors = inboundErrors;
+			this.endToEnd = endToEnd;
+			this.serialize = serialize;
+			this.queueWait = queueWait;
+			this.execute = execute;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public long getOutboundCalls() {
+			return outboundCalls;
+		}
+
+		public long getOutboundErrors() {
+			return outboundErrors;
+		}
+
+		public long getInboundCalls() {
+			return inboundCalls;
+		}
+
+		public long getInboundErrors() {
+			return inboundErrors;
+		}
+
+		public LatencyStats getEndToEnd() {
+			return endToEnd;
+		}
+
+		public LatencyStats getSerialize() {
+			return serialize;
+		}
+
+		public LatencyStats getQueueWait() {
+			return queueWait;
+		}
+
+		public LatencyStats getExecute() {
+			return execute;
+		}
+
+		@Override
+		public String toString() {
+			return method + " end-to-end[" + endToEnd + "] execute[" + execute + "]";
+		}
+	}
+
+	public static class LatencyStats {
+
+		private final long count;
+		private final double meanMicros;
+		private final double p50Micros;
+		private final double p90Micros;
+		private final double p99Micros;
+		private final double maxMicros;
+
+		@ConstructorProperties({"count", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "maxMicros"})
+		public LatencyStats(long count, double meanMicros, double p50Micros, double p90Micros, double p99Micros, double maxMicros) {
+			this.count = count;
+			this.meanMicros = meanMicros;
+			this.p50Micros = p50Micros;
+			this.p90Micros = p90Micros;
+			this.p99Micros = p99Micros;
+			this.maxMicros = maxMicros;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMeanMicros() {
+			return meanMicros;
+		}
+
+		public double getP50Micros() {
+			return p50Micros;
+		}
+
+		public double getP90Micros() {
+			return p90Micros;
+		}
+
+		public double getP99Micros() {
+			return p99Micros;
+		}
+
+		public double getMaxMicros() {
+			return maxMicros;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("n=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus", count, meanMicros, p50Micros, p99Micros, maxMicros);
+		}
+	}
+}
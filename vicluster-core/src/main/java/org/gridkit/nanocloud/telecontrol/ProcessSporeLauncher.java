@@ -57,6 +57,8 @@ import org.gridkit.zeroio.LookbackOutputStream;
 import org.gridkit.zerormi.DuplexStream;
 import org.gridkit.zerormi.DuplexStreamConnector;
 import org.gridkit.zerormi.NamedStreamPair;
+import org.gridkit.zerormi.SharedMemoryConnector;
+import org.gridkit.zerormi.SharedMemoryStream;
 import org.gridkit.zerormi.SocketStream;
 import org.gridkit.zerormi.hub.SlaveSpore;
 
@@ -68,6 +70,12 @@ import org.gridkit.zerormi.hub.SlaveSpore;
  */
 public class ProcessSporeLauncher implements ProcessLauncher {
 
+    /**
+     * Slaves on local host are connected via shared memory rings instead of loopback socket,
+     * unless this property is set to <code>false</code>.
+     */
+    public static final String PROP_SHARED_MEMORY = "gridkit.nanocloud.local.shared-memory";
+
     StreamCopyService streamCopyService;
 
     // Used by reflection
@@ -106,7 +114,13 @@ public class ProcessSporeLauncher implements ProcessLauncher {
         session.socketHandle = socketHandler;
 
         InetSocketAddress sockAddr = (InetSocketAddress)fget(session.bindAddress);
-        CallbackSporePlanter planter = new CallbackSporePlanter(spore, sockAddr.getHostName(), sockAddr.getPort());
+        DuplexStreamConnector connector = new ConnectSocketConnector(sockAddr.getHostName(), sockAddr.getPort());
+        session.sharedMemory = console.isLocalFileSystem() ? createSharedMemory() : null;
+        if (session.sharedMemory != null) {
+            // ring is attached once, socket remains for reconnects
+            connector = new SharedMemoryConnector(session.sharedMemory.getFile().getPath(), connector);
+        }
+        CallbackSporePlanter planter = new CallbackSporePlanter(spore, connector);
         byte[] binspore = serialize(planter);
         session.binspore = binspore;
 
@@ -165,9 +179,26 @@ public class ProcessSporeLauncher implements ProcessLauncher {
 
         console.startProcess(slaveWD, commands.toArray(new String[0]), slaveEnv, session);
 
+        if (session.sharedMemory != null) {
+            session.connectSharedMemory();
+        }
+
         return session;
     }
 
+    private SharedMemoryStream createSharedMemory() {
+        if (!Boolean.valueOf(System.getProperty(PROP_SHARED_MEMORY, "true"))) {
+            return null;
+        }
+        try {
+            return SharedMemoryStream.create(SharedMemoryStream.getDefaultRingSize());
+        }
+        catch(IOException e) {
+            // fall back to socket
+            return null;
+        }
+    }
+
     private boolean isEmpty(String s) {
         return s == null || s.length() == 0;
     }
@@ -298,23 +329,21 @@ public class ProcessSporeLauncher implements ProcessLauncher {
         private static final long serialVersionUID = 20130928L;
 
         SlaveSpore spore;
-        String masterHost;
-        int masterPort;
+        DuplexStreamConnector connector;
 
-        public CallbackSporePlanter(SlaveSpore spore, String masterHost, int masterPort) {
+        public CallbackSporePlanter(SlaveSpore spore, DuplexStreamConnector connector) {
             this.spore = spore;
-            this.masterHost = masterHost;
-            this.masterPort = masterPort;
+            this.connector = connector;
         }
 
         @Override
         public void run() {
-            spore.start(new ConnectSocketConnector(new InetSocketAddress(masterHost, masterPort)));
+            spore.start(connector);
         }
 
         @Override
         public String toString() {
-            return spore + " + call home [" + masterHost + ":" + masterPort + "]";
+            return spore + " + call home [" + connector + "]";
         }
     }
 
@@ -322,23 +351,26 @@ public class ProcessSporeLauncher implements ProcessLauncher {
 
         private static final long serialVersionUID = 20131217L;
 
-        private final SocketAddress address;
+        private final String host;
+        private final int port;
 
-        public ConnectSocketConnector(SocketAddress address) {
-            this.address = address;
+        /** Address is resolved on slave side */
+        public ConnectSocketConnector(String host, int port) {
+            this.host = host;
+            this.port = port;
         }
 
         @Override
         public DuplexStream connect() throws IOException {
             Socket socket = new Socket();
-            socket.connect(address);
+            socket.connect(new InetSocketAddress(host, port));
 
             return new SocketStream(socket);
         }
 
         @Override
         public String toString() {
-            return String.valueOf(address);
+            return host + ":" + port;
         }
     }
 
@@ -362,6 +394,8 @@ public class ProcessSporeLauncher implements ProcessLauncher {
         FutureBox<Integer> exitCode = new FutureBox<Integer>();
         FutureBox<AdvancedExecutor> executor = new FutureBox<AdvancedExecutor>();
         Destroyable socketHandle;
+        /** Used instead of socket for local slaves */
+        SharedMemoryStream sharedMemory;
         volatile Destroyable procHandle;
         StreamCopyService streamCopyService;
         ProcessLifecycleListener lifecycleListener;
@@ -381,6 +415,29 @@ public class ProcessSporeLauncher implements ProcessLauncher {
             executor.setData(session.getRemoteExecutor());
         }
 
+        /**
+         * Handshake blocks until slave is attached, so it is done in background.
+         */
+        void connectSharedMemory() {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        session.setTransportConnection(sharedMemory);
+                        executor.setData(session.getRemoteExecutor());
+                    }
+                    catch(RuntimeException e) {
+                        if (!executor.isDone()) {
+                            sepuku(new IOException("Transport terminated: " + e.toString()));
+                        }
+                    }
+                }
+            });
+            thread.setName("SharedMemoryConnect[" + launchConf.nodeName + "]");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
         @Override
         public void terminated(String message) {
             if (!executor.isDone()) {
@@ -583,6 +640,14 @@ public class ProcessSporeLauncher implements ProcessLauncher {
         }
 
         protected synchronized void sepuku(Throwable e) {
+            if (sharedMemory != null) {
+                // would unblock handshake if slave has not attached
+                try {
+                    sharedMemory.close();
+                } catch (IOException ee) {
+                    // ignore
+                }
+            }
             session.terminate(e);
             procStreams.setErrorIfWaiting(e);
             executor.setErrorIfWaiting(e);
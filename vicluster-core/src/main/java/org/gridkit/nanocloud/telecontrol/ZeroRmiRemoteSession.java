@@ -1,26 +1,62 @@
 package org.gridkit.nanocloud.telecontrol;
 
 import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.rmi.Remote;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InvalidAttributeValueException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.StandardMBean;
+
+import org.gridkit.nanocloud.jmx.MBeanRegistrator;
+import org.gridkit.nanocloud.jmx.RmiMetricsBean;
+import org.gridkit.nanocloud.jmx.RmiMetricsMXBean;
 import org.gridkit.util.concurrent.AdvancedExecutor;
+import org.gridkit.util.concurrent.Box;
 import org.gridkit.zerormi.DuplexStream;
 import org.gridkit.zerormi.DuplexStreamConnector;
 import org.gridkit.zerormi.RmiGateway;
 import org.gridkit.zerormi.hub.RemotingEndPoint;
 import org.gridkit.zerormi.hub.SlaveSpore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class ZeroRmiRemoteSession implements RemoteExecutionSession {
 	
+	private static final Logger LOGGER = LoggerFactory.getLogger(ZeroRmiRemoteSession.class);
+
+	/** Slave side metrics of sessions hosted by this JVM, keyed by session ID */
+	private static final Map<String, RmiMetricsBean> SLAVE_METRICS = new ConcurrentHashMap<String, RmiMetricsBean>();
+
 	private RmiGateway gateway;
+	private String nodeName;
+	private String sessionId;
+	private ObjectName metricsName;
+	private ObjectName remoteMetricsName;
+	private boolean terminated;
 	
 	public ZeroRmiRemoteSession(String nodeName) {
 		// TODO logging configuration
+		this.nodeName = nodeName;
+		this.sessionId = UUID.randomUUID().toString();
 		gateway = new RmiGateway(nodeName);		
 	}
 	
 	@Override
 	public SlaveSpore getMobileSpore() {
-		Spore spore = new Spore();
+		Spore spore = new Spore(sessionId);
 		return spore;
 	}
 
@@ -36,22 +72,85 @@ public class ZeroRmiRemoteSession implements RemoteExecutionSession {
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+		synchronized (this) {
+			if (metricsName == null) {
+				metricsName = RmiMetricsBean.register(platformRegistrator(), nodeName, gateway.getMetrics());
+				importRemoteMetrics();
+			}
+		}
+	}
+
+	/**
+	 * Slave side metrics are only kept in slave JVM, a remote view
+	 * of them is registered on master, so metrics of every node
+	 * are available in one place.
+	 */
+	private void importRemoteMetrics() {
+		gateway.getRemoteExecutorService().submit(new MetricsLookup(sessionId)).addListener(new Box<RemoteDynamicMBean>() {
+			@Override
+			public void setData(RemoteDynamicMBean data) {
+				if (data != null) {
+					registerRemoteMetrics(new CachedInfoMBean(data));
+				}
+			}
+
+			@Override
+			public void setError(Throwable e) {
+				LOGGER.debug("Failed to import slave metrics of " + nodeName + ": " + e.toString());
+			}
+		});
+	}
+
+	private synchronized void registerRemoteMetrics(DynamicMBean bean) {
+		if (!terminated && remoteMetricsName == null) {
+			remoteMetricsName = RmiMetricsBean.register(platformRegistrator(), RmiMetricsBean.remoteNameFor(nodeName), bean);
+		}
 	}
 
 	@Override
 	public void terminate(Throwable cause) {
 		gateway.shutdown(cause);
+		synchronized (this) {
+			terminated = true;
+			RmiMetricsBean.unregister(platformRegistrator(), metricsName);
+			RmiMetricsBean.unregister(platformRegistrator(), remoteMetricsName);
+			metricsName = null;
+			remoteMetricsName = null;
+		}
+	}
+
+	private static MBeanRegistrator platformRegistrator() {
+		return new MBeanRegistrator.MBeanServerRegistrator(ManagementFactory.getPlatformMBeanServer());
 	}
 
 	public static class Spore implements SlaveSpore {
 		
 		private static final long serialVersionUID = 20130806L;
-		
+
+		private final String sessionId;
+
+		public Spore(String sessionId) {
+			this.sessionId = sessionId;
+		}
+
 		@Override
 		public void start(DuplexStreamConnector masterConnector) {
 			RemotingEndPoint endpoint = new RemotingEndPoint(null, masterConnector);
 			endpoint.enableHeartbeatDeatchWatch();
-			endpoint.run();
+			RmiMetricsBean bean = new RmiMetricsBean("master", endpoint.getMetrics());
+			ObjectName name = RmiMetricsBean.register(platformRegistrator(), RmiMetricsBean.nameFor("master"), bean);
+			if (sessionId != null) {
+				SLAVE_METRICS.put(sessionId, bean);
+			}
+			try {
+				endpoint.run();
+			}
+			finally {
+				if (sessionId != null) {
+					SLAVE_METRICS.remove(sessionId);
+				}
+				RmiMetricsBean.unregister(platformRegistrator(), name);
+			}
 		}
 		
 		@Override
@@ -59,4 +158,100 @@ public class ZeroRmiRemoteSession implements RemoteExecutionSession {
 			return "RemotingEndPoint";
 		}
 	}		
+
+	private interface RemoteDynamicMBean extends DynamicMBean, Remote {
+		
+	}
+
+	/**
+	 * Executed on slave, exports metrics bean of session.
+	 */
+	private static class MetricsLookup implements Callable<RemoteDynamicMBean>, Serializable {
+
+		private static final long serialVersionUID = 20260801L;
+
+		private final String sessionId;
+
+		public MetricsLookup(String sessionId) {
+			this.sessionId = sessionId;
+		}
+
+		@Override
+		public RemoteDynamicMBean call() throws Exception {
+			RmiMetricsBean bean = SLAVE_METRICS.get(sessionId);
+			return bean == null ? null : new DynamicMBeanSkeleton(new StandardMBean(bean, RmiMetricsMXBean.class, true));
+		}
+	}
+
+	private static class DynamicMBeanSkeleton implements RemoteDynamicMBean {
+		
+		private DynamicMBean targetBean;
+
+		public DynamicMBeanSkeleton(DynamicMBean targetBean) {
+			this.targetBean = targetBean;
+		}
+
+		public Object getAttribute(String attribute) throws AttributeNotFoundException, MBeanException, ReflectionException {
+			return targetBean.getAttribute(attribute);
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException, MBeanException, ReflectionException {
+			targetBean.setAttribute(attribute);
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			return targetBean.getAttributes(attributes);
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return targetBean.setAttributes(attributes);
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+			return targetBean.invoke(actionName, params, signature);
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			return targetBean.getMBeanInfo();
+		}		
+	}
+
+	/**
+	 * Master side of remote bean, {@link MBeanInfo} is fetched once,
+	 * since MBean server asks for it on every query.
+	 */
+	private static class CachedInfoMBean implements DynamicMBean {
+
+		private DynamicMBean mbean;
+		private MBeanInfo mbeanInfo;
+
+		public CachedInfoMBean(DynamicMBean mbean) {
+			this.mbean = mbean;
+			this.mbeanInfo = mbean.getMBeanInfo();
+		}
+		
+		public Object getAttribute(String attribute) throws AttributeNotFoundException, MBeanException, ReflectionException {
+			return mbean.getAttribute(attribute);
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException, MBeanException, ReflectionException {
+			mbean.setAttribute(attribute);
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			return mbean.getAttributes(attributes);
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return mbean.setAttributes(attributes);
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+			return mbean.invoke(actionName, params, signature);
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			return mbeanInfo;
+		}
+	}
 }
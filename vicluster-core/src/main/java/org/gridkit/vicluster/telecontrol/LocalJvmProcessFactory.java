@@ -20,9 +20,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
@@ -33,8 +32,8 @@ import org.gridkit.util.concurrent.FutureBox;
 import org.gridkit.util.concurrent.FutureEx;
 import org.gridkit.vicluster.telecontrol.bootstraper.Bootstraper;
 import org.gridkit.zerormi.DuplexStream;
-import org.gridkit.zerormi.SocketStream;
 import org.gridkit.zerormi.hub.LegacySpore;
+import org.gridkit.zerormi.hub.NioSocketAcceptor;
 import org.gridkit.zerormi.hub.RemotingHub;
 import org.gridkit.zerormi.hub.RemotingHub.SessionEventListener;
 import org.gridkit.zerormi.zlog.ZLogFactory;
@@ -54,8 +53,8 @@ public class LocalJvmProcessFactory implements JvmProcessFactory {
 
 	// TODO configure ZLog
 	private RemotingHub hub = new RemotingHub(ZLogFactory.getDefaultRootLogger());
-	private ServerSocket socket;
-	private Thread accepter;
+	private NioSocketAcceptor accepter;
+	private int hubPort;
 	private List<Process> processes = new ArrayList<Process>();
 	private StreamCopyService streamCopyService;
 
@@ -87,33 +86,17 @@ public class LocalJvmProcessFactory implements JvmProcessFactory {
 
 	private void initHubSocket() {
 		try {
-			
+			// slave connections are served by a few selector threads instead of thread per slave
 			SocketAddress addr = new InetSocketAddress("127.0.0.1", 0);
-			ServerSocket socket = new ServerSocket();
-			socket.bind(addr);
-			this.socket = socket;
+			ServerSocketChannel socket = ServerSocketChannel.open();
+			socket.socket().bind(addr);
+			accepter = new NioSocketAcceptor();
+			accepter.bind(socket, hub);
+			accepter.start();
+			this.hubPort = accepter.getLocalAddress().getPort();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-		Runnable accepterTask = new Runnable() {
-			@Override
-			public void run() {
-				try {					
-					while(!socket.isClosed()) {
-						Socket conn = socket.accept();
-						hub.dispatch(new SocketStream(conn));
-					}
-				}
-				catch(IOException e) {
-					LOGGER.warn("ACCEPTER: " + e.toString());
-				}
-			}
-		};
-		
-		accepter = new Thread(accepterTask);
-		accepter.setDaemon(true);
-		accepter.setName("Control hub accepter [127.0.0.1:" + socket.getLocalPort() + "]");
-		accepter.start();
 	}
 
 	public void setJavaHome(String javaHome) {
@@ -125,12 +108,7 @@ public class LocalJvmProcessFactory implements JvmProcessFactory {
 	}
 
 	public void stop() {
-		accepter.interrupt();
-		try {
-			socket.close();
-		} catch (IOException e) {
-			// ignore
-		}
+		accepter.close();
 		for(Process p: processes) {
 			try {
 				p.destroy();
@@ -156,7 +134,7 @@ public class LocalJvmProcessFactory implements JvmProcessFactory {
 			
 			session = new RemoteControlSession();
 			String sessionId = LegacySpore.uidOf(hub.allocateSession(caption, session));
-			jvmCmd.addArg(sessionId).addArg("localhost").addArg(String.valueOf(socket.getLocalPort()));
+			jvmCmd.addArg(sessionId).addArg("localhost").addArg(String.valueOf(hubPort));
 			session.setSessionId(sessionId);
 			
 		}
@@ -0,0 +1,299 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.vicluster.telecontrol.bootstraper;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Private copy of block compression from ZeroRMI to make package self contained.
+ * <p>
+ * Block format: 4 byte header, highest bit is set if block is compressed,
+ * lower bits are raw size of block. Compressed block has another 4 byte
+ * compressed size followed by deflated data.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class BlockCompression {
+
+    static final int BLOCK_SIZE = 32 << 10;
+
+    private static final int COMPRESSED = 0x80000000;
+
+    public static class Counters {
+
+        final AtomicLong rawBytesOut = new AtomicLong();
+        final AtomicLong wireBytesOut = new AtomicLong();
+        final AtomicLong rawBytesIn = new AtomicLong();
+        final AtomicLong wireBytesIn = new AtomicLong();
+        final AtomicLong compressNanos = new AtomicLong();
+        final AtomicLong decompressNanos = new AtomicLong();
+
+        public long getRawBytesOut() {
+            return rawBytesOut.get();
+        }
+
+        public long getWireBytesOut() {
+            return wireBytesOut.get();
+        }
+
+        public long getRawBytesIn() {
+            return rawBytesIn.get();
+        }
+
+        public long getWireBytesIn() {
+            return wireBytesIn.get();
+        }
+
+        public double getOutboundRatio() {
+            long wire = wireBytesOut.get();
+            return wire == 0 ? 1 : ((double) rawBytesOut.get()) / wire;
+        }
+
+        public double getInboundRatio() {
+            long wire = wireBytesIn.get();
+            return wire == 0 ? 1 : ((double) rawBytesIn.get()) / wire;
+        }
+
+        public long getCompressTimeNanos() {
+            return compressNanos.get();
+        }
+
+        public long getDecompressTimeNanos() {
+            return decompressNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Compression[out: %d -> %d (%.2f), in: %d <- %d (%.2f), compress: %dms, decompress: %dms]",
+                    getRawBytesOut(), getWireBytesOut(), getOutboundRatio(),
+                    getRawBytesIn(), getWireBytesIn(), getInboundRatio(),
+                    getCompressTimeNanos() / 1000000, getDecompressTimeNanos() / 1000000);
+        }
+    }
+
+    static class Output extends OutputStream {
+
+        private final OutputStream target;
+        private final int threshold;
+        private final Counters counters;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final byte[] zblock = new byte[BLOCK_SIZE];
+        private final byte[] header = new byte[8];
+        private int size;
+
+        public Output(OutputStream target, int threshold, Counters counters) {
+            this.target = target;
+            this.threshold = threshold;
+            this.counters = counters;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == block.length) {
+                writeBlock();
+            }
+            block[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                if (size == block.length) {
+                    writeBlock();
+                }
+                int n = Math.min(len, block.length - size);
+                System.arraycopy(b, off, block, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeBlock();
+            target.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            }
+            finally {
+                deflater.end();
+                target.close();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if (size == 0) {
+                return;
+            }
+            int zsize = -1;
+            if (size >= threshold) {
+                long t = System.nanoTime();
+                zsize = deflate();
+                counters.compressNanos.addAndGet(System.nanoTime() - t);
+            }
+            if (zsize < 0) {
+                writeInt(header, 0, size);
+                target.write(header, 0, 4);
+                target.write(block, 0, size);
+                counters.wireBytesOut.addAndGet(4 + size);
+            }
+            else {
+                writeInt(header, 0, COMPRESSED | size);
+                writeInt(header, 4, zsize);
+                target.write(header, 0, 8);
+                target.write(zblock, 0, zsize);
+                counters.wireBytesOut.addAndGet(8 + zsize);
+            }
+            counters.rawBytesOut.addAndGet(size);
+            size = 0;
+        }
+
+        private int deflate() {
+            deflater.reset();
+            deflater.setInput(block, 0, size);
+            deflater.finish();
+            int zsize = 0;
+            while(!deflater.finished() && zsize < zblock.length) {
+                zsize += deflater.deflate(zblock, zsize, zblock.length - zsize);
+            }
+            return deflater.finished() && zsize + 4 < size ? zsize : -1;
+        }
+    }
+
+    static class Input extends InputStream {
+
+        private final DataInputStream source;
+        private final Counters counters;
+        private final Inflater inflater = new Inflater();
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final byte[] zblock = new byte[BLOCK_SIZE];
+        private int pos;
+        private int size;
+
+        public Input(InputStream source, Counters counters) {
+            this.source = new DataInputStream(source);
+            this.counters = counters;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == size && !readBlock()) {
+                return -1;
+            }
+            return block[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos == size && !readBlock()) {
+                return -1;
+            }
+            int n = Math.min(len, size - pos);
+            System.arraycopy(block, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return size - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            source.close();
+        }
+
+        private boolean readBlock() throws IOException {
+            int header;
+            try {
+                header = source.readInt();
+            }
+            catch(EOFException e) {
+                return false;
+            }
+            int rsize = header & ~COMPRESSED;
+            if (rsize <= 0 || rsize > block.length) {
+                throw new IOException("Stream corrupted! Illegal block size " + rsize);
+            }
+            if ((header & COMPRESSED) == 0) {
+                source.readFully(block, 0, rsize);
+                counters.wireBytesIn.addAndGet(4 + rsize);
+            }
+            else {
+                int zsize = source.readInt();
+                if (zsize <= 0 || zsize > zblock.length) {
+                    throw new IOException("Stream corrupted! Illegal compressed block size " + zsize);
+                }
+                source.readFully(zblock, 0, zsize);
+                long t = System.nanoTime();
+                inflate(zsize, rsize);
+                counters.decompressNanos.addAndGet(System.nanoTime() - t);
+                counters.wireBytesIn.addAndGet(8 + zsize);
+            }
+            counters.rawBytesIn.addAndGet(rsize);
+            pos = 0;
+            size = rsize;
+            return true;
+        }
+
+        private void inflate(int zsize, int rsize) throws IOException {
+            inflater.reset();
+            inflater.setInput(zblock, 0, zsize);
+            try {
+                int n = 0;
+                while(n < rsize && !inflater.finished()) {
+                    int m = inflater.inflate(block, n, rsize - n);
+                    if (m == 0 && inflater.needsInput()) {
+                        break;
+                    }
+                    n += m;
+                }
+                if (n != rsize) {
+                    throw new IOException("Stream corrupted! Block size mismatch, expected " + rsize + " but was " + n);
+                }
+            }
+            catch(DataFormatException e) {
+                throw new IOException("Stream corrupted! " + e.getMessage());
+            }
+        }
+    }
+
+    private static void writeInt(byte[] buf, int off, int v) {
+        buf[off] = (byte) (v >>> 24);
+        buf[off + 1] = (byte) (v >>> 16);
+        buf[off + 2] = (byte) (v >>> 8);
+        buf[off + 3] = (byte) v;
+    }
+}
@@ -0,0 +1,427 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.vicluster.telecontrol.bootstraper;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * rsync style delta encoding for file push.
+ * <p>
+ * Receiver splits files it already has (basis) into fixed size blocks
+ * and sends weak rolling checksum and MD5 for each block. Sender scans
+ * its data with rolling checksum and replaces matching blocks with
+ * references to basis. Stream is terminated with MD5 of whole file.
+ * <p>
+ * Signature format: int block size, int block count, followed by
+ * int weak checksum and 16 byte MD5 per block.
+ * <p>
+ * Delta format: sequence of operations, {@link #OP_DATA} followed by int length
+ * and literal data, {@link #OP_COPY} followed by int first block and
+ * int block count, {@link #OP_END} followed by MD5 of whole file.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class FileDelta {
+
+    static final int MIN_BLOCK_SIZE = 2 << 10;
+    static final int MAX_BLOCK_SIZE = 64 << 10;
+    static final int MAX_LITERAL = 64 << 10;
+
+    static final int OP_END = 0;
+    static final int OP_DATA = 1;
+    static final int OP_COPY = 2;
+
+    private static final int DIGEST_SIZE = 16;
+
+    /**
+     * Block size is around square root of file size, like in rsync.
+     */
+    static int blockSizeFor(long size) {
+        int bs = MIN_BLOCK_SIZE;
+        while(bs < MAX_BLOCK_SIZE && ((long)bs) * bs < size) {
+            bs <<= 1;
+        }
+        return bs;
+    }
+
+    static int weakChecksum(byte[] buf, int off, int len) {
+        int a = 0;
+        int b = 0;
+        for(int i = 0; i != len; ++i) {
+            int x = buf[off + i] & 0xFF;
+            a += x;
+            b += (len - i) * x;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Files available on receiver side, viewed as a single sequence of full blocks.
+     */
+    static class Basis implements Closeable {
+
+        private final RandomAccessFile[] files;
+        private final long[] firstBlock;
+        private final int blockSize;
+        private final int blockCount;
+
+        public Basis(List<File> candidates) throws IOException {
+            List<RandomAccessFile> opened = new ArrayList<RandomAccessFile>();
+            long total = 0;
+            for(File f: candidates) {
+                if (f.isFile()) {
+                    opened.add(new RandomAccessFile(f, "r"));
+                    total += f.length();
+                }
+            }
+            files = opened.toArray(new RandomAccessFile[opened.size()]);
+            firstBlock = new long[files.length];
+            blockSize = blockSizeFor(total);
+            long n = 0;
+            for(int i = 0; i != files.length; ++i) {
+                firstBlock[i] = n;
+                n += files[i].length() / blockSize;
+            }
+            blockCount = (int) Math.min(n, Integer.MAX_VALUE);
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public int getBlockCount() {
+            return blockCount;
+        }
+
+        public void writeSignatures(OutputStream os) throws IOException {
+            DataOutputStream dos = new DataOutputStream(os);
+            dos.writeInt(blockSize);
+            dos.writeInt(blockCount);
+            MessageDigest md = md5();
+            byte[] block = new byte[blockSize];
+            for(int i = 0; i != blockCount; ++i) {
+                readBlock(i, block);
+                dos.writeInt(weakChecksum(block, 0, blockSize));
+                md.update(block);
+                dos.write(md.digest());
+            }
+            dos.flush();
+        }
+
+        public void readBlock(int n, byte[] buf) throws IOException {
+            if (n < 0 || n >= blockCount) {
+                throw new IOException("Corrupted delta stream, no block " + n);
+            }
+            int f = files.length - 1;
+            while(firstBlock[f] > n) {
+                --f;
+            }
+            files[f].seek((n - firstBlock[f]) * blockSize);
+            files[f].readFully(buf, 0, blockSize);
+        }
+
+        @Override
+        public void close() {
+            for(RandomAccessFile f: files) {
+                try {
+                    f.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies delta stream to basis.
+     * @throws EOFException if delta stream ends prematurely, data written so far is valid
+     * @throws IOException if stream is corrupted or checksum does not match
+     */
+    static void applyDelta(InputStream delta, Basis basis, OutputStream target) throws IOException {
+        DataInputStream dis = new DataInputStream(delta);
+        MessageDigest md = md5();
+        byte[] buf = new byte[Math.max(MAX_LITERAL, basis.getBlockSize())];
+        while(true) {
+            int op = dis.read();
+            switch(op) {
+                case OP_DATA: {
+                    int len = dis.readInt();
+                    if (len <= 0 || len > MAX_LITERAL) {
+                        throw new IOException("Corrupted delta stream, literal size " + len);
+                    }
+                    dis.readFully(buf, 0, len);
+                    target.write(buf, 0, len);
+                    md.update(buf, 0, len);
+                    break;
+                }
+                case OP_COPY: {
+                    int block = dis.readInt();
+                    int count = dis.readInt();
+                    for(int i = 0; i < count; ++i) {
+                        basis.readBlock(block + i, buf);
+                        target.write(buf, 0, basis.getBlockSize());
+                        md.update(buf, 0, basis.getBlockSize());
+                    }
+                    break;
+                }
+                case OP_END: {
+                    byte[] expected = new byte[DIGEST_SIZE];
+                    dis.readFully(expected);
+                    if (!Arrays.equals(expected, md.digest())) {
+                        throw new IOException("Checksum mismatch");
+                    }
+                    return;
+                }
+                case -1:
+                    throw new EOFException("Delta stream is incomplete");
+                default:
+                    throw new IOException("Corrupted delta stream, unknown operation " + op);
+            }
+        }
+    }
+
+    /**
+     * Output stream encoding written data as delta against receiver's signatures.
+     * Signatures are read on first write, so stream could be created
+     * on control thread without blocking it.
+     */
+    static class Encoder extends OutputStream {
+
+        private final InputStream signatures;
+        private final DataOutputStream out;
+        private final MessageDigest fileDigest = md5();
+        private final MessageDigest blockDigest = md5();
+
+        private boolean ready;
+        private boolean closed;
+
+        private int blockSize;
+        private Map<Integer, Integer> weakIndex = new HashMap<Integer, Integer>();
+        /** Blocks with same weak checksum are chained */
+        private int[] nextBlock;
+        private byte[][] strong;
+
+        /** Literal data is [0, windowStart), window is [windowStart, windowStart + blockSize) */
+        private byte[] buf;
+        private int windowStart;
+        private int end;
+        private boolean rolling;
+        private int a;
+        private int b;
+
+        private int copyStart = -1;
+        private int copyCount;
+
+        public Encoder(InputStream signatures, OutputStream out) {
+            this.signatures = signatures;
+            this.out = new DataOutputStream(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            ensureReady();
+            fileDigest.update(data, off, len);
+            while(len > 0) {
+                int n = Math.min(len, buf.length - end);
+                System.arraycopy(data, off, buf, end, n);
+                end += n;
+                off += n;
+                len -= n;
+                scan();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                ensureReady();
+                emitLiteral(end);
+                flushCopy();
+                out.write(OP_END);
+                out.write(fileDigest.digest());
+                out.flush();
+            }
+            finally {
+                out.close();
+            }
+        }
+
+        private void ensureReady() throws IOException {
+            if (ready) {
+                return;
+            }
+            DataInputStream dis = new DataInputStream(signatures);
+            try {
+                blockSize = dis.readInt();
+                int count = dis.readInt();
+                if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE || count < 0) {
+                    throw new IOException("Corrupted signature stream");
+                }
+                nextBlock = new int[count];
+                strong = new byte[count][];
+                for(int i = 0; i != count; ++i) {
+                    int weak = dis.readInt();
+                    strong[i] = new byte[DIGEST_SIZE];
+                    dis.readFully(strong[i]);
+                    Integer prev = weakIndex.put(weak, i);
+                    nextBlock[i] = prev == null ? -1 : prev;
+                }
+            }
+            finally {
+                signatures.close();
+            }
+            buf = new byte[MAX_LITERAL + blockSize];
+            ready = true;
+        }
+
+        private void scan() throws IOException {
+            if (strong.length == 0) {
+                // nothing to match, send everything as literal
+                if (end == buf.length) {
+                    emitLiteral(end);
+                }
+                return;
+            }
+            while(end - windowStart >= blockSize) {
+                if (!rolling) {
+                    int w = weakChecksum(buf, windowStart, blockSize);
+                    a = w & 0xFFFF;
+                    b = w >>> 16;
+                    rolling = true;
+                }
+                int block = match();
+                if (block >= 0) {
+                    emitLiteral(windowStart);
+                    emitCopy(block);
+                    shift(blockSize);
+                    rolling = false;
+                }
+                else if (end - windowStart > blockSize) {
+                    int out = buf[windowStart] & 0xFF;
+                    int in = buf[windowStart + blockSize] & 0xFF;
+                    a += in - out;
+                    b += a - blockSize * out;
+                    ++windowStart;
+                    if (windowStart >= MAX_LITERAL) {
+                        emitLiteral(windowStart);
+                    }
+                }
+                else {
+                    // need more data to roll
+                    break;
+                }
+            }
+        }
+
+        private int match() {
+            Integer head = weakIndex.get((a & 0xFFFF) | (b << 16));
+            if (head == null) {
+                return -1;
+            }
+            blockDigest.update(buf, windowStart, blockSize);
+            byte[] digest = blockDigest.digest();
+            for(int n = head; n >= 0; n = nextBlock[n]) {
+                if (Arrays.equals(digest, strong[n])) {
+                    return n;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Sends first <code>len</code> bytes of buffer as literal.
+         */
+        private void emitLiteral(int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            flushCopy();
+            while(len > 0) {
+                int n = Math.min(len, MAX_LITERAL);
+                out.write(OP_DATA);
+                out.writeInt(n);
+                out.write(buf, 0, n);
+                shift(n);
+                len -= n;
+            }
+        }
+
+        private void emitCopy(int block) throws IOException {
+            if (copyStart >= 0 && copyStart + copyCount == block) {
+                ++copyCount;
+            }
+            else {
+                flushCopy();
+                copyStart = block;
+                copyCount = 1;
+            }
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyStart >= 0) {
+                out.write(OP_COPY);
+                out.writeInt(copyStart);
+                out.writeInt(copyCount);
+                copyStart = -1;
+                copyCount = 0;
+            }
+        }
+
+        /**
+         * Discards first <code>len</code> bytes of buffer.
+         */
+        private void shift(int len) {
+            System.arraycopy(buf, len, buf, 0, end - len);
+            end -= len;
+            windowStart = Math.max(0, windowStart - len);
+        }
+    }
+}
@@ -21,10 +21,29 @@ class StreamPipe {
 	private int out = 0;
 	private int inBuffer = 0;
 	
+	private volatile Runnable dataListener;
+	private volatile ReadListener readListener;
+	
 	public StreamPipe(int bufferSize) {
 		buffer = new byte[bufferSize];
 	}
 	
+	/**
+	 * Listener is called by writer thread once pipe becomes non empty
+	 * or is closed by writer. It is called outside of pipe's lock.
+	 */
+	public void setDataListener(Runnable listener) {
+		this.dataListener = listener;
+	}
+
+	/**
+	 * Listener is called by reader thread after data is consumed.
+	 * Data left in pipe, when it is closed by reader, is reported as consumed too.
+	 */
+	public void setReadListener(ReadListener listener) {
+		this.readListener = listener;
+	}
+	
 	/**
 	 * Unsynchronized!
 	 * 
@@ -69,6 +88,7 @@ class StreamPipe {
 		in = (in + run) % buffer.length;
 
 		readNotify(run);
+		fireReadListener(run);
 		return run;		
 	}
 	
@@ -85,7 +105,23 @@ class StreamPipe {
 			System.arraycopy(data, offs + run, buffer, 0, len - run);
 			out = len - run;			
 		}
-		writeNotify(len);
+		if (writeNotify(len)) {
+			fireDataListener();
+		}
+	}
+
+	private void fireReadListener(int len) {
+		ReadListener listener = readListener;
+		if (listener != null && len > 0) {
+			listener.consumed(len);
+		}
+	}
+
+	private void fireDataListener() {
+		Runnable listener = dataListener;
+		if (listener != null) {
+			listener.run();
+		}
 	}
 
 	private synchronized void waitForBuffer(int size) throws IOException {
@@ -132,10 +168,15 @@ class StreamPipe {
 		}
 	}
 	
-	private synchronized void writeNotify(int len) {
+	/**
+	 * @return <code>true</code> if pipe was empty before write
+	 */
+	private synchronized boolean writeNotify(int len) {
+		boolean wasEmpty = inBuffer == 0;
 		inBuffer += len;
 		inTotal += len;
 		this.notifyAll();		
+		return wasEmpty;
 	}
 
 	private synchronized void readNotify(int len) {
@@ -182,6 +223,8 @@ class StreamPipe {
 				closedByWriter = true;
 				StreamPipe.this.notifyAll();
 			}
+			// reader should observe EOF
+			fireDataListener();
 		}
 
 		@Override
@@ -234,10 +277,13 @@ class StreamPipe {
 
 		@Override
 		public void close() throws IOException {
+			int discarded;
 			synchronized(StreamPipe.this) {
+				discarded = closedByReader ? 0 : inBuffer;
 				closedByReader = true;
 				StreamPipe.this.notifyAll();
 			}
+			fireReadListener(discarded);
 		}
 		
 		@Override
@@ -245,4 +291,10 @@ class StreamPipe {
 			return "PipeIn@" + StreamPipe.this.hashCode();
 		}
 	}
+
+	public interface ReadListener {
+
+		public void consumed(int bytes);
+
+	}
 }
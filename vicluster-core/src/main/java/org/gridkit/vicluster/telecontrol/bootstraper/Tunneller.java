@@ -18,26 +18,39 @@ package org.gridkit.vicluster.telecontrol.bootstraper;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class Tunneller extends TunnellerIO {
 
     private static final byte[] EMPTY_BUFFER = new byte[0];
 
+    /** Output of exited process is closed if it has been idle for this long */
+    private static final long OUTPUT_IDLE_TIMEOUT_MS = 1000;
+
     public static void main(String[] args) throws IOException  {
         // This should warm up JDK IO classes
         // without this I was observing mysterious JVM hands with WinXP + 1.6u27
@@ -56,20 +69,32 @@ public class Tunneller extends TunnellerIO {
     private DataOutputStream ctrlRep;
 
     private Map<Long, ProcessHandler> processes = new ConcurrentHashMap<Long, ProcessHandler>();
+    private ExecutorService procIoPool = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        }
+    });
     private NavigableMap<Long, ServerSocket> sockets = new TreeMap<Long, ServerSocket>();
 
     private int maxParallelFileReceptions = 4;
     private int activeFileReceptions = 0;
     private List<FilePushCmd> pendingFiles = new ArrayList<TunnellerIO.FilePushCmd>();
 
+    /** Most recent file by name for each file cache root, built on first delta push into the cache */
+    private Map<File, Map<String, File>> cacheIndex = new HashMap<File, Map<String, File>>();
+
     public Tunneller() {
         super("", System.out);
+        deltaPush = true;
     }
 
     public void process(InputStream input, OutputStream output) {
 
-        Channel ctrlIn = new Channel(CTRL_REQ, Direction.INBOUND, 4 << 10);
-        Channel ctrlOut = new Channel(CTRL_REP, Direction.OUTBOUND, 4 << 10);
+        Channel ctrlIn = new Channel(CTRL_REQ, Direction.INBOUND, Priority.CONTROL);
+        Channel ctrlOut = new Channel(CTRL_REP, Direction.OUTBOUND, Priority.CONTROL);
 
         addChannel(ctrlIn);
         addChannel(ctrlOut);
@@ -78,15 +103,23 @@ public class Tunneller extends TunnellerIO {
         ctrlRep = new DataOutputStream(ctrlOut.outbound);
 
 
-        OutboundMux out = new OutboundMux(output);
-        out.start();
-
+        int options = 0;
         try {
-            readMagic(input);
+            options = readMagic(input);
         } catch (IOException e) {
             diagOut.println("Failed to init stream. " + e.toString());
         }
+        // compression is chosen by master side
+        compression = (options & OPT_COMPRESSION) != 0;
+        agreeFraming(options);
+
+        OutboundMux out = new OutboundMux(output);
+        out.start();
+
         InboundDemux in = new InboundDemux(input);
+        if (compression) {
+            in.enableCompression();
+        }
         in.start();
 
         if (traceControlThread) {
@@ -106,7 +139,8 @@ public class Tunneller extends TunnellerIO {
                     case KillCmd.ID: processKill(); break;
                     case BindCmd.ID: processBind(); break;
                     case AcceptCmd.ID: processAccept(); break;
-                    case FilePushCmd.ID: processPushFile(); break;
+                    case FilePushCmd.ID: processPushFile(new FilePushCmd()); break;
+                    case FileDeltaPushCmd.ID: processPushFile(new FileDeltaPushCmd()); break;
                     default:
                         System.out.println("ERROR: Unexpected command: " + cmd);
                         break;
@@ -126,9 +160,9 @@ public class Tunneller extends TunnellerIO {
         ExecCmd cmd = new ExecCmd();
         cmd.read(ctrlReq);
 
-        Channel stdIn = new Channel(cmd.inId, Direction.INBOUND, 16 << 10);
-        Channel stdOut = new Channel(cmd.outId, Direction.OUTBOUND, 16 << 10);
-        Channel stdErr = new Channel(cmd.errId, Direction.OUTBOUND, 16 << 10);
+        Channel stdIn = new Channel(cmd.inId, Direction.INBOUND, Priority.CONSOLE);
+        Channel stdOut = new Channel(cmd.outId, Direction.OUTBOUND, Priority.CONSOLE);
+        Channel stdErr = new Channel(cmd.errId, Direction.OUTBOUND, Priority.CONSOLE);
         addChannel(stdIn);
         addChannel(stdOut);
         addChannel(stdErr);
@@ -164,16 +198,15 @@ public class Tunneller extends TunnellerIO {
         AcceptCmd cmd = new AcceptCmd();
         cmd.read(ctrlReq);
 
-        Channel soIn = new Channel(cmd.inId, Direction.INBOUND, 16 << 10);
-        Channel soOut = new Channel(cmd.outId, Direction.OUTBOUND, 16 << 10);
+        Channel soIn = new Channel(cmd.inId, Direction.INBOUND, Priority.SOCKET);
+        Channel soOut = new Channel(cmd.outId, Direction.OUTBOUND, Priority.SOCKET);
         addChannel(soIn);
         addChannel(soOut);
 
         startAcceptor(cmd.cmdId, sockets.get(cmd.sockId), soIn.inbound, soOut.outbound);
     }
 
-    private void processPushFile() throws IOException {
-        FilePushCmd cmd = new FilePushCmd();
+    private void processPushFile(FilePushCmd cmd) throws IOException {
         cmd.read(ctrlReq);
 
         String error = "";
@@ -209,8 +242,10 @@ public class Tunneller extends TunnellerIO {
             File wd = new File(workingDir).getCanonicalFile();
             String[] envp = SystemHelper.buildInheritedEnvironment(env);
             Process process = Runtime.getRuntime().exec(command, envp, wd);
-            new ProcessHandler(procId, process, stdIn, stdOut, stdErr).start();
+            ProcessHandler ph = new ProcessHandler(procId, process, stdIn, stdOut, stdErr);
             sendStarted(procId);
+            // exit code should never overtake start notification
+            ph.start();
         } catch (IOException e) {
             PrintStream ps = new PrintStream(stdErr);
             e.printStackTrace(ps);
@@ -237,11 +272,23 @@ public class Tunneller extends TunnellerIO {
 
     private synchronized void startFileReception(FilePushCmd cmd) {
         try {
-            FileWriter writer = new FileWriter(cmd.fileId, cmd.targetPath);
-            Channel soIn = new Channel(cmd.inId, Direction.INBOUND, 16 << 10);
-            addChannel(soIn);
-            writer.in = soIn.inbound;
-            writer.start();
+            if (cmd instanceof FileDeltaPushCmd) {
+                DeltaFileWriter writer = new DeltaFileWriter(cmd.fileId, cmd.targetPath);
+                Channel soIn = new Channel(cmd.inId, Direction.INBOUND, Priority.BULK);
+                Channel soOut = new Channel(((FileDeltaPushCmd)cmd).outId, Direction.OUTBOUND, Priority.BULK);
+                addChannel(soIn);
+                addChannel(soOut);
+                writer.in = soIn.inbound;
+                writer.sigOut = soOut.outbound;
+                writer.start();
+            }
+            else {
+                FileWriter writer = new FileWriter(cmd.fileId, cmd.targetPath);
+                Channel soIn = new Channel(cmd.inId, Direction.INBOUND, Priority.BULK);
+                addChannel(soIn);
+                writer.in = soIn.inbound;
+                writer.start();
+            }
             ++activeFileReceptions;
             sendFileResponse(cmd.fileId, cmd.targetPath, -1, "");
         } catch (IOException e) {
@@ -272,7 +319,6 @@ public class Tunneller extends TunnellerIO {
             StartedCmd cmd = new StartedCmd();
             cmd.procId = procId;
             cmd.write(ctrlRep);
-            writePending();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -284,7 +330,6 @@ public class Tunneller extends TunnellerIO {
             cmd.procId = procId;
             cmd.code = code;
             cmd.write(ctrlRep);
-            writePending();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -296,7 +341,6 @@ public class Tunneller extends TunnellerIO {
             cmd.procId = procId;
             cmd.error = error;
             cmd.write(ctrlRep);
-            writePending();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -309,7 +353,6 @@ public class Tunneller extends TunnellerIO {
             cmd.host = host;
             cmd.port = port;
             cmd.write(ctrlRep);
-            writePending();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -322,7 +365,6 @@ public class Tunneller extends TunnellerIO {
             cmd.remoteHost = rhost;
             cmd.remotePort = rport;
             cmd.write(ctrlRep);
-            writePending();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -336,7 +378,6 @@ public class Tunneller extends TunnellerIO {
             cmd.size = size;
             cmd.error = error;
             cmd.write(ctrlRep);
-            writePending();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -425,13 +466,22 @@ public class Tunneller extends TunnellerIO {
         }
     }
 
-    private class ProcessHandler extends Thread {
+    /**
+     * Each child process is served by three blocking copy tasks (one per stream)
+     * and an exit watcher, all running on {@link #procIoPool}.
+     * Output is written straight into channel pipes, which wakes up mux,
+     * so no polling is involved.
+     */
+    private class ProcessHandler {
 
         final long procId;
         final Process proc;
         final InputStream stdIn;
         final OutputStream stdOut;
         final OutputStream stdErr;
+        final CountDownLatch outputDrained = new CountDownLatch(2);
+        StreamCopier outCopier;
+        StreamCopier errCopier;
 
         public ProcessHandler(long procId, Process process, InputStream stdIn,	OutputStream stdOut, OutputStream stdErr) {
             this.procId = procId;
@@ -439,70 +489,148 @@ public class Tunneller extends TunnellerIO {
             this.stdIn = stdIn;
             this.stdOut = stdOut;
             this.stdErr = stdErr;
-            setDaemon(true);
-            setName("PROC[" + procId + "]");
             processes.put(procId, this);
         }
 
+        public void start() {
+            String dStdIn = traceProcIO ? "stdIn@" + procId : null;
+            String dStdOut = traceProcIO ? "stdOut@" + procId : null;
+            String dStdErr = traceProcIO ? "stdErr@" + procId : null;
+            procIoPool.execute(new StreamCopier("PROC[" + procId + "]:stdIn", dStdIn, stdIn, proc.getOutputStream(), null));
+            outCopier = new StreamCopier("PROC[" + procId + "]:stdOut", dStdOut, proc.getInputStream(), stdOut, outputDrained);
+            errCopier = new StreamCopier("PROC[" + procId + "]:stdErr", dStdErr, proc.getErrorStream(), stdErr, outputDrained);
+            procIoPool.execute(outCopier);
+            procIoPool.execute(errCopier);
+            procIoPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    String threadName = Thread.currentThread().getName();
+                    Thread.currentThread().setName("PROC[" + procId + "]");
+                    try {
+                        awaitExit();
+                    }
+                    finally {
+                        Thread.currentThread().setName(threadName);
+                    }
+                }
+            });
+        }
+
+        void awaitExit() {
+            try {
+                int ec;
+                while(true) {
+                    try {
+                        ec = proc.waitFor();
+                        break;
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+                awaitOutput();
+
+                close(stdOut);
+                close(stdErr);
+                // unblocks stdIn copier
+                close(stdIn);
+
+                proc.destroy();
+
+                sendExitCode(procId, ec);
+                if (traceExitCode) {
+                    diagOut.println("Process [" + procId + "] exit code: " + ec);
+                }
+            }
+            finally {
+                processes.remove(procId);
+            }
+        }
+
+        /**
+         * Output may be held open by process' descendants, so it is not awaited
+         * forever. Though output is not cut while it is still flowing.
+         */
+        private void awaitOutput() {
+            long idleTimeout = TimeUnit.MILLISECONDS.toNanos(OUTPUT_IDLE_TIMEOUT_MS);
+            while(true) {
+                try {
+                    if (outputDrained.await(OUTPUT_IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                if (outCopier.isIdle(idleTimeout) && errCopier.isIdle(idleTimeout)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private class StreamCopier implements Runnable {
+
+        final String name;
+        final String diag;
+        final InputStream is;
+        final OutputStream os;
+        final CountDownLatch done;
+        /** {@link System#nanoTime()} of last copied chunk */
+        volatile long lastActivity = System.nanoTime();
+        /** Write may be blocked by slow consumer, copier is not idle then */
+        volatile boolean writing;
+
+        public StreamCopier(String name, String diag, InputStream is, OutputStream os, CountDownLatch done) {
+            this.name = name;
+            this.diag = diag;
+            this.is = is;
+            this.os = os;
+            this.done = done;
+        }
+
         @Override
         public void run() {
-            // reuse data copy buffer
+            String threadName = Thread.currentThread().getName();
+            Thread.currentThread().setName(name);
             byte[] buffer = new byte[4 << 10];
             try {
-                String dStdIn = traceProcIO ? "stdIn@" + procId : null;
-                String dStdOut = traceProcIO ? "stdOut@" + procId : null;
-                String dStdErr = traceProcIO ? "stdErr@" + procId : null;
                 while(true) {
-                    if (	pump(dStdIn, buffer, stdIn, proc.getOutputStream())
-                          | pump(dStdOut, buffer, proc.getInputStream(), stdOut)
-                          | pump(dStdErr, buffer, proc.getErrorStream(), stdErr)) {
-                        // TODO separate IN/OUT
-                        try {
-                            proc.getOutputStream().flush();
-                        } catch (IOException e) {
-                            // Ignore
+                    int n = is.read(buffer);
+                    if (n < 0) {
+                        if (diag != null) {
+                            diagOut.println("Pump [" + diag + "]: EOF");
                         }
-                        writePending();
-                        continue;
+                        break;
                     }
-                    else {
-                        try {
-                            int ec = proc.exitValue();
-                            try {
-                                // give a chance for streams to catch up
-                                Thread.sleep(50);
-                            } catch (InterruptedException e) {
-                                // ignore
-                            };
-                            pump(dStdOut, buffer, proc.getInputStream(), stdOut);
-                            pump(dStdErr, buffer, proc.getErrorStream(), stdErr);
-
-                            close(stdOut);
-                            close(stdErr);
-
-                            proc.destroy();
-
-                            sendExitCode(procId, ec);
-                            if (traceExitCode) {
-                                diagOut.println("Process [" + procId + "] exit code: " + ec);
-                            }
-                            break;
-                        }
-                        catch(IllegalThreadStateException e) {
-                            try {
-                                sleep(50);
-                            } catch (InterruptedException ee) {
-                                // ignore;
-                            }
-                            continue;
-                        }
+                    writing = true;
+                    try {
+                        os.write(buffer, 0, n);
+                        os.flush();
                     }
+                    finally {
+                        writing = false;
+                        lastActivity = System.nanoTime();
+                    }
+                    if (diag != null) {
+                        diagOut.println("Pump [" + diag + "]: " + n + " bytes");
+                    }
+                }
+            } catch (IOException e) {
+                if (diag != null) {
+                    diagOut.println("Pump [" + diag + "]: " + e.toString());
                 }
             }
             finally {
-                processes.remove(procId);
+                close(os);
+                if (done != null) {
+                    done.countDown();
+                }
+                Thread.currentThread().setName(threadName);
             }
         }
+
+        boolean isIdle(long timeoutNanos) {
+            return !writing && System.nanoTime() - lastActivity >= timeoutNanos;
+        }
     }
 
     private class SocketHandler extends Thread {
@@ -551,7 +679,6 @@ public class Tunneller extends TunnellerIO {
             while(sock.isConnected() && !sock.isClosed()) {
                 if (	pump(null, buffer, soIn, os)
                      || pump(null, buffer, is, soOut)) {
-                    writePending();
                     continue;
                 }
                 else {
@@ -563,7 +690,6 @@ public class Tunneller extends TunnellerIO {
             }
             close(is); // TODO control side should close input
             close(os);
-            writePending();
         }
     }
 
@@ -625,4 +751,278 @@ public class Tunneller extends TunnellerIO {
             }
         }
     }
+
+    /**
+     * Receives file as delta (see {@link FileDelta}) against partially received
+     * copy of same file and most recent file with same name in other file cache entries,
+     * which is previous version of file in file cache.
+     * <p>
+     * Data is written to <code>.part</code> file, which is kept if reception
+     * is interrupted and used as basis by next push of same file.
+     */
+    private class DeltaFileWriter extends Thread {
+
+        final long fileId;
+        final File targetFile;
+        final File partFile;
+        final File oldPartFile;
+        final File lockFile;
+        final RandomAccessFile lockStream;
+        final FileLock lock;
+        final File outFile;
+        final FileOutputStream fos;
+        InputStream in;
+        OutputStream sigOut;
+
+        public DeltaFileWriter(long fileId, String path) throws IOException {
+            this.fileId = fileId;
+            targetFile = new File(path);
+            File dir = targetFile.getParentFile();
+            if (dir != null) {
+                dir.mkdirs();
+                if (!dir.isDirectory()) {
+                    throw new IOException("Not a directory: " + dir.getPath());
+                }
+            }
+            partFile = new File(path + ".part");
+            oldPartFile = new File(path + ".part.old");
+
+            lockFile = new File(path + ".part.lock");
+            RandomAccessFile ls = null;
+            FileLock fl = null;
+            for(int i = 0; i != MAX_LOCK_ATTEMPTS; ++i) {
+                // lock file should not be truncated on open, see releaseLock()
+                ls = new RandomAccessFile(lockFile, "rw");
+                try {
+                    fl = ls.getChannel().tryLock();
+                } catch (OverlappingFileLockException e) {
+                    // same file is being received by this process
+                }
+                if (fl != null && ls.length() > 0) {
+                    // lock file was retired and unlinked by previous owner, retry with fresh one
+                    fl.release();
+                    fl = null;
+                    close(ls);
+                    continue;
+                }
+                break;
+            }
+            lockStream = ls;
+            lock = fl;
+            try {
+                if (lock != null) {
+                    // partial file from previous attempt becomes basis
+                    preservePartFile();
+                    outFile = partFile;
+                }
+                else {
+                    // someone else is receiving same file, do not touch partial files
+                    outFile = File.createTempFile(targetFile.getName() + ".", "", dir);
+                }
+                fos = new FileOutputStream(outFile);
+            }
+            catch(IOException e) {
+                releaseLock();
+                throw e;
+            }
+
+            setDaemon(true);
+            setName("FILE[" + path + "]");
+        }
+
+        @Override
+        public void run() {
+            String error = null;
+            FileDelta.Basis basis = null;
+            try {
+                List<File> candidates = new ArrayList<File>();
+                if (lock != null) {
+                    candidates.add(oldPartFile);
+                }
+                File prev = findPreviousVersion();
+                if (prev != null) {
+                    candidates.add(prev);
+                }
+
+                basis = new FileDelta.Basis(candidates);
+                try {
+                    basis.writeSignatures(sigOut);
+                }
+                finally {
+                    close(sigOut);
+                }
+
+                FileDelta.applyDelta(in, basis, fos);
+                close(fos);
+                close(in);
+                basis.close();
+
+                if (!targetFile.exists()) {
+                    outFile.renameTo(targetFile);
+                }
+                outFile.delete();
+                oldPartFile.delete();
+                if (targetFile.isFile()) {
+                    indexCachedFile(targetFile);
+                }
+            } catch (EOFException e) {
+                // reception was interrupted, data received so far is valid
+                error = e.toString();
+                close(fos);
+                close(in);
+                if (basis != null) {
+                    basis.close();
+                }
+                if (lock != null) {
+                    preservePartFile();
+                }
+                else {
+                    outFile.delete();
+                }
+            } catch (IOException e) {
+                error = e.toString();
+                close(fos);
+                close(in);
+                if (basis != null) {
+                    basis.close();
+                }
+                outFile.delete();
+                if (lock != null) {
+                    // basis could be corrupted
+                    oldPartFile.delete();
+                }
+            }
+            finally {
+                releaseLock();
+            }
+
+            if (error != null) {
+                completeFileReception(fileId, targetFile.getPath(), -1, error);
+            }
+            else if (targetFile.exists() && !targetFile.isDirectory()) {
+                completeFileReception(fileId, targetFile.getPath(), targetFile.length(), "");
+            }
+            else {
+                completeFileReception(fileId, targetFile.getPath(), -1, "Failed to rename target file");
+            }
+        }
+
+        /**
+         * Lock file is removed if no partial file is left. Before unlinking,
+         * lock file is marked as retired (made non empty) while lock is still held,
+         * so process which has opened it concurrently would not rely on unlinked file.
+         */
+        private void releaseLock() {
+            if (lock != null) {
+                if (!partFile.exists() && !oldPartFile.exists()) {
+                    try {
+                        lockStream.write(1);
+                        lockFile.delete();
+                    } catch (IOException e) {
+                        // ignore, lock file will be reused
+                    }
+                }
+                try {
+                    lock.release();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            close(lockStream);
+        }
+
+        /**
+         * Keeps longest of partial files as {@link #oldPartFile}.
+         * Both could exist if tunneller was terminated during reception.
+         */
+        private void preservePartFile() {
+            if (partFile.exists()) {
+                if (oldPartFile.exists() && oldPartFile.length() >= partFile.length()) {
+                    partFile.delete();
+                }
+                else {
+                    oldPartFile.delete();
+                    partFile.renameTo(oldPartFile);
+                }
+            }
+        }
+
+        private File findPreviousVersion() {
+            File prev = lookupCachedFile(targetFile);
+            return prev == null || prev.equals(targetFile) ? null : prev;
+        }
+    }
+
+    private static final int MAX_LOCK_ATTEMPTS = 8;
+
+    /**
+     * Files in cache are stored as <code>{cache}/{hash}/{name}</code>.
+     * Other paths are not considered part of cache.
+     */
+    private static File getCacheRoot(File file) {
+        File dir = file.getParentFile();
+        return dir == null || !isContentHash(dir.getName()) ? null : dir.getParentFile();
+    }
+
+    private static boolean isContentHash(String name) {
+        if (name.length() < 32) {
+            return false;
+        }
+        for(int i = 0; i != name.length(); ++i) {
+            if (Character.digit(name.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return most recent file with same name in file cache, or <code>null</code> if target is not in cache
+     */
+    private synchronized File lookupCachedFile(File target) {
+        Map<String, File> index = getCacheIndex(target);
+        if (index == null) {
+            return null;
+        }
+        File f = index.get(target.getName());
+        if (f != null && !f.isFile()) {
+            index.remove(target.getName());
+            f = null;
+        }
+        return f;
+    }
+
+    private synchronized void indexCachedFile(File file) {
+        Map<String, File> index = getCacheIndex(file);
+        if (index != null) {
+            index.put(file.getName(), file);
+        }
+    }
+
+    private Map<String, File> getCacheIndex(File file) {
+        File root = getCacheRoot(file);
+        if (root == null) {
+            return null;
+        }
+        Map<String, File> index = cacheIndex.get(root);
+        if (index == null) {
+            index = new HashMap<String, File>();
+            File[] dirs = root.listFiles();
+            if (dirs != null) {
+                for(File d: dirs) {
+                    File[] files = d.isDirectory() && isContentHash(d.getName()) ? d.listFiles() : null;
+                    if (files != null) {
+                        for(File f: files) {
+                            File best = index.get(f.getName());
+                            if (f.isFile() && (best == null || f.lastModified() > best.lastModified())) {
+                                index.put(f.getName(), f);
+                            }
+                        }
+                    }
+                }
+            }
+            cacheIndex.put(root, index);
+        }
+        return index;
+    }
 }
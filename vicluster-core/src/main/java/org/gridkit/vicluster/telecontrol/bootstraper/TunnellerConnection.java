@@ -32,6 +32,11 @@ import org.gridkit.util.concurrent.FutureBox;
 
 public class TunnellerConnection extends TunnellerIO {
 
+    /** If <code>true</code> tunnel traffic is compressed in both directions */
+    public static final String PROP_COMPRESSION = "gridkit.tunneller.compression";
+    /** If <code>false</code> files are always pushed in full, even if tunneller supports delta push */
+    public static final String PROP_DELTA_PUSH = "gridkit.tunneller.delta-push";
+
     private InboundDemux inbound;
     private OutboundMux outbound;
     private Control control;
@@ -57,9 +62,10 @@ public class TunnellerConnection extends TunnellerIO {
         super(":" + name, diagOut);
 
         embededMode = true;
+        compression = Boolean.getBoolean(PROP_COMPRESSION);
 
-        Channel rq = new Channel(CTRL_REQ, Direction.OUTBOUND, 4 << 10);
-        Channel rp = new Channel(CTRL_REP, Direction.INBOUND, 4 << 10);
+        Channel rq = new Channel(CTRL_REQ, Direction.OUTBOUND, Priority.CONTROL);
+        Channel rp = new Channel(CTRL_REP, Direction.INBOUND, Priority.CONTROL);
 
         addChannel(rq);
         addChannel(rp);
@@ -74,7 +80,11 @@ public class TunnellerConnection extends TunnellerIO {
             @Override
             public void run() {
                 try {
-                    readMagic(in);
+                    int options = readMagic(in);
+                    if ((options & OPT_COMPRESSION) != 0) {
+                        enableCompression();
+                    }
+                    agreeFraming(options);
                     magicReceived.setData(null);
                 }
                 catch(Exception e) {
@@ -104,6 +114,10 @@ public class TunnellerConnection extends TunnellerIO {
         control.start();
     }
 
+    public BlockCompression.Counters getCompressionCounters() {
+        return compressionCounters;
+    }
+
     public synchronized long newSocket(SocketHandler handler) throws IOException {
         long sockId = nextSocket++;
         SocketContext ctx = new SocketContext();
@@ -126,7 +140,15 @@ public class TunnellerConnection extends TunnellerIO {
         ctx.handler = handler;
         files.put(fileId, ctx);
         try {
-            sendPush(fileId, path, ctx.chanId);
+            if (isDeltaPushEnabled()) {
+                long sigId = newChannelId();
+                // signatures may arrive right after response
+                ctx.signatures = newInbound(sigId, Priority.BULK);
+                sendDeltaPush(fileId, path, ctx.chanId, sigId);
+            }
+            else {
+                sendPush(fileId, path, ctx.chanId);
+            }
         } catch (IOException e) {
             shutdown();
             throw new IOException("Broken tunnel");
@@ -143,9 +165,9 @@ public class TunnellerConnection extends TunnellerIO {
         long stdOut = newChannelId();
         long stdErr = newChannelId();
 
-        ctx.stdIn = newOutbound(stdIn);
-        ctx.stdOut = newInbound(stdOut);
-        ctx.stdErr = newInbound(stdErr);
+        ctx.stdIn = newOutbound(stdIn, Priority.CONSOLE);
+        ctx.stdOut = newInbound(stdOut, Priority.CONSOLE);
+        ctx.stdErr = newInbound(stdErr, Priority.CONSOLE);
 
         execs.put(ctx.procId, ctx);
 
@@ -219,8 +241,8 @@ public class TunnellerConnection extends TunnellerIO {
 
         long inId = newChannelId();
         long outId = newChannelId();
-        ac.soIn = newInbound(inId);
-        ac.soOut = newOutbound(outId);
+        ac.soIn = newInbound(inId, Priority.SOCKET);
+        ac.soOut = newOutbound(outId, Priority.SOCKET);
 
         accepts.put(ac.cmdId, ac);
 
@@ -266,6 +288,20 @@ public class TunnellerConnection extends TunnellerIO {
         cmd.write(ctrlReq);
     }
 
+    private synchronized void sendDeltaPush(long fileId, String path, long outId, long sigId) throws IOException {
+        FileDeltaPushCmd cmd = new FileDeltaPushCmd();
+        cmd.fileId = fileId;
+        cmd.path = path;
+        cmd.inId = outId;
+        cmd.outId = sigId;
+
+        cmd.write(ctrlReq);
+    }
+
+    private boolean isDeltaPushEnabled() {
+        return (peerOptions & OPT_DELTA_PUSH) != 0 && !"false".equals(System.getProperty(PROP_DELTA_PUSH));
+    }
+
     private synchronized void sendKill(long procId) throws IOException {
         KillCmd cmd = new KillCmd();
         cmd.procId = procId;
@@ -273,16 +309,16 @@ public class TunnellerConnection extends TunnellerIO {
         cmd.write(ctrlReq);
     }
 
-    private InputStream newInbound(long id) {
-        Channel ch = new Channel(id, Direction.INBOUND, 16 << 10);
+    private InputStream newInbound(long id, Priority priority) {
+        Channel ch = new Channel(id, Direction.INBOUND, priority);
         addChannel(ch);
         return ch.inbound;
     }
 
-    private OutputStream newOutbound(long id) {
-        Channel ch = new Channel(id, Direction.OUTBOUND, 16 << 10);
+    private OutputStream newOutbound(long id, Priority priority) {
+        Channel ch = new Channel(id, Direction.OUTBOUND, priority);
         addChannel(ch);
-        return new NotifyingOutputStream(ch.outbound);
+        return ch.outbound;
     }
 
 
@@ -345,6 +381,8 @@ public class TunnellerConnection extends TunnellerIO {
         FileHandler handler;
         long chanId;
         OutputStream channel;
+        /** Block signatures, if file is pushed as delta */
+        InputStream signatures;
     }
 
     private class Control extends Thread {
@@ -420,8 +458,13 @@ public class TunnellerConnection extends TunnellerIO {
                     }
                 }
                 ctx.rpath = cmd.path;
-                ctx.channel = newOutbound(ctx.chanId);
-                ctx.handler.accepted(ctx.channel);
+                ctx.channel = newOutbound(ctx.chanId, Priority.BULK);
+                if (ctx.signatures != null) {
+                    ctx.handler.accepted(new FileDelta.Encoder(ctx.signatures, ctx.channel));
+                }
+                else {
+                    ctx.handler.accepted(ctx.channel);
+                }
             }
             else {
                 FileContext ctx;
@@ -433,6 +476,7 @@ public class TunnellerConnection extends TunnellerIO {
                 }
                 ctx.rpath = cmd.path;
                 close(ctx.channel);
+                close(ctx.signatures);
 
                 if (cmd.error.length() != 0) {
                     ctx.handler.failed(ctx.rpath, cmd.error);
@@ -551,47 +595,4 @@ public class TunnellerConnection extends TunnellerIO {
         public void close() throws IOException;
 
     }
-
-    private class NotifyingOutputStream extends OutputStream {
-
-        private final OutputStream delegate;
-
-        public NotifyingOutputStream(OutputStream delegate) {
-            this.delegate = delegate;
-        }
-
-        @Override
-        public void write(int b) throws IOException {
-            delegate.write(b);
-            writePending();
-        }
-
-        @Override
-        public void write(byte[] b) throws IOException {
-            delegate.write(b);
-            writePending();
-        }
-
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            delegate.write(b, off, len);
-            writePending();
-        }
-
-        @Override
-        public void flush() throws IOException {
-            delegate.flush();
-        }
-
-        @Override
-        public void close() throws IOException {
-            delegate.close();
-            writePending();
-        }
-
-        @Override
-        public String toString() {
-            return delegate.toString();
-        }
-    }
 }
@@ -23,20 +23,47 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
-import java.util.TreeMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 class TunnellerIO {
 
     protected static final byte[] MAGIC = "START TUNNEL".getBytes();
 
+    /** Option byte following MAGIC, set if rest of the stream is compressed */
+    protected static final int OPT_COMPRESSION = 1;
+    /**
+     * Option byte following MAGIC, set if side can handle large frames.
+     * Large frames are used in both directions only if both sides have declared it.
+     */
+    protected static final int OPT_LARGE_FRAMES = 2;
+    /**
+     * Option byte following MAGIC, set if side can handle credit based flow control.
+     * Flow control is used only together with large frames.
+     */
+    protected static final int OPT_FLOW_CONTROL = 4;
+    /**
+     * Option byte following MAGIC, set if side can receive files pushed as delta
+     * (see {@link FileDelta}).
+     */
+    protected static final int OPT_DELTA_PUSH = 8;
+
+    /** Legacy frame: 8 byte channel ID, 2 byte size, payload padded to 8 bytes */
+    private static final int LEGACY_FRAME_SIZE = 1024;
+    /** Large frame: var int channel ID (zig zag encoded), var int size, payload */
+    private static final int LARGE_FRAME_SIZE = 64 << 10;
+
     protected static final long CTRL_REQ = -1;
     protected static final long CTRL_REP = -2;
+    /** Reserved channel, payload is sequence of var int channel ID (zig zag encoded) and var int credit */
+    protected static final long CTRL_CREDIT = -3;
 
     private static final int CMD_EXEC = 1;
     private static final int CMD_STARTED = 2;
@@ -49,9 +76,30 @@ class TunnellerIO {
     private static final int CMD_ACCEPTED = 8;
     private static final int CMD_FILE_PUSH = 9;
     private static final int CMD_FILE_PUSH_RESPONSE = 10;
+    private static final int CMD_FILE_DELTA_PUSH = 11;
 
     enum Direction {INBOUND, OUTBOUND}
 
+    /**
+     * Ready channels are served in order of priority. Priority is known to
+     * both sides of channel, so it also defines flow control window, which
+     * is initial credit of sender and capacity of receiver's pipe.
+     */
+    enum Priority {
+
+        CONTROL(16 << 10),
+        /** Tunnelled sockets, RMI traffic */
+        SOCKET(128 << 10),
+        CONSOLE(64 << 10),
+        BULK(256 << 10);
+
+        final int window;
+
+        private Priority(int window) {
+            this.window = window;
+        }
+    }
+
     static class ExecCmd {
 
         static final int ID = CMD_EXEC;
@@ -266,6 +314,32 @@ class TunnellerIO {
         }
     }
 
+    /**
+     * Receiver sends block signatures over <code>outId</code> channel,
+     * then reads delta from <code>inId</code> channel.
+     */
+    static class FileDeltaPushCmd extends FilePushCmd {
+
+        static final int ID = CMD_FILE_DELTA_PUSH;
+
+        long outId;
+
+        @Override
+        public void read(DataInputStream dis) throws IOException {
+            super.read(dis);
+            outId = dis.readLong();
+        }
+
+        @Override
+        public void write(DataOutputStream dos) throws IOException {
+            dos.writeInt(ID);
+            dos.writeLong(fileId);
+            dos.writeUTF(path);
+            dos.writeLong(inId);
+            dos.writeLong(outId);
+        }
+    }
+
     static class FilePushResponseCmd {
 
         static final int ID = CMD_FILE_PUSH_RESPONSE;
@@ -362,16 +436,37 @@ class TunnellerIO {
 
     protected PrintStream diagOut;
 
+    /** If <code>true</code> outbound stream is compressed, should be set before mux is started */
+    protected boolean compression;
+    protected int compressionThreshold = 512;
+    protected final BlockCompression.Counters compressionCounters = new BlockCompression.Counters();
+    /** If <code>true</code> side declares it can receive delta file pushes, should be set before mux is started */
+    protected boolean deltaPush;
+    /** Options declared by other side */
+    protected volatile int peerOptions;
+
     private String threadSuffix;
-    private NavigableMap<Long, Channel> channels = new TreeMap<Long, Channel>();
+    private Map<Long, Channel> channels = new HashMap<Long, Channel>();
+    /** Outbound channels having data or EOF to be sent, queue per priority */
+    private Queue<Channel>[] readyChannels = newQueues(Priority.values().length);
+    /** Inbound channels having credit to be granted to other side */
+    private Queue<Channel> pendingGrants = new ConcurrentLinkedQueue<Channel>();
     private Semaphore writePending = new Semaphore(0);
 
+    /** Frames are not written until other side's options are known */
+    private CountDownLatch framingAgreed = new CountDownLatch(1);
+    private volatile boolean largeFrames;
+    private volatile boolean flowControl;
+
     protected TunnellerIO(String name, PrintStream diagOut) {
         this.threadSuffix = name;
         this.diagOut = diagOut;
     }
 
-    protected void readMagic(InputStream is) throws IOException {
+    /**
+     * @return stream options sent by other side
+     */
+    protected int readMagic(InputStream is) throws IOException {
         byte[] data = new byte[MAGIC.length];
         int n = 0;
         while(n < data.length) {
@@ -391,13 +486,57 @@ class TunnellerIO {
 
             throw new IOException("Magic not match, expected [" + new String(MAGIC) + "], read [" + new String(data) + "]");
         }
+        int options = is.read();
+        if (options < 0) {
+            throw new IOException("Failed to read stream options, EOF reached");
+        }
+        return options;
     }
 
-    protected void writePending() {
-        writePending.release(1);
+    /**
+     * Should be called once options of other side are known.
+     */
+    protected void agreeFraming(int peerOptions) {
+        this.peerOptions = peerOptions;
+        largeFrames = (peerOptions & OPT_LARGE_FRAMES) != 0;
+        flowControl = largeFrames && (peerOptions & OPT_FLOW_CONTROL) != 0;
+        framingAgreed.countDown();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Queue<Channel>[] newQueues(int n) {
+        Queue<Channel>[] queues = new Queue[n];
+        for(int i = 0; i != n; ++i) {
+            queues[i] = new ConcurrentLinkedQueue<Channel>();
+        }
+        return queues;
+    }
+
+    /**
+     * Channel is queued at most once, flag is cleared by mux before reading channel.
+     */
+    private void channelReady(Channel ch) {
+        if (ch.ready.compareAndSet(false, true)) {
+            readyChannels[ch.priority.ordinal()].add(ch);
+            writePending.release(1);
+        }
+    }
+
+    /**
+     * Credit is granted back once half of window is consumed, so sender
+     * is not stalled while grant is in flight.
+     */
+    private void bytesConsumed(Channel ch, int bytes, boolean grantNow) {
+        if (flowControl) {
+            long consumed = ch.consumed.addAndGet(bytes);
+            if ((grantNow || consumed >= ch.priority.window / 2) && ch.grantPending.compareAndSet(false, true)) {
+                pendingGrants.add(ch);
+                writePending.release(1);
+            }
+        }
     }
 
-    protected void addChannel(Channel ch) {
+    protected void addChannel(final Channel ch) {
         synchronized(channels) {
             if (channels.containsKey(ch.channelId)) {
                 throw new IllegalArgumentException("Channel already exists: " + ch.channelId);
@@ -407,6 +546,24 @@ class TunnellerIO {
                 diagOut.println("Channel open: [" + ch.channelId + "] " + ch.direction);
             }
         }
+        if (ch.direction == Direction.OUTBOUND) {
+            ch.pipe.setDataListener(new Runnable() {
+                @Override
+                public void run() {
+                    channelReady(ch);
+                }
+            });
+            // data may have been written before listener was set
+            channelReady(ch);
+        }
+        else {
+            ch.pipe.setReadListener(new StreamPipe.ReadListener() {
+                @Override
+                public void consumed(int bytes) {
+                    bytesConsumed(ch, bytes, false);
+                }
+            });
+        }
     }
 
     protected synchronized void stopChannels() {
@@ -430,7 +587,6 @@ class TunnellerIO {
     protected class OutboundMux extends Thread {
 
         private DataOutputStream out;
-        private long nextInQueue;
 
         public OutboundMux(OutputStream os) {
             this.out = new DataOutputStream(os);
@@ -452,56 +608,84 @@ class TunnellerIO {
             setName("OutboundMux" + threadSuffix);
             try {
                 out.write(MAGIC);
+                out.write((compression ? OPT_COMPRESSION : 0) | (deltaPush ? OPT_DELTA_PUSH : 0) | OPT_LARGE_FRAMES | OPT_FLOW_CONTROL);
                 out.flush();
-                byte[] buf = new byte[1024];
+                if (compression) {
+                    out = new DataOutputStream(new BlockCompression.Output(out, compressionThreshold, compressionCounters));
+                }
+                framingAgreed.await();
+                boolean large = largeFrames;
+                boolean flow = flowControl;
+                byte[] buf = new byte[large ? LARGE_FRAME_SIZE : LEGACY_FRAME_SIZE];
                 while(true) {
-                    writePending.tryAcquire(100, TimeUnit.MILLISECONDS);
-                    writePending.drainPermits();
-                    nextInQueue = Long.MIN_VALUE;
-                    while(true) {
-                        Channel ch = nextWritePending();
-                        if (ch == null) {
-                            break;
-                        }
-                        int n;
+                    if (flow && !pendingGrants.isEmpty()) {
+                        writeGrants(buf);
+                        continue;
+                    }
+                    Channel ch = nextReady();
+                    if (ch == null) {
                         try {
-                            n = ch.inbound.read(buf);
-                        } catch (IOException e) {
-                            // can only happen if channel has been closed
-                            throw new InterruptedException("Termination condition detected");
-                        }
-                        try {
-                            if (n < 0) {
-                                if (traceChannelClose) {
-                                    diagOut.println("Channel closed: [" + ch.channelId + "] " + ch.direction);
-                                }
-                                synchronized(channels) {
-                                    channels.remove(ch.channelId);
-                                }
-                                out.writeLong(ch.channelId);
-                                out.writeShort(0); // EOF marker
-                                if (traceChannelData) {
-                                    diagOut.println("Channel send: [" + ch.channelId + "] - EOF");
-                                }
-                            }
-                            else {
-                                out.writeLong(ch.channelId);
-                                out.writeShort(n);
-                                out.write(buf, 0, align(n));
-                                if (traceChannelData) {
-                                    diagOut.println("Channel send: [" + ch.channelId + "] " + n + " bytes");
-                                }
-
-                            }
+                            out.flush();
                         } catch (IOException e) {
                             diagOut.println("Outbound write failed: " + e.toString());
                         }
+                        // permit is released after channel is queued, so wake up cannot be lost
+                        writePending.acquire();
+                        writePending.drainPermits();
+                        continue;
                     }
+                    // writes from now on would queue channel again
+                    ch.ready.set(false);
+                    if (ch.eofSent || !hasPendingData(ch)) {
+                        continue;
+                    }
+                    int limit = flow ? (int) Math.min(buf.length, ch.credit.get()) : buf.length;
+                    int n;
                     try {
-                        out.flush();
+                        // zero length read still reports EOF
+                        n = ch.inbound.read(buf, 0, limit);
+                        if (large && n > 0) {
+                            n = fillFrame(ch, buf, n, limit);
+                        }
+                    } catch (IOException e) {
+                        // can only happen if channel has been closed
+                        throw new InterruptedException("Termination condition detected");
+                    }
+                    if (n == 0) {
+                        // out of credit, channel would be queued again once credit is granted
+                        continue;
+                    }
+                    if (flow && n > 0) {
+                        ch.credit.addAndGet(-n);
+                    }
+                    try {
+                        if (n < 0) {
+                            if (traceChannelClose) {
+                                diagOut.println("Channel closed: [" + ch.channelId + "] " + ch.direction);
+                            }
+                            synchronized(channels) {
+                                channels.remove(ch.channelId);
+                            }
+                            ch.eofSent = true;
+                            writeFrame(large, ch.channelId, buf, 0); // EOF marker
+                            if (traceChannelData) {
+                                diagOut.println("Channel send: [" + ch.channelId + "] - EOF");
+                            }
+                        }
+                        else {
+                            writeFrame(large, ch.channelId, buf, n);
+                            if (traceChannelData) {
+                                diagOut.println("Channel send: [" + ch.channelId + "] " + n + " bytes");
+                            }
+
+                        }
                     } catch (IOException e) {
                         diagOut.println("Outbound write failed: " + e.toString());
                     }
+                    if (n >= 0 && hasPendingData(ch)) {
+                        // back to the tail of queue, so channels are served round robin
+                        channelReady(ch);
+                    }
                 }
             } catch (InterruptedException e) {
                 if (!embededMode) {
@@ -513,28 +697,84 @@ class TunnellerIO {
             }
         }
 
-        private Channel nextWritePending() {
+        /**
+         * Priorities are strict, lower priority channel is served only if no
+         * higher priority channel is ready.
+         */
+        private Channel nextReady() {
+            for(Queue<Channel> queue: readyChannels) {
+                Channel ch = queue.poll();
+                if (ch != null) {
+                    return ch;
+                }
+            }
+            return null;
+        }
+
+        private void writeGrants(byte[] buf) throws IOException {
             int n = 0;
-            synchronized(channels) {
-                while(n <= channels.size()) {
-                    Entry<Long, Channel> ne = channels.ceilingEntry(nextInQueue);
-                    if (ne == null) {
-                        nextInQueue = Long.MIN_VALUE;
-                        continue;
-                    }
-                    Channel ch = ne.getValue();
-                    nextInQueue = ch.channelId + 1;
-                    ++n;
-                    try {
-                        if (ch.direction == Direction.OUTBOUND && ch.inbound.available() > 0) {
-                            return ch;
-                        }
-                    } catch (IOException e) {
-                        return ch;
+            Channel ch;
+            // single grant takes at most 20 bytes
+            while(n + 20 <= buf.length && (ch = pendingGrants.poll()) != null) {
+                ch.grantPending.set(false);
+                long credit = ch.consumed.getAndSet(0);
+                if (credit > 0) {
+                    n = putVarLong(buf, n, (ch.channelId << 1) ^ (ch.channelId >> 63));
+                    n = putVarLong(buf, n, credit);
+                }
+            }
+            if (n > 0) {
+                writeFrame(true, CTRL_CREDIT, buf, n);
+                if (traceChannelData) {
+                    diagOut.println("Channel send: [" + CTRL_CREDIT + "] " + n + " bytes of credit");
+                }
+            }
+        }
+
+        /**
+         * Pipe read stops at buffer edge, so frame is topped up with data already in pipe.
+         */
+        private int fillFrame(Channel ch, byte[] buf, int n, int limit) throws IOException {
+            while(n < limit) {
+                try {
+                    if (ch.inbound.available() <= 0) {
+                        break;
                     }
+                } catch (IOException e) {
+                    // EOF or failure would be handled on next read
+                    break;
                 }
+                int m = ch.inbound.read(buf, n, limit - n);
+                if (m <= 0) {
+                    break;
+                }
+                n += m;
+            }
+            return n;
+        }
+
+        private void writeFrame(boolean large, long channelId, byte[] buf, int n) throws IOException {
+            if (large) {
+                writeVarLong(out, (channelId << 1) ^ (channelId >> 63));
+                writeVarLong(out, n);
+                out.write(buf, 0, n);
+            }
+            else {
+                out.writeLong(channelId);
+                out.writeShort(n);
+                out.write(buf, 0, align(n));
+            }
+        }
+
+        /**
+         * @return <code>true</code> if channel has data, EOF or has failed
+         */
+        private boolean hasPendingData(Channel ch) {
+            try {
+                return ch.inbound.available() > 0;
+            } catch (IOException e) {
+                return true;
             }
-            return null;
         }
     }
 
@@ -548,6 +788,13 @@ class TunnellerIO {
             setDaemon(true);
         }
 
+        /**
+         * Should be called after MAGIC is read, if other side has declared compression.
+         */
+        protected void enableCompression() {
+            in = new DataInputStream(new BlockCompression.Input(in, compressionCounters));
+        }
+
         @Override
         public void interrupt() {
             super.interrupt();
@@ -561,15 +808,34 @@ class TunnellerIO {
         @Override
         public void run() {
             try {
+                boolean large = largeFrames;
+                // single receive buffer, payload is copied to channel's pipe before next frame is read
+                byte[] buf = new byte[LARGE_FRAME_SIZE];
                 while(true) {
-                    long chId = in.readLong();
-                    int size = in.readShort();
-                    int asize = align(size);
-                    byte[] buf = new byte[asize];
-                    in.readFully(buf);
+                    long chId;
+                    int size;
+                    if (large) {
+                        long zz = readVarLong(in);
+                        chId = (zz >>> 1) ^ -(zz & 1);
+                        long fsize = readVarLong(in);
+                        if (fsize > LARGE_FRAME_SIZE) {
+                            throw new IOException("Stream corrupted! Illegal frame size " + fsize);
+                        }
+                        size = (int) fsize;
+                        in.readFully(buf, 0, size);
+                    }
+                    else {
+                        chId = in.readLong();
+                        size = in.readShort();
+                        in.readFully(buf, 0, align(size));
+                    }
                     if (traceChannelData) {
                         diagOut.println("Channel received: [" + chId + "] " + (size == 0 ? "EOF" : size + " bytes"));
                     }
+                    if (large && chId == CTRL_CREDIT) {
+                        readGrants(buf, size);
+                        continue;
+                    }
                     Channel ch;
                     synchronized(channels) {
                         ch = channels.get(chId);
@@ -591,14 +857,24 @@ class TunnellerIO {
                                     channels.remove(ch.channelId);
                                 }
                             }
+                            else if (ch.discarding) {
+                                bytesConsumed(ch, size, true);
+                            }
                             else {
                                 ch.outbound.write(buf, 0, size);
                             }
                         }
                         catch(IOException e) {
                             // closed by reader
-                            synchronized(channels) {
-                                channels.remove(ch.channelId);
+                            if (flowControl) {
+                                // channel is kept till EOF, discarded data should be granted back to sender
+                                ch.discarding = true;
+                                bytesConsumed(ch, size, true);
+                            }
+                            else {
+                                synchronized(channels) {
+                                    channels.remove(ch.channelId);
+                                }
                             }
                         }
                     }
@@ -612,12 +888,71 @@ class TunnellerIO {
                 shutdown();
             }
         }
+
+        private void readGrants(byte[] buf, int size) throws IOException {
+            int[] pos = {0};
+            while(pos[0] < size) {
+                long zz = getVarLong(buf, pos, size);
+                long chId = (zz >>> 1) ^ -(zz & 1);
+                long credit = getVarLong(buf, pos, size);
+                Channel ch;
+                synchronized(channels) {
+                    ch = channels.get(chId);
+                }
+                // channel may be already closed
+                if (ch != null && ch.direction == Direction.OUTBOUND) {
+                    ch.credit.addAndGet(credit);
+                    channelReady(ch);
+                }
+            }
+        }
     }
 
     private int align(int size) {
         return (size + 7) & (~7);
     }
 
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Stream corrupted! Malformed var int");
+    }
+
+    private static int putVarLong(byte[] buf, int pos, long v) {
+        while((v & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return pos;
+    }
+
+    private static long getVarLong(byte[] buf, int[] pos, int limit) throws IOException {
+        long v = 0;
+        for(int shift = 0; shift < 64 && pos[0] < limit; shift += 7) {
+            int b = buf[pos[0]++] & 0xFF;
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Stream corrupted! Malformed var int");
+    }
+
     protected synchronized void diagLog(String message) {
         if (diagOut != null) {
             diagOut.println(message);
@@ -631,29 +966,33 @@ class TunnellerIO {
 
         final long channelId;
         final Direction direction;
+        final StreamPipe pipe;
         final InputStream inbound;
         final OutputStream outbound;
-
-        public Channel(long id, Direction direction, int bufferSize) {
+        final Priority priority;
+        /** Set while channel is in mux's ready queue */
+        final AtomicBoolean ready = new AtomicBoolean();
+        /** Accessed by mux thread only */
+        boolean eofSent;
+
+        /** Bytes outbound channel is allowed to send */
+        final AtomicLong credit;
+        /** Bytes consumed from inbound channel, but not granted back yet */
+        final AtomicLong consumed = new AtomicLong();
+        /** Set while channel is in mux's grant queue */
+        final AtomicBoolean grantPending = new AtomicBoolean();
+        /** Set once reader has closed inbound channel, accessed by demux thread only */
+        boolean discarding;
+
+        public Channel(long id, Direction direction, Priority priority) {
             this.channelId = id;
             this.direction = direction;
-            StreamPipe pipe = new StreamPipe(bufferSize);
+            this.priority = priority;
+            // pipe always keeps one byte spare, so whole window fits
+            this.pipe = new StreamPipe(priority.window + 1);
             this.inbound = pipe.getInputStream();
             this.outbound = pipe.getOutputStream();
-        }
-
-        public Channel(long id, OutputStream os) {
-            this.channelId = id;
-            this.direction = Direction.INBOUND;
-            this.inbound = null;
-            this.outbound = os;
-        }
-
-        public Channel(long id, InputStream is) {
-            this.channelId = id;
-            this.direction = Direction.OUTBOUND;
-            this.inbound = is;
-            this.outbound = null;
+            this.credit = new AtomicLong(priority.window);
         }
     }
 }
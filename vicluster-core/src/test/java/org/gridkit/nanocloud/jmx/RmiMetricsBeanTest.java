@@ -0,0 +1,98 @@
+package org.gridkit.nanocloud.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.gridkit.nanocloud.Cloud;
+import org.gridkit.nanocloud.CloudFactory;
+import org.gridkit.nanocloud.jmx.RmiMetricsMXBean.MethodStats;
+import org.gridkit.vicluster.ViNode;
+import org.gridkit.vicluster.ViProps;
+import org.gridkit.zerormi.RmiMetrics;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RmiMetricsBeanTest {
+
+	public Cloud cloud = CloudFactory.createCloud();
+
+	@After
+	public void dropCloud() {
+		cloud.shutdown();
+	}
+
+	@Test
+	public void node_connection_metrics() {
+		ViNode node = cloud.node("metrics-node");
+		ViProps.at(node).setLocalType();
+		node.exec(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				// slave side bean describes connection to master
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				RmiMetricsMXBean slave = JMX.newMXBeanProxy(server, RmiMetricsBean.nameFor("master"), RmiMetricsMXBean.class);
+				Assert.assertEquals("master", slave.getPeer());
+				Assert.assertTrue(slave.getInboundExecuting() > 0);
+				return null;
+			}
+		});
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		// slave side bean is readable from master too
+		ObjectName remoteName = RmiMetricsBean.remoteNameFor("metrics-node");
+		awaitRegistration(server, remoteName);
+		RmiMetricsMXBean remote = JMX.newMXBeanProxy(server, remoteName, RmiMetricsMXBean.class);
+		Assert.assertEquals("master", remote.getPeer());
+		Assert.assertTrue(remote.getBytesIn().get("CALL") > 0);
+
+		RmiMetricsMXBean master = JMX.newMXBeanProxy(server, RmiMetricsBean.nameFor("metrics-node"), RmiMetricsMXBean.class);
+		Assert.assertEquals(0, master.getOutboundInFlight());
+		Assert.assertTrue(master.getBytesOut().get("CALL") > 0);
+		Assert.assertTrue(master.getBytesIn().get("RETURN") > 0);
+		long calls = 0;
+		for(MethodStats ms: master.getMethods()) {
+			calls += ms.getOutboundCalls();
+			Assert.assertEquals(ms.getOutboundCalls(), ms.getEndToEnd().getCount());
+		}
+		Assert.assertTrue(calls > 0);
+
+		cloud.shutdown();
+		Assert.assertFalse(server.isRegistered(RmiMetricsBean.nameFor("metrics-node")));
+		Assert.assertFalse(server.isRegistered(remoteName));
+	}
+
+	@Test
+	public void duplicate_name_is_made_unique() {
+		MBeanServer server = MBeanServerFactory.newMBeanServer();
+		MBeanRegistrator registrator = new MBeanRegistrator.MBeanServerRegistrator(server);
+		RmiMetrics metrics = new RmiMetrics();
+		ObjectName first = RmiMetricsBean.register(registrator, "node", metrics);
+		ObjectName second = RmiMetricsBean.register(registrator, "node", metrics);
+		Assert.assertEquals(RmiMetricsBean.nameFor("node"), first);
+		Assert.assertNotNull(second);
+		Assert.assertFalse(first.equals(second));
+		Assert.assertTrue(server.isRegistered(first));
+		Assert.assertTrue(server.isRegistered(second));
+	}
+
+	private static void awaitRegistration(MBeanServer server, ObjectName name) {
+		long deadline = System.currentTimeMillis() + 10000;
+		while(!server.isRegistered(name)) {
+			if (System.currentTimeMillis() > deadline) {
+				Assert.fail("Not registered: " + name);
+			}
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package org.gridkit.vicluster.telecontrol;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+import org.gridkit.vicluster.telecontrol.bootstraper.TunnellerConnection;
+import org.junit.Before;
+
+/**
+ * Runs {@link TunnellerProtocolTest} with compressed tunnel stream.
+ */
+public class TunnellerProtocolCompressionTest extends TunnellerProtocolTest {
+
+    @Before
+    @Override
+    public void start() throws IOException, InterruptedException, TimeoutException {
+        System.setProperty(TunnellerConnection.PROP_COMPRESSION, "true");
+        try {
+            super.start();
+        }
+        finally {
+            System.clearProperty(TunnellerConnection.PROP_COMPRESSION);
+        }
+    }
+}
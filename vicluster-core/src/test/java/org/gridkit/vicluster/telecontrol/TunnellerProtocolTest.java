@@ -18,7 +18,9 @@ package org.gridkit.vicluster.telecontrol;
 import static org.junit.Assert.assertEquals;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -33,6 +35,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -46,6 +49,7 @@ import org.gridkit.vicluster.telecontrol.bootstraper.TunnellerConnection.ExecHan
 import org.gridkit.vicluster.telecontrol.bootstraper.TunnellerConnection.FileHandler;
 import org.gridkit.vicluster.telecontrol.bootstraper.TunnellerConnection.SocketHandler;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Ignore;
@@ -55,7 +59,7 @@ import org.junit.rules.Timeout;
 public class TunnellerProtocolTest {
 
     private InputStream masterIn;
-    private OutputStream masterOut;
+    private OSW masterOut;
 
     private InputStream slaveIn;
     private OutputStream slaveOut;
@@ -130,6 +134,46 @@ public class TunnellerProtocolTest {
         }
     }
 
+    @Test(timeout = 30000)
+    public void test_stalled_channel_does_not_block_others() throws Exception {
+        Assume.assumeTrue(!isWindows());
+
+        final FutureBox<InputStream> flood = new FutureBox<InputStream>();
+        long procId = connection.exec(".", new String[]{"yes", "flood"}, null, new ExecHandler() {
+
+            @Override
+            public void started(OutputStream stdIn, InputStream stdOut, InputStream stdErr) {
+                try {
+                    stdIn.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                flood.setData(stdOut);
+            }
+
+            @Override
+            public void execFailed(OutputStream stdIn, InputStream stdOut, InputStream stdErr, String error) {
+                flood.setError(new IOException(error));
+            }
+
+            @Override
+            public void finished(int exitCode) {
+            }
+        });
+
+        // nobody is reading stdout
+        InputStream stdOut = flood.get();
+        while(stdOut.available() < (32 << 10)) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+
+        assertEquals(Integer.valueOf(0), exec("echo", "Hallo welt!").get(5, TimeUnit.SECONDS));
+
+        stdOut.close();
+        connection.killProc(procId);
+    }
+
     private List<String> IGNORE_VARS = Arrays.asList("SHLVL", "OLDPWD");
 
     @Test
@@ -487,6 +531,165 @@ public class TunnellerProtocolTest {
         Assert.assertEquals(4, writer.size);
     }
 
+    @Test(timeout = 30000)
+    public void test_large_file_push() throws IOException, InterruptedException {
+
+        final byte[] data = new byte[(1 << 20) + 13];
+        new Random(1).nextBytes(data);
+
+        String path = "target/test-large-file.dat";
+        File tfile = new File(path);
+        deleteAll(tfile);
+
+        TextWriter writer = new TextWriter() {
+            @Override
+            public void run() {
+                try {
+                    // odd write sizes, so frames do not align with writes
+                    int n = 0;
+                    while(n < data.length) {
+                        int len = Math.min(data.length - n, 7001);
+                        out.write(data, n, len);
+                        n += len;
+                    }
+                    out.close();
+                } catch (IOException e) {
+                    error = e.toString();
+                    done.countDown();
+                }
+            }
+        };
+
+        connection.pushFile(path, writer);
+
+        writer.done.await();
+
+        Assert.assertEquals(null, writer.error);
+        Assert.assertEquals(data.length, writer.size);
+        byte[] received = new byte[data.length];
+        DataInputStream dis = new DataInputStream(new FileInputStream(tfile));
+        try {
+            dis.readFully(received);
+        }
+        finally {
+            dis.close();
+        }
+        Assert.assertTrue(Arrays.equals(data, received));
+    }
+
+    @Test(timeout = 30000)
+    public void test_delta_push_reuses_previous_version() throws IOException, InterruptedException {
+
+        byte[] v1 = new byte[1 << 20];
+        new Random(1).nextBytes(v1);
+        byte[] v2 = v1.clone();
+        // few changed "classes", one of them changes size
+        System.arraycopy(new byte[5000], 0, v2, 100000, 5000);
+        System.arraycopy(new byte[300], 0, v2, 700000, 300);
+        byte[] inserted = new byte[v2.length + 77];
+        System.arraycopy(v2, 0, inserted, 0, 400000);
+        System.arraycopy(v2, 400000, inserted, 400077, v2.length - 400000);
+        v2 = inserted;
+
+        File cache = new File("target/delta-cache");
+        deleteAll(cache);
+        File prev = new File(cache, HASH1 + "/lib.jar");
+        writeFile(prev, v1);
+
+        File tfile = new File(cache, HASH2 + "/lib.jar");
+        long wireBytes = masterOut.written;
+        DataWriter writer = new DataWriter(v2);
+        connection.pushFile(tfile.getPath(), writer);
+        writer.done.await();
+        wireBytes = masterOut.written - wireBytes;
+
+        Assert.assertEquals(null, writer.error);
+        Assert.assertEquals(v2.length, writer.size);
+        Assert.assertTrue(Arrays.equals(v2, readFile(tfile)));
+        Assert.assertTrue("Only changed blocks should be sent, but sent " + wireBytes, wireBytes < 128 << 10);
+        Assert.assertFalse(new File(cache, HASH2 + "/lib.jar.part").exists());
+        Assert.assertFalse(new File(cache, HASH2 + "/lib.jar.part.old").exists());
+        Assert.assertFalse(new File(cache, HASH2 + "/lib.jar.part.lock").exists());
+    }
+
+    @Test(timeout = 30000)
+    public void test_delta_push_ignores_files_outside_of_cache() throws IOException, InterruptedException {
+
+        byte[] data = new byte[1 << 20];
+        new Random(3).nextBytes(data);
+
+        File dir = new File("target/delta-adhoc");
+        deleteAll(dir);
+        // same name, but not a file cache entry
+        writeFile(new File(dir, "a/lib.jar"), data);
+
+        File tfile = new File(dir, "b/lib.jar");
+        long wireBytes = masterOut.written;
+        DataWriter writer = new DataWriter(data);
+        connection.pushFile(tfile.getPath(), writer);
+        writer.done.await();
+        wireBytes = masterOut.written - wireBytes;
+
+        Assert.assertEquals(null, writer.error);
+        Assert.assertTrue(Arrays.equals(data, readFile(tfile)));
+        Assert.assertTrue("Whole file should be sent, but sent " + wireBytes, wireBytes > data.length);
+        Assert.assertFalse(new File(dir, "b/lib.jar.part.lock").exists());
+    }
+
+    @Test(timeout = 30000)
+    public void test_delta_push_resumes_partial_file() throws IOException, InterruptedException {
+
+        byte[] data = new byte[1 << 20];
+        new Random(2).nextBytes(data);
+
+        File cache = new File("target/delta-cache");
+        deleteAll(cache);
+        File tfile = new File(cache, HASH1 + "/lib.jar");
+        // reception interrupted by tunneller termination, last block is torn
+        byte[] partial = Arrays.copyOf(data, 700000);
+        Arrays.fill(partial, 699000, 700000, (byte)0);
+        writeFile(new File(cache, HASH1 + "/lib.jar.part"), partial);
+
+        long wireBytes = masterOut.written;
+        DataWriter writer = new DataWriter(data);
+        connection.pushFile(tfile.getPath(), writer);
+        writer.done.await();
+        wireBytes = masterOut.written - wireBytes;
+
+        Assert.assertEquals(null, writer.error);
+        Assert.assertTrue(Arrays.equals(data, readFile(tfile)));
+        Assert.assertTrue("Only missing part should be sent, but sent " + wireBytes, wireBytes < data.length - 600000);
+        Assert.assertFalse(new File(cache, HASH1 + "/lib.jar.part").exists());
+        Assert.assertFalse(new File(cache, HASH1 + "/lib.jar.part.old").exists());
+        Assert.assertFalse(new File(cache, HASH1 + "/lib.jar.part.lock").exists());
+    }
+
+    private static final String HASH1 = "3f786850e387550fdab836ed7e6dc881de23001b";
+    private static final String HASH2 = "89e6c98d92887913cadf06b2adb97f26cde4849b";
+
+    private void writeFile(File file, byte[] data) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(data);
+        }
+        finally {
+            fos.close();
+        }
+    }
+
+    private byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        try {
+            dis.readFully(data);
+        }
+        finally {
+            dis.close();
+        }
+        return data;
+    }
+
     private void deleteAll(File path) {
         File[] clist = path.listFiles();
         if (clist != null) {
@@ -548,6 +751,26 @@ public class TunnellerProtocolTest {
         }
     }
 
+    private static class DataWriter extends TextWriter {
+
+        final byte[] data;
+
+        public DataWriter(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public void run() {
+            try {
+                out.write(data);
+                out.close();
+            } catch (IOException e) {
+                error = e.toString();
+                done.countDown();
+            }
+        }
+    }
+
     private String[] ccat(String s, String... ss) {
         String[] p = s.split("\\s+");
         String[] r = new String[p.length + ss.length];
@@ -803,6 +1026,7 @@ public class TunnellerProtocolTest {
 
         private String name;
         private OutputStream delegate;
+        volatile long written;
 
         public OSW(String name, OutputStream delegate) {
             this.name = name;
@@ -812,16 +1036,19 @@ public class TunnellerProtocolTest {
         @Override
         public void write(int b) throws IOException {
             delegate.write(b);
+            written++;
         }
 
         @Override
         public void write(byte[] b) throws IOException {
             delegate.write(b);
+            written += b.length;
         }
 
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
             delegate.write(b, off, len);
+            written += len;
         }
 
         @Override
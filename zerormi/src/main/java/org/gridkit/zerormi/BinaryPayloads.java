@@ -0,0 +1,112 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Large <code>byte[]</code> and {@link ByteBuffer} values are not serialized
+ * into message body. Serializer emits a reference instead and binary data
+ * is transmitted as raw envelope frames right before the message.
+ * <p>
+ * Outbound payloads are copied at encoding time, unless zero copy mode is enabled.
+ * In zero copy mode arrays and buffers passed to a remote call should not be
+ * modified until call is complete.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class BinaryPayloads {
+
+	private final int threshold;
+	private final boolean zeroCopy;
+	private final List<Object> payloads = new ArrayList<Object>();
+
+	/**
+	 * @param threshold min size of <code>byte[]</code> to be sent out of band, {@link ByteBuffer}s are always sent out of band
+	 * @param zeroCopy if <code>true</code> payloads are sent directly from caller's arrays and buffers
+	 */
+	public BinaryPayloads(int threshold, boolean zeroCopy) {
+		this.threshold = threshold;
+		this.zeroCopy = zeroCopy;
+	}
+
+	public boolean isOutOfBand(Object obj) {
+		return (obj instanceof byte[] && ((byte[]) obj).length >= threshold) || obj instanceof ByteBuffer;
+	}
+
+	/**
+	 * @return reference to be serialized instead of binary value or <code>null</code>
+	 */
+	public Object replace(Object obj) {
+		if (obj instanceof byte[] && isOutOfBand(obj)) {
+			payloads.add(zeroCopy ? obj : ((byte[]) obj).clone());
+			return new BinaryRef(payloads.size() - 1, false);
+		}
+		else if (obj instanceof ByteBuffer) {
+			// position of caller's buffer should not be affected
+			ByteBuffer bb = ((ByteBuffer) obj).duplicate();
+			if (zeroCopy) {
+				payloads.add(bb);
+			}
+			else {
+				byte[] data = new byte[bb.remaining()];
+				bb.get(data);
+				payloads.add(data);
+			}
+			return new BinaryRef(payloads.size() - 1, true);
+		}
+		else {
+			return null;
+		}
+	}
+
+	/**
+	 * @return payloads referenced by last encoded message, each either <code>byte[]</code> or {@link ByteBuffer}
+	 */
+	public List<Object> getPayloads() {
+		return payloads;
+	}
+
+	public void clear() {
+		payloads.clear();
+	}
+
+	public static Object resolve(BinaryRef ref, List<byte[]> received) throws IOException {
+		if (received == null || ref.index >= received.size()) {
+			throw new StreamCorruptedException("Missing binary payload #" + ref.index);
+		}
+		byte[] data = received.get(ref.index);
+		return ref.buffer ? ByteBuffer.wrap(data) : data;
+	}
+
+	static class BinaryRef implements Serializable {
+
+		private static final long serialVersionUID = 20130701L;
+
+		final int index;
+		final boolean buffer;
+
+		public BinaryRef(int index, boolean buffer) {
+			this.index = index;
+			this.buffer = buffer;
+		}
+	}
+}
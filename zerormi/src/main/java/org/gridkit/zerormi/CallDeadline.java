@@ -0,0 +1,84 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadline for remote calls made by current thread.
+ * <pre>
+ * CallDeadline.set(5, TimeUnit.SECONDS);
+ * try {
+ *     service.doWork();
+ * }
+ * finally {
+ *     CallDeadline.clear();
+ * }
+ * </pre>
+ * Call which has not completed before deadline is failed on caller side with
+ * {@link RemoteException}. Remote side drops the call if it is still queued,
+ * or interrupts executing thread. Calls made by remote side while executing
+ * such call inherit its deadline.
+ * <p>
+ * If no deadline is set, channel default is used (see {@link RmiChannel1#PROP_CALL_TIMEOUT}).
+ * 
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class CallDeadline {
+
+	private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<Long>();
+
+	public static void set(long timeout, TimeUnit unit) {
+		DEADLINE.set(System.nanoTime() + unit.toNanos(timeout));
+	}
+
+	public static void clear() {
+		DEADLINE.remove();
+	}
+
+	/**
+	 * @return remaining time in nanoseconds, {@link Long#MAX_VALUE} if deadline is not set
+	 */
+	public static long remainingNanos() {
+		Long deadline = DEADLINE.get();
+		return deadline == null ? Long.MAX_VALUE : deadline - System.nanoTime();
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} based deadline or {@link RemoteCall#NO_DEADLINE}
+	 */
+	static long current() {
+		Long deadline = DEADLINE.get();
+		return deadline == null ? RemoteCall.NO_DEADLINE : deadline;
+	}
+
+	/**
+	 * Replaces deadline of current thread, used by dispatcher.
+	 * 
+	 * @return previous deadline
+	 */
+	static long swap(long deadline) {
+		long prev = current();
+		if (deadline == RemoteCall.NO_DEADLINE) {
+			DEADLINE.remove();
+		}
+		else {
+			DEADLINE.set(deadline);
+		}
+		return prev;
+	}
+}
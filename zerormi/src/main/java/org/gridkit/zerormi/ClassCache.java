@@ -0,0 +1,78 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent cache of class lookups for single channel.
+ * Class loader lookup is expensive, especially with isolate
+ * class loaders, and same few classes are resolved for each message.
+ * <p>
+ * Failed lookups are cached too, class appearing in loader later
+ * would not be seen by this channel.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class ClassCache {
+
+	private static final Object NOT_FOUND = new Object();
+
+	private final ClassLoader loader;
+	private final ConcurrentMap<String, Object> cache = new ConcurrentHashMap<String, Object>();
+
+	final AtomicLong hits;
+	final AtomicLong misses;
+
+	public ClassCache(ClassLoader loader, AtomicLong hits, AtomicLong misses) {
+		this.loader = loader;
+		this.hits = hits;
+		this.misses = misses;
+	}
+
+	/**
+	 * Resolves class or primitive type by name. Class is not initialized.
+	 */
+	public Class<?> forName(String name) throws ClassNotFoundException {
+		Object c = cache.get(name);
+		if (c == null) {
+			misses.incrementAndGet();
+			c = ReflectionHelper.primitiveToClass(name);
+			if (c == null) {
+				try {
+					c = Class.forName(name, false, loader);
+				}
+				catch(ClassNotFoundException e) {
+					c = NOT_FOUND;
+				}
+			}
+			cache.put(name, c);
+		}
+		else {
+			hits.incrementAndGet();
+		}
+		if (c == NOT_FOUND) {
+			throw new ClassNotFoundException(name);
+		}
+		return (Class<?>) c;
+	}
+
+	public int size() {
+		return cache.size();
+	}
+}
@@ -0,0 +1,789 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact wire codec.
+ * <p>
+ * Codec keeps per connection dictionary of class descriptors, remote instances,
+ * method signatures and strings they are made of. Dictionary entry is defined
+ * in preamble of the first message using it, later messages refer to entry by id.
+ * <p>
+ * Boxed primitives, strings and arrays are written in fixed binary form,
+ * anything else falls back to Java serialization (sharing class descriptor
+ * dictionary).
+ * <p>
+ * Preamble is processed before payload, so dictionaries stay in sync even
+ * if payload cannot be deserialized by receiver.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class CompactRmiCodec implements RmiCodec {
+
+	public static final String NAME = "compact";
+
+	/** Dictionary is not expanded beyond this size, entries are written inline instead */
+	static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+	/** Longer strings may not fit into 64k of modified UTF-8 */
+	private static final int MAX_UTF_CHARS = 0xFFFF / 3;
+
+	private static final Entry[] NO_DEPS = new Entry[0];
+
+	private static final int DEF_STRING = 1;
+	private static final int DEF_CLASS = 2;
+	private static final int DEF_INSTANCE = 3;
+	private static final int DEF_METHOD = 4;
+
+	private static final int T_NULL = 0;
+	private static final int T_OBJECT = 1;
+	private static final int T_TRUE = 2;
+	private static final int T_FALSE = 3;
+	private static final int T_BYTE = 4;
+	private static final int T_SHORT = 5;
+	private static final int T_CHAR = 6;
+	private static final int T_INT = 7;
+	private static final int T_LONG = 8;
+	private static final int T_FLOAT = 9;
+	private static final int T_DOUBLE = 10;
+	private static final int T_STRING = 11;
+	private static final int T_ARRAY = 12;
+	private static final int T_BOOLEAN_ARRAY = 13;
+	private static final int T_BYTE_ARRAY = 14;
+	private static final int T_SHORT_ARRAY = 15;
+	private static final int T_CHAR_ARRAY = 16;
+	private static final int T_INT_ARRAY = 17;
+	private static final int T_LONG_ARRAY = 18;
+	private static final int T_FLOAT_ARRAY = 19;
+	private static final int T_DOUBLE_ARRAY = 20;
+	private static final int T_ARRAY_REF = 21;
+	private static final int T_INSTANCE = 22;
+	private static final int T_METHOD = 23;
+
+	private final RmiChannel channel;
+	private final String name;
+
+	private final Map<Object, Entry> outDictionary = new ConcurrentHashMap<Object, Entry>();
+	private int outDictionarySize;
+
+	private final List<Object> inDictionary = new ArrayList<Object>();
+
+	private final int binaryThreshold;
+	private final boolean zeroCopy;
+
+	public CompactRmiCodec(RmiChannel channel, String name) {
+		this(channel, name, -1);
+	}
+
+	/**
+	 * @param binaryThreshold min size of out of band <code>byte[]</code>, negative value disables out of band payloads
+	 */
+	public CompactRmiCodec(RmiChannel channel, String name, int binaryThreshold) {
+		this(channel, name, binaryThreshold, false);
+	}
+
+	/**
+	 * @param binaryThreshold min size of out of band <code>byte[]</code>, negative value disables out of band payloads
+	 * @param zeroCopy if <code>true</code> out of band payloads are not copied, see {@link BinaryPayloads}
+	 */
+	public CompactRmiCodec(RmiChannel channel, String name, int binaryThreshold, boolean zeroCopy) {
+		this.channel = channel;
+		this.name = name;
+		this.binaryThreshold = binaryThreshold;
+		this.zeroCopy = zeroCopy;
+		// id 0 is reserved for inline definitions
+		inDictionary.add(null);
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public Encoder createEncoder() throws IOException {
+		return new CompactEncoder();
+	}
+
+	@Override
+	public Decoder createDecoder(InputStream in) throws IOException {
+		return new CompactDecoder(in, null);
+	}
+
+	@Override
+	public Decoder createDecoder(InputStream in, List<byte[]> binaries) throws IOException {
+		return new CompactDecoder(in, binaries);
+	}
+
+	private Entry register(Object key, int kind, byte[] definition, Entry[] deps) {
+		synchronized(outDictionary) {
+			Entry e = outDictionary.get(key);
+			if (e == null) {
+				if (outDictionarySize >= MAX_DICTIONARY_SIZE) {
+					return null;
+				}
+				e = new Entry(++outDictionarySize, kind, definition, deps);
+				outDictionary.put(key, e);
+			}
+			return e;
+		}
+	}
+
+	private Entry internString(String text) throws IOException {
+		Entry e = outDictionary.get(text);
+		if (e == null && text.length() <= MAX_UTF_CHARS) {
+			MessageBuffer bb = new MessageBuffer();
+			new DataOutputStream(bb).writeUTF(text);
+			e = register(text, DEF_STRING, bb.toByteArray(), NO_DEPS);
+		}
+		return e;
+	}
+
+	private Entry internClass(ObjectStreamClass desc) throws IOException {
+		Entry e = outDictionary.get(desc);
+		if (e == null) {
+			MessageBuffer bb = new MessageBuffer();
+			new DescriptorWriter(bb).writeDescriptor(desc);
+			e = register(desc, DEF_CLASS, bb.toByteArray(), NO_DEPS);
+		}
+		return e;
+	}
+
+	private Entry internInstance(RemoteInstance ri) throws IOException {
+		Entry e = outDictionary.get(ri);
+		if (e == null) {
+			String[] strings = new String[ri.interfaces.length + 1];
+			strings[0] = ri.instanceId;
+			System.arraycopy(ri.interfaces, 0, strings, 1, ri.interfaces.length);
+			e = internComposite(ri, DEF_INSTANCE, strings);
+		}
+		return e;
+	}
+
+	private Entry internMethod(RemoteMethodSignature m) throws IOException {
+		Entry e = outDictionary.get(m);
+		if (e == null) {
+			String[] sig = m.getMethodSignature();
+			String[] strings = new String[sig.length + 2];
+			strings[0] = m.getClassName();
+			strings[1] = m.getMethodName();
+			System.arraycopy(sig, 0, strings, 2, sig.length);
+			e = internComposite(m, DEF_METHOD, strings);
+		}
+		return e;
+	}
+
+	private Entry internComposite(Object key, int kind, String[] strings) throws IOException {
+		Entry[] deps = new Entry[strings.length];
+		MessageBuffer bb = new MessageBuffer();
+		DataOutputStream dos = new DataOutputStream(bb);
+		writeVarInt(dos, strings.length);
+		for(int i = 0; i != strings.length; ++i) {
+			if (strings[i] == null || (deps[i] = internString(strings[i])) == null) {
+				return null;
+			}
+			writeVarInt(dos, deps[i].id);
+		}
+		return register(key, kind, bb.toByteArray(), deps);
+	}
+
+	private synchronized void define(int kind, int id, byte[] definition) throws IOException {
+		Object value;
+		switch(kind) {
+			case DEF_STRING:
+				value = new DataInputStream(new ByteArrayInputStream(definition)).readUTF();
+				break;
+			case DEF_CLASS:
+				value = new DescriptorReader(new ByteArrayInputStream(definition)).readDescriptor();
+				break;
+			case DEF_INSTANCE: {
+				String[] strings = readStrings(definition);
+				String[] interfaces = new String[strings.length - 1];
+				System.arraycopy(strings, 1, interfaces, 0, interfaces.length);
+				value = new RemoteInstance(strings[0], interfaces);
+				break;
+			}
+			case DEF_METHOD: {
+				String[] strings = readStrings(definition);
+				String[] sig = new String[strings.length - 2];
+				System.arraycopy(strings, 2, sig, 0, sig.length);
+				RemoteMethodSignature m = new RemoteMethodSignature(strings[0], strings[1], sig);
+				// calls referring to this entry are dispatched by table index
+				m.slot = channel.reserveMethodSlot(m);
+				value = m;
+				break;
+			}
+			default:
+				throw new StreamCorruptedException("Unknown dictionary entry kind: " + kind);
+		}
+		while(inDictionary.size() <= id) {
+			inDictionary.add(null);
+		}
+		inDictionary.set(id, value);
+	}
+
+	private String[] readStrings(byte[] definition) throws IOException {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(definition));
+		String[] strings = new String[readVarInt(dis)];
+		for(int i = 0; i != strings.length; ++i) {
+			strings[i] = lookup(readVarInt(dis), String.class);
+		}
+		return strings;
+	}
+
+	private synchronized <T> T lookup(int id, Class<T> type) throws IOException {
+		Object v = id < inDictionary.size() ? inDictionary.get(id) : null;
+		if (!type.isInstance(v)) {
+			throw new StreamCorruptedException("Unknown dictionary entry #" + id);
+		}
+		return type.cast(v);
+	}
+
+	static void writeVarInt(DataOutput out, int v) throws IOException {
+		while((v & ~0x7F) != 0) {
+			out.writeByte(0x80 | (v & 0x7F));
+			v >>>= 7;
+		}
+		out.writeByte(v);
+	}
+
+	static int readVarInt(DataInput in) throws IOException {
+		int v = 0;
+		for(int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new StreamCorruptedException("Malformed varint");
+	}
+
+	private static class Entry {
+
+		final int id;
+		final int kind;
+		final byte[] definition;
+		final Entry[] deps;
+
+		/** Set once message carrying definition was queued for transmission */
+		volatile boolean published;
+
+		public Entry(int id, int kind, byte[] definition, Entry[] deps) {
+			this.id = id;
+			this.kind = kind;
+			this.definition = definition;
+			this.deps = deps;
+		}
+	}
+
+	private class CompactEncoder implements Encoder {
+
+		private final MessageBuffer buffer = new MessageBuffer();
+		private final List<Entry> preamble = new ArrayList<Entry>();
+		private final Map<Object, Integer> arrayRefs = new IdentityHashMap<Object, Integer>();
+		private final BinaryPayloads binaries = binaryThreshold < 0 ? null : new BinaryPayloads(binaryThreshold, zeroCopy);
+		private CompactOutputStream ostream;
+
+		public CompactEncoder() throws IOException {
+			ostream = new CompactOutputStream(buffer);
+		}
+
+		@Override
+		public void encode(Object... objects) throws IOException {
+			buffer.reset();
+			preamble.clear();
+			if (binaries != null) {
+				binaries.clear();
+			}
+			boolean done = false;
+			try {
+				for(Object obj: objects) {
+					writeValue(obj);
+				}
+				ostream.reset();
+				ostream.writeObject(null); // we need this to ensure reset is processed by read side
+				ostream.flush();
+				done = true;
+			}
+			finally {
+				arrayRefs.clear();
+				if (!done) {
+					buffer.reset();
+					preamble.clear();
+					if (binaries != null) {
+						binaries.clear();
+					}
+					ostream = new CompactOutputStream(buffer);
+				}
+			}
+		}
+
+		@Override
+		public void writeTo(OutputStream os) throws IOException {
+			DataOutputStream dos = new DataOutputStream(os);
+			writeVarInt(dos, preamble.size());
+			for(Entry e: preamble) {
+				dos.writeByte(e.kind);
+				writeVarInt(dos, e.id);
+				writeVarInt(dos, e.definition.length);
+				dos.write(e.definition);
+			}
+			buffer.writeTo(os);
+		}
+
+		@Override
+		public List<Object> getBinaryPayloads() {
+			return binaries == null ? Collections.<Object>emptyList() : binaries.getPayloads();
+		}
+
+		@Override
+		public void release() {
+			if (binaries != null) {
+				binaries.clear();
+			}
+		}
+
+		@Override
+		public void commit() {
+			for(Entry e: preamble) {
+				e.published = true;
+			}
+		}
+
+		private void use(Entry e) {
+			if (!e.published && !preamble.contains(e)) {
+				for(Entry d: e.deps) {
+					use(d);
+				}
+				preamble.add(e);
+			}
+		}
+
+		private void writeValue(Object v) throws IOException {
+			CompactOutputStream out = ostream;
+			if (v == null) {
+				out.writeByte(T_NULL);
+				return;
+			}
+			Class<?> c = v.getClass();
+			if (c == String.class) {
+				String s = (String) v;
+				if (s.length() <= MAX_UTF_CHARS) {
+					out.writeByte(T_STRING);
+					out.writeUTF(s);
+				}
+				else {
+					out.writeByte(T_OBJECT);
+					out.writeObject(s);
+				}
+			}
+			else if (c == Integer.class) {
+				out.writeByte(T_INT);
+				out.writeInt((Integer) v);
+			}
+			else if (c == Long.class) {
+				out.writeByte(T_LONG);
+				out.writeLong((Long) v);
+			}
+			else if (c == Boolean.class) {
+				out.writeByte(((Boolean) v) ? T_TRUE : T_FALSE);
+			}
+			else if (c == Double.class) {
+				out.writeByte(T_DOUBLE);
+				out.writeDouble((Double) v);
+			}
+			else if (c == Float.class) {
+				out.writeByte(T_FLOAT);
+				out.writeFloat((Float) v);
+			}
+			else if (c == Short.class) {
+				out.writeByte(T_SHORT);
+				out.writeShort((Short) v);
+			}
+			else if (c == Byte.class) {
+				out.writeByte(T_BYTE);
+				out.writeByte((Byte) v);
+			}
+			else if (c == Character.class) {
+				out.writeByte(T_CHAR);
+				out.writeChar((Character) v);
+			}
+			else if (c == RemoteInstance.class) {
+				Entry e = internInstance((RemoteInstance) v);
+				writeEntryRef(T_INSTANCE, e, v);
+			}
+			else if (c == RemoteMethodSignature.class) {
+				Entry e = internMethod((RemoteMethodSignature) v);
+				writeEntryRef(T_METHOD, e, v);
+			}
+			else if (binaries != null && binaries.isOutOfBand(v)) {
+				// object stream would replace it with a reference
+				out.writeByte(T_OBJECT);
+				out.writeObject(v);
+			}
+			else if (c.isArray() && (c == Object[].class || c.getComponentType().isPrimitive())) {
+				Integer ref = arrayRefs.get(v);
+				if (ref != null) {
+					out.writeByte(T_ARRAY_REF);
+					writeVarInt(out, ref);
+				}
+				else {
+					arrayRefs.put(v, arrayRefs.size());
+					writeArray(v);
+				}
+			}
+			else {
+				out.writeByte(T_OBJECT);
+				out.writeObject(v);
+			}
+		}
+
+		private void writeEntryRef(int tag, Entry e, Object v) throws IOException {
+			if (e == null) {
+				ostream.writeByte(T_OBJECT);
+				ostream.writeObject(v);
+			}
+			else {
+				use(e);
+				ostream.writeByte(tag);
+				writeVarInt(ostream, e.id);
+			}
+		}
+
+		private void writeArray(Object v) throws IOException {
+			CompactOutputStream out = ostream;
+			if (v instanceof Object[]) {
+				Object[] a = (Object[]) v;
+				out.writeByte(T_ARRAY);
+				out.writeInt(a.length);
+				for(Object e: a) {
+					writeValue(e);
+				}
+			}
+			else if (v instanceof byte[]) {
+				byte[] a = (byte[]) v;
+				out.writeByte(T_BYTE_ARRAY);
+				out.writeInt(a.length);
+				out.write(a);
+			}
+			else if (v instanceof int[]) {
+				int[] a = (int[]) v;
+				out.writeByte(T_INT_ARRAY);
+				out.writeInt(a.length);
+				for(int e: a) {
+					out.writeInt(e);
+				}
+			}
+			else if (v instanceof long[]) {
+				long[] a = (long[]) v;
+				out.writeByte(T_LONG_ARRAY);
+				out.writeInt(a.length);
+				for(long e: a) {
+					out.writeLong(e);
+				}
+			}
+			else if (v instanceof double[]) {
+				double[] a = (double[]) v;
+				out.writeByte(T_DOUBLE_ARRAY);
+				out.writeInt(a.length);
+				for(double e: a) {
+					out.writeDouble(e);
+				}
+			}
+			else if (v instanceof char[]) {
+				char[] a = (char[]) v;
+				out.writeByte(T_CHAR_ARRAY);
+				out.writeInt(a.length);
+				for(char e: a) {
+					out.writeChar(e);
+				}
+			}
+			else if (v instanceof boolean[]) {
+				boolean[] a = (boolean[]) v;
+				out.writeByte(T_BOOLEAN_ARRAY);
+				out.writeInt(a.length);
+				for(boolean e: a) {
+					out.writeBoolean(e);
+				}
+			}
+			else if (v instanceof short[]) {
+				short[] a = (short[]) v;
+				out.writeByte(T_SHORT_ARRAY);
+				out.writeInt(a.length);
+				for(short e: a) {
+					out.writeShort(e);
+				}
+			}
+			else if (v instanceof float[]) {
+				float[] a = (float[]) v;
+				out.writeByte(T_FLOAT_ARRAY);
+				out.writeInt(a.length);
+				for(float e: a) {
+					out.writeFloat(e);
+				}
+			}
+			else {
+				throw new IllegalArgumentException("Unexpected array type: " + v.getClass().getName());
+			}
+		}
+
+		private class CompactOutputStream extends RmiObjectOutputStream {
+
+			public CompactOutputStream(OutputStream out) throws IOException {
+				super(out, channel, binaries);
+			}
+
+			@Override
+			protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+				Entry e = internClass(desc);
+				if (e == null) {
+					writeVarInt(this, 0);
+					super.writeClassDescriptor(desc);
+				}
+				else {
+					use(e);
+					writeVarInt(this, e.id);
+				}
+			}
+		}
+	}
+
+	private class CompactDecoder implements Decoder {
+
+		private final InputStream in;
+		private final List<Object> arrayRefs = new ArrayList<Object>();
+		private final CompactInputStream ostream;
+
+		public CompactDecoder(InputStream in, List<byte[]> binaries) throws IOException {
+			this.in = in;
+			this.ostream = new CompactInputStream(in, binaries);
+		}
+
+		@Override
+		public void beginMessage() throws IOException {
+			arrayRefs.clear();
+			DataInputStream dis = new DataInputStream(in);
+			int n = readVarInt(dis);
+			for(int i = 0; i != n; ++i) {
+				int kind = dis.readUnsignedByte();
+				int id = readVarInt(dis);
+				byte[] definition = new byte[readVarInt(dis)];
+				dis.readFully(definition);
+				define(kind, id, definition);
+			}
+		}
+
+		@Override
+		public Object readObject() throws IOException, ClassNotFoundException {
+			return readValue();
+		}
+
+		@Override
+		public void endMessage() throws IOException, ClassNotFoundException {
+			arrayRefs.clear();
+			ostream.readObject(); // null expected
+		}
+
+		private Object readValue() throws IOException, ClassNotFoundException {
+			CompactInputStream oin = ostream;
+			int tag = oin.readUnsignedByte();
+			switch(tag) {
+				case T_NULL: return null;
+				case T_OBJECT: return oin.readObject();
+				case T_TRUE: return Boolean.TRUE;
+				case T_FALSE: return Boolean.FALSE;
+				case T_BYTE: return oin.readByte();
+				case T_SHORT: return oin.readShort();
+				case T_CHAR: return oin.readChar();
+				case T_INT: return oin.readInt();
+				case T_LONG: return oin.readLong();
+				case T_FLOAT: return oin.readFloat();
+				case T_DOUBLE: return oin.readDouble();
+				case T_STRING: return oin.readUTF();
+				case T_ARRAY_REF: return arrayRefs.get(readVarInt(oin));
+				case T_INSTANCE: return lookup(readVarInt(oin), RemoteInstance.class);
+				case T_METHOD: return lookup(readVarInt(oin), RemoteMethodSignature.class);
+				default: return readArray(tag);
+			}
+		}
+
+		private Object readArray(int tag) throws IOException, ClassNotFoundException {
+			CompactInputStream oin = ostream;
+			int len = oin.readInt();
+			switch(tag) {
+				case T_ARRAY: {
+					Object[] a = new Object[len];
+					arrayRefs.add(a);
+					for(int i = 0; i != len; ++i) {
+						a[i] = readValue();
+					}
+					return a;
+				}
+				case T_BYTE_ARRAY: {
+					byte[] a = new byte[len];
+					arrayRefs.add(a);
+					oin.readFully(a);
+					return a;
+				}
+				case T_INT_ARRAY: {
+					int[] a = new int[len];
+					arrayRefs.add(a);
+					for(int i = 0; i != len; ++i) {
+						a[i] = oin.readInt();
+					}
+					return a;
+				}
+				case T_LONG_ARRAY: {
+					long[] a = new long[len];
+					arrayRefs.add(a);
+					for(int i = 0; i != len; ++i) {
+						a[i] = oin.readLong();
+					}
+					return a;
+				}
+				case T_DOUBLE_ARRAY: {
+					double[] a = new double[len];
+					arrayRefs.add(a);
+					for(int i = 0; i != len; ++i) {
+						a[i] = oin.readDouble();
+					}
+					return a;
+				}
+				case T_CHAR_ARRAY: {
+					char[] a = new char[len];
+					arrayRefs.add(a);
+					for(int i = 0; i != len; ++i) {
+						a[i] = oin.readChar();
+					}
+					return a;
+				}
+				case T_BOOLEAN_ARRAY: {
+					boolean[] a = new boolean[len];
+					arrayRefs.add(a);
+					for(int i = 0; i != len; ++i) {
+						a[i] = oin.readBoolean();
+					}
+					return a;
+				}
+				case T_SHORT_ARRAY: {
+					short[] a = new short[len];
+					arrayRefs.add(a);
+					for(int i = 0; i != len; ++i) {
+						a[i] = oin.readShort();
+					}
+					return a;
+				}
+				case T_FLOAT_ARRAY: {
+					float[] a = new float[len];
+					arrayRefs.add(a);
+					for(int i = 0; i != len; ++i) {
+						a[i] = oin.readFloat();
+					}
+					return a;
+				}
+				default:
+					throw new StreamCorruptedException("Unknown value tag: " + tag);
+			}
+		}
+
+		private class CompactInputStream extends RmiObjectInputStream {
+
+			public CompactInputStream(InputStream in, List<byte[]> binaries) throws IOException {
+				super(in, channel, name, binaries);
+			}
+
+			@Override
+			protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+				int id = readVarInt(this);
+				if (id == 0) {
+					return super.readClassDescriptor();
+				}
+				else {
+					return lookup(id, ObjectStreamClass.class);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Produces standalone serialized form of class descriptor.
+	 */
+	private static class DescriptorWriter extends ObjectOutputStream {
+
+		public DescriptorWriter(OutputStream out) throws IOException {
+			super(out);
+		}
+
+		@Override
+		protected void writeStreamHeader() throws IOException {
+			// no header
+		}
+
+		public void writeDescriptor(ObjectStreamClass desc) throws IOException {
+			writeClassDescriptor(desc);
+			flush();
+		}
+	}
+
+	/**
+	 * Parses class descriptor produced by {@link DescriptorWriter}.
+	 * Descriptor is not resolved, class resolution happens each time
+	 * descriptor is used by payload stream.
+	 */
+	private static class DescriptorReader extends ObjectInputStream {
+
+		public DescriptorReader(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected void readStreamHeader() throws IOException {
+			// no header
+		}
+
+		public ObjectStreamClass readDescriptor() throws IOException {
+			try {
+				return readClassDescriptor();
+			} catch (ClassNotFoundException e) {
+				// not expected, descriptor is not resolved at this point
+				throw new StreamCorruptedException(e.toString());
+			} catch (EOFException e) {
+				throw new StreamCorruptedException("Truncated class descriptor");
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of stream compression for single connection.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class CompressionCounters {
+
+	final AtomicLong rawBytesOut = new AtomicLong();
+	final AtomicLong wireBytesOut = new AtomicLong();
+	final AtomicLong rawBytesIn = new AtomicLong();
+	final AtomicLong wireBytesIn = new AtomicLong();
+	final AtomicLong compressNanos = new AtomicLong();
+	final AtomicLong decompressNanos = new AtomicLong();
+	final AtomicLong compressedBlocks = new AtomicLong();
+	final AtomicLong plainBlocks = new AtomicLong();
+
+	/** Bytes written by application */
+	public long getRawBytesOut() {
+		return rawBytesOut.get();
+	}
+
+	/** Bytes sent to the socket, including block headers */
+	public long getWireBytesOut() {
+		return wireBytesOut.get();
+	}
+
+	public long getRawBytesIn() {
+		return rawBytesIn.get();
+	}
+
+	public long getWireBytesIn() {
+		return wireBytesIn.get();
+	}
+
+	/** Ratio of raw to transmitted size for outbound data, 1 if nothing was sent */
+	public double getOutboundRatio() {
+		long wire = wireBytesOut.get();
+		return wire == 0 ? 1 : ((double) rawBytesOut.get()) / wire;
+	}
+
+	public double getInboundRatio() {
+		long wire = wireBytesIn.get();
+		return wire == 0 ? 1 : ((double) rawBytesIn.get()) / wire;
+	}
+
+	public long getCompressTimeNanos() {
+		return compressNanos.get();
+	}
+
+	public long getDecompressTimeNanos() {
+		return decompressNanos.get();
+	}
+
+	/** Number of outbound blocks sent compressed */
+	public long getCompressedBlocks() {
+		return compressedBlocks.get();
+	}
+
+	/** Number of outbound blocks sent as is, because they are either too small or incompressible */
+	public long getPlainBlocks() {
+		return plainBlocks.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Compression[out: %d -> %d (%.2f), in: %d <- %d (%.2f), compress: %dms, decompress: %dms]",
+				getRawBytesOut(), getWireBytesOut(), getOutboundRatio(),
+				getRawBytesIn(), getWireBytesIn(), getInboundRatio(),
+				getCompressTimeNanos() / 1000000, getDecompressTimeNanos() / 1000000);
+	}
+}
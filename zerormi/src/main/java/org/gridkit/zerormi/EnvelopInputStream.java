@@ -1,5 +1,6 @@
 package org.gridkit.zerormi;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -77,6 +78,92 @@ class EnvelopInputStream extends InputStream {
         }
     }
     
+    /**
+     * Reads header of raw binary chunk (see {@link EnvelopOutputStream#writeBinary(byte[], int, int)}).
+     * Should be called once previous chunk is consumed.
+     * 
+     * @return size of binary chunk or -1 if end of message is reached
+     */
+    public int readBinaryHeader() throws IOException {
+        if (offs < lim) {
+            throw new IOException("Stream corrupted! Binary chunk expected");
+        }
+        if (eom) {
+            return -1;
+        }
+        int chunk = readShort();
+        if (chunk == -1) {
+            throw new EOFException("Stream truncated");
+        }
+        if (chunk == 0) {
+            eom = true;
+            return -1;
+        }
+        if (chunk != EnvelopOutputStream.BINARY_CHUNK) {
+            throw new IOException("Stream corrupted! Binary chunk expected, but chunk size is " + chunk);
+        }
+        int ch1 = readShort();
+        int ch2 = readShort();
+        if (ch1 == -1 || ch2 == -1) {
+            throw new EOFException("Stream truncated");
+        }
+        int len = (ch1 << 16) + ch2;
+        if (len < 0) {
+            throw new IOException("Stream corrupted! Illegal binary chunk size " + len);
+        }
+        return len;
+    }
+
+    /**
+     * Reads body of binary chunk directly into provided buffer.
+     */
+    public void readBinary(byte[] b, int off, int len) throws IOException {
+        int rp = 0;
+        while(rp < len) {
+            int n = source.read(b, off + rp, len - rp);
+            if (n < 0) {
+                throw new EOFException("Stream truncated");
+            }
+            rp += n;
+        }
+        if (DEBUG) {
+            System.out.println("[IN:" + hashCode() + "] - binary " + len);
+        }
+    }
+
+    /**
+     * Checks if buffer contains complete message, including end of message marker.
+     * Used by non blocking readers to avoid blocking in the middle of message.
+     * 
+     * @return length of complete message or -1 if more data is required
+     */
+    public static int scanMessage(byte[] buf, int off, int len) {
+        int pos = 0;
+        while(pos + 2 <= len) {
+            int chunk = ((buf[off + pos] & 0xFF) << 8) + (buf[off + pos + 1] & 0xFF);
+            pos += 2;
+            if (chunk == 0) {
+                return pos;
+            }
+            else if (chunk == EnvelopOutputStream.BINARY_CHUNK) {
+                if (pos + 4 > len) {
+                    return -1;
+                }
+                int size = ((buf[off + pos] & 0xFF) << 24) + ((buf[off + pos + 1] & 0xFF) << 16) 
+                        + ((buf[off + pos + 2] & 0xFF) << 8) + (buf[off + pos + 3] & 0xFF);
+                pos += 4;
+                if (size < 0 || size > len - pos) {
+                    return -1;
+                }
+                pos += size;
+            }
+            else {
+                pos += chunk;
+            }
+        }
+        return -1;
+    }
+
     public void nextMessage() throws IOException {
         skip(Long.MAX_VALUE);
         eom = false;
@@ -85,7 +172,7 @@ class EnvelopInputStream extends InputStream {
     @Override
     public int read() throws IOException {
         if (remaining() > 0) {
-            return buffer[offs++];
+            return buffer[offs++] & 0xFF;
         }
         else {
             return -1;
@@ -2,14 +2,19 @@ package org.gridkit.zerormi;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public class EnvelopOutputStream extends OutputStream {
 
     private static boolean DEBUG = false;
+
+    /** Chunk size value marking raw binary chunk, regular chunks are never that large */
+    static final int BINARY_CHUNK = 0xFFFF;
     
     private OutputStream target;
     private byte[] buffer = new byte[4 << 10];
     private int offs = 0;
+    private byte[] scratch;
     
     public EnvelopOutputStream(OutputStream target) {
         this.target = target;
@@ -59,6 +64,48 @@ public class EnvelopOutputStream extends OutputStream {
         }
     }
     
+    /**
+     * Writes raw binary chunk. Data is passed to underlying stream
+     * as is, without copying to envelope buffer.
+     */
+    public void writeBinary(byte[] b, int off, int len) throws IOException {
+        flush();
+        writeShort(BINARY_CHUNK);
+        writeInt(len);
+        target.write(b, off, len);
+        if (DEBUG) {
+            System.out.println("[OUT:" + hashCode() + "] - binary " + len);
+        }
+    }
+
+    /**
+     * Writes remaining content of the buffer as raw binary chunk,
+     * position of the buffer is not changed.
+     */
+    public void writeBinary(ByteBuffer bb) throws IOException {
+        if (bb.hasArray()) {
+            writeBinary(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+        }
+        else {
+            // direct or mapped buffer, has to be copied in large pieces
+            flush();
+            writeShort(BINARY_CHUNK);
+            writeInt(bb.remaining());
+            if (scratch == null) {
+                scratch = new byte[64 << 10];
+            }
+            ByteBuffer src = bb.duplicate();
+            while(src.hasRemaining()) {
+                int n = Math.min(scratch.length, src.remaining());
+                src.get(scratch, 0, n);
+                target.write(scratch, 0, n);
+            }
+            if (DEBUG) {
+                System.out.println("[OUT:" + hashCode() + "] - binary " + bb.remaining());
+            }
+        }
+    }
+
     public void closeMessage() throws IOException {
         flush();
         writeShort(0);
@@ -83,6 +130,11 @@ public class EnvelopOutputStream extends OutputStream {
         target.write((v >>> 8) & 0xFF);
         target.write((v >>> 0) & 0xFF);
     }
+
+    void writeInt(int v) throws IOException {
+        writeShort(v >>> 16);
+        writeShort(v);
+    }
     
     @Override
     public void close() throws IOException {
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of exported objects and remote proxies for single connection.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class ExportCounters {
+
+	final AtomicLong liveExports = new AtomicLong();
+	final AtomicLong releasedExports = new AtomicLong();
+	final AtomicLong expiredExports = new AtomicLong();
+	final AtomicLong liveProxies = new AtomicLong();
+	final AtomicLong collectedProxies = new AtomicLong();
+	final AtomicLong leaseMessagesSent = new AtomicLong();
+	final AtomicLong leaseMessagesReceived = new AtomicLong();
+
+	/** Local objects currently reachable from remote side */
+	public long getLiveExports() {
+		return liveExports.get();
+	}
+
+	/** Exports dropped after remote side has released all its references */
+	public long getReleasedExports() {
+		return releasedExports.get();
+	}
+
+	/** Exports dropped because remote side has not renewed their leases */
+	public long getExpiredExports() {
+		return expiredExports.get();
+	}
+
+	/** Proxies of remote objects, which are not collected yet */
+	public long getLiveProxies() {
+		return liveProxies.get();
+	}
+
+	/** Proxies of remote objects collected by local GC, their references are released in next lease message */
+	public long getCollectedProxies() {
+		return collectedProxies.get();
+	}
+
+	/** Batched renew/release messages sent to remote side */
+	public long getLeaseMessagesSent() {
+		return leaseMessagesSent.get();
+	}
+
+	/** Batched renew/release messages received from remote side */
+	public long getLeaseMessagesReceived() {
+		return leaseMessagesReceived.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Exports[live: %d, released: %d, expired: %d, proxies: %d, collected: %d]",
+				getLiveExports(), getReleasedExports(), getExpiredExports(), getLiveProxies(), getCollectedProxies());
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+
+/**
+ * Base class for remote proxies generated by {@link RemoteStubFactory}.
+ * Object methods and exceptions behave the same way as for {@link java.lang.reflect.Proxy} based stubs,
+ * object methods are executed on {@link RemoteStub}, undeclared checked exceptions
+ * are wrapped into {@link UndeclaredThrowableException}.
+ * 
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public abstract class GeneratedStub {
+
+	final RemoteStub stub;
+	private final StubMethod[] methods;
+
+	protected GeneratedStub(RemoteStub stub, StubMethod[] methods) {
+		this.stub = stub;
+		this.methods = methods;
+	}
+
+	/**
+	 * Called by generated methods.
+	 */
+	protected final Object invoke(int index, Object[] args) throws Throwable {
+		StubMethod m = methods[index];
+		try {
+			return stub.getRmiChannel().remoteInvocation(stub, this, m.method, m.signature, args);
+		}
+		catch(RuntimeException e) {
+			throw e;
+		}
+		catch(Error e) {
+			throw e;
+		}
+		catch(Throwable e) {
+			for(Class<?> c: m.exceptions) {
+				if (c.isInstance(e)) {
+					throw e;
+				}
+			}
+			throw new UndeclaredThrowableException(e);
+		}
+	}
+
+	@Override
+	public int hashCode() {
+		return stub.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return stub.equals(obj);
+	}
+
+	@Override
+	public String toString() {
+		return stub.toString();
+	}
+
+	/**
+	 * Interface method and its signature, resolved once per stub class.
+	 */
+	public static final class StubMethod {
+
+		final Method method;
+		final RemoteMethodSignature signature;
+		final Class<?>[] exceptions;
+
+		StubMethod(Method method) {
+			this.method = method;
+			this.signature = new RemoteMethodSignature(method);
+			this.exceptions = method.getExceptionTypes();
+		}
+	}
+}
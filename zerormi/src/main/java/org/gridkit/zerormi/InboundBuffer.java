@@ -0,0 +1,115 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.io.InputStream;
+
+/**
+ * Growable byte buffer accumulating pushed data. Reads never block,
+ * end of buffered data is reported as end of stream.
+ * 
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class InboundBuffer extends InputStream {
+
+	private static final int INITIAL_SIZE = 8 << 10;
+	private static final int SHRINK_THRESHOLD = 256 << 10;
+
+	private byte[] buffer = new byte[INITIAL_SIZE];
+	private int start;
+	private int end;
+
+	public void append(byte[] data, int offset, int length) {
+		if (end + length > buffer.length) {
+			int size = end - start;
+			if (size + length > buffer.length) {
+				int cap = buffer.length;
+				while(cap < size + length) {
+					cap <<= 1;
+				}
+				byte[] nb = new byte[cap];
+				System.arraycopy(buffer, start, nb, 0, size);
+				buffer = nb;
+			}
+			else {
+				System.arraycopy(buffer, start, buffer, 0, size);
+			}
+			start = 0;
+			end = size;
+		}
+		System.arraycopy(data, offset, buffer, end, length);
+		end += length;
+	}
+
+	/** Underlying array, valid until next {@link #append(byte[], int, int)} */
+	public byte[] array() {
+		return buffer;
+	}
+
+	/** Offset of first unread byte in {@link #array()} */
+	public int position() {
+		return start;
+	}
+
+	@Override
+	public int available() {
+		return end - start;
+	}
+
+	@Override
+	public int read() {
+		if (start == end) {
+			return -1;
+		}
+		int b = buffer[start++] & 0xFF;
+		consumed();
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (start == end) {
+			return -1;
+		}
+		int n = Math.min(len, end - start);
+		System.arraycopy(buffer, start, b, off, n);
+		start += n;
+		consumed();
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		int s = (int) Math.min(n, end - start);
+		start += s;
+		consumed();
+		return s;
+	}
+
+	private void consumed() {
+		if (start == end) {
+			start = 0;
+			end = 0;
+			// release memory taken by large message
+			if (buffer.length > SHRINK_THRESHOLD) {
+				buffer = new byte[INITIAL_SIZE];
+			}
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Plain Java serialization codec. Stream is reset after each message,
+ * so every message carries its own class descriptors.
+ * <p>
+ * This is legacy wire format, it is used for handshake and for peers
+ * which do not negotiate a codec.
+ * 
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class JavaRmiCodec implements RmiCodec {
+
+	public static final String NAME = "java";
+	
+	private final RmiChannel channel;
+	private final String name;
+	private final int binaryThreshold;
+	private final boolean zeroCopy;
+	
+	public JavaRmiCodec(RmiChannel channel, String name) {
+		this(channel, name, -1);
+	}
+
+	/**
+	 * @param binaryThreshold min size of out of band <code>byte[]</code>, negative value disables out of band payloads
+	 */
+	public JavaRmiCodec(RmiChannel channel, String name, int binaryThreshold) {
+		this(channel, name, binaryThreshold, false);
+	}
+
+	/**
+	 * @param binaryThreshold min size of out of band <code>byte[]</code>, negative value disables out of band payloads
+	 * @param zeroCopy if <code>true</code> out of band payloads are not copied, see {@link BinaryPayloads}
+	 */
+	public JavaRmiCodec(RmiChannel channel, String name, int binaryThreshold, boolean zeroCopy) {
+		this.channel = channel;
+		this.name = name;
+		this.binaryThreshold = binaryThreshold;
+		this.zeroCopy = zeroCopy;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public Encoder createEncoder() throws IOException {
+		return new JavaEncoder();
+	}
+
+	@Override
+	public Decoder createDecoder(InputStream in) throws IOException {
+		return new JavaDecoder(in, null);
+	}
+
+	@Override
+	public Decoder createDecoder(InputStream in, List<byte[]> binaries) throws IOException {
+		return new JavaDecoder(in, binaries);
+	}
+
+	private class JavaEncoder implements Encoder {
+		
+		private final MessageBuffer buffer = new MessageBuffer();
+		private final BinaryPayloads binaries = binaryThreshold < 0 ? null : new BinaryPayloads(binaryThreshold, zeroCopy);
+		private RmiObjectOutputStream ostream;
+		
+		public JavaEncoder() throws IOException {
+			ostream = new RmiObjectOutputStream(buffer, channel, binaries);
+		}
+
+		@Override
+		public void encode(Object... objects) throws IOException {
+			buffer.reset();
+			if (binaries != null) {
+				binaries.clear();
+			}
+			boolean done = false;
+			try {
+				for(Object obj: objects) {
+					ostream.writeObject(obj);
+				}
+				ostream.reset();
+				ostream.writeObject(null); // we need this to ensure reset is processed by read side
+				ostream.flush();
+				done = true;
+			}
+			finally {
+				if (!done) {
+					buffer.reset();
+					if (binaries != null) {
+						binaries.clear();
+					}
+					ostream = new RmiObjectOutputStream(buffer, channel, binaries);
+				}
+			}
+		}
+
+		@Override
+		public void writeTo(OutputStream os) throws IOException {
+			buffer.writeTo(os);
+		}
+
+		@Override
+		public List<Object> getBinaryPayloads() {
+			return binaries == null ? Collections.<Object>emptyList() : binaries.getPayloads();
+		}
+
+		@Override
+		public void release() {
+			if (binaries != null) {
+				binaries.clear();
+			}
+		}
+
+		@Override
+		public void commit() {
+			// stateless
+		}
+	}
+	
+	private class JavaDecoder implements Decoder {
+		
+		private final RmiObjectInputStream ostream;
+		
+		public JavaDecoder(InputStream in, List<byte[]> binaries) throws IOException {
+			this.ostream = new RmiObjectInputStream(in, channel, name, binaries);
+		}
+
+		@Override
+		public void beginMessage() {
+			// no preamble
+		}
+
+		@Override
+		public Object readObject() throws IOException, ClassNotFoundException {
+			return ostream.readObject();
+		}
+
+		@Override
+		public void endMessage() throws IOException, ClassNotFoundException {
+			ostream.readObject(); // null expected
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with power of two buckets.
+ * Recording does not allocate, so histogram could stay enabled all the time.
+ * <p>
+ * Bucket <code>n</code> holds values in range <code>[2^(n-1), 2^n)</code> nanoseconds,
+ * so percentiles are accurate within factor of 2.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class LatencyHistogram {
+
+	static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		while(true) {
+			long m = max.get();
+			if (m >= nanos || max.compareAndSet(m, nanos)) {
+				break;
+			}
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotalNanos() {
+		return total.get();
+	}
+
+	public long getMaxNanos() {
+		return max.get();
+	}
+
+	public double getMeanMicros() {
+		long n = count.get();
+		return n == 0 ? 0 : ((double) total.get()) / n / 1000;
+	}
+
+	/**
+	 * @param percentile in range 0 to 1
+	 * @return upper bound of bucket containing requested percentile in microseconds
+	 */
+	public double getPercentileMicros(double percentile) {
+		long[] snapshot = getBuckets();
+		long n = 0;
+		for(long c: snapshot) {
+			n += c;
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile * n);
+		long acc = 0;
+		for(int i = 0; i != snapshot.length; ++i) {
+			acc += snapshot[i];
+			if (acc >= rank && snapshot[i] > 0) {
+				long upper = i == 0 ? 0 : Math.min((1l << i) - 1, max.get());
+				return ((double) upper) / TimeUnit.MICROSECONDS.toNanos(1);
+			}
+		}
+		return ((double) max.get()) / TimeUnit.MICROSECONDS.toNanos(1);
+	}
+
+	/**
+	 * @return copy of bucket counters
+	 */
+	public long[] getBuckets() {
+		long[] snapshot = new long[BUCKETS];
+		for(int i = 0; i != BUCKETS; ++i) {
+			snapshot[i] = buckets.get(i);
+		}
+		return snapshot;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus", getCount(), getMeanMicros(), getPercentileMicros(0.5), getPercentileMicros(0.99), max.get() / 1000d);
+	}
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Reusable buffer for encoded messages.
+ * Oversized backing array is released on reset, so single
+ * large message would not pin memory for connection life time.
+ * 
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class MessageBuffer extends ByteArrayOutputStream {
+
+	private static final int INITIAL_SIZE = 4 << 10;
+	private static final int RETAIN_LIMIT = 1 << 20;
+	
+	public MessageBuffer() {
+		super(INITIAL_SIZE);
+	}
+	
+	public byte[] array() {
+		return buf;
+	}
+	
+	@Override
+	public synchronized void reset() {
+		super.reset();
+		if (buf.length > RETAIN_LIMIT) {
+			buf = new byte[INITIAL_SIZE];
+		}
+	}
+}
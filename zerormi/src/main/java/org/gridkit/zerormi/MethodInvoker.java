@@ -0,0 +1,69 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Invokes interface method on exported object. Invokers are generated
+ * with ASM, so dispatch of inbound calls does not go through reflection.
+ * {@link Method#invoke(Object, Object...)} is used if ASM is not available
+ * or method is not accessible from generated class.
+ * <p>
+ * Class is public, because generated invokers are defined in their own class loader.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public abstract class MethodInvoker {
+
+	static MethodInvoker create(Method method, ClassLoader cl) {
+		try {
+			MethodInvoker invoker = MethodInvokerFactory.generate(method, cl);
+			if (invoker != null) {
+				return invoker;
+			}
+		}
+		catch(LinkageError e) {
+			// ASM is not on classpath
+		}
+		return new ReflectionInvoker(method);
+	}
+
+	protected MethodInvoker() {
+	}
+
+	/**
+	 * Same contract as {@link Method#invoke(Object, Object...)}, exception thrown
+	 * by method is wrapped into {@link InvocationTargetException}.
+	 */
+	public abstract Object invoke(Object target, Object[] args) throws Exception;
+
+	private static class ReflectionInvoker extends MethodInvoker {
+
+		private final Method method;
+
+		public ReflectionInvoker(Method method) {
+			this.method = method;
+			method.setAccessible(true);
+		}
+
+		@Override
+		public Object invoke(Object target, Object[] args) throws Exception {
+			return method.invoke(target, args);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Generates {@link MethodInvoker} classes. This is the only class referring ASM
+ * on dispatch path, so it is not loaded if ASM is missing.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class MethodInvokerFactory implements Opcodes {
+
+	private static final String INVOKER_PREFIX = MethodInvoker.class.getName() + "$$";
+	private static final String INVOKER_SUPER = Type.getInternalName(MethodInvoker.class);
+	private static final String INVOKE = Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Object.class), Type.getType(Object[].class));
+	private static final String ITE = Type.getInternalName(InvocationTargetException.class);
+
+	private static final AtomicInteger COUNTER = new AtomicInteger();
+
+	/**
+	 * @return generated invoker or <code>null</code> if reflection should be used
+	 */
+	static MethodInvoker generate(Method method, ClassLoader cl) {
+		Class<?> iface = method.getDeclaringClass();
+		if (!iface.isInterface() || !isPublic(iface) || Modifier.isStatic(method.getModifiers())) {
+			return null;
+		}
+		RemoteStubFactory.StubClassLoader loader = new RemoteStubFactory.StubClassLoader(cl);
+		loader.addKnownClass(MethodInvoker.class);
+		loader.addKnownClass(iface);
+		loader.addKnownClass(method.getReturnType());
+		if (!isPublic(method.getReturnType())) {
+			return null;
+		}
+		for(Class<?> p: method.getParameterTypes()) {
+			if (!isPublic(p)) {
+				return null;
+			}
+			loader.addKnownClass(p);
+		}
+		try {
+			String name = INVOKER_PREFIX + COUNTER.incrementAndGet();
+			byte[] bytecode = generateClass(name, method);
+			return (MethodInvoker) loader.define(name, bytecode).getConstructor().newInstance();
+		}
+		catch(Exception e) {
+			return null;
+		}
+	}
+
+	private static boolean isPublic(Class<?> c) {
+		while(c.isArray()) {
+			c = c.getComponentType();
+		}
+		return c.isPrimitive() || Modifier.isPublic(c.getModifiers());
+	}
+
+	static byte[] generateClass(String name, Method m) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V1_6, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name.replace('.', '/'), null, INVOKER_SUPER, null);
+
+		MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		init.visitCode();
+		init.visitVarInsn(ALOAD, 0);
+		init.visitMethodInsn(INVOKESPECIAL, INVOKER_SUPER, "<init>", "()V", false);
+		init.visitInsn(RETURN);
+		init.visitMaxs(0, 0);
+		init.visitEnd();
+
+		String iname = Type.getInternalName(m.getDeclaringClass());
+		Type[] args = Type.getArgumentTypes(m);
+		Type ret = Type.getReturnType(m);
+
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "invoke", INVOKE, null, new String[] {"java/lang/Exception"});
+		mv.visitCode();
+		// argument conversion errors are not wrapped, same as for reflection
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitTypeInsn(CHECKCAST, iname);
+		for(int i = 0; i != args.length; ++i) {
+			mv.visitVarInsn(ALOAD, 2);
+			RemoteStubFactory.pushInt(mv, i);
+			mv.visitInsn(AALOAD);
+			RemoteStubFactory.unbox(mv, args[i]);
+		}
+		Label start = new Label();
+		Label end = new Label();
+		Label handler = new Label();
+		mv.visitTryCatchBlock(start, end, handler, "java/lang/Throwable");
+		mv.visitLabel(start);
+		mv.visitMethodInsn(INVOKEINTERFACE, iname, m.getName(), Type.getMethodDescriptor(m), true);
+		mv.visitLabel(end);
+		if (ret.getSort() == Type.VOID) {
+			mv.visitInsn(ACONST_NULL);
+		}
+		else {
+			RemoteStubFactory.box(mv, ret);
+		}
+		mv.visitInsn(ARETURN);
+
+		mv.visitLabel(handler);
+		mv.visitVarInsn(ASTORE, 3);
+		mv.visitTypeInsn(NEW, ITE);
+		mv.visitInsn(DUP);
+		mv.visitVarInsn(ALOAD, 3);
+		mv.visitMethodInsn(INVOKESPECIAL, ITE, "<init>", "(Ljava/lang/Throwable;)V", false);
+		mv.visitInsn(ATHROW);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.io.IOException;
+
+/**
+ * {@link DuplexStream} which could push inbound data to consumer
+ * instead of being read by a dedicated thread.
+ * <p>
+ * Blocking {@link #getInput()} is still available until {@link #startReceiving(Receiver)}
+ * is called, which is used by handshake.
+ * 
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public interface NonBlockingDuplexStream extends DuplexStream {
+
+	/**
+	 * Switches stream to push mode. Data already buffered by stream
+	 * is delivered first. Receiver is always called from single I/O thread,
+	 * so it should never block.
+	 */
+	public void startReceiving(Receiver receiver) throws IOException;
+
+	public interface Receiver {
+
+		/**
+		 * Data is valid only for duration of the call.
+		 */
+		public void received(byte[] data, int offset, int length) throws IOException;
+
+		/**
+		 * @param error <code>null</code> if stream has reached its end normally
+		 */
+		public void closed(IOException error);
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gridkit.util.concurrent.Box;
+import org.gridkit.util.concurrent.FutureBox;
+import org.gridkit.util.concurrent.FutureEx;
+
+/**
+ * Collects calls to remote proxies and sends them as a single message.
+ * Remote side executes calls one by one in order they were added
+ * and sends all results back in a single reply.
+ * <p>
+ * All proxies in a batch should belong to the same connection.
+ * Batch is empty after {@link #submit()} and could be reused.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class RemoteBatch {
+
+	private RmiChannel channel;
+	private final List<Object> calls = new ArrayList<Object>();
+	private final List<FutureBox<Object>> futures = new ArrayList<FutureBox<Object>>();
+
+	/**
+	 * Batch is bound to connection of first added proxy.
+	 */
+	public RemoteBatch() {
+	}
+
+	RemoteBatch(RmiChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * @return future which will receive result of the call once batch is executed
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <T> FutureEx<T> add(Object proxy, Method method, Object... args) {
+		RemoteStub stub = RemoteStub.stubOf(proxy);
+		if (stub == null) {
+			throw new IllegalArgumentException("Not a remote proxy");
+		}
+		if (method.getDeclaringClass() == Object.class) {
+			throw new IllegalArgumentException("Object methods are executed locally: " + method);
+		}
+		if (channel == null) {
+			channel = stub.getRmiChannel();
+		}
+		else if (channel != stub.getRmiChannel()) {
+			throw new IllegalArgumentException("Proxy belongs to another connection: " + stub);
+		}
+		calls.add(stub.getRemoteInstance());
+		calls.add(method);
+		calls.add(args == null ? new Object[0] : args);
+		FutureBox<Object> box = new FutureBox<Object>();
+		futures.add(box);
+		return (FutureEx<T>) box;
+	}
+
+	public synchronized int size() {
+		return futures.size();
+	}
+
+	/**
+	 * Sends all collected calls.
+	 *
+	 * @return future which is complete once all results are received
+	 */
+	public synchronized FutureEx<Void> submit() {
+		final FutureBox<Void> done = new FutureBox<Void>();
+		if (futures.isEmpty()) {
+			done.setData(null);
+			return done;
+		}
+		final List<FutureBox<Object>> boxes = new ArrayList<FutureBox<Object>>(futures);
+		Object[] request = calls.toArray();
+		calls.clear();
+		futures.clear();
+
+		channel.asyncBatchInvocation(request).addListener(new Box<Object>() {
+
+			@Override
+			public void setData(Object data) {
+				Object[] results = (Object[]) data;
+				for(int i = 0; i != boxes.size(); ++i) {
+					if ((Boolean) results[2 * i]) {
+						boxes.get(i).setError((Throwable) results[2 * i + 1]);
+					}
+					else {
+						boxes.get(i).setData(results[2 * i + 1]);
+					}
+				}
+				done.setData(null);
+			}
+
+			@Override
+			public void setError(Throwable e) {
+				for(FutureBox<Object> box: boxes) {
+					box.setError(e);
+				}
+				done.setError(e);
+			}
+		});
+
+		return done;
+	}
+}
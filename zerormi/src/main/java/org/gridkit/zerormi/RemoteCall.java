@@ -20,7 +20,7 @@ package org.gridkit.zerormi;
  * 
  * @author Alexey Ragozin (alexey.ragozin@gmail.com)
  */
-class RemoteCall implements RemoteMessage {
+class RemoteCall implements RmiChannel1.CallFrame {
 
 	/**
 	 * Instance will receive the call
@@ -43,6 +43,19 @@ class RemoteCall implements RemoteMessage {
 	 */
 	transient long callId;
 
+	/**
+	 * {@link System#nanoTime()} based deadline of the call, {@link #NO_DEADLINE} if call is not limited.
+	 * Remaining time is carried in the message header, absolute value is local to each side.
+	 */
+	transient long deadline = NO_DEADLINE;
+
+	/**
+	 * Receiver side method table slot, negative if unknown.
+	 */
+	transient int methodSlot = -1;
+
+	static final long NO_DEADLINE = Long.MAX_VALUE;
+
 	public Object[] getArgs() {
 		return args;
 	}
@@ -59,6 +72,26 @@ class RemoteCall implements RemoteMessage {
 		return method;
 	}
 
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public boolean hasDeadline() {
+		return deadline != NO_DEADLINE;
+	}
+
+	public boolean isExpired() {
+		return deadline != NO_DEADLINE && deadline - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Call is already decoded.
+	 */
+	@Override
+	public RemoteMessage decode() {
+		return this;
+	}
+
 	public RemoteCall(long callId, RemoteInstance remoteInstance, RemoteMethodSignature method, Object[] args) {
 		this.remoteInstance = remoteInstance;
 		this.method = method;
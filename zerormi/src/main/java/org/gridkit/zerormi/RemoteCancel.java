@@ -0,0 +1,45 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+
+/**
+ * Request to abandon a call. Caller is not waiting for result anymore,
+ * call is dropped if still queued or its thread is interrupted if running.
+ * Result (most likely an error) is still sent back to the caller.
+ * 
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class RemoteCancel implements RemoteMessage {
+
+	/**
+	 * Id of the call to be cancelled
+	 */
+	transient long callId;
+
+	public RemoteCancel(long callId) {
+		this.callId = callId;
+	}
+
+	public long getCallId() {
+		return callId;
+	}
+
+	@Override
+	public String toString() {
+		return "RemoteCancel{" + callId + "}";
+	}
+}
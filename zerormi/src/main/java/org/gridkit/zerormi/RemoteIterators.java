@@ -0,0 +1,269 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.rmi.Remote;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+
+import org.gridkit.util.concurrent.FutureBox;
+import org.gridkit.util.concurrent.FutureEx;
+
+/**
+ * Streaming of large results over RMI.
+ * <p>
+ * Iterator returned by {@link #export(Iterator)} could be passed to remote side,
+ * there elements would be fetched from original iterator in chunks. Each request
+ * for a chunk grants producer a credit for chunk size elements, and only limited
+ * number of requests could be in flight, so memory usage on both sides is bounded.
+ * Chunks are numbered by producer in order of request arrival, consumer reorders them,
+ * so producer never waits for a request.
+ * <p>
+ * Consumer should call {@link Closeable#close()} if it does not read stream till the end.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class RemoteIterators {
+
+	public static final int DEFAULT_CHUNK_SIZE = 256;
+
+	public static final int DEFAULT_PREFETCH = 2;
+
+	private static final Method FETCH_METHOD;
+	static {
+		try {
+			FETCH_METHOD = ChunkSource.class.getMethod("fetch", int.class);
+		} catch (NoSuchMethodException e) {
+			throw new Error(e);
+		}
+	}
+
+	public static <T> Iterator<T> export(Iterator<T> iterator) {
+		return export(iterator, DEFAULT_CHUNK_SIZE, DEFAULT_PREFETCH);
+	}
+
+	/**
+	 * @param chunkSize number of elements transfered in single call
+	 * @param prefetch number of chunk requests which could be in flight
+	 */
+	public static <T> Iterator<T> export(Iterator<T> iterator, int chunkSize, int prefetch) {
+		if (chunkSize < 1 || prefetch < 1) {
+			throw new IllegalArgumentException("Chunk size and prefetch should be positive");
+		}
+		return new StreamingIterator<T>(new IteratorSource(iterator), chunkSize, prefetch);
+	}
+
+	/**
+	 * Exported on producer side, consumer sees it as remote proxy.
+	 */
+	public interface ChunkSource extends Remote {
+
+		/**
+		 * @return chunk number followed by up to <code>credit</code> elements, chunk without elements means end of stream
+		 */
+		public Object[] fetch(int credit);
+
+		public void close();
+
+	}
+
+	private static class IteratorSource implements ChunkSource {
+
+		private Iterator<?> iterator;
+		private int nextChunk;
+
+		public IteratorSource(Iterator<?> iterator) {
+			this.iterator = iterator;
+		}
+
+		@Override
+		public synchronized Object[] fetch(int credit) {
+			// prefetch requests may be dispatched concurrently, so chunk is numbered
+			// in order of arrival instead of waiting for preceding request
+			if (iterator == null) {
+				return new Object[] {nextChunk++};
+			}
+			List<Object> chunk = new ArrayList<Object>(credit + 1);
+			chunk.add(nextChunk++);
+			try {
+				while(chunk.size() <= credit && iterator.hasNext()) {
+					chunk.add(iterator.next());
+				}
+			}
+			catch(RuntimeException e) {
+				close();
+				throw e;
+			}
+			if (chunk.size() == 1) {
+				close();
+			}
+			return chunk.toArray();
+		}
+
+		@Override
+		public synchronized void close() {
+			if (iterator instanceof Closeable) {
+				try {
+					((Closeable) iterator).close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+			// release underlying data
+			iterator = null;
+		}
+	}
+
+	private static class StreamingIterator<T> implements Iterator<T>, Closeable, Serializable {
+
+		private static final long serialVersionUID = 20130701L;
+
+		private final ChunkSource source;
+		private final int chunkSize;
+		private final int prefetch;
+
+		private transient LinkedList<FutureEx<Object[]>> inflight;
+		/** Chunks received ahead of their turn */
+		private transient Map<Integer, Object[]> ready;
+		private transient int nextChunk;
+		private transient Object[] chunk;
+		private transient int pos;
+		private transient boolean eof;
+
+		public StreamingIterator(ChunkSource source, int chunkSize, int prefetch) {
+			this.source = source;
+			this.chunkSize = chunkSize;
+			this.prefetch = prefetch;
+		}
+
+		@Override
+		public synchronized boolean hasNext() {
+			while(true) {
+				if (chunk != null && pos < chunk.length) {
+					return true;
+				}
+				if (eof) {
+					return false;
+				}
+				requestChunks();
+				Object[] reply = ready.remove(nextChunk);
+				if (reply == null) {
+					reply = await(inflight.removeFirst());
+					ready.put((Integer) reply[0], reply);
+					continue;
+				}
+				++nextChunk;
+				chunk = reply;
+				// first element is chunk number
+				pos = 1;
+				if (chunk.length == 1) {
+					eof = true;
+					chunk = null;
+					inflight.clear();
+					ready.clear();
+				}
+			}
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public synchronized T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			T e = (T) chunk[pos];
+			// element is no longer referenced by iterator
+			chunk[pos++] = null;
+			// keep window full while consumer is processing current chunk
+			requestChunks();
+			return e;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public synchronized void close() {
+			if (!eof) {
+				eof = true;
+				chunk = null;
+				inflight = null;
+				ready = null;
+				source.close();
+			}
+		}
+
+		private void requestChunks() {
+			if (inflight == null) {
+				inflight = new LinkedList<FutureEx<Object[]>>();
+				ready = new HashMap<Integer, Object[]>();
+			}
+			while(!eof && inflight.size() + ready.size() < prefetch) {
+				inflight.add(fetch());
+			}
+		}
+
+		private FutureEx<Object[]> fetch() {
+			if (RemoteStub.isRemoteStub(source)) {
+				return RemoteStub.<Object[]>remoteSubmit(source, FETCH_METHOD, chunkSize);
+			}
+			else {
+				// iterator was not passed over RMI
+				FutureBox<Object[]> box = new FutureBox<Object[]>();
+				try {
+					box.setData(source.fetch(chunkSize));
+				}
+				catch(RuntimeException e) {
+					box.setError(e);
+				}
+				return box;
+			}
+		}
+
+		private Object[] await(FutureEx<Object[]> future) {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted");
+			} catch (ExecutionException e) {
+				eof = true;
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				else if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				else {
+					throw new RuntimeException("Remote iterator failed", cause);
+				}
+			}
+		}
+	}
+}
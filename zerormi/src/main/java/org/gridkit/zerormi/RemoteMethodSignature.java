@@ -15,8 +15,11 @@
  */
 package org.gridkit.zerormi;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -30,9 +33,16 @@ public class RemoteMethodSignature implements Serializable {
 	private String className;
 	private String methodName;
 	private String[] methodSignature;
+
+	private transient int hash;
+	/** Caller side hint, method returns binary data and should be routed to bulk stream */
+	transient boolean bulkResult;
+	/** Receiver side method table slot, assigned by codec dictionary, negative if unknown */
+	transient int slot = -1;
 	
 	public RemoteMethodSignature(Method method) {
 		this(method.getDeclaringClass().getName(), method.getName(), toClassNames(method.getParameterTypes()));
+		this.bulkResult = method.getReturnType() == byte[].class || ByteBuffer.class.isAssignableFrom(method.getReturnType());
 	}
 
 	public RemoteMethodSignature(String className, String methodName, String[] methodSignature) {
@@ -41,6 +51,12 @@ public class RemoteMethodSignature implements Serializable {
 		this.methodSignature = methodSignature;
 	}
 	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		// initializers of transient fields are not run by deserialization
+		slot = -1;
+	}
+
 	public String getClassName() {
 		return className;
 	}
@@ -79,13 +95,18 @@ public class RemoteMethodSignature implements Serializable {
 	
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result
-		+ ((className == null) ? 0 : className.hashCode());
-		result = prime * result
-		+ ((methodName == null) ? 0 : methodName.hashCode());
-		result = prime * result + Arrays.hashCode(methodSignature);
+		// signature is immutable, so hash is cached
+		int result = hash;
+		if (result == 0) {
+			final int prime = 31;
+			result = 1;
+			result = prime * result
+			+ ((className == null) ? 0 : className.hashCode());
+			result = prime * result
+			+ ((methodName == null) ? 0 : methodName.hashCode());
+			result = prime * result + Arrays.hashCode(methodSignature);
+			hash = result;
+		}
 		return result;
 	}
 
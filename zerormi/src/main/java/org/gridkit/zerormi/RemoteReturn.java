@@ -36,6 +36,11 @@ class RemoteReturn implements RemoteMessage {
 	 */
 	long callId;
 
+	/**
+	 * Method of the call, used for local statistics only
+	 */
+	transient RemoteMethodSignature method;
+
 	public RemoteReturn(long callId, boolean throwing, Object ret) {
     	this.throwing = throwing;
     	this.ret = ret;
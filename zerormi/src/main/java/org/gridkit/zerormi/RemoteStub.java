@@ -90,19 +90,28 @@ public class RemoteStub implements InvocationHandler  {
 	}
 
     public static boolean isRemoteStub(Object proxy) {
-        if (Proxy.isProxyClass(proxy.getClass()) && Proxy.getInvocationHandler(proxy) instanceof RemoteStub) {
-            return true;
+        return stubOf(proxy) != null;
+    }	
+
+    /**
+     * @return handler of remote proxy, either generated or {@link Proxy} based, or <code>null</code> if object is not a remote proxy
+     */
+    public static RemoteStub stubOf(Object proxy) {
+        if (proxy instanceof GeneratedStub) {
+            return ((GeneratedStub) proxy).stub;
+        }
+        else if (proxy != null && Proxy.isProxyClass(proxy.getClass()) && Proxy.getInvocationHandler(proxy) instanceof RemoteStub) {
+            return (RemoteStub) Proxy.getInvocationHandler(proxy);
         }
         else {
-            return false;
+            return null;
         }
-    }	
+    }
 	
 	@SuppressWarnings("unchecked")
     public static <T> FutureEx<T> remoteSubmit(Object proxy, Method method, Object... arguments) {
-	    Object handler = Proxy.getInvocationHandler(proxy);
-	    if (handler instanceof RemoteStub) {
-	        RemoteStub stub = (RemoteStub) handler;
+	    RemoteStub stub = stubOf(proxy);
+	    if (stub != null) {
 	        return (FutureEx<T>) stub.asyncInvoke(proxy, method, arguments);
 	    }
 	    else {
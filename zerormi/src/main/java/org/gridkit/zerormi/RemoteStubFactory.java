@@ -0,0 +1,345 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gridkit.zerormi.GeneratedStub.StubMethod;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Builds remote proxies using stub classes generated with ASM.
+ * Stub class is generated once per interface set, each method passes
+ * its index to {@link GeneratedStub}, so method signature is not looked up
+ * on call path and there is no {@link java.lang.reflect.InvocationHandler} dispatch.
+ * <p>
+ * Interface sets which cannot be implemented from another class loader
+ * (e.g. non public types) are served by {@link Proxy}.
+ * ASM is optional at runtime, if it cannot be loaded channel uses {@link Proxy} for all stubs.
+ * 
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class RemoteStubFactory implements Opcodes {
+
+	private static final String STUB_PREFIX = GeneratedStub.class.getName() + "$$";
+	private static final String STUB_SUPER = Type.getInternalName(GeneratedStub.class);
+	private static final String STUB_INIT = Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(RemoteStub.class), Type.getType(StubMethod[].class));
+	private static final String STUB_INVOKE = Type.getMethodDescriptor(Type.getType(Object.class), Type.INT_TYPE, Type.getType(Object[].class));
+
+	private static final AtomicInteger COUNTER = new AtomicInteger();
+
+	/** Marks interface sets which are served by {@link Proxy} */
+	private static final StubClass NO_STUB = new StubClass(null, null);
+
+	private final RmiChannel channel;
+	/** Stub classes are cached per channel, so they do not outlive class loader of the channel */
+	private final ConcurrentMap<List<Class<?>>, StubClass> stubClasses = new ConcurrentHashMap<List<Class<?>>, StubClass>();
+
+	public RemoteStubFactory(RmiChannel channel) {
+		this.channel = channel;
+	}
+
+	public Object buildProxy(RemoteInstance remoteInstance) throws ClassNotFoundException {
+		String[] classNames = remoteInstance.interfaces;
+		Class<?>[] classes = new Class<?>[classNames.length];
+		for(int i = 0; i != classNames.length; ++i) {
+			classes[i] = channel.classForName(classNames[i]);
+		}
+		List<Class<?>> key = Arrays.asList(classes);
+		StubClass sc = stubClasses.get(key);
+		if (sc == null) {
+			sc = generate(classes);
+			StubClass prev = stubClasses.putIfAbsent(key, sc);
+			if (prev != null) {
+				sc = prev;
+			}
+		}
+		RemoteStub stub = new RemoteStub(remoteInstance, channel);
+		if (sc != NO_STUB) {
+			try {
+				return sc.constructor.newInstance(stub, sc.methods);
+			}
+			catch(Exception e) {
+				// fall back to JDK proxy
+			}
+		}
+		return Proxy.newProxyInstance(channel.getClassLoader(), classes, stub);
+	}
+
+	private StubClass generate(Class<?>[] interfaces) {
+		Map<String, Method> methods = collectMethods(interfaces);
+		if (methods == null) {
+			return NO_STUB;
+		}
+		try {
+			String name = STUB_PREFIX + COUNTER.incrementAndGet();
+			StubMethod[] table = new StubMethod[methods.size()];
+			StubClassLoader loader = new StubClassLoader(channel.getClassLoader());
+			loader.addKnownClass(GeneratedStub.class);
+			loader.addKnownClass(StubMethod.class);
+			loader.addKnownClass(RemoteStub.class);
+			for(Class<?> c: interfaces) {
+				loader.addKnownClass(c);
+			}
+			int n = 0;
+			for(Method m: methods.values()) {
+				table[n++] = new StubMethod(m);
+				loader.addKnownClass(m.getReturnType());
+				for(Class<?> p: m.getParameterTypes()) {
+					loader.addKnownClass(p);
+				}
+			}
+			byte[] bytecode = generateClass(name, interfaces, table);
+			Class<?> stubClass = loader.define(name, bytecode);
+			Constructor<?> constructor = stubClass.getConstructor(RemoteStub.class, StubMethod[].class);
+			return new StubClass(constructor, table);
+		}
+		catch(Exception e) {
+			return NO_STUB;
+		}
+		catch(LinkageError e) {
+			return NO_STUB;
+		}
+	}
+
+	/**
+	 * @return methods to be implemented by stub or <code>null</code> if {@link Proxy} should be used
+	 */
+	private static Map<String, Method> collectMethods(Class<?>[] interfaces) {
+		Map<String, Method> methods = new LinkedHashMap<String, Method>();
+		for(Class<?> c: interfaces) {
+			if (!c.isInterface() || !isPublic(c)) {
+				return null;
+			}
+			for(Method m: c.getMethods()) {
+				if (Modifier.isStatic(m.getModifiers()) || isObjectMethod(m)) {
+					continue;
+				}
+				String key = m.getName() + Type.getMethodDescriptor(Type.VOID_TYPE, Type.getArgumentTypes(m));
+				Method prev = methods.get(key);
+				if (prev == null) {
+					if (!isPublic(m.getReturnType())) {
+						return null;
+					}
+					for(Class<?> p: m.getParameterTypes()) {
+						if (!isPublic(p)) {
+							return null;
+						}
+					}
+					methods.put(key, m);
+				}
+				else if (prev.getReturnType() != m.getReturnType()) {
+					// covariant returns would require bridge methods
+					return null;
+				}
+			}
+		}
+		return methods;
+	}
+
+	private static boolean isPublic(Class<?> c) {
+		while(c.isArray()) {
+			c = c.getComponentType();
+		}
+		return c.isPrimitive() || Modifier.isPublic(c.getModifiers());
+	}
+
+	/**
+	 * Same as for {@link Proxy}, these methods are handled by {@link RemoteStub} locally.
+	 */
+	private static boolean isObjectMethod(Method m) {
+		try {
+			Object.class.getMethod(m.getName(), m.getParameterTypes());
+			return true;
+		}
+		catch(NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	static byte[] generateClass(String name, Class<?>[] interfaces, StubMethod[] methods) {
+		String[] inames = new String[interfaces.length];
+		for(int i = 0; i != interfaces.length; ++i) {
+			inames[i] = Type.getInternalName(interfaces[i]);
+		}
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V1_6, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name.replace('.', '/'), null, STUB_SUPER, inames);
+
+		MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", STUB_INIT, null, null);
+		init.visitCode();
+		init.visitVarInsn(ALOAD, 0);
+		init.visitVarInsn(ALOAD, 1);
+		init.visitVarInsn(ALOAD, 2);
+		init.visitMethodInsn(INVOKESPECIAL, STUB_SUPER, "<init>", STUB_INIT, false);
+		init.visitInsn(RETURN);
+		init.visitMaxs(0, 0);
+		init.visitEnd();
+
+		for(int i = 0; i != methods.length; ++i) {
+			generateMethod(cw, i, methods[i].method);
+		}
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	private static void generateMethod(ClassWriter cw, int index, Method m) {
+		Class<?>[] exceptions = m.getExceptionTypes();
+		String[] enames = new String[exceptions.length];
+		for(int i = 0; i != exceptions.length; ++i) {
+			enames[i] = Type.getInternalName(exceptions[i]);
+		}
+		Type[] args = Type.getArgumentTypes(m);
+		Type ret = Type.getReturnType(m);
+
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, m.getName(), Type.getMethodDescriptor(m), null, enames);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		pushInt(mv, index);
+		if (args.length == 0) {
+			// same as JDK proxy
+			mv.visitInsn(ACONST_NULL);
+		}
+		else {
+			pushInt(mv, args.length);
+			mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+			int slot = 1;
+			for(int i = 0; i != args.length; ++i) {
+				mv.visitInsn(DUP);
+				pushInt(mv, i);
+				mv.visitVarInsn(args[i].getOpcode(ILOAD), slot);
+				box(mv, args[i]);
+				mv.visitInsn(AASTORE);
+				slot += args[i].getSize();
+			}
+		}
+		mv.visitMethodInsn(INVOKEVIRTUAL, STUB_SUPER, "invoke", STUB_INVOKE, false);
+		if (ret.getSort() == Type.VOID) {
+			mv.visitInsn(POP);
+			mv.visitInsn(RETURN);
+		}
+		else {
+			unbox(mv, ret);
+			mv.visitInsn(ret.getOpcode(IRETURN));
+		}
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	static void pushInt(MethodVisitor mv, int n) {
+		if (n <= 5) {
+			mv.visitInsn(ICONST_0 + n);
+		}
+		else if (n <= Byte.MAX_VALUE) {
+			mv.visitIntInsn(BIPUSH, n);
+		}
+		else if (n <= Short.MAX_VALUE) {
+			mv.visitIntInsn(SIPUSH, n);
+		}
+		else {
+			mv.visitLdcInsn(n);
+		}
+	}
+
+	static void box(MethodVisitor mv, Type type) {
+		Type boxed = boxedType(type);
+		if (boxed != null) {
+			mv.visitMethodInsn(INVOKESTATIC, boxed.getInternalName(), "valueOf", Type.getMethodDescriptor(boxed, type), false);
+		}
+	}
+
+	static void unbox(MethodVisitor mv, Type type) {
+		Type boxed = boxedType(type);
+		if (boxed != null) {
+			mv.visitTypeInsn(CHECKCAST, boxed.getInternalName());
+			mv.visitMethodInsn(INVOKEVIRTUAL, boxed.getInternalName(), type.getClassName() + "Value", Type.getMethodDescriptor(type), false);
+		}
+		else {
+			mv.visitTypeInsn(CHECKCAST, type.getSort() == Type.ARRAY ? type.getDescriptor() : type.getInternalName());
+		}
+	}
+
+	private static Type boxedType(Type type) {
+		switch(type.getSort()) {
+			case Type.BOOLEAN: return Type.getType(Boolean.class);
+			case Type.BYTE: return Type.getType(Byte.class);
+			case Type.CHAR: return Type.getType(Character.class);
+			case Type.SHORT: return Type.getType(Short.class);
+			case Type.INT: return Type.getType(Integer.class);
+			case Type.LONG: return Type.getType(Long.class);
+			case Type.FLOAT: return Type.getType(Float.class);
+			case Type.DOUBLE: return Type.getType(Double.class);
+			default: return null;
+		}
+	}
+
+	private static class StubClass {
+
+		final Constructor<?> constructor;
+		final StubMethod[] methods;
+
+		public StubClass(Constructor<?> constructor, StubMethod[] methods) {
+			this.constructor = constructor;
+			this.methods = methods;
+		}
+	}
+
+	/**
+	 * Resolves interfaces, their signature types and stub base classes to exactly
+	 * the classes stub was generated for, everything else is delegated to channel's class loader.
+	 */
+	static class StubClassLoader extends ClassLoader {
+
+		private final Map<String, Class<?>> known = new HashMap<String, Class<?>>();
+
+		public StubClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		void addKnownClass(Class<?> c) {
+			while(c.isArray()) {
+				c = c.getComponentType();
+			}
+			if (!c.isPrimitive()) {
+				known.put(c.getName(), c);
+			}
+		}
+
+		Class<?> define(String name, byte[] bytecode) {
+			return defineClass(name, bytecode, 0, bytecode.length);
+		}
+
+		@Override
+		protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			Class<?> c = known.get(name);
+			return c != null ? c : super.loadClass(name, resolve);
+		}
+	}
+}
@@ -28,14 +28,50 @@ interface RmiChannel {
 
 	public Object remoteInvocation(RemoteStub remoteStub, Object proxy, Method method, Object[] args) throws Throwable;
 
+	/**
+	 * Same as {@link #remoteInvocation(RemoteStub, Object, Method, Object[])}, but signature is already known.
+	 */
+	public Object remoteInvocation(RemoteStub remoteStub, Object proxy, Method method, RemoteMethodSignature signature, Object[] args) throws Throwable;
+
 	public FutureEx<Object> asyncRemoteInvocation(RemoteStub remoteStub, Object proxy, Method method, Object[] args);
+
+	/**
+	 * @param calls triples of target {@link RemoteInstance}, {@link Method} and arguments
+	 * @return future of array with pairs of throwing flag and result for each call
+	 */
+	public FutureEx<Object> asyncBatchInvocation(Object[] calls);
 
 	public void close(Throwable cause);
 
 	public void handleMessage(RemoteMessage message);
 
+	/**
+	 * Assigns method table slot to signature, inbound calls carrying slot are dispatched by table index.
+	 * Method is resolved on first call.
+	 */
+	public int reserveMethodSlot(RemoteMethodSignature signature);
+
+	/**
+	 * Fails outbound call, which was accepted for sending but has not been written to the stream.
+	 */
+	public void failCall(long callId, Throwable cause);
+
 	public <C> void exportObject(Class<C> facade, C impl);
 
+	/**
+	 * @return lease timeout for exported objects (ms), 0 if exported objects never expire
+	 */
+	public long getLeaseTimeout();
+
+	/**
+	 * Enables lease based collection of exported objects and proxies, remote side should support it.
+	 */
+	public void enableLeases(long remoteLeaseTimeout);
+
+	public ExportCounters getExportCounters();
+
+	public RmiMetrics getMetrics();
+
 	public Object streamResolveObject(Object obj) throws IOException;
 	
 	public Object streamReplaceObject(Object obj) throws IOException;
@@ -16,16 +16,27 @@
 package org.gridkit.zerormi;
 
 import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.IdentityHashMap;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.LockSupport;
@@ -44,19 +55,77 @@ import static org.gridkit.zerormi.JdkUtils.addSuppressedIfSupported;
  */
 public class RmiChannel1 implements RmiChannel {
 
+    /** Exported objects not renewed by remote side for this period (ms) are dropped, 0 - never expire */
+    public static final String PROP_LEASE_TIMEOUT = "gridkit.zerormi.dgc.lease-timeout";
+    /** Period (ms) for expiring leases and sending batched renewals and releases */
+    public static final String PROP_DGC_PERIOD = "gridkit.zerormi.dgc.period";
+    /** Default timeout (ms) of outbound calls, 0 - no timeout. See also {@link CallDeadline} */
+    public static final String PROP_CALL_TIMEOUT = "gridkit.zerormi.call-timeout";
+
     private static AtomicLong callId = new AtomicLong(0L);
 
+    /** Timer thread is shared by channels and stopped once last channel is closed */
+    private static ScheduledExecutorService DGC_TIMER;
+    private static int DGC_USERS;
+    private static ScheduledExecutorService DEADLINE_TIMER;
+    private static int DEADLINE_USERS;
+
+    /** Pseudo instance receiving batches of calls, see {@link RemoteBatch} */
+    static final RemoteInstance BATCH_INSTANCE = new RemoteInstance("zerormi-batch", new String[0]);
+    static final RemoteMethodSignature BATCH_METHOD = new RemoteMethodSignature(RemoteBatch.class.getName(), "invoke", new String[]{Object[].class.getName()});
+
+    /** Pseudo instance receiving lease renewals and releases of remote proxies */
+    static final RemoteInstance DGC_INSTANCE = new RemoteInstance("zerormi-dgc", new String[0]);
+    static final RemoteMethodSignature DGC_METHOD = new RemoteMethodSignature(RmiChannel1.class.getName(), "lease", new String[]{String[].class.getName(), String[].class.getName(), long[].class.getName()});
+
     private final String name;
     private final OutputChannel messageOut;
     private final Executor callDispatcher;
 
-    private final Map<Object, RemoteInstance> object2remote = new IdentityHashMap<Object, RemoteInstance>();
-    private final Map<RemoteInstance, Object> remote2object = new HashMap<RemoteInstance, Object>();
-
-    private final Map<RemoteInstance, Object> remoteInstanceProxys = new ConcurrentHashMap<RemoteInstance, Object>();
+    /**
+     * Export tables are consulted for every object in serialized graph, so they are
+     * not guarded by channel lock. Exports are published with CAS and lease state
+     * decides whether reference to exported object could still be sent.
+     */
+    private final ConcurrentMap<Identity, RemoteInstance> object2remote = new ConcurrentHashMap<Identity, RemoteInstance>();
+    private final Map<RemoteInstance, Object> remote2object = new ConcurrentHashMap<RemoteInstance, Object>();
+
+    /** Leases of implicitly exported objects, explicitly exported objects are never dropped */
+    private final Map<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+
+    /** Proxies are weakly referenced, collected proxies are released in batches */
+    private final Map<RemoteInstance, ProxyRef> remoteInstanceProxys = new ConcurrentHashMap<RemoteInstance, ProxyRef>();
+    private final ReferenceQueue<Object> collectedProxies = new ReferenceQueue<Object>();
+    private final List<ProxyRef> pendingReleases = new ArrayList<ProxyRef>();
+    private final ExportCounters exportCounters = new ExportCounters();
+    private final RmiMetrics metrics = new RmiMetrics();
+    private final ClassCache classCache = new ClassCache(getClassLoader(), metrics.classCacheHits, metrics.classCacheMisses);
+    private final long leaseTimeout;
+    private final long dgcPeriod;
+    /** Lease timeout of remote side, negative if remote side does not support leases */
+    private volatile long remoteLeaseTimeout = -1;
+    private long lastRenewal;
+    private ScheduledFuture<?> dgcTask;
     private final Map<Long, RemoteCallContext> remoteReturnWaiters = new ConcurrentHashMap<Long, RemoteCallContext>();
-
-    private final Map<RemoteMethodSignature, Method> methodCache = new ConcurrentHashMap<RemoteMethodSignature, Method>();
+    /** Synchronous calls given up by caller, their results are still expected from remote side */
+    private final Set<Long> abandonedCalls = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    /** Calls received from remote side, either queued or executing, could be cancelled by caller */
+    private final Map<Long, InboundCall> inboundCalls = new ConcurrentHashMap<Long, InboundCall>();
+    private final long callTimeout;
+    /** Timer failing asynchronous calls on deadline, acquired with first such call */
+    private ScheduledExecutorService deadlineTimer;
+
+    /**
+     * Methods are resolved once per channel and dispatched by index in method table.
+     * Slot is assigned when codec defines method in its dictionary, so inbound call carries it.
+     */
+    private final Map<RemoteMethodSignature, Integer> methodIds = new ConcurrentHashMap<RemoteMethodSignature, Integer>();
+    private volatile MethodSlot[] methodTable = new MethodSlot[0];
+    private final Object methodTableLock = new Object();
+    /** Signatures of outbound calls are reused, so compact codec could find them in dictionary quickly */
+    private final Map<Method, RemoteMethodSignature> signatureCache = new ConcurrentHashMap<Method, RemoteMethodSignature>();
+    /** <code>null</code> if ASM is not available, {@link java.lang.reflect.Proxy} based stubs are used then */
+    private final RemoteStubFactory stubFactory = createStubFactory(this);
     private final RmiMarshaler marshaler;
 
     private final Map<String, Object> name2bean = new ConcurrentHashMap<String, Object>();
@@ -76,6 +145,9 @@ public class RmiChannel1 implements RmiChannel {
         this.marshaler = marshaler;
         this.logCritical = logger.get(getClass().getSimpleName(), LogLevel.CRITICAL);
         this.debugRpcDelay = readPropLong(props, "gridkit.zerormi.debug.rpc-delay", 0);
+        this.leaseTimeout = readPropLong(props, PROP_LEASE_TIMEOUT, TimeUnit.MINUTES.toMillis(5));
+        this.dgcPeriod = readPropLong(props, PROP_DGC_PERIOD, 1000);
+        this.callTimeout = TimeUnit.MILLISECONDS.toNanos(readPropLong(props, PROP_CALL_TIMEOUT, 0));
     }
 
     private long readPropLong(Map<String, Object> props, String key, long defaultValue) {
@@ -88,63 +160,168 @@ public class RmiChannel1 implements RmiChannel {
         }
     }
     
+    /**
+     * @return lease timeout for objects exported by this side, 0 if exports never expire
+     */
+    public long getLeaseTimeout() {
+        return leaseTimeout;
+    }
+
+    /**
+     * Should be called once both sides have agreed to use leases.
+     * Until then exported objects are never dropped and proxies are not released.
+     *
+     * @param remoteTimeout lease timeout of remote side, 0 if remote side never expires leases
+     */
+    public synchronized void enableLeases(long remoteTimeout) {
+        if (terminated || dgcTask != null) {
+            return;
+        }
+        remoteLeaseTimeout = remoteTimeout;
+        lastRenewal = System.currentTimeMillis();
+        long now = lastRenewal;
+        for(Lease lease: leases.values()) {
+            lease.extend(now + leaseTimeout);
+        }
+        dgcTask = acquireDgcTimer().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                collectGarbage();
+            }
+        }, dgcPeriod, dgcPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    public ExportCounters getExportCounters() {
+        return exportCounters;
+    }
+
+    public RmiMetrics getMetrics() {
+        return metrics;
+    }
+
     public void registerNamedBean(String name, Object obj) {
         name2bean.put(name, obj);
         bean2name.put(obj, name);
     }
 
     public void handleMessage(RemoteMessage message) {
-        if (message instanceof RemoteCall) {
-
-            final RemoteCall remoteCall = (RemoteCall) message;
-            if (remoteCall.getArgs() != null) {
-                for (int n = 0; n < remoteCall.getArgs().length; n++) {
-                    Object arg = remoteCall.getArgs()[n];
-                    if (arg instanceof RemoteInstance) {
-                        RemoteInstance remoteInstance = (RemoteInstance) arg;
-                        remoteCall.getArgs()[n] = getProxyFromRemoteInstance(remoteInstance);
-                    }
-                }
-            }
+        if (message instanceof CallFrame) {
+
+            final CallFrame frame = (CallFrame) message;
+            final long callId = frame.getCallId();
+            final long received = System.nanoTime();
+            // call is registered before its payload is decoded, so cancel could not overtake it
+            final InboundCall inbound = new InboundCall(frame.getDeadline());
+            inboundCalls.put(callId, inbound);
+            metrics.inboundInFlight.incrementAndGet();
 
             Runnable runnable = new Runnable() {
                 public void run() {
+                    RemoteMessage decoded = frame.decode();
+                    if (decoded instanceof InboundCallError) {
+                        inboundCalls.remove(callId);
+                        metrics.inboundInFlight.decrementAndGet();
+                        try {
+                            sendMessage(new RemoteReturn(callId, true, ((InboundCallError) decoded).error));
+                        } catch (IOException e) {
+                            RmiChannel1.this.close(e);
+                        }
+                        return;
+                    }
+                    final RemoteCall remoteCall = (RemoteCall) decoded;
+                    resolveRemoteInstances(remoteCall.getArgs());
                     String threadName = Thread.currentThread().getName();
                     Thread.currentThread().setName("RemoteCall: " + remoteCall.toString());
+                    metrics.method(remoteCall.getMethod()).queueWait.record(System.nanoTime() - received);
 
                     try {
                         RemoteReturn remoteReturn;
-                        try {
-                            remoteReturn = delegateCall(remoteCall);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            RmiChannel1.this.close(e);
-                            return;
+                        if (!inbound.start()) {
+                            // caller has given up while call was queued, it still expects a result
+                            if (!inbound.cancelled) {
+                                metrics.inboundExpired.incrementAndGet();
+                            }
+                            String reason = inbound.cancelled ? "Call has been cancelled by caller" : "Call deadline has expired before dispatch";
+                            remoteReturn = new RemoteReturn(remoteCall.getCallId(), true, new RemoteException(reason));
+                        }
+                        else {
+                            metrics.inboundExecuting.incrementAndGet();
+                            // nested calls are limited by deadline of this call
+                            long deadline = CallDeadline.swap(remoteCall.getDeadline());
+                            try {
+                                remoteReturn = delegateCall(remoteCall);
+                            } catch (Exception e) {
+                                e.printStackTrace();
+                                RmiChannel1.this.close(e);
+                                return;
+                            }
+                            finally {
+                                CallDeadline.swap(deadline);
+                                inbound.finish();
+                                metrics.inboundExecuting.decrementAndGet();
+                            }
                         }
                         try {
+                            remoteReturn.method = remoteCall.getMethod();
                             sendMessage(remoteReturn);
                         } catch (IOException e) {
                             RmiChannel1.this.close(e);
                         }
                     }
                     finally {
+                        inboundCalls.remove(callId);
+                        metrics.inboundInFlight.decrementAndGet();
                         Thread.currentThread().setName(threadName);
                     }
                 }
             };
 
-            callDispatcher.execute(runnable);
+            try {
+                if (callDispatcher instanceof RmiDispatcher) {
+                    RemoteInstance target = frame.getRemoteInstance();
+                    // batch may address multiple objects, so it is not ordered
+                    ((RmiDispatcher) callDispatcher).execute(BATCH_INSTANCE.equals(target) ? null : target, runnable);
+                }
+                else {
+                    callDispatcher.execute(runnable);
+                }
+            }
+            catch (RejectedExecutionException e) {
+                inboundCalls.remove(callId);
+                metrics.inboundInFlight.decrementAndGet();
+                try {
+                    sendMessage(new RemoteReturn(callId, true, new RemoteException("Call rejected, dispatcher is overloaded", e)));
+                } catch (IOException ee) {
+                    close(ee);
+                }
+            }
 
         } else if (message instanceof RemoteReturn) {
             RemoteReturn remoteReturn = (RemoteReturn) message;
             long id = remoteReturn.getCallId();
             RemoteCallContext context = remoteReturnWaiters.get(id);
             if (context == null) {
+                if (abandonedCalls.remove(id)) {
+                    // caller has given up on the call, late result is discarded
+                    return;
+                }
                 throw new RuntimeException("Orphaned remote return: " + remoteReturn);
             }
             context.dispatch(remoteReturn);
             remoteReturnWaiters.remove(id);
+            if (context.abandoned) {
+                // waiter has given up concurrently with dispatch
+                abandonedCalls.remove(id);
+            }
         } 
+        else if (message instanceof RemoteCancel) {
+            InboundCall inbound = inboundCalls.get(message.getCallId());
+            if (inbound != null && inbound.cancel()) {
+                // counted before interrupt, so callee observing cancel would see it in metrics
+                metrics.inboundCancels.incrementAndGet();
+                inbound.interrupt();
+            }
+        }
         else if (message instanceof InboundCallError) {
             InboundCallError error = (InboundCallError) message;
             final RemoteReturn remoteReturn = new RemoteReturn(error.getCallId(), true, error.error);
@@ -158,13 +335,30 @@ public class RmiChannel1 implements RmiChannel {
                     }
                 }
             };
-            callDispatcher.execute(task);
+            try {
+                callDispatcher.execute(task);
+            }
+            catch (RejectedExecutionException e) {
+                task.run();
+            }
         }
         else {
             throw new RuntimeException("Unknown RemoteMessage type. " + message); //$NON-NLS-1$
         }
     }
 
+    private void resolveRemoteInstances(Object[] args) {
+        if (args != null) {
+            for (int n = 0; n < args.length; n++) {
+                Object arg = args[n];
+                if (arg instanceof RemoteInstance) {
+                    RemoteInstance remoteInstance = (RemoteInstance) arg;
+                    args[n] = getProxyFromRemoteInstance(remoteInstance, false);
+                }
+            }
+        }
+    }
+
     public synchronized void close(Throwable cause) {
         // TODO global synchronization somehow
         if (terminated) {
@@ -178,10 +372,23 @@ public class RmiChannel1 implements RmiChannel {
         terminatedCause = cause;
         terminated = true;
 
+        if (dgcTask != null) {
+            dgcTask.cancel(false);
+            releaseDgcTimer();
+        }
+        if (deadlineTimer != null) {
+            deadlineTimer = null;
+            releaseDeadlineTimer();
+        }
+        abandonedCalls.clear();
         object2remote.clear();
         remote2object.clear();
+        leases.clear();
+        exportCounters.liveExports.set(0);
 
         remoteInstanceProxys.clear();
+        pendingReleases.clear();
+        exportCounters.liveProxies.set(0);
         for (RemoteCallContext context : remoteReturnWaiters.values()) {
             if (context.result == null) {
                 context.dispatch(new RemoteReturn(0, true, new RemoteException("Connection closed", cause)));
@@ -191,6 +398,14 @@ public class RmiChannel1 implements RmiChannel {
         remoteReturnWaiters.clear();
     }
 
+    @Override
+    public void failCall(long callId, Throwable cause) {
+        RemoteCallContext context = remoteReturnWaiters.remove(callId);
+        if (context != null && context.result == null) {
+            context.dispatch(new RemoteReturn(callId, true, new RemoteException("Call failed", cause)));
+        }
+    }
+
     protected void sendMessage(RemoteMessage message) throws IOException {
         messageOut.send(message);
     }
@@ -201,10 +416,16 @@ public class RmiChannel1 implements RmiChannel {
         RemoteMethodSignature methodId = remoteCall.getMethod();
         long callId = remoteCall.getCallId();
 
-        Object implementator;
-        synchronized (this) {
-        	implementator = remote2object.get(remoteCall.getRemoteInstance());
-		}
+        if (BATCH_INSTANCE.equals(instance)) {
+            return delegateBatch(remoteCall);
+        }
+        if (DGC_INSTANCE.equals(instance)) {
+            Object[] args = remoteCall.getArgs();
+            processLeases((String[]) args[0], (String[]) args[1], (long[]) args[2]);
+            return new RemoteReturn(callId, false, null);
+        }
+
+        Object implementator = remote2object.get(remoteCall.getRemoteInstance());
 
         if (implementator == null) {
             return new RemoteReturn(callId, true, new RemoteException(String.format("Instance %s has not been exported ", instance)));
@@ -212,16 +433,19 @@ public class RmiChannel1 implements RmiChannel {
 
         RemoteReturn remoteReturn;
 
-        Method implementationMethod;
+        MethodInvoker invoker;
         try {
-            implementationMethod = lookupMethod(methodId);
+            invoker = lookupMethod(remoteCall.methodSlot, methodId);
         } catch (Exception e) {
             return new RemoteReturn(callId, true, new RemoteException(String.format("Method %s cannot be resolved. %s", methodId, e.toString())));
         }
 
+        RmiMetrics.MethodMetrics mm = metrics.method(methodId);
+        mm.inboundCalls.incrementAndGet();
+        long started = System.nanoTime();
         Object methodReturn = null;
         try {
-            methodReturn = implementationMethod.invoke(implementator, remoteCall.getArgs());
+            methodReturn = invoker.invoke(implementator, remoteCall.getArgs());
             remoteReturn = new RemoteReturn(callId, false, methodReturn);
         } catch (InvocationTargetException e) {
             System.err.println("Call[" + remoteCall + "] exception " + e.getCause().toString());
@@ -229,25 +453,91 @@ public class RmiChannel1 implements RmiChannel {
         } catch (Exception e) {
             remoteReturn = new RemoteReturn(callId, true, new RemoteException("Invocation failed", e));
         }
+        mm.execute.record(System.nanoTime() - started);
+        if (remoteReturn.isThrowing()) {
+            mm.inboundErrors.incrementAndGet();
+        }
 
        return remoteReturn;
     }
 
+    /**
+     * Batch is executed sequentially, results are returned as pairs of throwing flag and value.
+     */
+    private RemoteReturn delegateBatch(RemoteCall batchCall) {
+        Object[] calls = (Object[]) batchCall.getArgs()[0];
+        Object[] results = new Object[calls.length / 3 * 2];
+        for(int i = 0; i < calls.length; i += 3) {
+            Object[] args = (Object[]) calls[i + 2];
+            resolveRemoteInstances(args);
+            RemoteMethodSignature m = (RemoteMethodSignature) calls[i + 1];
+            RemoteCall call = new RemoteCall(batchCall.getCallId(), (RemoteInstance) calls[i], m, args);
+            call.methodSlot = m.slot;
+            RemoteReturn ret = delegateCall(call);
+            results[i / 3 * 2] = ret.isThrowing();
+            results[i / 3 * 2 + 1] = ret.getRet();
+        }
+        return new RemoteReturn(batchCall.getCallId(), false, results);
+    }
+
+    /**
+     * @param slot method table slot carried by call, negative if codec has not assigned it
+     */
+    private MethodInvoker lookupMethod(int slot, RemoteMethodSignature methodSig) throws ClassNotFoundException, SecurityException, NoSuchMethodException {
+        if (slot < 0) {
+            // codec without dictionary, signature caches its hash, so lookup is cheap
+            slot = reserveMethodSlot(methodSig);
+        }
+        MethodSlot ms = methodTable[slot];
+        MethodInvoker invoker = ms.invoker;
+        if (invoker == null) {
+            invoker = resolveMethod(ms);
+        }
+        return invoker;
+    }
+
+    @Override
+    public int reserveMethodSlot(RemoteMethodSignature methodSig) {
+        Integer id = methodIds.get(methodSig);
+        if (id != null) {
+            return id;
+        }
+        synchronized(methodTableLock) {
+            id = methodIds.get(methodSig);
+            if (id != null) {
+                return id;
+            }
+            MethodSlot[] table = Arrays.copyOf(methodTable, methodTable.length + 1);
+            table[table.length - 1] = new MethodSlot(methodSig);
+            // table should be published before id
+            methodTable = table;
+            methodIds.put(methodSig, table.length - 1);
+            return table.length - 1;
+        }
+    }
+
     @SuppressWarnings({ "unchecked", "rawtypes" })
-    private Method lookupMethod(RemoteMethodSignature methodSig) throws ClassNotFoundException, SecurityException, NoSuchMethodException {
+    private MethodInvoker resolveMethod(MethodSlot ms) throws ClassNotFoundException, SecurityException, NoSuchMethodException {
+        synchronized(ms) {
+            if (ms.invoker == null) {
+                RemoteMethodSignature methodSig = ms.signature;
+                Class iface = classForName(methodSig.getClassName());
+                String methodName = methodSig.getMethodName();
+                Class[] argTypes = toClassObjects(methodSig.getMethodSignature());
+                Method method = iface.getMethod(methodName, argTypes);
+                ms.invoker = MethodInvoker.create(method, getClassLoader());
+            }
+            return ms.invoker;
+        }
+    }
 
-        Method method = methodCache.get(methodSig);
-        if (method != null) {
-            return method;
-        } else {
-            Class iface = classForName(methodSig.getClassName());
-            String methodName = methodSig.getMethodName();
-            Class[] argTypes = toClassObjects(methodSig.getMethodSignature());
-            method = iface.getMethod(methodName, argTypes);
-            method.setAccessible(true);
-            methodCache.put(methodSig, method);
-            return method;
+    private RemoteMethodSignature signatureOf(Method method) {
+        RemoteMethodSignature sig = signatureCache.get(method);
+        if (sig == null) {
+            sig = new RemoteMethodSignature(method);
+            signatureCache.put(method, sig);
         }
+        return sig;
     }
 
     public Long generateCallId() {
@@ -261,23 +551,107 @@ public class RmiChannel1 implements RmiChannel {
     }
     
     protected RemoteCallFuture asyncInvoke(final RemoteInstance remoteInstance, final Method method, Object[] args) {
+        return asyncInvoke(remoteInstance, signatureOf(method), args);
+    }
+
+    private RemoteCallFuture asyncInvoke(RemoteInstance remoteInstance, RemoteMethodSignature method, Object[] args) {
     	Long id = generateCallId();
-    	RemoteCall remoteCall = new RemoteCall(id, remoteInstance, new RemoteMethodSignature(method), args);
-    	RemoteCallFuture future = new RemoteCallFuture(remoteCall);
+    	RemoteCall remoteCall = new RemoteCall(id, remoteInstance, method, args);
+    	if (remoteInstance != DGC_INSTANCE) {
+    	    remoteCall.deadline = callDeadline();
+    	}
+    	RemoteCallFuture future = new RemoteCallFuture(this, remoteCall, metrics);
     	
     	registerCall(future);
+    	future.started();
+    	if (remoteCall.hasDeadline()) {
+    	    scheduleDeadline(future);
+    	}
 
         try {
             sendMessage(remoteCall);
         }
+        catch (RecoverableSerializationException e) {
+            remoteReturnWaiters.remove(future.remoteCall.callId);
+            future.complete(true);
+            future.setErrorIfWaiting(new RemoteException("Remote call failed", e.getCause()));
+        }
         catch (IOException e) {
             remoteReturnWaiters.remove(future.remoteCall.callId);
+            future.complete(true);
             future.setErrorIfWaiting(e);
         }
     	
     	return future;
     }
+
+    @Override
+    public FutureEx<Object> asyncBatchInvocation(Object[] calls) {
+        Object[] batch = new Object[calls.length];
+        for(int i = 0; i < calls.length; i += 3) {
+            batch[i] = calls[i];
+            batch[i + 1] = signatureOf((Method) calls[i + 1]);
+            batch[i + 2] = calls[i + 2];
+        }
+        return asyncInvoke(BATCH_INSTANCE, BATCH_METHOD, new Object[]{batch});
+    }
     
+    /**
+     * @return deadline for outbound call, either set for current thread or channel default
+     */
+    private long callDeadline() {
+        long deadline = CallDeadline.current();
+        if (callTimeout > 0) {
+            long d = System.nanoTime() + callTimeout;
+            if (deadline == RemoteCall.NO_DEADLINE || d - deadline < 0) {
+                deadline = d;
+            }
+        }
+        return deadline;
+    }
+
+    private void scheduleDeadline(final RemoteCallFuture future) {
+        ScheduledExecutorService timer;
+        synchronized (this) {
+            if (terminated) {
+                // call would be failed by close
+                return;
+            }
+            if (deadlineTimer == null) {
+                deadlineTimer = acquireDeadlineTimer();
+            }
+            timer = deadlineTimer;
+        }
+        Runnable expirer = new Runnable() {
+            @Override
+            public void run() {
+                future.expire();
+            }
+        };
+        try {
+            // task is cancelled once call is completed
+            future.setDeadlineTask(timer.schedule(expirer, future.remoteCall.getDeadline() - System.nanoTime(), TimeUnit.NANOSECONDS));
+        }
+        catch(RejectedExecutionException e) {
+            // channel has been closed concurrently
+        }
+    }
+
+    /**
+     * Asks remote side to abandon the call. Remote side always replies to cancelled call,
+     * waiter of asynchronous call is kept until result arrives. Synchronous waiter is
+     * dropped right away (see {@link #abandonCall(Long)}).
+     */
+    void sendCancel(long callId) {
+        metrics.outboundCancels.incrementAndGet();
+        try {
+            sendMessage(new RemoteCancel(callId));
+        }
+        catch(IOException e) {
+            // connection is broken, pending calls would be failed on close
+        }
+    }
+
     private void registerCall(RemoteCallFuture future) {
 		RemoteCallContext ctx = new RemoteCallContext(future);
 
@@ -289,16 +663,43 @@ public class RmiChannel1 implements RmiChannel {
 
     @Override
 	public Object remoteInvocation(final RemoteStub stub, final Object proxy, final Method method, final Object[] args) throws Throwable {
+        return remoteInvocation(stub, proxy, method, signatureOf(method), args);
+    }
+
+    @Override
+    public Object remoteInvocation(RemoteStub stub, Object proxy, Method method, RemoteMethodSignature signature, Object[] args) throws Throwable {
 
         Long id = generateCallId();
         RemoteInstance remoteInstance = stub.getRemoteInstance();
-        RemoteMessage remoteCall = new RemoteCall(id, remoteInstance, new RemoteMethodSignature(method), args);
+        RemoteCall remoteCall = new RemoteCall(id, remoteInstance, signature, args);
+        remoteCall.deadline = callDeadline();
 
         RemoteCallContext context = new RemoteCallContext(Thread.currentThread());
 
         if (terminated) {
             throw new RemoteException("Connection closed", terminatedCause);
         }
+
+        RmiMetrics.MethodMetrics mm = metrics.method(signature);
+        mm.outboundCalls.incrementAndGet();
+        metrics.outboundInFlight.incrementAndGet();
+        long started = System.nanoTime();
+        boolean failed = true;
+        try {
+            Object result = awaitInvocation(method, id, remoteCall, context);
+            failed = false;
+            return result;
+        }
+        finally {
+            metrics.outboundInFlight.decrementAndGet();
+            mm.endToEnd.record(System.nanoTime() - started);
+            if (failed) {
+                mm.outboundErrors.incrementAndGet();
+            }
+        }
+    }
+
+    private Object awaitInvocation(Method method, Long id, RemoteCall remoteCall, RemoteCallContext context) throws Throwable {
         // TODO race condition on close
         remoteReturnWaiters.put(id, context);
         try {
@@ -320,14 +721,32 @@ public class RmiChannel1 implements RmiChannel {
 		throw decorateException(method, new RemoteException("Connection closed", terminatedCause));
             }
             long period = TimeUnit.SECONDS.toNanos(5);
-            LockSupport.parkNanos(period);
+            if (remoteCall.hasDeadline()) {
+                period = Math.min(period, remoteCall.getDeadline() - System.nanoTime());
+            }
+            if (period > 0) {
+                LockSupport.parkNanos(period);
+            }
             if (context.result != null) {
                 break;
             } else if (terminated) {
                 throw decorateException(method, new RemoteException("Connection closed", terminatedCause));
             } else if (Thread.interrupted()) {
-                // TODO handle interruption
-                throw decorateException(method, new InterruptedException());
+                context.abandoned = true;
+                abandonCall(id);
+                sendCancel(id);
+                Throwable e = decorateException(method, new InterruptedException());
+                if (!(e instanceof InterruptedException)) {
+                    // interrupt is not reported to caller, so it should keep interrupt status
+                    Thread.currentThread().interrupt();
+                }
+                throw e;
+            } else if (remoteCall.isExpired()) {
+                context.abandoned = true;
+                metrics.outboundTimeouts.incrementAndGet();
+                abandonCall(id);
+                sendCancel(id);
+                throw decorateException(method, new RemoteException("Call timed out " + remoteCall.toShortString()));
             }
         }
 
@@ -340,6 +759,18 @@ public class RmiChannel1 implements RmiChannel {
         return ret.getRet();
     }
 
+    /**
+     * Waiting thread has given up, so waiter is not kept until remote side replies.
+     * Call ID is remembered, so late result would be recognized and discarded.
+     */
+    private void abandonCall(Long id) {
+        abandonedCalls.add(id);
+        if (remoteReturnWaiters.remove(id) == null) {
+            // result has already arrived
+            abandonedCalls.remove(id);
+        }
+    }
+
     private Throwable modifyStackTrace(Method m, Throwable receiver) {
         if (receiver instanceof UndeclaredRemoteException) {
             receiver = receiver.getCause();
@@ -422,6 +853,9 @@ public class RmiChannel1 implements RmiChannel {
         if (stackTraceElement.getClassName().startsWith("org.gridkit.zerormi.RemoteStub")) {
             return true;
         }
+        if (stackTraceElement.getClassName().startsWith("org.gridkit.zerormi.GeneratedStub")) {
+            return true;
+        }
         if (stackTraceElement.getClassName().startsWith("sun.reflect.")) {
             return true;
         }
@@ -460,41 +894,291 @@ public class RmiChannel1 implements RmiChannel {
         return asyncInvoke(remoteStub.getRemoteInstance(), method, args);
     }
 
-    private Object getProxyFromRemoteInstance(RemoteInstance remoteInstance) {
-        Object proxy = remoteInstanceProxys.get(remoteInstance);
+    /**
+     * @param counted <code>true</code> if reference was received as {@link RemoteRef}, such references are counted by exporting side
+     */
+    private Object getProxyFromRemoteInstance(RemoteInstance remoteInstance, boolean counted) {
+        ProxyRef ref = remoteInstanceProxys.get(remoteInstance);
+        Object proxy = ref == null ? null : ref.get();
+        if (proxy != null) {
+            // proxy is strongly reachable, so reference cannot be enqueued before it is counted
+            if (counted) {
+                ref.received.incrementAndGet();
+            }
+            return proxy;
+        }
+        return createProxy(remoteInstance, counted);
+    }
+
+    private static RemoteStubFactory createStubFactory(RmiChannel channel) {
+        try {
+            return new RemoteStubFactory(channel);
+        }
+        catch(LinkageError e) {
+            // ASM is missing or incompatible
+            return null;
+        }
+    }
+
+    private synchronized Object createProxy(RemoteInstance remoteInstance, boolean counted) {
+        ProxyRef ref = remoteInstanceProxys.get(remoteInstance);
+        Object proxy = ref == null ? null : ref.get();
         if (proxy == null) {
+            pollCollectedProxies();
             try {
-                proxy = RemoteStub.buildProxy(remoteInstance, this);
+                proxy = stubFactory != null
+                        ? stubFactory.buildProxy(remoteInstance)
+                        : RemoteStub.buildProxy(remoteInstance, this);
             } catch (ClassNotFoundException e) {
                 e.printStackTrace();
+                return null;
             }
-            remoteInstanceProxys.put(remoteInstance, proxy);
-            object2remote.put(proxy, remoteInstance);
+            // if old proxy is not enqueued yet, its references would be released once it is
+            ref = new ProxyRef(proxy, remoteInstance, collectedProxies);
+            remoteInstanceProxys.put(remoteInstance, ref);
+            exportCounters.liveProxies.incrementAndGet();
+        }
+        if (counted) {
+            ref.received.incrementAndGet();
         }
         return proxy;
     }
 
+    /**
+     * Explicitly exported objects are never dropped until channel is closed.
+     */
     public <T> void exportObject(Class<T> iface, T implementation) {
-        exportObject(new Class[]{iface}, implementation);
+        exportObject(new Class[]{iface}, implementation, true);
     }
 
     @SuppressWarnings({ "rawtypes" })
-    private synchronized RemoteInstance exportObject(Class[] interfaces, Object obj) {
-        RemoteInstance remote = object2remote.get(obj);
-        if (remote == null) {
+    private RemoteInstance exportObject(Class[] interfaces, Object obj, boolean pinned) {
+        Identity key = new Identity(obj);
+        while(true) {
+            RemoteInstance remote = object2remote.get(key);
+            if (remote != null) {
+                Lease lease = leases.get(remote.instanceId);
+                if (lease == null) {
+                    // either pinned or unexported after lookup
+                    if (object2remote.get(key) == remote) {
+                        return remote;
+                    }
+                }
+                else if (pinned ? lease.pin() : !lease.isReleased()) {
+                    if (pinned) {
+                        leases.remove(remote.instanceId);
+                    }
+                    return remote;
+                }
+                else {
+                    // lease is over, object would be exported again under new identity
+                    object2remote.remove(key, remote);
+                }
+                continue;
+            }
             String uuid = UUID.randomUUID().toString();
             String[] ifNames = new String[interfaces.length];
             for (int i = 0; i != ifNames.length; ++i) {
                 ifNames[i] = interfaces[i].getName();
             }
             remote = new RemoteInstance(uuid, ifNames);
-            object2remote.put(obj, remote);
+            // lease and reverse mapping should be visible once export is published
+            if (!pinned) {
+                leases.put(uuid, new Lease(remote, System.currentTimeMillis() + leaseTimeout));
+            }
             remote2object.put(remote, obj);
+            if (object2remote.putIfAbsent(key, remote) == null) {
+                exportCounters.liveExports.incrementAndGet();
+                return remote;
+            }
+            // lost the race
+            remote2object.remove(remote);
+            leases.remove(uuid);
+        }
+    }
+
+    /**
+     * Each outbound reference is counted, so release racing with a new reference
+     * in flight would not drop exported object. Lease is extended too.
+     * 
+     * @return <code>false</code> if export is over and object should be exported again
+     */
+    private boolean referenceSent(RemoteInstance remote) {
+        Lease lease = leases.get(remote.instanceId);
+        if (lease != null) {
+            return lease.referenceSent(System.currentTimeMillis() + leaseTimeout);
+        }
+        else {
+            // pinned export, unless it has been just dropped
+            return remote2object.containsKey(remote);
+        }
+    }
+
+    /**
+     * Called by thread which has released the lease. Lease is removed last,
+     * so lookups racing with unexport would observe released lease.
+     */
+    private void unexport(Lease lease) {
+        RemoteInstance remote = lease.identity;
+        Object obj = remote2object.get(remote);
+        if (obj != null) {
+            object2remote.remove(new Identity(obj), remote);
+            remote2object.remove(remote);
+            exportCounters.liveExports.decrementAndGet();
+        }
+        leases.remove(remote.instanceId);
+    }
+
+    private synchronized void processLeases(String[] renewed, String[] released, long[] counts) {
+        exportCounters.leaseMessagesReceived.incrementAndGet();
+        long expires = System.currentTimeMillis() + leaseTimeout;
+        if (renewed != null) {
+            for(String id: renewed) {
+                Lease lease = leases.get(id);
+                if (lease != null) {
+                    lease.extend(expires);
+                }
+            }
+        }
+        if (released != null) {
+            for(int i = 0; i != released.length; ++i) {
+                Lease lease = leases.get(released[i]);
+                if (lease != null && lease.release(counts[i])) {
+                    unexport(lease);
+                    exportCounters.releasedExports.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void pollCollectedProxies() {
+        ProxyRef ref;
+        while((ref = (ProxyRef) collectedProxies.poll()) != null) {
+            // proxy may have been recreated already
+            if (remoteInstanceProxys.get(ref.identity) == ref) {
+                remoteInstanceProxys.remove(ref.identity);
+            }
+            exportCounters.liveProxies.decrementAndGet();
+            exportCounters.collectedProxies.incrementAndGet();
+            if (ref.received.get() > 0 && remoteLeaseTimeout >= 0) {
+                pendingReleases.add(ref);
+            }
+        }
+    }
+
+    /**
+     * Periodic task, expires local leases and sends renewals and releases for remote proxies.
+     */
+    void collectGarbage() {
+        String[] renewed = null;
+        String[] released = null;
+        long[] counts = null;
+        synchronized(this) {
+            if (terminated) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (leaseTimeout > 0) {
+                for(Lease lease: leases.values()) {
+                    if (lease.expire(now)) {
+                        unexport(lease);
+                        exportCounters.expiredExports.incrementAndGet();
+                    }
+                }
+            }
+            pollCollectedProxies();
+            if (remoteLeaseTimeout > 0 && now - lastRenewal >= remoteLeaseTimeout / 3) {
+                lastRenewal = now;
+                List<String> ids = new ArrayList<String>(remoteInstanceProxys.size());
+                for(ProxyRef ref: remoteInstanceProxys.values()) {
+                    if (ref.get() != null) {
+                        ids.add(ref.identity.instanceId);
+                    }
+                }
+                if (!ids.isEmpty()) {
+                    renewed = ids.toArray(new String[ids.size()]);
+                }
+            }
+            if (!pendingReleases.isEmpty()) {
+                released = new String[pendingReleases.size()];
+                counts = new long[released.length];
+                for(int i = 0; i != released.length; ++i) {
+                    released[i] = pendingReleases.get(i).identity.instanceId;
+                    counts[i] = pendingReleases.get(i).received.get();
+                }
+                pendingReleases.clear();
+            }
+        }
+        if (renewed != null || released != null) {
+            try {
+                // result is ignored
+                asyncInvoke(DGC_INSTANCE, DGC_METHOD, new Object[]{renewed, released, counts});
+                exportCounters.leaseMessagesSent.incrementAndGet();
+            }
+            catch(IllegalStateException e) {
+                // channel is closed
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService acquireDgcTimer() {
+        DGC_USERS++;
+        if (DGC_TIMER == null) {
+            DGC_TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setName("ZeroRMI-DGC");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return DGC_TIMER;
+    }
+
+    private static synchronized void releaseDgcTimer() {
+        if (--DGC_USERS == 0) {
+            DGC_TIMER.shutdownNow();
+            DGC_TIMER = null;
         }
-        return remote;
     }
 
-    public synchronized Object streamResolveObject(Object obj) throws IOException {
+    /**
+     * Deadline tasks are cancelled as calls complete, they are removed from queue
+     * right away, so timer would not accumulate cancelled tasks of long deadlines.
+     */
+    private static synchronized ScheduledExecutorService acquireDeadlineTimer() {
+        DEADLINE_USERS++;
+        if (DEADLINE_TIMER == null) {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setName("ZeroRMI-Deadline");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            try {
+                // Java 7+
+                ScheduledThreadPoolExecutor.class.getMethod("setRemoveOnCancelPolicy", boolean.class).invoke(timer, true);
+            } catch (Exception e) {
+                // cancelled tasks would stay in queue until their delay is over
+            }
+            DEADLINE_TIMER = timer;
+        }
+        return DEADLINE_TIMER;
+    }
+
+    private static synchronized void releaseDeadlineTimer() {
+        if (--DEADLINE_USERS == 0) {
+            DEADLINE_TIMER.shutdownNow();
+            DEADLINE_TIMER = null;
+        }
+    }
+
+    public Object streamResolveObject(Object obj) throws IOException {
     	
     	if (obj == null) {
     		return null;
@@ -510,18 +1194,19 @@ public class RmiChannel1 implements RmiChannel {
         }
         if (obj instanceof RemoteRef) {
         	RemoteRef ref = (RemoteRef) obj;
-        	if (remote2object.containsKey(ref.getIdentity())) {
-        		return remote2object.get(ref.getIdentity());
+        	Object local = remote2object.get(ref.getIdentity());
+        	if (local != null) {
+        		return local;
         	}
         	else {
-        		return getProxyFromRemoteInstance(((RemoteRef) obj).getIdentity());
+        		return getProxyFromRemoteInstance(ref.getIdentity(), true);
         	}
         } else {
             return marshaler.readResolve(obj);
         }
     }
 
-    public synchronized Object streamReplaceObject(Object obj) throws IOException {
+    public Object streamReplaceObject(Object obj) throws IOException {
     	
     	if (obj == null) {
     		return null;
@@ -532,15 +1217,29 @@ public class RmiChannel1 implements RmiChannel {
         }
 
         // allow explicit export
-        RemoteInstance id = object2remote.get(obj);
-        if (id != null) {
-            return new RemoteRef(id);
+        if (!object2remote.isEmpty()) {
+            RemoteInstance id = lookupExport(obj);
+            if (id != null && referenceSent(id)) {
+                return new RemoteRef(id);
+            }
+        }
+
+        // proxy is sent back to its origin
+        RemoteStub stub = RemoteStub.stubOf(obj);
+        if (stub != null && stub.getRmiChannel() == this) {
+            return new RemoteRef(stub.getRemoteInstance());
         }
 
         Object mr = marshaler.writeReplace(obj);
         if (mr instanceof Exported) {
         	Exported exp = (Exported) mr;
-        	return new RemoteRef(exportObject(exp.getInterfaces(), exp.getObject()));
+        	while(true) {
+        	    RemoteInstance remote = exportObject(exp.getInterfaces(), exp.getObject(), false);
+        	    if (referenceSent(remote)) {
+        	        return new RemoteRef(remote);
+        	    }
+        	    // lease has expired right after lookup
+        	}
         }
         
         return mr;
@@ -559,15 +1258,17 @@ public class RmiChannel1 implements RmiChannel {
     public Class[] toClassObjects(String[] names) throws ClassNotFoundException {
         Class[] classes = new Class[names.length];
         for (int i = 0; i != names.length; ++i) {
-        	Class<?> c = ReflectionHelper.primitiveToClass(names[i]);
-            classes[i] = c != null ? c : classForName(names[i]);
+            classes[i] = classCache.forName(names[i]);
         }
         return classes;
     }
 
+    /**
+     * Lookups are cached per channel, including failed ones.
+     */
     @SuppressWarnings({ "rawtypes" })
     public Class classForName(String className) throws ClassNotFoundException {
-        return Class.forName(className);
+        return classCache.forName(className);
     }
 
     public ClassLoader getClassLoader() {
@@ -578,10 +1279,258 @@ public class RmiChannel1 implements RmiChannel {
         public void send(RemoteMessage message) throws IOException;
     }
 
+    /**
+     * Method table entry, method is resolved on first call, failed resolution is retried.
+     */
+    private static class MethodSlot {
+
+        final RemoteMethodSignature signature;
+        volatile MethodInvoker invoker;
+
+        public MethodSlot(RemoteMethodSignature signature) {
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * Inbound call, payload of which may be decoded by dispatcher thread.
+     * Call takes its place in dispatch order once it is passed to {@link #handleMessage(RemoteMessage)},
+     * so neither cancel nor following calls could overtake it while it is being decoded.
+     */
+    interface CallFrame extends RemoteMessage {
+
+        public RemoteInstance getRemoteInstance();
+
+        public long getDeadline();
+
+        /**
+         * @return {@link RemoteCall} or {@link InboundCallError}
+         */
+        public RemoteMessage decode();
+    }
+
+    /**
+     * Lease state is changed with CAS, once lease is released or expired
+     * no more references could be counted and object should be exported again.
+     */
+    private static class Lease {
+
+        private static final long RELEASED = -1;
+        private static final long PINNED = Long.MAX_VALUE;
+
+        final RemoteInstance identity;
+        /** Number of references sent, but not released by remote side yet, or one of special states */
+        final AtomicLong sent = new AtomicLong();
+        volatile long expires;
+
+        public Lease(RemoteInstance identity, long expires) {
+            this.identity = identity;
+            this.expires = expires;
+        }
+
+        public void extend(long deadline) {
+            // racing updates may lose few milliseconds of extension, which is harmless
+            if (expires < deadline) {
+                expires = deadline;
+            }
+        }
+
+        public boolean isReleased() {
+            return sent.get() == RELEASED;
+        }
+
+        /**
+         * Lease is extended before reference is counted, so expiry would either
+         * see extension or fail to release counted lease.
+         */
+        public boolean referenceSent(long deadline) {
+            extend(deadline);
+            while(true) {
+                long s = sent.get();
+                if (s == RELEASED) {
+                    return false;
+                }
+                if (s == PINNED || sent.compareAndSet(s, s + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return <code>true</code> if caller has dropped the lease and should unexport object
+         */
+        public boolean release(long count) {
+            while(true) {
+                long s = sent.get();
+                if (s == RELEASED || s == PINNED) {
+                    return false;
+                }
+                long n = s - count;
+                if (sent.compareAndSet(s, n <= 0 ? RELEASED : n)) {
+                    return n <= 0;
+                }
+            }
+        }
+
+        /**
+         * @return <code>true</code> if caller has dropped the lease and should unexport object
+         */
+        public boolean expire(long now) {
+            while(true) {
+                long s = sent.get();
+                if (s == RELEASED || s == PINNED || expires >= now) {
+                    return false;
+                }
+                if (sent.compareAndSet(s, RELEASED)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return <code>false</code> if lease has been already released
+         */
+        public boolean pin() {
+            while(true) {
+                long s = sent.get();
+                if (s == RELEASED) {
+                    return false;
+                }
+                if (s == PINNED || sent.compareAndSet(s, PINNED)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Called for every serialized object, so lookup key is reused instead of allocated.
+     */
+    private RemoteInstance lookupExport(Object obj) {
+        Identity probe = PROBE.get();
+        probe.set(obj);
+        try {
+            return object2remote.get(probe);
+        }
+        finally {
+            // probe should not keep object reachable
+            probe.set(null);
+        }
+    }
+
+    private static final ThreadLocal<Identity> PROBE = new ThreadLocal<Identity>() {
+        @Override
+        protected Identity initialValue() {
+            return new Identity(null);
+        }
+    };
+
+    /**
+     * Identity based key, exported objects are matched by reference.
+     * Keys stored in map are never changed, only lookup probes are reused.
+     */
+    private static final class Identity {
+
+        Object obj;
+        int hash;
+
+        public Identity(Object obj) {
+            set(obj);
+        }
+
+        void set(Object obj) {
+            this.obj = obj;
+            this.hash = System.identityHashCode(obj);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Identity && ((Identity) o).obj == obj;
+        }
+    }
+
+    private static class ProxyRef extends WeakReference<Object> {
+
+        final RemoteInstance identity;
+        /** Number of {@link RemoteRef}s resolved to this proxy */
+        final AtomicLong received = new AtomicLong();
+
+        public ProxyRef(Object proxy, RemoteInstance identity, ReferenceQueue<Object> queue) {
+            super(proxy, queue);
+            this.identity = identity;
+        }
+    }
+
+    /**
+     * Call received from remote side. Cancel interrupts executing thread,
+     * interrupt is confined to execution of the call.
+     */
+    private static class InboundCall {
+
+        final long deadline;
+        Thread thread;
+        volatile boolean cancelled;
+        boolean finished;
+        /** Executing thread has been interrupted by cancel */
+        boolean interrupted;
+
+        public InboundCall(long deadline) {
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return <code>false</code> if call has been cancelled or expired and should not be executed
+         */
+        public synchronized boolean start() {
+            if (cancelled || (deadline != RemoteCall.NO_DEADLINE && deadline - System.nanoTime() <= 0)) {
+                finished = true;
+                return false;
+            }
+            thread = Thread.currentThread();
+            return true;
+        }
+
+        public synchronized void finish() {
+            thread = null;
+            finished = true;
+            if (interrupted) {
+                // interrupt caused by cancel should not leak to next task of the thread
+                Thread.interrupted();
+            }
+        }
+
+        /**
+         * Marks call as cancelled, call still should be {@link #interrupt()}ed if executing.
+         * 
+         * @return <code>true</code> if call has not completed yet
+         */
+        public synchronized boolean cancel() {
+            if (finished || cancelled) {
+                return false;
+            }
+            cancelled = true;
+            return true;
+        }
+
+        public synchronized void interrupt() {
+            if (!finished && thread != null) {
+                interrupted = true;
+                thread.interrupt();
+            }
+        }
+    }
+
     private static class RemoteCallContext {
         public final Thread thread;
         public final RemoteCallFuture future;
         public volatile RemoteReturn result;
+        /** Waiting thread has given up, result is still expected */
+        public volatile boolean abandoned;
 
         public RemoteCallContext(Thread thread) {
             this.thread = thread;
@@ -596,9 +1545,11 @@ public class RmiChannel1 implements RmiChannel {
         public void dispatch(RemoteReturn ret) {
             if (thread != null) {
                 result = ret;
-                LockSupport.unpark(thread);
+                if (!abandoned) {
+                    LockSupport.unpark(thread);
+                }
             }
-            else {
+            else if (future.complete(ret.isThrowing())) {
                 if (ret.isThrowing()) {
                     future.setError((Throwable) ret.ret);
                 }
@@ -611,10 +1562,76 @@ public class RmiChannel1 implements RmiChannel {
     
     private static class RemoteCallFuture extends FutureBox<Object> {
 
+		final RmiChannel1 channel;
 		RemoteCall remoteCall;
-
-    	public RemoteCallFuture(RemoteCall remoteCall) {
+		final RmiMetrics metrics;
+		final RmiMetrics.MethodMetrics methodMetrics;
+		long startNanos;
+		boolean completed;
+		ScheduledFuture<?> deadlineTask;
+
+    	public RemoteCallFuture(RmiChannel1 channel, RemoteCall remoteCall, RmiMetrics metrics) {
+    		this.channel = channel;
     		this.remoteCall = remoteCall;
+    		this.metrics = metrics;
+    		this.methodMetrics = metrics.method(remoteCall.getMethod());
 		}
+
+    	void started() {
+    		methodMetrics.outboundCalls.incrementAndGet();
+    		metrics.outboundInFlight.incrementAndGet();
+    		startNanos = System.nanoTime();
+    	}
+
+    	/**
+    	 * Call may be completed concurrently by return, connection close, cancel or deadline,
+    	 * only first completion is recorded.
+    	 * 
+    	 * @return <code>true</code> if this is first completion and caller should set result
+    	 */
+    	synchronized boolean complete(boolean error) {
+    		if (!completed) {
+    			completed = true;
+    			if (deadlineTask != null) {
+    				deadlineTask.cancel(false);
+    				deadlineTask = null;
+    			}
+    			metrics.outboundInFlight.decrementAndGet();
+    			methodMetrics.endToEnd.record(System.nanoTime() - startNanos);
+    			if (error) {
+    				methodMetrics.outboundErrors.incrementAndGet();
+    			}
+    			return true;
+    		}
+    		return false;
+    	}
+
+    	synchronized void setDeadlineTask(ScheduledFuture<?> task) {
+    		if (completed) {
+    			// result has arrived before task was scheduled
+    			task.cancel(false);
+    		}
+    		else {
+    			deadlineTask = task;
+    		}
+    	}
+
+    	@Override
+    	public boolean cancel(boolean mayInterruptIfRunning) {
+    		if (!complete(true)) {
+    			return false;
+    		}
+    		super.cancel(mayInterruptIfRunning);
+    		channel.sendCancel(remoteCall.getCallId());
+    		return true;
+    	}
+
+    	void expire() {
+    		if (complete(true)) {
+    			metrics.outboundTimeouts.incrementAndGet();
+    			setErrorIfWaiting(new RemoteException("Call timed out " + remoteCall.toShortString()));
+    			channel.sendCancel(remoteCall.getCallId());
+    		}
+    	}
     }
 }
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Codec is responsible for encoding object payload of RMI messages.
+ * Message header (tag and call id) and envelope framing are handled
+ * by {@link RmiGateway}.
+ * <p>
+ * Codec instance is bound to a single connection and may keep
+ * state (e.g. dictionaries) between messages. Codec is chosen
+ * during handshake, both sides should agree on its name.
+ * 
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+interface RmiCodec {
+
+	public String getName();
+	
+	public Encoder createEncoder() throws IOException;
+
+	public Decoder createDecoder(InputStream in) throws IOException;
+
+	/**
+	 * @param binaries out of band payloads received ahead of the message, may be <code>null</code>
+	 */
+	public Decoder createDecoder(InputStream in, List<byte[]> binaries) throws IOException;
+	
+	public interface Encoder {
+		
+		/**
+		 * Encodes payload of single message into internal buffer.
+		 * If exception is thrown, encoder recovers itself and buffer content is discarded.
+		 */
+		public void encode(Object... objects) throws IOException;
+		
+		/**
+		 * Writes result of last {@link #encode(Object...)} to the stream.
+		 */
+		public void writeTo(OutputStream os) throws IOException;
+
+		/**
+		 * Binary values of last encoded message which should be
+		 * transmitted out of band, see {@link BinaryPayloads}.
+		 * Empty if out of band payloads are not enabled.
+		 */
+		public List<Object> getBinaryPayloads();
+
+		/**
+		 * Should be called once written message is queued for transmission.
+		 * Messages encoded after commit may rely on connection state (e.g. dictionary)
+		 * established by this message.
+		 */
+		public void commit();
+
+		/**
+		 * Should be called once message is written, encoder drops references to values of the message.
+		 */
+		public void release();
+		
+	}
+
+	public interface Decoder {
+
+		/**
+		 * Processes connection level part of message (e.g. dictionary updates).
+		 * Should be called in stream order, rest of message could be read later
+		 * by another thread.
+		 */
+		public void beginMessage() throws IOException;
+		
+		public Object readObject() throws IOException, ClassNotFoundException;
+
+		/**
+		 * Consumes payload terminator.
+		 */
+		public void endMessage() throws IOException, ClassNotFoundException;
+		
+	}
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gridkit.zerormi.zlog.LogStream;
+
+/**
+ * Executor for inbound remote calls.
+ * <p>
+ * By default calls are executed by bounded thread pool with bounded queue,
+ * calls exceeding queue capacity are rejected. On JDK 21+ virtual thread
+ * per call mode could be enabled instead.
+ * <p>
+ * Optionally calls to same remote object could be executed one at a time
+ * in order of arrival. Be careful, reentrant calls (callback into the same
+ * object) would deadlock in this mode.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class RmiDispatcher implements Executor {
+
+	/** Max number of dispatcher threads */
+	public static final String PROP_THREADS = "gridkit.zerormi.dispatcher.threads";
+
+	/** Max number of calls waiting for a thread, ordered calls waiting in their lanes are counted too */
+	public static final String PROP_QUEUE = "gridkit.zerormi.dispatcher.queue";
+
+	/** <code>pool</code> (default) or <code>virtual</code> (JDK 21+) */
+	public static final String PROP_MODE = "gridkit.zerormi.dispatcher.mode";
+
+	/** If <code>true</code>, calls to same remote object are executed sequentially */
+	public static final String PROP_ORDERED = "gridkit.zerormi.dispatcher.ordered";
+
+	public static final String MODE_POOL = "pool";
+	public static final String MODE_VIRTUAL = "virtual";
+
+	private final String name;
+	private final ExecutorService executor;
+	private final ThreadPoolExecutor pool;
+	private final boolean ordered;
+	private final int queueLimit;
+
+	private final Map<Object, Lane> lanes = new HashMap<Object, Lane>();
+
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	public RmiDispatcher(final String name, Map<String, Object> props, LogStream logInfo) {
+		this.name = name;
+		this.ordered = Boolean.valueOf(readProp(props, PROP_ORDERED, "false"));
+		this.queueLimit = Integer.valueOf(readProp(props, PROP_QUEUE, "4096"));
+		String mode = readProp(props, PROP_MODE, MODE_POOL);
+		ExecutorService vexecutor = null;
+		if (MODE_VIRTUAL.equals(mode)) {
+			try {
+				vexecutor = createVirtualThreadExecutor("RMI[" + name + "]-worker-");
+			}
+			catch(Exception e) {
+				logInfo.log("RMI dispatcher [" + name + "] virtual threads are not available, using thread pool - " + e.toString());
+			}
+		}
+		else if (!MODE_POOL.equals(mode)) {
+			logInfo.log("RMI dispatcher [" + name + "] unknown mode '" + mode + "', using thread pool");
+		}
+		if (vexecutor != null) {
+			pool = null;
+			executor = vexecutor;
+		}
+		else {
+			int threads = Integer.valueOf(readProp(props, PROP_THREADS, "256"));
+			pool = new ThreadPoolExecutor(threads, threads,
+					1, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(queueLimit), new ThreadFactory() {
+						int counter = 1;
+
+						@Override
+						public synchronized Thread newThread(Runnable r) {
+							Thread t = new Thread(r);
+							t.setName("RMI[" + name + "]-worker-" + (counter++));
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+	}
+
+	private static String readProp(Map<String, Object> props, String key, String defaultValue) {
+		if (props.get(key) != null) {
+			return String.valueOf(props.get(key));
+		}
+		else {
+			return System.getProperty(key, defaultValue);
+		}
+	}
+
+	/**
+	 * Uses reflection, so code could be compiled for old Java versions.
+	 */
+	private static ExecutorService createVirtualThreadExecutor(String prefix) throws Exception {
+		Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+		Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+		builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1l);
+		ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		execute(null, task);
+	}
+
+	/**
+	 * Tasks with same non <code>null</code> key are executed in order if dispatcher is configured so.
+	 * Tasks waiting in ordered lanes are limited by {@link #PROP_QUEUE} as well.
+	 */
+	public void execute(Object key, Runnable task) {
+		if (key == null || !ordered) {
+			queued.incrementAndGet();
+			try {
+				submit(new TrackedTask(task));
+			}
+			catch(RejectedExecutionException e) {
+				queued.decrementAndGet();
+				throw e;
+			}
+		}
+		else {
+			synchronized(lanes) {
+				if (queued.get() >= queueLimit) {
+					rejected.incrementAndGet();
+					throw new RejectedExecutionException("Dispatcher queue is full (" + queueLimit + ")");
+				}
+				Lane lane = lanes.get(key);
+				if (lane == null) {
+					lane = new Lane(key);
+					// lane is scheduled under lock, so no task could be added to rejected lane
+					submit(lane);
+					lanes.put(key, lane);
+				}
+				lane.tasks.add(task);
+				queued.incrementAndGet();
+			}
+		}
+	}
+
+	private void submit(Runnable task) {
+		try {
+			executor.execute(task);
+		}
+		catch(RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			throw e;
+		}
+	}
+
+	private void runTracked(Runnable task) {
+		queued.decrementAndGet();
+		active.incrementAndGet();
+		try {
+			task.run();
+		}
+		finally {
+			active.decrementAndGet();
+			completed.incrementAndGet();
+		}
+	}
+
+	public boolean isVirtualThreads() {
+		return pool == null;
+	}
+
+	public boolean isOrdered() {
+		return ordered;
+	}
+
+	/** Number of calls waiting for execution */
+	public int getQueueDepth() {
+		return queued.get();
+	}
+
+	/** Number of calls being executed */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/** Number of pooled threads, for virtual thread mode same as active count */
+	public int getThreadCount() {
+		return pool == null ? active.get() : pool.getPoolSize();
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return "RmiDispatcher[" + name + ", queued: " + getQueueDepth() + ", active: " + getActiveCount()
+				+ ", completed: " + getCompletedCount() + ", rejected: " + getRejectedCount() + "]";
+	}
+
+	private class TrackedTask implements Runnable {
+
+		private final Runnable task;
+
+		public TrackedTask(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			runTracked(task);
+		}
+	}
+
+	private class Lane implements Runnable {
+
+		private final Object key;
+		private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+
+		public Lane(Object key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				Runnable task;
+				synchronized(lanes) {
+					task = tasks.poll();
+					if (task == null) {
+						lanes.remove(key);
+						return;
+					}
+				}
+				try {
+					runTracked(task);
+				}
+				catch(RuntimeException e) {
+					// failed task should not stall the lane
+					Thread thread = Thread.currentThread();
+					thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+				}
+			}
+		}
+	}
+}
@@ -15,29 +15,41 @@
  */
 package org.gridkit.zerormi;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.gridkit.util.concurrent.AdvancedExecutor;
 import org.gridkit.util.concurrent.AdvancedExecutorAdapter;
@@ -55,8 +67,76 @@ import static org.gridkit.zerormi.JdkUtils.addSuppressedIfSupported;
  */
 public class RmiGateway {
 
+	/**
+	 * Comma separated list of wire codecs this side is willing to use, in order of preference.
+	 * Codec is negotiated during handshake, plain Java serialization is used as fallback.
+	 */
+	public static final String PROP_CODEC = "gridkit.zerormi.codec";
+
+	static final String DEFAULT_CODECS = CompactRmiCodec.NAME + "," + JavaRmiCodec.NAME;
+
+	/**
+	 * Messages with payload up to this size are deserialized by reader thread,
+	 * arguments of larger calls are decoded by call dispatcher and larger returns by caller pool.
+	 */
+	public static final String PROP_INLINE_DECODE_LIMIT = "gridkit.zerormi.inline-decode-limit";
+
+	/**
+	 * <code>byte[]</code> values of this size or larger are transmitted as raw binary frames
+	 * instead of being serialized into message (see {@link BinaryPayloads}). {@link java.nio.ByteBuffer}s
+	 * are always sent this way. Negative value disables binary frames.
+	 */
+	public static final String PROP_BINARY_THRESHOLD = "gridkit.zerormi.binary-threshold";
+
+	/**
+	 * If <code>true</code>, binary frames are written directly from arrays and buffers passed
+	 * to remote calls, so they should not be modified until call is complete.
+	 * By default binary values are copied.
+	 */
+	public static final String PROP_BINARY_ZERO_COPY = "gridkit.zerormi.binary-zero-copy";
+
+	/**
+	 * If <code>true</code>, stream compression is proposed to the remote side.
+	 * Compression is used only if both sides have enabled it.
+	 */
+	public static final String PROP_COMPRESSION = "gridkit.zerormi.compression";
+
+	/** Blocks of outbound data smaller than this are not compressed */
+	public static final String PROP_COMPRESSION_THRESHOLD = "gridkit.zerormi.compression.threshold";
+
+	/**
+	 * Calls carrying at least this many bytes of binary or string arguments are routed
+	 * to bulk stripes, if connection has any (see {@link #connectStripe(DuplexStream)}).
+	 * Calls of methods returning <code>byte[]</code> or {@link ByteBuffer} are routed there too.
+	 */
+	public static final String PROP_STRIPE_THRESHOLD = "gridkit.zerormi.stripe-threshold";
+
+	static final String HS_CODECS = "codecs";
+	static final String HS_COMPRESSION = "compression";
+	static final String HS_BINARY_FRAMES = "binary-frames";
+	/** Value is lease timeout of exported objects */
+	static final String HS_LEASES = "leases";
+	/** Peer understands call deadline headers and cancel messages */
+	static final String HS_DEADLINES = "deadlines";
+	/** Peer answers keep alive probes */
+	static final String HS_KEEPALIVE = "keepalive";
+
 	private final RmiChannel channel;
-	private final ExecutorService executor;
+	private final RmiDispatcher dispatcher;
+	/** Threads waiting for results of {@link #getRemoteExecutorService()} tasks */
+	private final ExecutorService callerPool;
+	private final Map<String, Object> props;
+	private final int inlineDecodeLimit;
+	private final int binaryThreshold;
+	private final boolean binaryZeroCopy;
+	private final boolean compression;
+	private final int compressionThreshold;
+	private final CompressionCounters compressionCounters = new CompressionCounters();
+	private final int stripeThreshold;
+	/** Bulk streams of this connection, primary stream carries the rest of traffic */
+	private final List<Stripe> stripes = new CopyOnWriteArrayList<Stripe>();
+	/** Calls received over stripes, their results are sent back the same way */
+	private final ConcurrentMap<Long, Stripe> stripeReturns = new ConcurrentHashMap<Long, Stripe>();
 	
 	private boolean connected = false;
 	private boolean terminated = false; 
@@ -70,6 +150,16 @@ public class RmiGateway {
 	private RemoteExecutionService service;
 	private CounterAgent remote;
 	private Thread readerThread;
+
+	/** Options negotiated by primary stream, stripes are using them as is */
+	private String negotiatedCodec;
+	private boolean negotiatedBinaryFrames;
+	private boolean negotiatedCompression;
+	private volatile boolean negotiatedDeadlines;
+	private volatile boolean negotiatedKeepAlive;
+	/** {@link System#nanoTime()} of last frame received over any stream */
+	private volatile long lastReceived = System.nanoTime();
+	private volatile long lastProbeSent;
 	
 	private final LogStream logVerbose;
 	private final LogStream logInfo;
@@ -95,7 +185,7 @@ public class RmiGateway {
 		this(name, new SmartRmiMarshaler(), logger, Collections.<String, Object>emptyMap());
 	}
 
-	private ExecutorService createRmiExecutor() {
+	private ExecutorService createCallerExecutor() {
         return new ThreadPoolExecutor(0, Integer.MAX_VALUE,
                 100, TimeUnit.MILLISECONDS,
                 new SynchronousQueue<Runnable>(), new ThreadFactory() {
@@ -104,7 +194,7 @@ public class RmiGateway {
 					@Override
 					public synchronized Thread newThread(Runnable r) {
 						Thread t = new Thread(r);
-						t.setName("RMI[" + name + "]-worker-" + (counter++));
+						t.setName("RMI[" + name + "]-caller-" + (counter++));
 						t.setDaemon(true);
 						return t;
 					}
@@ -113,31 +203,174 @@ public class RmiGateway {
 
 	public RmiGateway(String name, RmiMarshaler marshaler, ZLogger logger, Map<String, Object> props) {
 		// TODO should include counter agent
-		this.executor = createRmiExecutor();
-		this.channel = new RmiChannel1(name, new MessageOut(), executor, marshaler, logger, props);
-		this.service = new RemoteExecutionService();
 		this.name = name;
+		this.props = props;
+		this.inlineDecodeLimit = readPropInt(props, PROP_INLINE_DECODE_LIMIT, 4 << 10);
+		this.binaryThreshold = readPropInt(props, PROP_BINARY_THRESHOLD, 64 << 10);
+		this.binaryZeroCopy = Boolean.valueOf(props.get(PROP_BINARY_ZERO_COPY) != null ? String.valueOf(props.get(PROP_BINARY_ZERO_COPY)) : System.getProperty(PROP_BINARY_ZERO_COPY, "false"));
+		this.compression = Boolean.valueOf(props.get(PROP_COMPRESSION) != null ? String.valueOf(props.get(PROP_COMPRESSION)) : System.getProperty(PROP_COMPRESSION, "false"));
+		this.compressionThreshold = readPropInt(props, PROP_COMPRESSION_THRESHOLD, 512);
+		this.stripeThreshold = readPropInt(props, PROP_STRIPE_THRESHOLD, 64 << 10);
 		this.logVerbose = logger.get(getClass().getSimpleName(), LogLevel.VERBOSE);
 		this.logInfo = logger.get(getClass().getSimpleName(), LogLevel.INFO);
 		this.logCritical = logger.get(getClass().getSimpleName(), LogLevel.CRITICAL);
+		this.callerPool = createCallerExecutor();
+		this.dispatcher = new RmiDispatcher(name, props, logInfo);
+		this.channel = new RmiChannel1(name, new MessageOut(), dispatcher, marshaler, logger, props);
+		this.service = new RemoteExecutionService();
 	}
 	
 	public AdvancedExecutor getRemoteExecutorService() {
 		return service;
 	}
 	
+	/**
+	 * @return new batch for calls to remote proxies of this connection
+	 */
+	public RemoteBatch createBatch() {
+		return new RemoteBatch(channel);
+	}
+
+	/**
+	 * @return compression statistics, all zeros if compression is not used by connection
+	 */
+	public CompressionCounters getCompressionCounters() {
+		return compressionCounters;
+	}
+
+	/**
+	 * @return counters of exported objects and remote proxies
+	 */
+	public ExportCounters getExportCounters() {
+		return channel.getExportCounters();
+	}
+
+	/**
+	 * @return per method call latencies and traffic statistics of this connection
+	 */
+	public RmiMetrics getMetrics() {
+		return channel.getMetrics();
+	}
+
+	/**
+	 * @return executor running inbound calls, exposes dispatch statistics
+	 */
+	public RmiDispatcher getCallDispatcher() {
+		return dispatcher;
+	}
+	
 	public void setStreamErrorHandler(StreamErrorHandler errorHandler) {
 		this.streamErrorHandler = errorHandler;
 	}
+
+	/**
+	 * Sends keep alive probe. Probe is answered by reader thread of remote side,
+	 * round trip time is recorded in {@link RmiMetrics#getKeepAliveRtt()}.
+	 * Remote side would probe back, so it is measuring round trip time too.
+	 * 
+	 * @return <code>false</code> if not connected or peer does not support keep alive probes
+	 */
+	public boolean sendKeepAlive() throws IOException {
+		if (!connected || !negotiatedKeepAlive) {
+			return false;
+		}
+		long now = System.nanoTime();
+		lastProbeSent = now;
+		writeKeepAlive(TAG_PING, now);
+		return true;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} of last frame of any type received from remote side
+	 */
+	public long getLastReceivedNanos() {
+		return lastReceived;
+	}
+
+	/**
+	 * Called by reader thread. Reader should never block on socket write,
+	 * if both peers are writing bulk data and neither is reading, they would
+	 * deadlock. So answers are only queued, they are written by current writer
+	 * or by a pool thread.
+	 */
+	private void pingReceived(long stamp) {
+		queueKeepAlive(TAG_PONG, stamp);
+		long now = System.nanoTime();
+		// probing back is rate limited, so two sides would not bounce probes forever
+		if (now - lastProbeSent > KEEPALIVE_REFLECT_INTERVAL) {
+			lastProbeSent = now;
+			queueKeepAlive(TAG_PING, now);
+		}
+	}
+
+	private void queueKeepAlive(long tag, long stamp) {
+		final OutboundMessageStream out = this.out;
+		if (out == null) {
+			return;
+		}
+		out.queueKeepAlive(tag, stamp);
+		if (!out.isWriting()) {
+			try {
+				callerPool.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							out.flushQueue();
+						}
+						catch(IOException e) {
+							writeFailed(out, e);
+						}
+					}
+				});
+			}
+			catch(RejectedExecutionException e) {
+				// gateway is shutting down
+			}
+		}
+	}
+
+	private void writeKeepAlive(long tag, long stamp) throws IOException {
+		OutboundMessageStream out = this.out;
+		if (out == null) {
+			return;
+		}
+		try {
+			out.writeKeepAlive(tag, stamp);
+		}
+		catch(IOException e) {
+			writeFailed(out, e);
+			throw e;
+		}
+	}
+
+	private void writeFailed(OutboundMessageStream out, IOException e) {
+		if (this.out != out) {
+			// stream has been already replaced
+			return;
+		}
+		DuplexStream socket = this.socket;
+		disconnect();
+		streamErrorHandler.streamError(socket, out.tstream, e);
+	}
+
+	/**
+	 * @return number of bulk stripes currently attached to connection
+	 */
+	public int getStripeCount() {
+		return stripes.size();
+	}
 	
 	public void disconnect() {
 		Thread readerThread = null;
+		List<Stripe> lostStripes = Collections.emptyList();
 		synchronized(this) {
 			if (connected) {
 				
 				logInfo.log("RMI gateway [" + name +"] disconneted.");
 				
 				readerThread = this.readerThread;
+				// stripes do not outlive primary stream, remote side would reattach them on reconnect
+				lostStripes = new ArrayList<Stripe>(stripes);
 				
 				try {
 					out.close();
@@ -171,6 +404,9 @@ public class RmiGateway {
 				connected = false;
 			}
 		}
+		for(Stripe stripe: lostStripes) {
+			dropStripe(stripe, null);
+		}
 		if (readerThread != null) {
 			readerThread.interrupt();
 			try {
@@ -226,6 +462,9 @@ public class RmiGateway {
 		catch(Exception e) {
 			// ignore
 		}
+		for(Stripe stripe: stripes) {
+			dropStripe(stripe, null);
+		}
 		try {
 			service.shutdown();
 		}
@@ -239,7 +478,13 @@ public class RmiGateway {
 			// ignore
 		}
 		try {
-			executor.shutdown();		
+			dispatcher.shutdown();		
+		}
+		catch(Exception e) {
+			// ignore
+		}
+		try {
+			callerPool.shutdown();		
 		}
 		catch(Exception e) {
 			// ignore
@@ -276,37 +521,178 @@ public class RmiGateway {
 			InboundMessageStream ims = in;
 			try {
 				while(!terminated) {
-					RemoteMessage message = ims.readMessage();
-					if (message == null) {
-						String msg = "RMI gateway [" + name + "], remote side has requested termination";
-						logInfo.log(msg);
-						shutdown(new Exception(msg));
+					InboundFrame frame = ims.readFrame();
+					if (frame == null) {
+						remoteTerminated();
 					}
 					else {
-						channel.handleMessage(message);
+						dispatchFrame(frame);
 					}
 				}
 			}
 			catch(Exception e) {
-				if (IOHelper.isSocketTerminationException(e)) {
-					logVerbose.log("RMI stream, socket has been discontinued [" + socket + "] - " + e.toString());
-				}
-				else {
-					logCritical.log("RMI stream read exception [" + socket + "]", e);
-				}
-				DuplexStream socket = RmiGateway.this.socket;
-				InputStream in = RmiGateway.this.in.tstream;
 				readerThread = null;
-				logVerbose.log("disconnecting");
-				disconnect();
-				if (IOHelper.isSocketTerminationException(e)) {
-					streamErrorHandler.streamClosed(socket, in, e);
+				readFailed(e);
+			}
+		}
+	}
+
+	private void dispatchFrame(InboundFrame frame) {
+		if (frame.size <= inlineDecodeLimit) {
+			channel.handleMessage(frame.decode());
+		}
+		else if (frame.tag == TAG_CALL) {
+			// large payload should not delay messages behind it, but call is registered
+			// in arrival order, its arguments are decoded by dispatcher thread
+			channel.handleMessage(frame.readTarget() ? frame : frame.decode());
+		}
+		else {
+			// returns are kept off call dispatcher, its threads may be waiting for them
+			try {
+				callerPool.execute(frame);
+			}
+			catch(RejectedExecutionException e) {
+				frame.run();
+			}
+		}
+	}
+
+	private void remoteTerminated() {
+		String msg = "RMI gateway [" + name + "], remote side has requested termination";
+		logInfo.log(msg);
+		shutdown(new Exception(msg));
+	}
+
+	private void readFailed(Exception e) {
+		if (IOHelper.isSocketTerminationException(e)) {
+			logVerbose.log("RMI stream, socket has been discontinued [" + socket + "] - " + e.toString());
+		}
+		else {
+			logCritical.log("RMI stream read exception [" + socket + "]", e);
+		}
+		DuplexStream socket = RmiGateway.this.socket;
+		InboundMessageStream ims = RmiGateway.this.in;
+		InputStream in = ims == null ? null : ims.tstream;
+		logVerbose.log("disconnecting");
+		disconnect();
+		if (IOHelper.isSocketTerminationException(e)) {
+			streamErrorHandler.streamClosed(socket, in, e);
+		}
+		else {
+			streamErrorHandler.streamError(socket, in, e);
+		}
+	}
+
+	/**
+	 * Receives data pushed by I/O thread of {@link NonBlockingDuplexStream}.
+	 * Messages are parsed only once they are complete, so reading never blocks.
+	 * Complete frames are decoded and dispatched in order by a pooled thread,
+	 * so I/O thread does not run deserialization or calls sending replies.
+	 */
+	private class PushReader implements NonBlockingDuplexStream.Receiver, Runnable {
+
+		private final InboundBuffer raw = new InboundBuffer();
+		private final InboundBuffer data;
+		private final BlockCompression.Input decompressor;
+		private final InboundMessageStream ims;
+		private final byte[] block;
+		private final Queue<InboundFrame> frames = new ConcurrentLinkedQueue<InboundFrame>();
+		/** Number of frames not yet dispatched, drain task is active while it is positive */
+		private final AtomicInteger undispatched = new AtomicInteger();
+		/** Set by drain task, frames following failed one are dropped */
+		private volatile boolean failed;
+
+		public PushReader(RmiCodec codec, boolean compressed) throws IOException {
+			if (compressed) {
+				data = new InboundBuffer();
+				decompressor = new BlockCompression.Input(raw, compressionCounters);
+				block = new byte[BlockCompression.BLOCK_SIZE];
+			}
+			else {
+				data = raw;
+				decompressor = null;
+				block = null;
+			}
+			ims = new InboundMessageStream(data);
+			ims.setCodec(codec);
+		}
+
+		@Override
+		public void received(byte[] buf, int offset, int length) throws IOException {
+			if (terminated) {
+				return;
+			}
+			raw.append(buf, offset, length);
+			if (decompressor != null) {
+				while(BlockCompression.scanBlock(raw.array(), raw.position(), raw.available()) > 0) {
+					int n = decompressor.read(block, 0, block.length);
+					data.append(block, 0, n);
 				}
-				else {
-					streamErrorHandler.streamError(socket, in, e);
+			}
+			while(!terminated && scanFrame(data.array(), data.position(), data.available()) > 0) {
+				InboundFrame frame = ims.readMessage(ims.estream.read());
+				if (frame != null) {
+					frames.add(frame);
+					if (undispatched.getAndIncrement() == 0) {
+						try {
+							callerPool.execute(this);
+						}
+						catch(RejectedExecutionException e) {
+							// gateway is shut down
+							frames.clear();
+						}
+					}
 				}
 			}
 		}
+
+		@Override
+		public void run() {
+			do {
+				InboundFrame frame = frames.poll();
+				if (frame != null && !terminated && !failed) {
+					try {
+						dispatchFrame(frame);
+					}
+					catch(Exception e) {
+						failed = true;
+						readFailed(e);
+					}
+				}
+			}
+			while(undispatched.decrementAndGet() != 0);
+		}
+
+		@Override
+		public void closed(IOException error) {
+			if (terminated) {
+				return;
+			}
+			if (error == null) {
+				remoteTerminated();
+			}
+			else {
+				readFailed(error);
+			}
+		}
+	}
+
+	/**
+	 * @return size of complete message with its trailer or -1 if more data is required
+	 */
+	static int scanFrame(byte[] buf, int offset, int length) {
+		int m = EnvelopInputStream.scanMessage(buf, offset, length);
+		if (m < 0) {
+			return -1;
+		}
+		// tag is first byte of first chunk
+		int chunk = ((buf[offset] & 0xFF) << 8) + (buf[offset + 1] & 0xFF);
+		int tag = chunk > 0 && chunk != EnvelopOutputStream.BINARY_CHUNK ? buf[offset + 2] & 0xFF : -1;
+		if (tag == TAG_CALL || tag == TAG_RETURN || tag == TAG_THROW) {
+			int t = EnvelopInputStream.scanMessage(buf, offset + m, length - m);
+			return t < 0 ? -1 : m + t;
+		}
+		return m;
 	}
 
 	public synchronized void connect(DuplexStream socket) throws IOException {
@@ -318,17 +704,67 @@ public class RmiGateway {
 			
 			out = new OutboundMessageStream(socket.getOutput());
 			
+			List<String> codecs = getEnabledCodecs();
+			Map<String, String> options = new LinkedHashMap<String, String>();
+			options.put(HS_CODECS, join(codecs));
+			if (binaryThreshold >= 0) {
+				options.put(HS_BINARY_FRAMES, "true");
+			}
+			if (compression) {
+				options.put(HS_COMPRESSION, "true");
+			}
+			options.put(HS_LEASES, String.valueOf(channel.getLeaseTimeout()));
+			options.put(HS_DEADLINES, "true");
+			options.put(HS_KEEPALIVE, "true");
+			
 			CounterAgent localAgent = new LocalAgent();			
 			channel.exportObject(CounterAgent.class, localAgent);
-			out.writeHandShake(localAgent);
+			out.writeHandShake(localAgent, options);
 	
 			// important create out stream first!
 			in = new InboundMessageStream(socket.getInput());
 			remote = (CounterAgent) in.readHandShake();
 			
-			readerThread = new SocketReader();
-			readerThread.setName("RMI-Receiver: " + socket);
-			readerThread.start();
+			String remoteCodecs = in.handShakeOptions.get(HS_CODECS);
+			// binary frames are used only if both sides support them
+			boolean binaryFrames = binaryThreshold >= 0 && "true".equals(in.handShakeOptions.get(HS_BINARY_FRAMES));
+			String codecName = negotiateCodec(codecs, remoteCodecs == null ? Collections.<String>emptyList() : split(remoteCodecs));
+			RmiCodec codec = createCodec(codecName, binaryFrames ? binaryThreshold : -1);
+			logVerbose.log("RMI gateway [" + name + "] is using " + codec.getName() + " codec" + (binaryFrames ? " with binary frames" : ""));
+			out.setCodec(codec);
+			in.setCodec(codec);
+			
+			// everything after handshake is compressed
+			boolean compressed = compression && "true".equals(in.handShakeOptions.get(HS_COMPRESSION));
+			if (compressed) {
+				logVerbose.log("RMI gateway [" + name + "] is using stream compression");
+				out.enableCompression(compressionThreshold, compressionCounters);
+				in.enableCompression(compressionCounters);
+			}
+			negotiatedCodec = codecName;
+			negotiatedBinaryFrames = binaryFrames;
+			negotiatedCompression = compressed;
+			// legacy peers would run calls to completion
+			negotiatedDeadlines = "true".equals(in.handShakeOptions.get(HS_DEADLINES));
+			out.setDeadlines(negotiatedDeadlines);
+			negotiatedKeepAlive = "true".equals(in.handShakeOptions.get(HS_KEEPALIVE));
+			lastReceived = System.nanoTime();
+			
+			// legacy peers neither renew leases nor release proxies
+			String remoteLeases = in.handShakeOptions.get(HS_LEASES);
+			if (remoteLeases != null) {
+				channel.enableLeases(Long.parseLong(remoteLeases));
+			}
+
+			if (socket instanceof NonBlockingDuplexStream) {
+				// no dedicated reader thread, I/O thread would deliver data
+				((NonBlockingDuplexStream) socket).startReceiving(new PushReader(codec, compressed));
+			}
+			else {
+				readerThread = new SocketReader();
+				readerThread.setName("RMI-Receiver: " + socket);
+				readerThread.start();
+			}
 			connected = true;			
 			
 		} catch (Exception e) {
@@ -358,28 +794,251 @@ public class RmiGateway {
 		}
 	}
 
+	/**
+	 * Attaches additional stream of the same session. Stripe has no handshake of its own,
+	 * it is using options negotiated by primary stream, so both sides should call this
+	 * method for their ends of stream once primary stream is connected.
+	 * <p>
+	 * Stripes carry bulk calls (see {@link #PROP_STRIPE_THRESHOLD}), so large transfers
+	 * would not delay control traffic. Result of a call is sent back over the stream the
+	 * call has arrived by. Messages on different streams are not ordered in respect to each other.
+	 * <p>
+	 * If stripe is lost, calls pending on it are failed and connection keeps
+	 * running over remaining streams.
+	 */
+	public void connectStripe(DuplexStream stream) throws IOException {
+		Stripe stripe;
+		synchronized(this) {
+			if (!connected || terminated) {
+				try {
+					stream.close();
+				}
+				catch(IOException e) {
+					// ignore
+				}
+				throw new IOException("RMI gateway [" + name + "] is not connected");
+			}
+			stripe = new Stripe(stream);
+			stripes.add(stripe);
+		}
+		logVerbose.log("RMI gateway [" + name + "] stripe attached " + stream);
+		stripe.start();
+	}
+
+	private Stripe selectStripe(RemoteCall call) {
+		if (stripes.isEmpty() || !isBulk(call)) {
+			return null;
+		}
+		Stripe best = null;
+		for(Stripe stripe: stripes) {
+			if (best == null || stripe.pendingCalls.size() < best.pendingCalls.size()) {
+				best = stripe;
+			}
+		}
+		return best;
+	}
+
+	private boolean isBulk(RemoteCall call) {
+		if (call.getMethod().bulkResult) {
+			return true;
+		}
+		return call.getArgs() != null && payloadSize(call.getArgs(), 2) >= stripeThreshold;
+	}
+
+	/**
+	 * Rough estimate, only values which are cheap to measure are counted.
+	 * Object arrays (e.g. batch calls) are inspected up to given depth.
+	 */
+	private static long payloadSize(Object obj, int depth) {
+		if (obj instanceof byte[]) {
+			return ((byte[]) obj).length;
+		}
+		else if (obj instanceof ByteBuffer) {
+			return ((ByteBuffer) obj).remaining();
+		}
+		else if (obj instanceof String) {
+			return ((String) obj).length();
+		}
+		else if (obj instanceof Object[] && depth > 0) {
+			long size = 0;
+			for(Object e: (Object[]) obj) {
+				size += payloadSize(e, depth - 1);
+			}
+			return size;
+		}
+		else {
+			return 0;
+		}
+	}
+
+	private void dropStripe(Stripe stripe, Exception error) {
+		stripe.closed = true;
+		if (!stripes.remove(stripe)) {
+			return;
+		}
+		stripe.close();
+		if (error == null || IOHelper.isSocketTerminationException(error)) {
+			logVerbose.log("RMI gateway [" + name + "] stripe is closed " + stripe.socket);
+		}
+		else {
+			logInfo.log("RMI gateway [" + name + "] stripe is lost " + stripe.socket + " - " + error.toString());
+		}
+		// entries of stripeReturns are kept, so late results of calls from this stripe would be discarded
+		for(Long id: stripe.pendingCalls) {
+			if (stripe.pendingCalls.remove(id)) {
+				try {
+					channel.handleMessage(new RemoteReturn(id, true, new RemoteException("RMI gateway [" + name + "] stripe is lost", error)));
+				}
+				catch(RuntimeException e) {
+					// call has been already completed by channel
+				}
+			}
+		}
+	}
+
+	private static int readPropInt(Map<String, Object> props, String key, int defaultValue) {
+		if (props.get(key) != null) {
+			return Integer.valueOf(String.valueOf(props.get(key)));
+		}
+		else {
+			return Integer.getInteger(key, defaultValue);
+		}
+	}
+
+	private List<String> getEnabledCodecs() {
+		Object prop = props.get(PROP_CODEC);
+		String codecs = prop != null ? String.valueOf(prop) : System.getProperty(PROP_CODEC, DEFAULT_CODECS);
+		List<String> result = new ArrayList<String>();
+		for(String codec: split(codecs)) {
+			if (createCodec(codec) != null) {
+				result.add(codec);
+			}
+			else {
+				logInfo.log("RMI gateway [" + name + "] unknown codec '" + codec + "' is ignored");
+			}
+		}
+		return result;
+	}
+
+	private RmiCodec createCodec(String codec) {
+		return createCodec(codec, -1);
+	}
+
+	private RmiCodec createCodec(String codec, int binaryThreshold) {
+		if (CompactRmiCodec.NAME.equals(codec)) {
+			return new CompactRmiCodec(channel, name, binaryThreshold, binaryZeroCopy);
+		}
+		else if (JavaRmiCodec.NAME.equals(codec)) {
+			return new JavaRmiCodec(channel, name, binaryThreshold, binaryZeroCopy);
+		}
+		else {
+			return null;
+		}
+	}
+
+	/**
+	 * Codec with lowest combined rank in both lists wins, so result 
+	 * does not depend on which side is doing negotiation.
+	 */
+	static String negotiateCodec(List<String> local, List<String> remote) {
+		String best = JavaRmiCodec.NAME;
+		int bestRank = Integer.MAX_VALUE;
+		for(int i = 0; i != local.size(); ++i) {
+			String codec = local.get(i);
+			int j = remote.indexOf(codec);
+			if (j >= 0) {
+				int rank = i + j;
+				if (rank < bestRank || (rank == bestRank && codec.compareTo(best) < 0)) {
+					best = codec;
+					bestRank = rank;
+				}
+			}
+		}
+		return best;
+	}
+
+	private static List<String> split(String list) {
+		List<String> result = new ArrayList<String>();
+		for(String s: Arrays.asList(list.split(","))) {
+			if (s.trim().length() > 0) {
+				result.add(s.trim());
+			}
+		}
+		return result;
+	}
+
+	private static String join(List<String> list) {
+		StringBuilder sb = new StringBuilder();
+		for(String s: list) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
 	static long TAG_CALL = 1;
 	static long TAG_RETURN = 2;
 	static long TAG_THROW = 3;
+	/** Raw binary payloads of following message */
+	static long TAG_BINARY = 4;
+	/** Remaining time (ns) of following call */
+	static long TAG_DEADLINE = 5;
+	/** Request to abandon a call, see {@link RemoteCancel} */
+	static long TAG_CANCEL = 6;
+	/** Keep alive probe, carries sender's timestamp */
+	static long TAG_PING = 7;
+	/** Answer to keep alive probe, echoes probe's timestamp */
+	static long TAG_PONG = 8;
 	static long TRAILER_SUCCESS = 10;
 	static long TRAILER_DISCARD = 20;
 	static long TRAILER_ERROR = 30;
 	
+	/** Outbound messages are coalesced into socket writes of up to this size */
+	static int OUTBOUND_BUFFER_SIZE = 32 << 10;
+
+	/** Side answering keep alive probe would probe back not more often than this */
+	static long KEEPALIVE_REFLECT_INTERVAL = TimeUnit.MILLISECONDS.toNanos(500);
+
+	/** Marks optional block of handshake options following handshake object */
+	static int HANDSHAKE_OPTIONS = 0x4F;
+	
 	static byte[] canary = new byte[0];
 	
 	private class InboundMessageStream {
 	    
 	    byte[] callId = new byte[7];
+	    byte[] chunk = new byte[4 << 10];
+	    MessageBuffer body = new MessageBuffer();
 	    InputStream tstream;
 	    EnvelopInputStream estream; 
 	    DataInputStream dstream;
-	    RmiObjectInputStream ostream;
+	    RmiCodec codec;
+	    RmiCodec.Decoder decoder;
+	    Map<String, String> handShakeOptions = Collections.emptyMap();
+	    /** Binary payloads for next message */
+	    List<byte[]> binaries;
+	    /** Deadline of next call */
+	    long deadline = RemoteCall.NO_DEADLINE;
 	    
 	    public InboundMessageStream(InputStream stream) throws IOException {
 	        this.tstream = stream;
 	        this.estream = new EnvelopInputStream(tstream);
 	        this.dstream = new DataInputStream(estream);
-	        this.ostream = new RmiObjectInputStream(estream);
+	        this.codec = new JavaRmiCodec(channel, name);
+	        // handshake is read directly from the stream
+	        this.decoder = codec.createDecoder(estream);
+	    }
+
+	    /**
+	     * Stream without handshake, used by stripes.
+	     */
+	    public InboundMessageStream(InputStream stream, RmiCodec codec) {
+	        this.tstream = stream;
+	        this.estream = new EnvelopInputStream(tstream);
+	        this.dstream = new DataInputStream(estream);
+	        this.codec = codec;
 	    }
 	    
 	    public void close() {
@@ -390,135 +1049,153 @@ public class RmiGateway {
             }
         }
 
+	    public void setCodec(RmiCodec codec) throws IOException {
+	        this.codec = codec;
+	    }
+
+	    /**
+	     * Should be called once handshake is read, envelope stream does not read ahead.
+	     */
+	    public void enableCompression(CompressionCounters counters) {
+	        this.estream = new EnvelopInputStream(new BlockCompression.Input(tstream, counters));
+	        this.dstream = new DataInputStream(estream);
+	    }
+
 	    public Object readHandShake() throws IOException, ClassNotFoundException {
-	        Object obj = ostream.readObject();
-	        ostream.readObject(); // null expected
+	        decoder.beginMessage();
+	        Object obj = decoder.readObject();
+	        decoder.endMessage();
+	        // legacy peers do not send options
+	        if (estream.read() == HANDSHAKE_OPTIONS) {
+	            Map<String, String> options = new LinkedHashMap<String, String>();
+	            int n = dstream.readUnsignedShort();
+	            for(int i = 0; i != n; ++i) {
+	                String key = dstream.readUTF();
+	                options.put(key, dstream.readUTF());
+	            }
+	            handShakeOptions = options;
+	        }
 	        estream.nextMessage();
 	        return obj;
 	    }
 	    
-        public RemoteMessage readMessage() throws IOException {
-	        while(true) {
-    	        int tag = estream.read();
-    	        if (tag == -1) {
-    	            return null; // End of Stream
-    	        }
-    	        else if (tag == TRAILER_SUCCESS) {
-    	            // ignore
-    	            estream.nextMessage();
-    	            return readMessage();
-    	        }
-    	        else if (tag == TRAILER_DISCARD) {
-    	            // ignore
-    	            estream.nextMessage();
-    	            return readMessage();
-    	        }
-    	        else if (tag == TAG_CALL) {
-    	            long callId = readCallId();
-    	            RemoteMessage msg;
-    	            RemoteInstance ri = null;
-    	            RemoteMethodSignature m = null;
-    	            Object[] args = null;
-    	            try {
-                        ri = (RemoteInstance) ostream.readObject();
-                        m = (RemoteMethodSignature) ostream.readObject();
-                        args = (Object[]) ostream.readObject();
-                        ostream.readObject(); // null expected
-                        
-                        msg = new RemoteCall(callId, ri, m, args);
-                        estream.nextMessage();
-                    } catch (NoClassDefFoundError e) {
-                        recover();
-                        msg = processFollowUp(new InboundCallError(callId, ri, m, new RemoteException("Unparsable call", e)));
-                        if (msg == null) {
-                            continue;
-                        }
-                    } catch (Exception e) {
-        	            recover();
-                        msg = processFollowUp(new InboundCallError(callId, ri, m, new RemoteException("Unparsable call", e)));
-                        if (msg == null) {
-                            continue;
-                        }
-        	        }
-    	            return msg;
-    	        }
-    	        else if (tag == TAG_RETURN || tag == TAG_THROW) {
-                    long callId = readCallId();
-                    RemoteMessage msg;
-                    try {
-                        Object obj = ostream.readObject();
-                        ostream.readObject(); // null expected
-                        if (tag == TAG_RETURN) {
-                            msg = new RemoteReturn(callId, false, obj);
-                        }
-                        else {
-                            msg = new RemoteReturn(callId, true, obj);
-                        }
-                        estream.nextMessage();
-                    } catch (NoClassDefFoundError e) {
-                        recover();
-                        msg = new RemoteReturn(callId, true, new RemoteException("Unparsable result", e));
-                        msg = processFollowUp(msg);
-                        if (msg == null) {
-                            continue;
-                        }
-                    } catch (Exception e) {
-                        recover();
-                        msg = new RemoteReturn(callId, true, new RemoteException("Unparsable result", e));
-                        msg = processFollowUp(msg);
-                        if (msg == null) {
-                            continue;
-                        }
-                    }
-                    return msg;	            
-    	        }
-    	        else {
-    	            throw new IOException("Stream corrupted, unknown tag: " + tag);
-    	        }
-	        }
-	    }
+        /**
+         * Reads next message from the stream, payload is not deserialized yet.
+         */
+        public InboundFrame readFrame() throws IOException {
+            while(true) {
+                int tag = estream.read();
+                if (tag == -1) {
+                    return null; // End of Stream
+                }
+                InboundFrame frame = readMessage(tag);
+                if (frame != null) {
+                    return frame;
+                }
+            }
+        }
 
-        private RemoteMessage processFollowUp(RemoteMessage lastError) throws IOException {
-            int tag = estream.read();
-            if (tag < 0) {
-                estream.nextMessage();               
-                return lastError;
+        /**
+         * Reads rest of the message (and its trailer) after tag.
+         * 
+         * @return frame or <code>null</code> if message does not carry a call or result
+         */
+        public InboundFrame readMessage(int tag) throws IOException {
+            lastReceived = System.nanoTime();
+            if (tag == TRAILER_SUCCESS || tag == TRAILER_DISCARD) {
+                // ignore
+                estream.nextMessage();
+                return null;
             }
-            else if (tag == TRAILER_SUCCESS) {
-                estream.nextMessage();               
-                return lastError;                
+            else if (tag == TAG_BINARY) {
+                readBinaries();
+                return null;
             }
-            else if (tag == TRAILER_DISCARD) {
-                estream.nextMessage();               
-                return null;                
+            else if (tag == TAG_DEADLINE) {
+                // remaining time is counted from the moment header is read
+                deadline = System.nanoTime() + Math.max(0, dstream.readLong());
+                estream.nextMessage();
+                return null;
             }
-            else if (tag == TRAILER_ERROR) {
-                RemoteMessage msg = lastError;
-                try {
-                    readCallId();
-                    Object error = ostream.readObject();
-                    ostream.readObject(); // null expected
-                    msg = new RemoteReturn(lastError.getCallId(), true, error);
+            else if (tag == TAG_PING) {
+                long stamp = dstream.readLong();
+                estream.nextMessage();
+                pingReceived(stamp);
+                return null;
+            }
+            else if (tag == TAG_PONG) {
+                long rtt = System.nanoTime() - dstream.readLong();
+                estream.nextMessage();
+                channel.getMetrics().keepAliveReceived(rtt);
+                return null;
+            }
+            else if (tag == TAG_CANCEL) {
+                long callId = readCallId();
+                estream.nextMessage();
+                // cancel is cheap, no need to pass it through dispatcher
+                channel.handleMessage(new RemoteCancel(callId));
+                return null;
+            }
+            else if (tag == TAG_CALL || tag == TAG_RETURN || tag == TAG_THROW) {
+                long callId = readCallId();
+                byte[] body = readBody();
+                channel.getMetrics().messageIn(messageType(tag), 8 + body.length);
+                InboundFrame frame = new InboundFrame(codec, tag, callId, body, binaries);
+                binaries = null;
+                if (tag == TAG_CALL) {
+                    frame.deadline = deadline;
+                }
+                deadline = RemoteCall.NO_DEADLINE;
+                // legacy peers may follow a broken message with discard or error trailer
+                int trailer = estream.read();
+                if (trailer == TRAILER_DISCARD) {
                     estream.nextMessage();
+                    return null;
                 }
-                catch(NoClassDefFoundError e) {
-                    recover();
+                else if (trailer == TRAILER_ERROR) {
+                    readCallId();
+                    frame.followUpError = new InboundFrame(codec, TAG_THROW, callId, readBody(), null);
                 }
-                catch(Exception e) {
-                    recover();
+                else if (trailer == TRAILER_SUCCESS) {
+                    estream.nextMessage();
+                }
+                else if (trailer != -1) {
+                    throw new IOException("Stream corrupted, unknown tag: " + trailer);
                 }
-                return msg;
+                return frame;
             }
             else {
                 throw new IOException("Stream corrupted, unknown tag: " + tag);
             }
         }
 
-        private void recover() throws IOException {
-            estream.skip(Long.MAX_VALUE);
+        /**
+         * Binary data is read straight into arrays which would be passed to application.
+         */
+        private void readBinaries() throws IOException {
+            if (binaries == null) {
+                binaries = new ArrayList<byte[]>();
+            }
+            int len;
+            long total = 0;
+            while((len = estream.readBinaryHeader()) >= 0) {
+                byte[] data = new byte[len];
+                estream.readBinary(data, 0, len);
+                binaries.add(data);
+                total += len;
+            }
             estream.nextMessage();
-            ostream = new RmiObjectInputStream(estream);
-            
+            channel.getMetrics().messageIn(RmiMetrics.MessageType.BINARY, total);
+        }
+
+        private byte[] readBody() throws IOException {
+            body.reset();
+            int n;
+            while((n = estream.read(chunk)) > 0) {
+                body.write(chunk, 0, n);
+            }
+            estream.nextMessage();
+            return body.toByteArray();
         }
 
         private long readCallId() throws IOException {
@@ -533,18 +1210,178 @@ public class RmiGateway {
         }
 	}
 
+	/**
+	 * Message which has been read from the stream, but not deserialized yet.
+	 * Connection level part of payload is processed by reader thread, so
+	 * the rest of deserialization does not depend on other messages and could
+	 * be done in parallel.
+	 */
+	private class InboundFrame implements Runnable, RmiChannel1.CallFrame {
+	    
+	    final long tag;
+	    final long callId;
+	    final int size;
+	    RmiCodec.Decoder decoder;
+	    Throwable error;
+	    /** Error reported by legacy peer instead of this message */
+	    InboundFrame followUpError;
+	    long deadline = RemoteCall.NO_DEADLINE;
+	    /** Target of the call, if it has been read ahead of the rest of payload */
+	    RemoteInstance target;
+	    
+	    public InboundFrame(RmiCodec codec, long tag, long callId, byte[] body, List<byte[]> binaries) {
+	        this.tag = tag;
+	        this.callId = callId;
+	        this.size = body.length;
+	        try {
+	            decoder = codec.createDecoder(new ByteArrayInputStream(body), binaries);
+	            decoder.beginMessage();
+	        }
+	        catch(NoClassDefFoundError e) {
+	            error = e;
+	        }
+	        catch(Exception e) {
+	            error = e;
+	        }
+	    }
+	    
+	    @Override
+	    public long getCallId() {
+	        return callId;
+	    }
+
+	    @Override
+	    public RemoteInstance getRemoteInstance() {
+	        return target;
+	    }
+
+	    @Override
+	    public long getDeadline() {
+	        return deadline;
+	    }
+
+	    /**
+	     * Reads target of the call, rest of the payload is left for {@link #decode()}.
+	     * 
+	     * @return <code>false</code> if call could not be decoded, {@link #decode()} would report an error
+	     */
+	    public boolean readTarget() {
+	        if (error != null || followUpError != null) {
+	            return false;
+	        }
+	        try {
+	            target = (RemoteInstance) decoder.readObject();
+	            return true;
+	        }
+	        catch(NoClassDefFoundError e) {
+	            error = e;
+	        }
+	        catch(Exception e) {
+	            error = e;
+	        }
+	        return false;
+	    }
+
+	    @Override
+	    public RemoteMessage decode() {
+	        if (followUpError != null) {
+	            try {
+	                return new RemoteReturn(callId, true, followUpError.readPayload(1)[0]);
+	            }
+	            catch(NoClassDefFoundError e) {
+	                // ignore, report original message failure
+	            }
+	            catch(Exception e) {
+	                // ignore, report original message failure
+	            }
+	        }
+	        if (tag == TAG_CALL) {
+	            RemoteInstance ri = null;
+	            RemoteMethodSignature m = null;
+	            try {
+	                // target may have been read ahead
+	                Object[] payload = readPayload(target == null ? 3 : 2);
+	                int n = payload.length - 2;
+	                ri = n == 0 ? target : (RemoteInstance) payload[0];
+	                m = (RemoteMethodSignature) payload[n];
+	                RemoteCall call = new RemoteCall(callId, ri, m, (Object[]) payload[n + 1]);
+	                call.methodSlot = m == null ? -1 : m.slot;
+	                call.deadline = deadline;
+	                return call;
+	            }
+	            catch(NoClassDefFoundError e) {
+	                return new InboundCallError(callId, ri, m, new RemoteException("Unparsable call", e));
+	            }
+	            catch(Exception e) {
+	                return new InboundCallError(callId, ri, m, new RemoteException("Unparsable call", e));
+	            }
+	        }
+	        else {
+	            try {
+	                return new RemoteReturn(callId, tag == TAG_THROW, readPayload(1)[0]);
+	            }
+	            catch(NoClassDefFoundError e) {
+	                return new RemoteReturn(callId, true, new RemoteException("Unparsable result", e));
+	            }
+	            catch(Exception e) {
+	                return new RemoteReturn(callId, true, new RemoteException("Unparsable result", e));
+	            }
+	        }
+	    }
+	    
+	    private Object[] readPayload(int count) throws Exception {
+	        if (error instanceof Exception) {
+	            throw (Exception) error;
+	        }
+	        else if (error != null) {
+	            throw (Error) error;
+	        }
+	        Object[] payload = new Object[count];
+	        for(int i = 0; i != count; ++i) {
+	            payload[i] = decoder.readObject();
+	        }
+	        decoder.endMessage();
+	        return payload;
+	    }
+
+	    @Override
+	    public void run() {
+	        try {
+	            channel.handleMessage(decode());
+	        }
+	        catch(Exception e) {
+	            logCritical.log("RMI message dispatch failed [" + socket + "]", e);
+	            shutdown(e);
+	        }
+	    }
+	}
+
+	/**
+	 * Messages are encoded by calling threads, using pooled encoders, 
+	 * and put into a queue. Whichever thread manages to become a writer
+	 * drains the queue, so multiple messages are coalesced into single
+	 * socket write.
+	 */
 	private class OutboundMessageStream {
 
         OutputStream tstream;
+        OutputStream bstream;
         EnvelopOutputStream estream;
         DataOutputStream dstream;
-        RmiObjectOutputStream ostream;
+        volatile RmiCodec codec;
+        /** Deadline headers and cancel messages are sent only if peer understands them */
+        volatile boolean deadlines;
+        
+        final Queue<EncoderSlot> encoders = new ConcurrentLinkedQueue<EncoderSlot>();
+        final Queue<OutboundFrame> queue = new ConcurrentLinkedQueue<OutboundFrame>();
+        final AtomicBoolean writing = new AtomicBoolean();
         
         public OutboundMessageStream(OutputStream stream) throws IOException {
             this.tstream = stream;
-            this.estream = new EnvelopOutputStream(tstream);
+            this.bstream = new BufferedOutputStream(tstream, OUTBOUND_BUFFER_SIZE);
+            this.estream = new EnvelopOutputStream(bstream);
             this.dstream = new DataOutputStream(estream);
-            this.ostream = new RmiObjectOutputStream(estream);
+            this.codec = new JavaRmiCodec(channel, name);
         }
         
         public void close() {
@@ -555,164 +1392,503 @@ public class RmiGateway {
             }
         }
 
-        public void writeHandShake(Object object) throws IOException {
-            ostream.writeObject(object);
-            ostream.reset();
-            ostream.writeObject(null); // we need this to ensure reset is processed by read side
-            ostream.flush();
-            estream.closeMessage();
+        public void setCodec(RmiCodec codec) throws IOException {
+            this.codec = codec;
+            encoders.clear();
+        }
+
+        public void setDeadlines(boolean enabled) {
+            this.deadlines = enabled;
+        }
+
+        /**
+         * Streams are switched while holding writer role,
+         * so frames written before switch are not compressed.
+         */
+        public void enableCompression(int threshold, CompressionCounters counters) throws IOException {
+            while(!writing.compareAndSet(false, true)) {
+                Thread.yield();
+            }
+            try {
+                bstream.flush();
+                // compressor has its own block buffer
+                bstream = new BlockCompression.Output(tstream, threshold, counters);
+                estream = new EnvelopOutputStream(bstream);
+                dstream = new DataOutputStream(estream);
+            }
+            finally {
+                writing.set(false);
+            }
+            drain();
+        }
+
+        public void writeHandShake(Object object, Map<String, String> options) throws IOException {
+            EncoderSlot slot = borrowEncoder();
+            boolean submitted = false;
+            try {
+                slot.encoder.encode(object);
+                slot.frame.reset();
+                slot.encoder.writeTo(slot.frame);
+                // options are ignored by legacy peers
+                slot.fstream.writeByte(HANDSHAKE_OPTIONS);
+                slot.fstream.writeShort(options.size());
+                for(String key: options.keySet()) {
+                    slot.fstream.writeUTF(key);
+                    slot.fstream.writeUTF(options.get(key));
+                }
+                submitted = true;
+                submit(slot, false, -1, RemoteCall.NO_DEADLINE);
+            }
+            finally {
+                if (!submitted) {
+                    releaseEncoder(slot);
+                }
+            }
         }
         
         public void writeMessage(RemoteCall call) throws IOException {
 //            System.out.println("[OUT:" + estream.hashCode() + "] remote call");
-            long id = call.getCallId();
-            id |= ((long)TAG_CALL) << 56;
-            dstream.writeLong(id);
+            EncoderSlot slot = borrowEncoder();
+            boolean submitted = false;
             try {
-                ostream.writeObject(call.getRemoteInstance());
-                ostream.writeObject(call.getMethod());
-                ostream.writeObject(call.getArgs());
-                ostream.reset();
-                ostream.writeObject(null);
-                ostream.flush();
-                // success
-                estream.closeMessage();
-                // writing empty trailer
-                dstream.writeLong(TRAILER_SUCCESS << 56);
-                estream.closeMessage();
+                long started = System.nanoTime();
+                try {
+                    slot.encoder.encode(call.getRemoteInstance(), call.getMethod(), call.getArgs());
+                }
+                catch(Exception e) {
+                    // nothing has been written yet
+                    throw new RecoverableSerializationException(e);
+                }
+                channel.getMetrics().method(call.getMethod()).serialize.record(System.nanoTime() - started);
+                submitted = true;
+                submitEncoded(slot, TAG_CALL, call.getCallId(), deadlines ? call.getDeadline() : RemoteCall.NO_DEADLINE);
             }
-            catch(Exception e) {
-                recover();
-                discard();
-                throw new RecoverableSerializationException(e);
+            finally {
+                if (!submitted) {
+                    releaseEncoder(slot);
+                }
             }
         }
 
         public void writeMessage(RemoteReturn result) throws IOException {
 //            System.out.println("[OUT:" + estream.hashCode() + "] remote return");
-            long id = result.getCallId();
-            if (result.isThrowing()) {
-                id |= ((long)TAG_THROW) << 56;
+            EncoderSlot slot = borrowEncoder();
+            boolean submitted = false;
+            try {
+                long started = System.nanoTime();
+                long tag = result.isThrowing() ? TAG_THROW : TAG_RETURN;
+                try {
+                    slot.encoder.encode(result.getRet());
+                }
+                catch(Exception e) {
+                    tag = TAG_THROW;
+                    try {
+                        slot.encoder.encode(new RemoteException("Unwritable result", e));
+                    }
+                    catch(Exception ee) {
+                        slot.encoder.encode(new RemoteException("Unwritable result: " + e.toString()));
+                    }
+                }
+                if (result.method != null) {
+                    channel.getMetrics().method(result.method).serialize.record(System.nanoTime() - started);
+                }
+                submitted = true;
+                submitEncoded(slot, tag, result.getCallId(), RemoteCall.NO_DEADLINE);
             }
-            else {
-                id |= ((long)TAG_RETURN) << 56;
+            finally {
+                if (!submitted) {
+                    releaseEncoder(slot);
+                }
             }
-            dstream.writeLong(id);
-            try {
-                ostream.writeObject(result.getRet());
-                ostream.reset();
-                ostream.writeObject(null);
-                ostream.flush();
-                // success
+        }
+
+        private EncoderSlot borrowEncoder() throws IOException {
+            EncoderSlot slot = encoders.poll();
+            return slot != null ? slot : new EncoderSlot(codec);
+        }
+
+        private void releaseEncoder(EncoderSlot slot) {
+            // pooled encoder should not retain caller's data
+            slot.encoder.release();
+            // encoders created before codec switch are dropped
+            if (slot.codec == codec) {
+                slot.frame.reset();
+                encoders.add(slot);
+            }
+        }
+
+        /**
+         * Cancel is a bare header, it is written only if peer supports it.
+         */
+        public void writeCancel(long callId) throws IOException {
+            if (!deadlines) {
+                return;
+            }
+            long header = callId | (TAG_CANCEL << 56);
+            byte[] body = new byte[8];
+            for(int i = 0; i != 8; ++i) {
+                body[i] = (byte) (header >>> (56 - 8 * i));
+            }
+            queue.add(new OutboundFrame(body));
+            drain();
+        }
+
+        /**
+         * Keep alive frames are bare headers. If writer role is taken, frame
+         * is left to current writer.
+         */
+        public void writeKeepAlive(long tag, long stamp) throws IOException {
+            queueKeepAlive(tag, stamp);
+            drain();
+        }
+
+        /**
+         * Frame is only queued, it would be written by current writer or by {@link #flushQueue()}.
+         */
+        public void queueKeepAlive(long tag, long stamp) {
+            byte[] body = new byte[9];
+            body[0] = (byte) tag;
+            for(int i = 0; i != 8; ++i) {
+                body[i + 1] = (byte) (stamp >>> (56 - 8 * i));
+            }
+            queue.add(new OutboundFrame(body));
+        }
+
+        /**
+         * If writer role is taken, queued frames are guaranteed to be written by current writer.
+         */
+        public boolean isWriting() {
+            return writing.get();
+        }
+
+        public void flushQueue() throws IOException {
+            drain();
+        }
+
+        private void submitEncoded(EncoderSlot slot, long tag, long callId, long deadline) throws IOException {
+            slot.frame.reset();
+            slot.fstream.writeLong(callId | (tag << 56));
+            slot.encoder.writeTo(slot.frame);
+            channel.getMetrics().messageOut(messageType(tag), slot.frame.size());
+            submit(slot, true, tag == TAG_CALL ? callId : -1, deadline);
+        }
+
+        /**
+         * Slot is owned by queued frame and returned to the pool once frame is written.
+         */
+        private void submit(EncoderSlot slot, boolean trailer, long callId, long deadline) throws IOException {
+            List<Object> binaries = slot.encoder.getBinaryPayloads();
+            if (!binaries.isEmpty()) {
+                recordBinaries(binaries);
+            }
+            queue.add(new OutboundFrame(slot, trailer, callId, deadline));
+            // frame is in queue, later messages may rely on it
+            slot.encoder.commit();
+            drain();
+        }
+
+        /**
+         * Writer role is released only if queue was observed empty,
+         * so frame cannot be left in queue without writer.
+         */
+        private void drain() throws IOException {
+            while(!queue.isEmpty() && writing.compareAndSet(false, true)) {
+                OutboundFrame frame = null;
+                try {
+                    while((frame = queue.poll()) != null) {
+                        writeFrame(frame);
+                        if (frame.slot != null) {
+                            releaseEncoder(frame.slot);
+                        }
+                    }
+                    bstream.flush();
+                }
+                catch(IOException e) {
+                    // stream is broken, pending frames would never be written
+                    if (frame != null) {
+                        dropFrame(frame, e);
+                    }
+                    while((frame = queue.poll()) != null) {
+                        dropFrame(frame, e);
+                    }
+                    throw e;
+                }
+                finally {
+                    writing.set(false);
+                }
+            }
+        }
+
+        private void writeFrame(OutboundFrame frame) throws IOException {
+            if (frame.deadline != RemoteCall.NO_DEADLINE) {
+                // remaining time is taken at the last moment, peer's clock is not comparable
+                estream.write((int) TAG_DEADLINE);
+                dstream.writeLong(frame.deadline - System.nanoTime());
+                estream.closeMessage();
+            }
+            if (frame.slot == null) {
+                estream.write(frame.body);
                 estream.closeMessage();
+                return;
+            }
+            List<Object> binaries = frame.slot.encoder.getBinaryPayloads();
+            if (!binaries.isEmpty()) {
+                writeBinaries(binaries);
+            }
+            estream.write(frame.slot.frame.array(), 0, frame.slot.frame.size());
+            estream.closeMessage();
+            if (frame.trailer) {
                 // writing empty trailer
                 dstream.writeLong(TRAILER_SUCCESS << 56);
                 estream.closeMessage();
             }
-            catch(Exception e) {
-                recover();
-                followUp(result.callId, e);
-            }            
         }
-        
-        private void followUp(long callId, Exception e) throws IOException {
-//            System.out.println("[OUT:" + estream.hashCode() + "] follow up");
-            long id = callId ;
-            id |= ((long)TRAILER_ERROR) << 56;
-            dstream.writeLong(id);
-            try {
-                ostream.writeObject(new RemoteException("Unwritable result", e));
-                ostream.reset();
-                ostream.writeObject(null);
-                ostream.flush();
-                // success
-                estream.closeMessage();
+
+        /**
+         * Caller of dropped call is notified, other frames are lost with connection.
+         */
+        private void dropFrame(OutboundFrame frame, IOException e) {
+            if (frame.slot != null) {
+                releaseEncoder(frame.slot);
+            }
+            if (frame.callId >= 0) {
+                channel.failCall(frame.callId, e);
             }
-            catch(Exception ee) {
-                recover();
-            }            
         }
 
-        private void discard() throws IOException {
-//            System.out.println("[OUT:" + estream.hashCode() + "] discard");
-            dstream.writeLong((long)TRAILER_DISCARD << 56);
-            estream.closeMessage();
+        private void recordBinaries(List<Object> binaries) {
+            long total = 0;
+            for(int i = 0; i != binaries.size(); ++i) {
+                Object data = binaries.get(i);
+                total += data instanceof byte[] ? ((byte[]) data).length : ((ByteBuffer) data).remaining();
+            }
+            channel.getMetrics().messageOut(RmiMetrics.MessageType.BINARY, total);
         }
 
-        private void recover() throws IOException {
+        private void writeBinaries(List<Object> binaries) throws IOException {
+            estream.write((int) TAG_BINARY);
+            for(Object data: binaries) {
+                if (data instanceof byte[]) {
+                    byte[] bytes = (byte[]) data;
+                    estream.writeBinary(bytes, 0, bytes.length);
+                }
+                else {
+                    estream.writeBinary((ByteBuffer) data);
+                }
+            }
             estream.closeMessage();
-            ostream = new RmiObjectOutputStream(estream);            
-        }	    
+        }
+	}
+
+	private static RmiMetrics.MessageType messageType(long tag) {
+		return tag == TAG_CALL ? RmiMetrics.MessageType.CALL : tag == TAG_RETURN ? RmiMetrics.MessageType.RETURN : RmiMetrics.MessageType.THROW;
+	}
+
+	private static class EncoderSlot {
+	    
+	    final RmiCodec codec;
+	    final RmiCodec.Encoder encoder;
+	    final MessageBuffer frame = new MessageBuffer();
+	    final DataOutputStream fstream = new DataOutputStream(frame);
+	    
+	    public EncoderSlot(RmiCodec codec) throws IOException {
+	        this.codec = codec;
+	        this.encoder = codec.createEncoder();
+	    }
 	}
 	
-	private class RmiObjectInputStream extends ObjectInputStream {
-		
-		public RmiObjectInputStream(InputStream in) throws IOException {
-			super(in);
-			enableResolveObject(true);
-		}
-		
-		@Override
-        protected void readStreamHeader() throws IOException, StreamCorruptedException {
-		    // suppress stream header,
-		    // so stream can be reused until failure
-        }
+	private static class OutboundFrame {
+	    
+	    /** Encoded message with its out of band payloads, <code>null</code> for bare header frames */
+	    final EncoderSlot slot;
+	    final byte[] body;
+	    final boolean trailer;
+	    /** ID of outbound call, -1 for other messages */
+	    final long callId;
+	    /** Deadline of the call, {@link RemoteCall#NO_DEADLINE} if frame has no deadline header */
+	    final long deadline;
+	    
+	    public OutboundFrame(EncoderSlot slot, boolean trailer, long callId, long deadline) {
+	        this.slot = slot;
+	        this.body = null;
+	        this.trailer = trailer;
+	        this.callId = callId;
+	        this.deadline = deadline;
+	    }
 
-        @Override
-		protected Object resolveObject(Object obj) throws IOException {
-			Object r = channel.streamResolveObject(obj);
-			return r;
+	    public OutboundFrame(byte[] body) {
+	        this.slot = null;
+	        this.body = body;
+	        this.trailer = false;
+	        this.callId = -1;
+	        this.deadline = RemoteCall.NO_DEADLINE;
+	    }
+	}
+	
+	/**
+	 * Additional stream of the session carrying bulk calls and their results.
+	 * Each stripe has own codec instance, so encoding state of streams is independent.
+	 */
+	private class Stripe extends Thread {
+
+		final DuplexStream socket;
+		final OutboundMessageStream out;
+		final InboundMessageStream in;
+		/** Outbound calls sent over this stripe, waiting for results */
+		final Set<Long> pendingCalls = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+		volatile boolean closed;
+
+		public Stripe(DuplexStream socket) throws IOException {
+			this.socket = socket;
+			RmiCodec codec = createCodec(negotiatedCodec, negotiatedBinaryFrames ? binaryThreshold : -1);
+			out = new OutboundMessageStream(socket.getOutput());
+			out.setCodec(codec);
+			out.setDeadlines(negotiatedDeadlines);
+			in = new InboundMessageStream(socket.getInput(), codec);
+			if (negotiatedCompression) {
+				out.enableCompression(compressionThreshold, compressionCounters);
+				in.enableCompression(compressionCounters);
+			}
+			setName("RMI-Stripe-Receiver: " + socket);
+			setDaemon(true);
 		}
 
-		@Override
-		public String toString() {
-			return "RmiObjectInputStream[" + name + "]";
+		/**
+		 * @return <code>false</code> if stripe is closed and call should be sent over primary stream
+		 */
+		public boolean writeCall(RemoteCall call) throws IOException {
+			Long id = call.getCallId();
+			pendingCalls.add(id);
+			if (closed) {
+				// if id is already gone, call has been failed by dropStripe()
+				return !pendingCalls.remove(id);
+			}
+			try {
+				out.writeMessage(call);
+				return true;
+			}
+			catch(IOException e) {
+				dropStripe(this, e);
+				if (pendingCalls.remove(id)) {
+					throw e;
+				}
+				return true;
+			}
+			catch(RuntimeException e) {
+				pendingCalls.remove(id);
+				throw e;
+			}
 		}
-	}
 
-	private class RmiObjectOutputStream extends ObjectOutputStream {
+		/**
+		 * @return <code>false</code> if stripe is closed
+		 */
+		public boolean writeCancel(long callId) {
+			if (closed) {
+				return false;
+			}
+			try {
+				out.writeCancel(callId);
+			}
+			catch(IOException e) {
+				// pending calls are failed with lost stripe
+				dropStripe(this, e);
+			}
+			return true;
+		}
 
-		public RmiObjectOutputStream(OutputStream in) throws IOException {
-			super(in);
-			enableReplaceObject(true);
+		public void writeReturn(RemoteReturn result) {
+			if (closed) {
+				// caller has been notified about lost stripe
+				return;
+			}
+			try {
+				out.writeMessage(result);
+			}
+			catch(IOException e) {
+				dropStripe(this, e);
+			}
 		}
 
 		@Override
-		protected Object replaceObject(Object obj) throws IOException {
-			Object r = channel.streamReplaceObject(obj);
-			return r;
+		public void run() {
+			try {
+				while(!closed && !terminated) {
+					InboundFrame frame = in.readFrame();
+					if (frame == null) {
+						break;
+					}
+					if (frame.tag == TAG_CALL) {
+						stripeReturns.put(frame.callId, this);
+					}
+					else {
+						pendingCalls.remove(frame.callId);
+					}
+					dispatchFrame(frame);
+				}
+				dropStripe(this, null);
+			}
+			catch(Exception e) {
+				dropStripe(this, e);
+			}
 		}
 
-        @Override
-        protected void writeStreamHeader() throws IOException {
-            // suppress stream header,
-            // so stream can be reused until failure
-        }
+		public void close() {
+			closed = true;
+			out.close();
+			in.close();
+			try {
+				socket.close();
+			}
+			catch(IOException e) {
+				// ignore
+			}
+		}
 	}
-
+	
 	private class MessageOut implements RmiChannel1.OutputChannel {
 		public void send(RemoteMessage message) throws IOException {
-			try {
-				synchronized(out) {
-				    if (message instanceof RemoteCall) {
-				        out.writeMessage((RemoteCall)message);
-				    }
-				    else {
-				        out.writeMessage((RemoteReturn)message);
-				    }
+			if (message instanceof RemoteCall) {
+				Stripe stripe = selectStripe((RemoteCall) message);
+				if (stripe != null && stripe.writeCall((RemoteCall) message)) {
+					return;
 				}
 			}
-			catch (NullPointerException e) {
-				if (out == null) {
-					throw new IOException("RMI gatway [" + name + "] channel is not connected", RmiGateway.this.terminatedCause);
+			else if (message instanceof RemoteCancel) {
+				// cancel follows the call, so it would not overtake it
+				for(Stripe stripe: stripes) {
+					if (stripe.pendingCalls.contains(message.getCallId()) && stripe.writeCancel(message.getCallId())) {
+						return;
+					}
+				}
+			}
+			else if (!stripeReturns.isEmpty()) {
+				Stripe stripe = stripeReturns.remove(message.getCallId());
+				if (stripe != null) {
+					stripe.writeReturn((RemoteReturn) message);
+					return;
 				}
-				else throw e;
+			}
+			// out may be reset by concurrent disconnect
+			OutboundMessageStream out = RmiGateway.this.out;
+			if (out == null) {
+				throw new IOException("RMI gatway [" + name + "] channel is not connected", RmiGateway.this.terminatedCause);
+			}
+			try {
+			    if (message instanceof RemoteCall) {
+			        out.writeMessage((RemoteCall)message);
+			    }
+			    else if (message instanceof RemoteCancel) {
+			        out.writeCancel(message.getCallId());
+			    }
+			    else {
+			        out.writeMessage((RemoteReturn)message);
+			    }
 			}
 			catch (IOException e) {
 				DuplexStream socket = RmiGateway.this.socket;
-				OutputStream out = RmiGateway.this.out.tstream;			
 				disconnect();
-				streamErrorHandler.streamError(socket, out, e);
+				streamErrorHandler.streamError(socket, out.tstream, e);
 				throw e;
 			}
 		}
@@ -728,7 +1904,7 @@ public class RmiGateway {
 
 	private class RemoteExecutionService extends AbstractExecutorService implements AdvancedExecutor {
 		
-		private final ExecutorService threadPool = executor;
+		private final ExecutorService threadPool = callerPool;
 		private final AdvancedExecutorAdapter adapter = new AdvancedExecutorAdapter(threadPool);
 		
 		@Override
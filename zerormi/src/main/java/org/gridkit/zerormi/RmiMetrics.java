@@ -0,0 +1,239 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call latency and traffic statistics for single connection.
+ * <p>
+ * Recording path does not allocate (except first call of each method),
+ * so metrics are always enabled.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class RmiMetrics {
+
+	public enum MessageType {
+		CALL,
+		RETURN,
+		THROW,
+		/** Out of band binary payloads */
+		BINARY
+	}
+
+	private static final int TYPES = MessageType.values().length;
+
+	final AtomicLongArray messagesIn = new AtomicLongArray(TYPES);
+	final AtomicLongArray messagesOut = new AtomicLongArray(TYPES);
+	final AtomicLongArray bytesIn = new AtomicLongArray(TYPES);
+	final AtomicLongArray bytesOut = new AtomicLongArray(TYPES);
+	final AtomicInteger outboundInFlight = new AtomicInteger();
+	final AtomicInteger inboundInFlight = new AtomicInteger();
+	final AtomicInteger inboundExecuting = new AtomicInteger();
+	final AtomicLong classCacheHits = new AtomicLong();
+	final AtomicLong classCacheMisses = new AtomicLong();
+	final AtomicLong outboundTimeouts = new AtomicLong();
+	final AtomicLong outboundCancels = new AtomicLong();
+	final AtomicLong inboundCancels = new AtomicLong();
+	final AtomicLong inboundExpired = new AtomicLong();
+	final LatencyHistogram keepAliveRtt = new LatencyHistogram();
+	final AtomicLong lastKeepAliveRtt = new AtomicLong(-1);
+
+	private final ConcurrentMap<RemoteMethodSignature, MethodMetrics> methods = new ConcurrentHashMap<RemoteMethodSignature, MethodMetrics>();
+
+	MethodMetrics method(RemoteMethodSignature signature) {
+		MethodMetrics mm = methods.get(signature);
+		if (mm == null) {
+			mm = new MethodMetrics(signature);
+			MethodMetrics prev = methods.putIfAbsent(signature, mm);
+			if (prev != null) {
+				mm = prev;
+			}
+		}
+		return mm;
+	}
+
+	void messageIn(MessageType type, long bytes) {
+		messagesIn.incrementAndGet(type.ordinal());
+		bytesIn.addAndGet(type.ordinal(), bytes);
+	}
+
+	void messageOut(MessageType type, long bytes) {
+		messagesOut.incrementAndGet(type.ordinal());
+		bytesOut.addAndGet(type.ordinal(), bytes);
+	}
+
+	void keepAliveReceived(long rtt) {
+		keepAliveRtt.record(rtt);
+		lastKeepAliveRtt.set(rtt);
+	}
+
+	public long getMessagesIn(MessageType type) {
+		return messagesIn.get(type.ordinal());
+	}
+
+	public long getMessagesOut(MessageType type) {
+		return messagesOut.get(type.ordinal());
+	}
+
+	/** Wire bytes (before compression) of inbound messages of given type */
+	public long getBytesIn(MessageType type) {
+		return bytesIn.get(type.ordinal());
+	}
+
+	public long getBytesOut(MessageType type) {
+		return bytesOut.get(type.ordinal());
+	}
+
+	/** Calls made by this side and waiting for result */
+	public int getOutboundInFlight() {
+		return outboundInFlight.get();
+	}
+
+	/** Calls received from remote side, either queued or executing */
+	public int getInboundInFlight() {
+		return inboundInFlight.get();
+	}
+
+	public int getInboundExecuting() {
+		return inboundExecuting.get();
+	}
+
+	/** Class lookups served from channel's class cache */
+	public long getClassCacheHits() {
+		return classCacheHits.get();
+	}
+
+	/** Class lookups delegated to class loader */
+	public long getClassCacheMisses() {
+		return classCacheMisses.get();
+	}
+
+	/** Outbound calls failed by caller side once their deadline has passed */
+	public long getOutboundTimeouts() {
+		return outboundTimeouts.get();
+	}
+
+	/** Cancel requests sent for outbound calls (cancelled, interrupted or timed out) */
+	public long getOutboundCancels() {
+		return outboundCancels.get();
+	}
+
+	/** Cancel requests received for calls which were still queued or executing */
+	public long getInboundCancels() {
+		return inboundCancels.get();
+	}
+
+	/** Inbound calls dropped before dispatch, because their deadline has passed */
+	public long getInboundExpired() {
+		return inboundExpired.get();
+	}
+
+	/** Round trip time of keep alive probes sent by this side */
+	public LatencyHistogram getKeepAliveRtt() {
+		return keepAliveRtt;
+	}
+
+	/** Round trip time of latest keep alive probe or -1 if none was answered yet */
+	public long getLastKeepAliveRttNanos() {
+		return lastKeepAliveRtt.get();
+	}
+
+	public Collection<MethodMetrics> getMethods() {
+		return new ArrayList<MethodMetrics>(methods.values());
+	}
+
+	@Override
+	public String toString() {
+		return "RmiMetrics[in-flight: " + getOutboundInFlight() + "/" + getInboundInFlight() + ", methods: " + methods.size() + "]";
+	}
+
+	/**
+	 * Statistics of single remote method. Outbound figures are collected on
+	 * caller side, inbound figures are collected on side executing the method.
+	 */
+	public static class MethodMetrics {
+
+		private final RemoteMethodSignature signature;
+
+		final AtomicLong outboundCalls = new AtomicLong();
+		final AtomicLong outboundErrors = new AtomicLong();
+		final AtomicLong inboundCalls = new AtomicLong();
+		final AtomicLong inboundErrors = new AtomicLong();
+
+		final LatencyHistogram endToEnd = new LatencyHistogram();
+		final LatencyHistogram serialize = new LatencyHistogram();
+		final LatencyHistogram queueWait = new LatencyHistogram();
+		final LatencyHistogram execute = new LatencyHistogram();
+
+		MethodMetrics(RemoteMethodSignature signature) {
+			this.signature = signature;
+		}
+
+		public RemoteMethodSignature getSignature() {
+			return signature;
+		}
+
+		public long getOutboundCalls() {
+			return outboundCalls.get();
+		}
+
+		/** Outbound calls completed with exception, including transport errors */
+		public long getOutboundErrors() {
+			return outboundErrors.get();
+		}
+
+		public long getInboundCalls() {
+			return inboundCalls.get();
+		}
+
+		public long getInboundErrors() {
+			return inboundErrors.get();
+		}
+
+		/** Time from call initiation to result delivery, measured by caller */
+		public LatencyHistogram getEndToEnd() {
+			return endToEnd;
+		}
+
+		/** Encoding time of call arguments (caller side) and results (executing side) */
+		public LatencyHistogram getSerialize() {
+			return serialize;
+		}
+
+		/** Time inbound call has spent in dispatcher queue */
+		public LatencyHistogram getQueueWait() {
+			return queueWait;
+		}
+
+		/** Execution time of inbound calls */
+		public LatencyHistogram getExecute() {
+			return execute;
+		}
+
+		@Override
+		public String toString() {
+			return signature + " end-to-end[" + endToEnd + "] execute[" + execute + "]";
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.util.List;
+
+/**
+ * {@link ObjectInputStream} passing every read object
+ * through {@link RmiChannel#streamResolveObject(Object)}.
+ * 
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class RmiObjectInputStream extends ObjectInputStream {
+
+	private final RmiChannel channel;
+	private final String name;
+	private final List<byte[]> binaries;
+	
+	public RmiObjectInputStream(InputStream in, RmiChannel channel, String name) throws IOException {
+		this(in, channel, name, null);
+	}
+
+	/**
+	 * @param binaries out of band payloads received with the message
+	 */
+	public RmiObjectInputStream(InputStream in, RmiChannel channel, String name, List<byte[]> binaries) throws IOException {
+		super(in);
+		this.channel = channel;
+		this.name = name;
+		this.binaries = binaries;
+		enableResolveObject(true);
+	}
+	
+	@Override
+	protected void readStreamHeader() throws IOException, StreamCorruptedException {
+		// suppress stream header,
+		// so stream can be reused until failure
+	}
+
+	/**
+	 * Resolution goes through channel's class cache, otherwise class loader
+	 * would be consulted for each descriptor in every message.
+	 */
+	@Override
+	protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+		return channel.classForName(desc.getName());
+	}
+
+	@Override
+	protected Object resolveObject(Object obj) throws IOException {
+		if (obj instanceof BinaryPayloads.BinaryRef) {
+			return BinaryPayloads.resolve((BinaryPayloads.BinaryRef) obj, binaries);
+		}
+		Object r = channel.streamResolveObject(obj);
+		return r;
+	}
+
+	@Override
+	public String toString() {
+		return "RmiObjectInputStream[" + name + "]";
+	}
+}
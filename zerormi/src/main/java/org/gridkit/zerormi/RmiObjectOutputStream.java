@@ -0,0 +1,63 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * {@link ObjectOutputStream} passing every written object
+ * through {@link RmiChannel#streamReplaceObject(Object)}.
+ * Large binary values are optionally replaced by references
+ * to out of band {@link BinaryPayloads}.
+ * 
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class RmiObjectOutputStream extends ObjectOutputStream {
+
+	private final RmiChannel channel;
+	private final BinaryPayloads binaries;
+	
+	public RmiObjectOutputStream(OutputStream out, RmiChannel channel) throws IOException {
+		this(out, channel, null);
+	}
+
+	public RmiObjectOutputStream(OutputStream out, RmiChannel channel, BinaryPayloads binaries) throws IOException {
+		super(out);
+		this.channel = channel;
+		this.binaries = binaries;
+		enableReplaceObject(true);
+	}
+
+	@Override
+	protected Object replaceObject(Object obj) throws IOException {
+		if (binaries != null) {
+			Object ref = binaries.replace(obj);
+			if (ref != null) {
+				return ref;
+			}
+		}
+		Object r = channel.streamReplaceObject(obj);
+		return r;
+	}
+
+	@Override
+	protected void writeStreamHeader() throws IOException {
+		// suppress stream header,
+		// so stream can be reused until failure
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Attaches to ring file created by master, see {@link SharedMemoryStream}.
+ * Ring could be attached only once, so subsequent connects (reconnect after
+ * transport failure, additional stripes) are delegated to fallback connector.
+ * Without fallback connector could be used only once.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class SharedMemoryConnector implements DuplexStreamConnector, Serializable {
+
+	private static final long serialVersionUID = 20130715L;
+
+	private final String path;
+
+	private final DuplexStreamConnector fallback;
+
+	private transient boolean ringUsed;
+
+	public SharedMemoryConnector(String path) {
+		this(path, null);
+	}
+
+	public SharedMemoryConnector(String path, DuplexStreamConnector fallback) {
+		this.path = path;
+		this.fallback = fallback;
+	}
+
+	@Override
+	public synchronized DuplexStream connect() throws IOException {
+		if (ringUsed && fallback != null) {
+			return fallback.connect();
+		}
+		ringUsed = true;
+		return SharedMemoryStream.attach(new File(path));
+	}
+
+	@Override
+	public String toString() {
+		return fallback == null ? "shmem:" + path : "shmem:" + path + "|" + fallback;
+	}
+}
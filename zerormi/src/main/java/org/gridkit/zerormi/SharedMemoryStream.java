@@ -0,0 +1,509 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import sun.misc.Unsafe;
+
+/**
+ * {@link DuplexStream} between two processes on same host, backed by memory mapped file.
+ * <p>
+ * File holds two single producer/single consumer ring buffers, one per direction.
+ * Side waiting for data (or space) spins for a short while, then yields and then parks
+ * for gradually increasing periods. There is no way to wake a thread in another process
+ * from Java, so parked side just polls ring with bounded latency.
+ * <p>
+ * Ring positions are published with ordered stores and read with volatile loads
+ * ({@link Unsafe} on mapped memory), so data written to ring is visible to the other
+ * side once it observes new position on any CPU architecture. Streams are not
+ * available if {@link Unsafe} cannot be used.
+ * <p>
+ * Master side creates file using {@link #create(int)}, slave side attaches to it using
+ * {@link SharedMemoryConnector}. File is readable only by its owner and deleted by
+ * master once slave has attached. Mapping is released on close.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class SharedMemoryStream implements DuplexStream {
+
+	/** Capacity of each ring, rounded up to power of 2 */
+	public static final String PROP_RING_SIZE = "gridkit.zerormi.shmem.ring-size";
+
+	private static final int MAGIC = 0x5A524E47;
+
+	private static final int OFFS_MAGIC = 0;
+	private static final int OFFS_CAPACITY = 4;
+	private static final int OFFS_MASTER_STATE = 8;
+	private static final int OFFS_SLAVE_STATE = 12;
+	/** Ring control blocks, head and tail are kept on different cache lines */
+	private static final int OFFS_RING0 = 128;
+	private static final int OFFS_RING1 = 256;
+	private static final int TAIL_OFFSET = 64;
+	private static final int DATA_OFFSET = 4096;
+
+	private static final int STATE_ATTACHED = 1;
+	private static final int STATE_CLOSED = 2;
+
+	private static final int SPIN_LIMIT = 2000;
+	private static final int YIELD_LIMIT = SPIN_LIMIT + 200;
+	private static final int SHORT_PARK_LIMIT = YIELD_LIMIT + 2000;
+	private static final long SHORT_PARK = TimeUnit.MICROSECONDS.toNanos(50);
+	private static final long LONG_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+	/** Park period grows by {@link #LONG_PARK} each this many idle parks */
+	private static final int PARK_STEP = 100;
+	private static final long MAX_PARK = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final int IDLE_LIMIT = SHORT_PARK_LIMIT + (int) (PARK_STEP * MAX_PARK / LONG_PARK);
+
+	private static final Unsafe UNSAFE;
+	private static final long ADDRESS_OFFSET;
+
+	static {
+		Unsafe unsafe = null;
+		long offset = -1;
+		try {
+			Field f = Unsafe.class.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			unsafe = (Unsafe) f.get(null);
+			offset = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+		}
+		catch(Throwable e) {
+			unsafe = null;
+		}
+		UNSAFE = unsafe;
+		ADDRESS_OFFSET = offset;
+	}
+
+	/**
+	 * Creates new ring file in temporary directory (<code>/dev/shm</code> if available).
+	 */
+	public static SharedMemoryStream create(int capacity) throws IOException {
+		checkAvailable();
+		File dir = new File("/dev/shm");
+		File file = createPrivateFile(dir.isDirectory() && dir.canWrite() ? dir : new File(System.getProperty("java.io.tmpdir")));
+		file.deleteOnExit();
+		int cap = Integer.highestOneBit(Math.max(capacity, 4096) - 1) << 1;
+		MappedByteBuffer buffer = map(file, DATA_OFFSET + 2L * cap);
+		long address = addressOf(buffer);
+		UNSAFE.putInt(address + OFFS_CAPACITY, cap);
+		UNSAFE.putInt(address + OFFS_MASTER_STATE, STATE_ATTACHED);
+		UNSAFE.putInt(address + OFFS_SLAVE_STATE, 0);
+		UNSAFE.putIntVolatile(null, address + OFFS_MAGIC, MAGIC);
+		return new SharedMemoryStream(file, buffer, true);
+	}
+
+	private static void checkAvailable() throws IOException {
+		if (UNSAFE == null) {
+			throw new IOException("Shared memory streams require sun.misc.Unsafe");
+		}
+	}
+
+	/**
+	 * Ring file is created with owner only permissions (using NIO.2 if available),
+	 * so other users could not read or modify the traffic.
+	 */
+	private static File createPrivateFile(File dir) throws IOException {
+		try {
+			Class<?> perms = Class.forName("java.nio.file.attribute.PosixFilePermissions");
+			Class<?> attrClass = Class.forName("java.nio.file.attribute.FileAttribute");
+			Class<?> pathClass = Class.forName("java.nio.file.Path");
+			Object ownerOnly = perms.getMethod("fromString", String.class).invoke(null, "rw-------");
+			Object attrs = Array.newInstance(attrClass, 1);
+			Array.set(attrs, 0, perms.getMethod("asFileAttribute", Set.class).invoke(null, ownerOnly));
+			Method createTempFile = Class.forName("java.nio.file.Files").getMethod("createTempFile", pathClass, String.class, String.class, attrs.getClass());
+			Object path = createTempFile.invoke(null, File.class.getMethod("toPath").invoke(dir), "zerormi-", ".ring", attrs);
+			return (File) pathClass.getMethod("toFile").invoke(path);
+		}
+		catch(Exception e) {
+			// no NIO.2 or no POSIX permissions
+		}
+		File file = File.createTempFile("zerormi-", ".ring", dir);
+		file.setReadable(false, false);
+		file.setWritable(false, false);
+		if (!file.setReadable(true, true) || !file.setWritable(true, true)) {
+			file.delete();
+			throw new IOException("Cannot restrict access to " + file);
+		}
+		return file;
+	}
+
+	/**
+	 * @return default ring capacity, see {@link #PROP_RING_SIZE}
+	 */
+	public static int getDefaultRingSize() {
+		return Integer.getInteger(PROP_RING_SIZE, 1 << 20);
+	}
+
+	static SharedMemoryStream attach(File file) throws IOException {
+		checkAvailable();
+		if (!file.isFile()) {
+			throw new IOException("Ring file is not found: " + file);
+		}
+		MappedByteBuffer buffer = map(file, file.length());
+		long address = addressOf(buffer);
+		if (UNSAFE.getIntVolatile(null, address + OFFS_MAGIC) != MAGIC) {
+			unmap(buffer);
+			throw new IOException("Not a ring file: " + file);
+		}
+		if (UNSAFE.getIntVolatile(null, address + OFFS_SLAVE_STATE) != 0) {
+			unmap(buffer);
+			throw new IOException("Ring is already used: " + file);
+		}
+		UNSAFE.putIntVolatile(null, address + OFFS_SLAVE_STATE, STATE_ATTACHED);
+		return new SharedMemoryStream(file, buffer, false);
+	}
+
+	private static long addressOf(ByteBuffer buffer) {
+		return UNSAFE.getLong(buffer, ADDRESS_OFFSET);
+	}
+
+	/**
+	 * Releases mapping without waiting for GC, buffer should not be accessed afterwards.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			// Java 9+
+			Method invokeCleaner = Unsafe.class.getMethod("invokeCleaner", ByteBuffer.class);
+			invokeCleaner.invoke(UNSAFE, buffer);
+			return;
+		}
+		catch(Exception e) {
+			// try Java 8 way
+		}
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		}
+		catch(Exception e) {
+			// mapping would be released by GC
+		}
+	}
+
+	private static MappedByteBuffer map(File file, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < size) {
+				raf.setLength(size);
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+			// both sides are on same host
+			buffer.order(ByteOrder.nativeOrder());
+			return buffer;
+		}
+		finally {
+			// mapping stays valid
+			raf.close();
+		}
+	}
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final long address;
+	private final boolean master;
+	private final RingInput input;
+	private final RingOutput output;
+	private volatile boolean closed;
+	private boolean fileDeleted;
+
+	private SharedMemoryStream(File file, MappedByteBuffer buffer, boolean master) {
+		this.file = file;
+		this.buffer = buffer;
+		this.address = addressOf(buffer);
+		this.master = master;
+		int cap = UNSAFE.getIntVolatile(null, address + OFFS_CAPACITY);
+		this.input = new RingInput(master ? OFFS_RING1 : OFFS_RING0, master ? DATA_OFFSET + cap : DATA_OFFSET, cap);
+		this.output = new RingOutput(master ? OFFS_RING0 : OFFS_RING1, master ? DATA_OFFSET : DATA_OFFSET + cap, cap);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public InputStream getInput() throws IOException {
+		return input;
+	}
+
+	@Override
+	public OutputStream getOutput() throws IOException {
+		return output;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized(this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			UNSAFE.putIntVolatile(null, address + (master ? OFFS_MASTER_STATE : OFFS_SLAVE_STATE), STATE_CLOSED);
+			deleteFile();
+		}
+		// reader and writer leave their wait loops once they observe closed flag,
+		// memory is not accessed after that
+		synchronized(input) {
+			synchronized(output) {
+				unmap(buffer);
+			}
+		}
+	}
+
+	private int peerState() {
+		return UNSAFE.getIntVolatile(null, address + (master ? OFFS_SLAVE_STATE : OFFS_MASTER_STATE));
+	}
+
+	private long getLongVolatile(int offset) {
+		return UNSAFE.getLongVolatile(null, address + offset);
+	}
+
+	/**
+	 * Ordered store, preceding writes to ring are visible before new value.
+	 */
+	private void putLongOrdered(int offset, long value) {
+		UNSAFE.putOrderedLong(null, address + offset, value);
+	}
+
+	private synchronized void deleteFile() {
+		if (master && !fileDeleted) {
+			// mapping survives deletion on POSIX, on Windows file would be deleted on exit
+			fileDeleted = file.delete();
+		}
+	}
+
+	/**
+	 * @return next iteration number
+	 */
+	private static int backoff(int n) {
+		if (n < SPIN_LIMIT) {
+			// spin
+		}
+		else if (n < YIELD_LIMIT) {
+			Thread.yield();
+		}
+		else if (n < SHORT_PARK_LIMIT) {
+			LockSupport.parkNanos(SHORT_PARK);
+		}
+		else {
+			// idle peer, latency is traded for CPU
+			LockSupport.parkNanos(Math.min(MAX_PARK, LONG_PARK * (1 + (n - SHORT_PARK_LIMIT) / PARK_STEP)));
+		}
+		return n < IDLE_LIMIT ? n + 1 : n;
+	}
+
+	@Override
+	public String toString() {
+		return "shmem:" + file.getPath();
+	}
+
+	private class RingInput extends InputStream {
+
+		private final int headOffset;
+		private final int tailOffset;
+		private final int mask;
+		private final ByteBuffer data;
+		private long tail;
+		/** Last observed head */
+		private long head;
+
+		RingInput(int ctrl, int dataOffset, int capacity) {
+			this.headOffset = ctrl;
+			this.tailOffset = ctrl + TAIL_OFFSET;
+			this.mask = capacity - 1;
+			this.data = slice(dataOffset, capacity);
+			this.tail = getLongVolatile(tailOffset);
+		}
+
+		@Override
+		public synchronized int read() throws IOException {
+			if (!awaitData()) {
+				return -1;
+			}
+			int b = data.get((int) (tail & mask)) & 0xFF;
+			publishTail(tail + 1);
+			return b;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!awaitData()) {
+				return -1;
+			}
+			int idx = (int) (tail & mask);
+			int n = (int) Math.min(Math.min(len, head - tail), mask + 1 - idx);
+			data.position(idx);
+			data.get(b, off, n);
+			publishTail(tail + n);
+			return n;
+		}
+
+		@Override
+		public synchronized int available() throws IOException {
+			if (closed) {
+				return 0;
+			}
+			head = readHead();
+			return (int) (head - tail);
+		}
+
+		@Override
+		public void close() throws IOException {
+			SharedMemoryStream.this.close();
+		}
+
+		private boolean awaitData() throws IOException {
+			if (closed) {
+				throw new EOFException("Stream closed");
+			}
+			if (tail < head) {
+				return true;
+			}
+			int n = 0;
+			while(true) {
+				head = readHead();
+				if (tail < head) {
+					if (master && !fileDeleted) {
+						// slave has attached
+						deleteFile();
+					}
+					return true;
+				}
+				if (closed) {
+					throw new EOFException("Stream closed");
+				}
+				if (peerState() == STATE_CLOSED) {
+					// data written before close should be read
+					head = readHead();
+					return tail < head;
+				}
+				n = backoff(n);
+			}
+		}
+
+		private long readHead() {
+			return getLongVolatile(headOffset);
+		}
+
+		private void publishTail(long t) {
+			tail = t;
+			putLongOrdered(tailOffset, t);
+		}
+	}
+
+	private class RingOutput extends OutputStream {
+
+		private final int headOffset;
+		private final int tailOffset;
+		private final int capacity;
+		private final int mask;
+		private final ByteBuffer data;
+		private long head;
+		/** Last observed tail */
+		private long tail;
+
+		RingOutput(int ctrl, int dataOffset, int capacity) {
+			this.headOffset = ctrl;
+			this.tailOffset = ctrl + TAIL_OFFSET;
+			this.capacity = capacity;
+			this.mask = capacity - 1;
+			this.data = slice(dataOffset, capacity);
+			this.head = getLongVolatile(headOffset);
+		}
+
+		@Override
+		public synchronized void write(int b) throws IOException {
+			awaitSpace();
+			data.put((int) (head & mask), (byte) b);
+			publishHead(head + 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			while(len > 0) {
+				int free = awaitSpace();
+				int idx = (int) (head & mask);
+				int n = Math.min(Math.min(len, free), capacity - idx);
+				data.position(idx);
+				data.put(b, off, n);
+				publishHead(head + n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			SharedMemoryStream.this.close();
+		}
+
+		private int awaitSpace() throws IOException {
+			int n = 0;
+			while(true) {
+				if (closed) {
+					throw new IOException("Pipe is closed by writer");
+				}
+				if (peerState() == STATE_CLOSED) {
+					throw new IOException("Pipe is closed by reader");
+				}
+				int free = (int) (capacity - (head - tail));
+				if (free > 0) {
+					return free;
+				}
+				n = backoff(n);
+				tail = getLongVolatile(tailOffset);
+			}
+		}
+
+		private void publishHead(long h) {
+			head = h;
+			putLongOrdered(headOffset, h);
+		}
+	}
+
+	private ByteBuffer slice(int offset, int size) {
+		ByteBuffer bb = buffer.duplicate();
+		bb.position(offset);
+		bb.limit(offset + size);
+		return bb.slice();
+	}
+}
@@ -48,7 +48,7 @@ public class SmartRmiMarshaler implements RmiMarshaler {
 	@Override
 	@SuppressWarnings("rawtypes")
 	public Object writeReplace(Object obj) throws IOException {
-		if (obj instanceof Serializable && !Proxy.isProxyClass(obj.getClass())) {
+		if (obj instanceof Serializable && !Proxy.isProxyClass(obj.getClass()) && !(obj instanceof GeneratedStub)) {
 			return obj; // no marshaling
 		}
 		else if (isEligbleForExport(obj)){
@@ -14,12 +14,20 @@ public class LegacySpore implements SlaveSpore {
 	
 	private final String uid;
 	
+	/** Number of streams per session, older spores have none */
+	private final int stripes;
+	
 	public static String uidOf(SlaveSpore spore) {
 		return ((LegacySpore)spore).getUID();
 	}
 	
 	public LegacySpore(String uid) {
+		this(uid, 1);
+	}
+	
+	public LegacySpore(String uid, int stripes) {
 		this.uid = uid;
+		this.stripes = stripes;
 	}
 	
 	public String getUID() {
@@ -29,6 +37,7 @@ public class LegacySpore implements SlaveSpore {
 	@Override
 	public void start(DuplexStreamConnector masterConnector) {
 		RemotingEndPoint endpoint = new RemotingEndPoint(uid, masterConnector);
+		endpoint.setStripes(stripes);
 		endpoint.enableHeartbeatDeatchWatch();
 		endpoint.run();
 	}
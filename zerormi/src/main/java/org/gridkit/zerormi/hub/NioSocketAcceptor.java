@@ -0,0 +1,245 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi.hub;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Socket server based on NIO selectors. Unlike {@link SimpleSocketAcceptor}
+ * it does not require a thread per connection. Small pool of selector threads
+ * reads from all connections and pushes data to their consumers
+ * (see {@link NioSocketStream}).
+ * <p>
+ * Number of selector threads is controlled by <code>gridkit.zerormi.nio.selectors</code>
+ * property (2 by default). First selector thread is also accepting connections.
+ * 
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class NioSocketAcceptor {
+
+	public static final String PROP_SELECTORS = "gridkit.zerormi.nio.selectors";
+
+	private MasterHub hub;
+	private ServerSocketChannel socket;
+	private SelectorLoop[] loops;
+	private AtomicInteger nextLoop = new AtomicInteger();
+	/** Handshake is blocking, so it should not be done by selector thread */
+	private ExecutorService dispatcher;
+	private volatile boolean closed;
+
+	public NioSocketAcceptor() {
+	}
+
+	public void bind(ServerSocketChannel socket, MasterHub hub) {
+		this.socket = socket;
+		this.hub = hub;
+	}
+
+	public void start() throws IOException {
+		int n = Math.max(1, Integer.getInteger(PROP_SELECTORS, 2));
+		String name = String.valueOf(socket.socket().getLocalSocketAddress());
+		socket.configureBlocking(false);
+		dispatcher = Executors.newCachedThreadPool(new DaemonFactory("NIO-Dispatcher [" + name + "]"));
+		loops = new SelectorLoop[n];
+		for(int i = 0; i != n; ++i) {
+			loops[i] = new SelectorLoop("NIO-Selector-" + i + " [" + name + "]");
+		}
+		socket.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+		for(SelectorLoop loop: loops) {
+			loop.start();
+		}
+	}
+
+	/**
+	 * @return address socket is bound to, convenient if socket has been bound to ephemeral port
+	 */
+	public InetSocketAddress getLocalAddress() {
+		return (InetSocketAddress) socket.socket().getLocalSocketAddress();
+	}
+
+	public void close() {
+		closed = true;
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+		if (loops != null) {
+			for(SelectorLoop loop: loops) {
+				loop.selector.wakeup();
+			}
+		}
+		if (dispatcher != null) {
+			dispatcher.shutdown();
+		}
+	}
+
+	private void accept() {
+		while(true) {
+			SocketChannel ch;
+			try {
+				ch = socket.accept();
+				if (ch == null) {
+					return;
+				}
+				ch.configureBlocking(false);
+				ch.socket().setTcpNoDelay(true);
+			}
+			catch(IOException e) {
+				if (!closed) {
+					e.printStackTrace();
+				}
+				return;
+			}
+			SelectorLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+			final NioSocketStream stream = new NioSocketStream(ch, loop);
+			loop.register(stream);
+			try {
+				dispatcher.execute(new Runnable() {
+					@Override
+					public void run() {
+						hub.dispatch(stream);
+					}
+				});
+			}
+			catch(RuntimeException e) {
+				// acceptor is being closed
+				stream.silentClose();
+			}
+		}
+	}
+
+	/**
+	 * Selector with its thread. Channel interest changes are performed
+	 * by selector thread only, other threads should submit a task.
+	 */
+	class SelectorLoop extends Thread {
+
+		final Selector selector;
+		final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		/** Shared by all channels of selector, data is valid only within {@link NioSocketStream#processRead(ByteBuffer)} call */
+		final ByteBuffer readBuffer = ByteBuffer.allocate(64 << 10);
+
+		SelectorLoop(String name) throws IOException {
+			super(name);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		public void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		void register(final NioSocketStream stream) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						stream.key = stream.channel.register(selector, SelectionKey.OP_READ, stream);
+					}
+					catch(ClosedChannelException e) {
+						stream.processError(e);
+					}
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(!closed) {
+					selector.select();
+					Runnable task;
+					while((task = tasks.poll()) != null) {
+						task.run();
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+						}
+						else {
+							NioSocketStream stream = (NioSocketStream) key.attachment();
+							if (key.isWritable()) {
+								stream.processWritable();
+							}
+							if (key.isValid() && key.isReadable()) {
+								stream.processRead(readBuffer);
+							}
+						}
+					}
+				}
+			}
+			catch(Throwable e) {
+				if (!closed) {
+					e.printStackTrace();
+				}
+			}
+			finally {
+				for(SelectionKey key: selector.keys()) {
+					if (key.attachment() instanceof NioSocketStream) {
+						((NioSocketStream) key.attachment()).processError(new IOException("Acceptor is closed"));
+					}
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	private static class DaemonFactory implements ThreadFactory {
+
+		private final String name;
+		private final AtomicInteger counter = new AtomicInteger();
+
+		public DaemonFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r);
+			t.setName(name + "-" + counter.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,385 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi.hub;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.gridkit.zerormi.NonBlockingDuplexStream;
+import org.gridkit.zerormi.hub.NioSocketAcceptor.SelectorLoop;
+
+/**
+ * Non blocking socket connection served by {@link NioSocketAcceptor}.
+ * <p>
+ * Until receiver is installed, inbound data is buffered and could be read
+ * using blocking {@link #getInput()} (used for connection id and handshake).
+ * Writes are performed by calling thread. Data socket cannot accept
+ * is queued and flushed by selector thread, calling thread waits for it
+ * unless it is the selector thread itself, which never blocks.
+ * 
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class NioSocketStream implements NonBlockingDuplexStream {
+
+	final SocketChannel channel;
+	private final SelectorLoop loop;
+	SelectionKey key;
+
+	// all fields below are guarded by this
+	private byte[] pending = new byte[256];
+	private int pendingStart;
+	private int pendingEnd;
+	private boolean eof;
+	private IOException error;
+	private Receiver receiver;
+
+	// fields below are guarded by writeLock
+	private final Object writeLock = new Object();
+	/** Data not accepted by socket yet */
+	private byte[] backlog = new byte[256];
+	private int backlogStart;
+	private int backlogEnd;
+
+	private final InputStream input = new PendingInput();
+	private final OutputStream output = new ChannelOutput();
+
+	NioSocketStream(SocketChannel channel, SelectorLoop loop) {
+		this.channel = channel;
+		this.loop = loop;
+	}
+
+	@Override
+	public InputStream getInput() throws IOException {
+		return input;
+	}
+
+	@Override
+	public OutputStream getOutput() throws IOException {
+		return output;
+	}
+
+	@Override
+	public void startReceiving(final Receiver receiver) throws IOException {
+		// switch is performed by selector thread, so ordering of data is preserved
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				byte[] data;
+				boolean closed;
+				IOException e;
+				synchronized(NioSocketStream.this) {
+					data = new byte[pendingEnd - pendingStart];
+					System.arraycopy(pending, pendingStart, data, 0, data.length);
+					pending = null;
+					closed = eof;
+					e = error;
+					NioSocketStream.this.receiver = receiver;
+				}
+				if (data.length > 0) {
+					deliver(receiver, data, 0, data.length);
+				}
+				if (e != null) {
+					receiver.closed(e);
+				}
+				else if (closed) {
+					receiver.closed(null);
+				}
+			}
+		});
+	}
+
+	@Override
+	public boolean isClosed() {
+		return !channel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		synchronized(this) {
+			eof = true;
+			notifyAll();
+		}
+		synchronized(writeLock) {
+			writeLock.notifyAll();
+		}
+		loop.selector.wakeup();
+	}
+
+	void silentClose() {
+		try {
+			close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	/** Called by selector thread */
+	void processRead(ByteBuffer buffer) {
+		try {
+			while(true) {
+				buffer.clear();
+				int n = channel.read(buffer);
+				if (n == 0) {
+					return;
+				}
+				else if (n < 0) {
+					key.cancel();
+					Receiver r;
+					synchronized(this) {
+						eof = true;
+						notifyAll();
+						r = receiver;
+					}
+					if (r != null) {
+						r.closed(null);
+					}
+					return;
+				}
+				else {
+					Receiver r;
+					synchronized(this) {
+						r = receiver;
+						if (r == null) {
+							append(buffer.array(), n);
+						}
+					}
+					if (r != null && !deliver(r, buffer.array(), 0, n)) {
+						return;
+					}
+				}
+			}
+		}
+		catch(IOException e) {
+			processError(e);
+		}
+	}
+
+	/** Called by selector thread */
+	void processWritable() {
+		try {
+			synchronized(writeLock) {
+				ByteBuffer bb = ByteBuffer.wrap(backlog, backlogStart, backlogEnd - backlogStart);
+				channel.write(bb);
+				backlogStart = bb.position();
+				if (backlogStart == backlogEnd) {
+					backlogStart = 0;
+					backlogEnd = 0;
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+					writeLock.notifyAll();
+				}
+			}
+		}
+		catch(IOException e) {
+			processError(e);
+		}
+	}
+
+	/** Called by selector thread */
+	void processError(IOException e) {
+		if (key != null) {
+			key.cancel();
+		}
+		Receiver r;
+		synchronized(this) {
+			if (error != null || (eof && receiver == null)) {
+				return;
+			}
+			error = e;
+			notifyAll();
+			r = receiver;
+		}
+		silentClose();
+		if (r != null) {
+			r.closed(e);
+		}
+	}
+
+	private boolean deliver(Receiver r, byte[] data, int offset, int length) {
+		try {
+			r.received(data, offset, length);
+			return true;
+		}
+		catch(Exception e) {
+			// receiver could not process the stream, it should not get any more data
+			IOException ioe = e instanceof IOException ? (IOException) e : new IOException(e.toString());
+			if (ioe != e) {
+				ioe.initCause(e);
+			}
+			processError(ioe);
+			return false;
+		}
+	}
+
+	private void append(byte[] data, int length) {
+		if (pendingEnd + length > pending.length) {
+			int size = pendingEnd - pendingStart;
+			byte[] nb = new byte[Math.max(2 * pending.length, size + length)];
+			System.arraycopy(pending, pendingStart, nb, 0, size);
+			pending = nb;
+			pendingStart = 0;
+			pendingEnd = size;
+		}
+		System.arraycopy(data, 0, pending, pendingEnd, length);
+		pendingEnd += length;
+		notifyAll();
+	}
+
+	/** Should be called under writeLock */
+	private void enqueue(ByteBuffer bb) {
+		int length = bb.remaining();
+		if (backlogEnd + length > backlog.length) {
+			int size = backlogEnd - backlogStart;
+			byte[] nb = new byte[Math.max(2 * backlog.length, size + length)];
+			System.arraycopy(backlog, backlogStart, nb, 0, size);
+			backlog = nb;
+			backlogStart = 0;
+			backlogEnd = size;
+		}
+		bb.get(backlog, backlogEnd, length);
+		backlogEnd += length;
+	}
+
+	private void requestFlush() {
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				if (key != null && key.isValid()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			}
+		};
+		if (Thread.currentThread() == loop) {
+			task.run();
+		}
+		else {
+			loop.execute(task);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return channel.socket().toString();
+	}
+
+	private class PendingInput extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			synchronized(NioSocketStream.this) {
+				while(true) {
+					if (pending == null) {
+						throw new IOException("Stream is in push mode");
+					}
+					if (pendingStart < pendingEnd) {
+						int n = Math.min(len, pendingEnd - pendingStart);
+						System.arraycopy(pending, pendingStart, b, off, n);
+						pendingStart += n;
+						if (pendingStart == pendingEnd) {
+							pendingStart = 0;
+							pendingEnd = 0;
+						}
+						return n;
+					}
+					if (error != null) {
+						throw error;
+					}
+					if (eof) {
+						return -1;
+					}
+					try {
+						NioSocketStream.this.wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			synchronized(NioSocketStream.this) {
+				return pending == null ? 0 : pendingEnd - pendingStart;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			NioSocketStream.this.close();
+		}
+	}
+
+	private class ChannelOutput extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized(writeLock) {
+				if (!channel.isOpen()) {
+					throw new EOFException("Socket is closed");
+				}
+				ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+				boolean idle = backlogStart == backlogEnd;
+				if (idle) {
+					channel.write(bb);
+				}
+				if (bb.hasRemaining()) {
+					enqueue(bb);
+					if (idle) {
+						requestFlush();
+					}
+				}
+				// selector thread should never block, other writers are throttled by socket
+				if (Thread.currentThread() != loop) {
+					while(backlogStart != backlogEnd) {
+						if (!channel.isOpen()) {
+							throw new EOFException("Socket is closed");
+						}
+						try {
+							writeLock.wait(100);
+						} catch (InterruptedException e) {
+							throw new InterruptedIOException();
+						}
+					}
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			NioSocketStream.this.close();
+		}
+	}
+}
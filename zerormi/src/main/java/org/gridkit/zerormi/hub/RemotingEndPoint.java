@@ -29,6 +29,7 @@ import java.util.concurrent.TimeoutException;
 import org.gridkit.zerormi.DuplexStream;
 import org.gridkit.zerormi.DuplexStreamConnector;
 import org.gridkit.zerormi.RmiGateway;
+import org.gridkit.zerormi.RmiMetrics;
 import org.gridkit.zerormi.SocketStream;
 import org.gridkit.zerormi.zlog.LogLevel;
 import org.gridkit.zerormi.zlog.LogStream;
@@ -63,10 +64,12 @@ public class RemotingEndPoint implements Runnable, RmiGateway.StreamErrorHandler
 	private long heartBeatTimeout = Long.valueOf(System.getProperty(HEARTBEAT_TIMEOUT, "60000"));
 	private Object pingSingnal = new Object();
 
-	private long lastHeartBeat = System.nanoTime();
+	private volatile long lastHeartBeat = System.nanoTime();
 	
 	private DuplexStreamConnector connector;
 	
+	private int stripes = 1;
+	
 	public RemotingEndPoint(String uid, SocketAddress addr) {
 		this.uid = uid;
 		this.connector = new ConnectSocketConnector(addr);
@@ -81,6 +84,21 @@ public class RemotingEndPoint implements Runnable, RmiGateway.StreamErrorHandler
 		this.gateway.setStreamErrorHandler(this);
 	}
 	
+	/**
+	 * @return call statistics of connection to master
+	 */
+	public RmiMetrics getMetrics() {
+		return gateway.getMetrics();
+	}
+
+	/**
+	 * Number of streams to be opened to master hub, including primary one.
+	 * Has no effect if connection is not using session UID.
+	 */
+	public void setStripes(int stripes) {
+		this.stripes = stripes;
+	}
+
 	public void enableHeartbeatDeatchWatch() {
 		if (heartBeatTimeout != Integer.MAX_VALUE) {
 			Thread t = new Thread() {
@@ -89,7 +107,7 @@ public class RemotingEndPoint implements Runnable, RmiGateway.StreamErrorHandler
 					try {
 						while(true) {
 							Thread.currentThread().setName("HeartbeatDeathWatch-" + SimpleDateFormat.getDateTimeInstance().format(new Date()));
-							long stale = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastHeartBeat);					
+							long stale = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivity());
 							if (stale > heartBeatTimeout) {
 								System.err.println("Terminating process due to heartbeat timeout");
 								System.err.flush();
@@ -115,6 +133,16 @@ public class RemotingEndPoint implements Runnable, RmiGateway.StreamErrorHandler
 		}
 	}
 	
+	/**
+	 * Any frame received from master is a proof of life, keep alive answers
+	 * are just guaranteed to arrive when connection is otherwise idle.
+	 */
+	private long lastActivity() {
+		long received = gateway.getLastReceivedNanos();
+		long heartBeat = lastHeartBeat;
+		return received - heartBeat > 0 ? received : heartBeat;
+	}
+
 	public void run() {
 		while(true) {
 			
@@ -141,6 +169,10 @@ public class RemotingEndPoint implements Runnable, RmiGateway.StreamErrorHandler
 					if (uid != null) {
 						byte[] magic = uid.getBytes();
 						ss.getOutput().write(magic);
+						if (stripes > 1) {
+							// primary stream
+							ss.getOutput().write(0);
+						}
 						ss.getOutput().flush();
 					}
 
@@ -148,14 +180,28 @@ public class RemotingEndPoint implements Runnable, RmiGateway.StreamErrorHandler
 					
 					gateway.connect(ss);
 					LVERBOSE.log("Gateway connected");
+					
+					if (uid != null) {
+						connectStripes();
+					}
 				}
 				
 				synchronized(pingSingnal) {
 					pingSingnal.wait(pingInterval);
 				}
 				
+				if (!gateway.isConnected()) {
+					// stream is lost, reconnect instead of ping
+					continue;
+				}
+				
 				LTRACE.log("Ping");
 				try {
+					if (gateway.sendKeepAlive()) {
+						// answer is processed by reader thread, see lastActivity()
+						continue;
+					}
+					// legacy master, fall back to ping call
 					Future<?> f = gateway.getRemoteExecutorService().submit(new Ping());
 					while(true) {
 						try {
@@ -191,6 +237,22 @@ public class RemotingEndPoint implements Runnable, RmiGateway.StreamErrorHandler
 		LINFO.log("Slave is disconting");
 	}
 
+	private void connectStripes() {
+		for(int i = 1; i < stripes; ++i) {
+			try {
+				DuplexStream ss = connector.connect();
+				ss.getOutput().write(uid.getBytes());
+				ss.getOutput().write(i);
+				ss.getOutput().flush();
+				gateway.connectStripe(ss);
+				LVERBOSE.log("Stripe #" + i + " connected");
+			} catch (IOException e) {
+				// session is still usable without the stripe
+				LWARN.log("Stripe connection has failed " + connector + " - " + e.toString());
+			}
+		}
+	}
+
 	@Override
 	public void streamError(DuplexStream socket, Object stream, Exception error) {
 		LWARN.log("Slave read error: " + error.toString());
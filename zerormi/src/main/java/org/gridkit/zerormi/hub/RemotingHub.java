@@ -19,6 +19,8 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -39,6 +41,12 @@ import org.gridkit.zerormi.zlog.ZLogger;
  */
 public class RemotingHub implements MasterHub {
 	
+	/**
+	 * Number of streams per session, including primary one. If more than one,
+	 * slave opens additional streams for bulk calls (see {@link RmiGateway#connectStripe(DuplexStream)}).
+	 */
+	public static final String PROP_STRIPES = "gridkit.zerormi.hub.stripes";
+	
 	private final static int UID_LENGTH = 32;
 	
 	private LogStream logInfo;
@@ -46,6 +54,7 @@ public class RemotingHub implements MasterHub {
 	private LogStream logError;
 	private SecureRandom srnd ;	
 	private ConcurrentMap<String, SessionContext> connections = new ConcurrentHashMap<String, SessionContext>();
+	private int stripes = Integer.getInteger(PROP_STRIPES, 1);
 	
 	public RemotingHub() {
 		// TODO to be removed after coupling of remotting and connection dispatching logic
@@ -63,12 +72,20 @@ public class RemotingHub implements MasterHub {
 		}
 	}
 	
+	/**
+	 * Affects sessions allocated after the call.
+	 */
+	public void setStripes(int stripes) {
+		this.stripes = stripes;
+	}
+	
 	@Override
 	public SlaveSpore allocateSession(String name, SessionEventListener listener) {
 		while(true) {
 			String uid = generateUID();
 			SessionContext ctx = new SessionContext();
 			ctx.listener = listener;			
+			ctx.stripes = stripes;
 			synchronized(ctx) {
 				if (connections.putIfAbsent(uid, ctx) != null) {
 					continue;
@@ -76,7 +93,7 @@ public class RemotingHub implements MasterHub {
 				ctx.gateway = new RmiGateway(name);
 				ctx.gateway.setStreamErrorHandler(ctx);
 			}
-			return new LegacySpore(uid);
+			return ctx.stripes > 1 ? new LegacySpore(uid, ctx.stripes) : new LegacySpore(uid);
 		}		
 	}
 	
@@ -128,6 +145,10 @@ public class RemotingHub implements MasterHub {
 				if (ctx != null) {
 					ctx.listener.closed();
 					silentClose(ctx.stream);
+					for(DuplexStream s: ctx.parkedStripes.values()) {
+						silentClose(s);
+					}
+					ctx.parkedStripes.clear();
 					ctx.gateway.shutdown(null);
 					connections.remove(id);
 
@@ -144,10 +165,24 @@ public class RemotingHub implements MasterHub {
 		String id = readId(stream);
 		if (id != null) {
 			SessionContext ctx = connections.get(id);
-			if (ctx != null) {
+			// striped sessions are sending stream index after UID, 0 is primary stream
+			// index is read before locking session, so slow peer would not block other streams
+			int stripe = ctx == null ? -1 : ctx.stripes > 1 ? readStripeIndex(stream) : 0;
+			if (stripe >= 0) {
 				synchronized(ctx) {
 					ctx = connections.get(id);
 					if (ctx != null) {
+						if (stripe > 0) {
+							if (ctx.gateway.isConnected()) {
+								connectStripe(ctx, id, stripe, stream);
+							}
+							else {
+								// primary stream is being reconnected, stripe would be attached once it is up
+								silentClose(ctx.parkedStripes.put(stripe, stream));
+								logInfo.log("Stripe #" + stripe + " is waiting for primary stream at end point " + id + " - " + stream);
+							}
+							return;
+						}
 						if (ctx.stream != null) {
 							logWarn.log("New stream for " + id + " " + stream);
 							logWarn.log("Old stream for " + id + " would be disposed " + ctx.stream);
@@ -166,6 +201,13 @@ public class RemotingHub implements MasterHub {
 							logError.log("Stream connection failed " + stream);
 						}
 						logInfo.log("Stream connected at end point " + id + " - " + stream);
+						if (ctx.gateway.isConnected()) {
+							Map<Integer, DuplexStream> parked = new LinkedHashMap<Integer, DuplexStream>(ctx.parkedStripes);
+							ctx.parkedStripes.clear();
+							for(Integer n: parked.keySet()) {
+								connectStripe(ctx, id, n, parked.get(n));
+							}
+						}
 						return;
 					}
 				}
@@ -175,6 +217,23 @@ public class RemotingHub implements MasterHub {
 		silentClose(stream);
 	}
 	
+	private void connectStripe(SessionContext ctx, String id, int stripe, DuplexStream stream) {
+		try {
+			ctx.gateway.connectStripe(stream);
+			logInfo.log("Stripe #" + stripe + " connected at end point " + id + " - " + stream);
+		} catch (IOException e) {
+			logWarn.log("Stripe connection failed " + stream + " - " + e.toString());
+		}
+	}
+
+	private int readStripeIndex(DuplexStream stream) {
+		try {
+			return stream.getInput().read();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+	
 	private String readId(DuplexStream stream) {
 		try {
 			byte[] magic = new byte[UID_LENGTH];
@@ -203,6 +262,9 @@ public class RemotingHub implements MasterHub {
 		private SessionEventListener listener;
 		private RmiGateway gateway;
 		private DuplexStream stream;
+		private int stripes;
+		/** Stripes arrived while primary stream was not connected */
+		private Map<Integer, DuplexStream> parkedStripes = new LinkedHashMap<Integer, DuplexStream>();
 
 		@Override
 		public synchronized void streamError(DuplexStream socket, Object stream, Exception error) {
@@ -0,0 +1,38 @@
+package org.gridkit.zerormi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClassCacheTest {
+
+	AtomicLong hits = new AtomicLong();
+	AtomicLong misses = new AtomicLong();
+	ClassCache cache = new ClassCache(getClass().getClassLoader(), hits, misses);
+
+	@Test
+	public void classes_and_primitives() throws ClassNotFoundException {
+		Assert.assertSame(String.class, cache.forName("java.lang.String"));
+		Assert.assertSame(String.class, cache.forName("java.lang.String"));
+		Assert.assertSame(int.class, cache.forName("int"));
+		Assert.assertSame(long[].class, cache.forName("[J"));
+		Assert.assertEquals(1, hits.get());
+		Assert.assertEquals(3, misses.get());
+	}
+
+	@Test
+	public void negative_lookups_are_cached() {
+		for(int i = 0; i != 2; ++i) {
+			try {
+				cache.forName("no.such.Class");
+				Assert.fail("Exception expected");
+			}
+			catch(ClassNotFoundException e) {
+				Assert.assertEquals("no.such.Class", e.getMessage());
+			}
+		}
+		Assert.assertEquals(1, hits.get());
+		Assert.assertEquals(1, misses.get());
+	}
+}
@@ -0,0 +1,176 @@
+package org.gridkit.zerormi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.gridkit.zerormi.zlog.ZLogFactory;
+import org.junit.Test;
+
+public class CompactRmiCodecTest {
+
+	RmiChannel1 channel = new RmiChannel1("test", new RmiChannel1.OutputChannel() {
+		@Override
+		public void send(RemoteMessage message) throws IOException {
+			throw new IOException("Not connected");
+		}
+	}, new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	}, new SmartRmiMarshaler(), ZLogFactory.getDefaultRootLogger(), Collections.<String, Object>emptyMap());
+
+	CompactRmiCodec writerCodec = new CompactRmiCodec(channel, "writer");
+	CompactRmiCodec readerCodec = new CompactRmiCodec(channel, "reader");
+
+	RmiCodec.Encoder encoder;
+
+	public CompactRmiCodecTest() throws IOException {
+		encoder = writerCodec.createEncoder();
+	}
+
+	private byte[] encode(Object... objects) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		encoder.encode(objects);
+		encoder.writeTo(bos);
+		encoder.commit();
+		return bos.toByteArray();
+	}
+
+	private Object[] decode(byte[] data, int count) throws IOException, ClassNotFoundException {
+		RmiCodec.Decoder decoder = readerCodec.createDecoder(new ByteArrayInputStream(data));
+		decoder.beginMessage();
+		Object[] result = new Object[count];
+		for(int i = 0; i != count; ++i) {
+			result[i] = decoder.readObject();
+		}
+		decoder.endMessage();
+		return result;
+	}
+
+	@Test
+	public void round_trip_value_types() throws IOException, ClassNotFoundException {
+		Object[] values = {null, true, false, (byte)1, (short)2, 'c', 3, 4l, 5f, 6d, "abc",
+				new byte[]{1, 2}, new int[]{3, 4}, new long[]{5}, new char[]{'x'}, new boolean[]{true},
+				new short[]{7}, new float[]{8f}, new double[]{9d}, new Object[]{"x", 1}};
+
+		Object[] result = decode(encode(values), values.length);
+
+		assertEquals(Arrays.deepToString(values), Arrays.deepToString(result));
+	}
+
+	@Test
+	public void round_trip_call() throws IOException, ClassNotFoundException {
+		RemoteInstance ri = new RemoteInstance("123", new String[]{Runnable.class.getName()});
+		RemoteMethodSignature m = new RemoteMethodSignature("java.lang.Runnable", "run", new String[0]);
+		Object[] args = {new Payload("a", 1), Collections.singletonList("b")};
+
+		Object[] result = decode(encode(ri, m, args), 3);
+
+		assertEquals(ri, result[0]);
+		assertEquals(m, result[1]);
+		assertArrayEquals(args, (Object[]) result[2]);
+	}
+
+	@Test
+	public void array_identity_is_preserved() throws IOException, ClassNotFoundException {
+		byte[] shared = new byte[]{1, 2, 3};
+		Object[] result = decode(encode((Object) new Object[]{shared, shared}), 1);
+
+		Object[] args = (Object[]) result[0];
+		assertSame(args[0], args[1]);
+	}
+
+	@Test
+	public void dictionary_shrinks_repeated_messages() throws IOException, ClassNotFoundException {
+		RemoteInstance ri = new RemoteInstance("123", new String[]{Runnable.class.getName()});
+		RemoteMethodSignature m = new RemoteMethodSignature("java.lang.Runnable", "run", new String[0]);
+		HashMap<String, Payload> map = new HashMap<String, Payload>();
+		map.put("x", new Payload("y", 2));
+		Object[] args = {map};
+
+		byte[] first = encode(ri, m, args);
+		byte[] second = encode(ri, m, args);
+
+		assertTrue("Second message should be shorter: " + first.length + " vs " + second.length, second.length < first.length / 2);
+
+		// dictionary is defined by first message and reused by second
+		assertEquals(map, ((Object[])decode(first, 3)[2])[0]);
+		assertEquals(map, ((Object[])decode(second, 3)[2])[0]);
+	}
+
+	@Test
+	public void method_signature_is_decoded_to_same_instance() throws IOException, ClassNotFoundException {
+		RemoteInstance ri = new RemoteInstance("123", new String[]{Runnable.class.getName()});
+		RemoteMethodSignature m = new RemoteMethodSignature("java.lang.Runnable", "run", new String[0]);
+
+		Object m1 = decode(encode(ri, m, new Object[0]), 3)[1];
+		Object m2 = decode(encode(ri, new RemoteMethodSignature("java.lang.Runnable", "run", new String[0]), new Object[0]), 3)[1];
+
+		// receiver caches dispatch information on signature instance
+		assertSame(m1, m2);
+	}
+
+	@Test
+	public void decoded_method_carries_table_slot() throws IOException, ClassNotFoundException {
+		RemoteInstance ri = new RemoteInstance("123", new String[]{Runnable.class.getName()});
+		RemoteMethodSignature run = new RemoteMethodSignature("java.lang.Runnable", "run", new String[0]);
+		RemoteMethodSignature call = new RemoteMethodSignature("java.util.concurrent.Callable", "call", new String[0]);
+
+		RemoteMethodSignature m1 = (RemoteMethodSignature) decode(encode(ri, run, new Object[0]), 3)[1];
+		RemoteMethodSignature m2 = (RemoteMethodSignature) decode(encode(ri, call, new Object[0]), 3)[1];
+
+		assertTrue(m1.slot >= 0);
+		assertTrue(m2.slot >= 0);
+		assertTrue(m1.slot != m2.slot);
+		assertEquals(m1.slot, channel.reserveMethodSlot(run));
+		assertEquals(m2.slot, channel.reserveMethodSlot(call));
+	}
+
+	@Test
+	public void negotiation_is_symmetric() {
+		List<String> a = Arrays.asList("compact", "java");
+		List<String> b = Arrays.asList("java", "compact");
+		List<String> c = Arrays.asList("java");
+		List<String> none = Collections.emptyList();
+
+		assertEquals("compact", RmiGateway.negotiateCodec(a, a));
+		assertEquals(RmiGateway.negotiateCodec(a, b), RmiGateway.negotiateCodec(b, a));
+		assertEquals("java", RmiGateway.negotiateCodec(a, c));
+		assertEquals("java", RmiGateway.negotiateCodec(a, none));
+	}
+
+	@SuppressWarnings("serial")
+	static class Payload implements Serializable {
+
+		String text;
+		int number;
+
+		public Payload(String text, int number) {
+			this.text = text;
+			this.number = number;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Payload && text.equals(((Payload)obj).text) && number == ((Payload)obj).number;
+		}
+
+		@Override
+		public int hashCode() {
+			return text.hashCode();
+		}
+	}
+}
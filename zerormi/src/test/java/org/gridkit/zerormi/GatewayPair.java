@@ -0,0 +1,65 @@
+package org.gridkit.zerormi;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pair of gateways connected over loopback socket.
+ * Handshake is symmetric, so right side is connected by separate thread,
+ * its failure is rethrown to the test.
+ */
+class GatewayPair {
+
+	final RmiGateway left;
+	final RmiGateway right;
+
+	public GatewayPair(RmiGateway left, final RmiGateway right) throws Exception {
+		this.left = left;
+		this.right = right;
+
+		ServerSocket ss = new ServerSocket();
+		Socket sock;
+		final Socket rsock;
+		try {
+			ss.bind(new InetSocketAddress("127.0.0.1", 0));
+			sock = new Socket();
+			sock.connect(ss.getLocalSocketAddress());
+			rsock = ss.accept();
+		}
+		finally {
+			ss.close();
+		}
+
+		FutureTask<Void> rightStarter = new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				right.connect(new SocketStream(rsock));
+				return null;
+			}
+		});
+		Thread thread = new Thread(rightStarter, "RightStarter");
+		thread.setDaemon(true);
+		thread.start();
+		left.connect(new SocketStream(sock));
+		try {
+			rightStarter.get(10, TimeUnit.SECONDS);
+		}
+		catch(ExecutionException e) {
+			left.shutdown(null);
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	public void shutdown() {
+		left.shutdown(null);
+		right.shutdown(null);
+	}
+}
@@ -0,0 +1,32 @@
+package org.gridkit.zerormi;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void percentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		for(int i = 0; i != 99; ++i) {
+			h.record(1000);
+		}
+		h.record(1000000);
+
+		Assert.assertEquals(100, h.getCount());
+		Assert.assertEquals(1000000, h.getMaxNanos());
+		// 1000ns falls into [512, 1024) bucket
+		Assert.assertEquals(1.023, h.getPercentileMicros(0.5), 0.001);
+		Assert.assertEquals(1.023, h.getPercentileMicros(0.99), 0.001);
+		Assert.assertEquals(1000, h.getPercentileMicros(1), 0.001);
+		Assert.assertEquals((99 * 1000 + 1000000) / 100 / 1000d, h.getMeanMicros(), 0.001);
+	}
+
+	@Test
+	public void negative_values_are_clamped() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(-5);
+		Assert.assertEquals(0, h.getPercentileMicros(0.99), 0);
+		Assert.assertEquals(1, h.getBuckets()[0]);
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+
+import org.junit.Test;
+
+public class MethodInvokerTest {
+
+	public interface Calc {
+
+		long add(int a, long b);
+
+		void fail(String message) throws IOException;
+
+		String[] split(String text, char c);
+	}
+
+	static class CalcImpl implements Calc {
+
+		@Override
+		public long add(int a, long b) {
+			return a + b;
+		}
+
+		@Override
+		public void fail(String message) throws IOException {
+			throw new IOException(message);
+		}
+
+		@Override
+		public String[] split(String text, char c) {
+			return text.split(String.valueOf(c));
+		}
+	}
+
+	@Test
+	public void invoker_is_generated() throws Exception {
+		MethodInvoker invoker = MethodInvoker.create(Calc.class.getMethod("add", int.class, long.class), getClass().getClassLoader());
+		assertTrue(invoker.getClass().getName().startsWith(MethodInvoker.class.getName() + "$$"));
+		assertEquals(5l, invoker.invoke(new CalcImpl(), new Object[] {2, 3l}));
+	}
+
+	@Test
+	public void void_and_array_methods() throws Exception {
+		MethodInvoker split = MethodInvoker.create(Calc.class.getMethod("split", String.class, char.class), getClass().getClassLoader());
+		String[] parts = (String[]) split.invoke(new CalcImpl(), new Object[] {"a,b", ','});
+		assertEquals(2, parts.length);
+		assertEquals("b", parts[1]);
+	}
+
+	@Test
+	public void method_exception_is_wrapped() throws Exception {
+		MethodInvoker invoker = MethodInvoker.create(Calc.class.getMethod("fail", String.class), getClass().getClassLoader());
+		try {
+			invoker.invoke(new CalcImpl(), new Object[] {"boom"});
+			fail("Exception expected");
+		}
+		catch(InvocationTargetException e) {
+			assertSame(IOException.class, e.getCause().getClass());
+			assertEquals("boom", e.getCause().getMessage());
+		}
+	}
+
+	@Test
+	public void argument_mismatch_is_not_wrapped() throws Exception {
+		MethodInvoker invoker = MethodInvoker.create(Calc.class.getMethod("add", int.class, long.class), getClass().getClassLoader());
+		try {
+			invoker.invoke(new CalcImpl(), new Object[] {"2", 3l});
+			fail("Exception expected");
+		}
+		catch(ClassCastException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void runnable_is_supported() throws Exception {
+		MethodInvoker invoker = MethodInvoker.create(Runnable.class.getMethod("run"), getClass().getClassLoader());
+		final boolean[] ran = {false};
+		assertNull(invoker.invoke(new Runnable() {
+			@Override
+			public void run() {
+				ran[0] = true;
+			}
+		}, null));
+		assertTrue(ran[0]);
+	}
+}
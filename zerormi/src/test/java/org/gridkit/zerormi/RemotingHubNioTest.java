@@ -0,0 +1,80 @@
+package org.gridkit.zerormi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import org.gridkit.zerormi.hub.NioSocketAcceptor;
+import org.gridkit.zerormi.hub.RemotingHub;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Same scenarios as {@link RemotingHubTest}, but master side is served by selector threads.
+ */
+public class RemotingHubNioTest extends RemotingHubTest {
+
+	private NioSocketAcceptor acceptor;
+
+	@Override
+	protected void startAcceptor(RemotingHub hub) {
+		try {
+			ServerSocketChannel ssock = ServerSocketChannel.open();
+			ssock.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+			acceptor = new NioSocketAcceptor();
+			acceptor.bind(ssock, hub);
+			acceptor.start();
+			hubPort = acceptor.getLocalAddress().getPort();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	protected void stopAcceptor() {
+		acceptor.close();
+	}
+
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void large_payload_roundtrip() throws Exception {
+		// payload spans many selector reads in both directions
+		byte[] data = new byte[4 << 20];
+		new Random(0).nextBytes(data);
+		byte[] echo = (byte[]) remoteExecutor1.submit(new Echo(data)).get();
+		Assert.assertArrayEquals(data, echo);
+	}
+
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void concurrent_large_payloads() throws Exception {
+		// socket buffers are full in both directions, writes should not stall selector
+		List<byte[]> payloads = new ArrayList<byte[]>();
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		for(int i = 0; i != 8; ++i) {
+			byte[] data = new byte[2 << 20];
+			new Random(i).nextBytes(data);
+			payloads.add(data);
+			results.add(remoteExecutor1.submit(new Echo(data)));
+		}
+		for(int i = 0; i != 8; ++i) {
+			Assert.assertArrayEquals(payloads.get(i), (byte[]) results.get(i).get());
+		}
+	}
+
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void concurrent_calls() throws Exception {
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		for(int i = 0; i != 1000; ++i) {
+			results.add(remoteExecutor2.submit(new Echo(i)));
+		}
+		for(int i = 0; i != 1000; ++i) {
+			Assert.assertEquals(i, results.get(i).get());
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package org.gridkit.zerormi;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.rmi.Remote;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gridkit.util.concurrent.AdvancedExecutor;
+import org.gridkit.zerormi.RemotingHubTest.Echo;
+import org.gridkit.zerormi.hub.LegacySpore;
+import org.gridkit.zerormi.hub.RemotingEndPoint;
+import org.gridkit.zerormi.hub.RemotingHub;
+import org.gridkit.zerormi.hub.RemotingHub.SessionEventListener;
+import org.gridkit.zerormi.hub.SimpleSocketAcceptor;
+import org.gridkit.zerormi.zlog.ZLogFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RemotingHubStripeTest {
+
+	private RemotingHub hub;
+	private SimpleSocketAcceptor acceptor;
+	private CountingConnector connector;
+	private AdvancedExecutor remoteExecutor;
+	private InetSocketAddress hubAddress;
+
+	@Before
+	public void initHub() throws Exception {
+		hub = new RemotingHub(ZLogFactory.getDefaultRootLogger());
+		hub.setStripes(2);
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		String uid = LegacySpore.uidOf(hub.allocateSession("striped", new SessionEventListener() {
+			@Override
+			public void reconnected(DuplexStream stream) {
+			}
+
+			@Override
+			public void interrupted(DuplexStream stream) {
+			}
+
+			@Override
+			public void connected(DuplexStream stream) {
+				latch.countDown();
+			}
+
+			@Override
+			public void closed() {
+			}
+		}));
+
+		ServerSocket ssock = new ServerSocket(0);
+		acceptor = new SimpleSocketAcceptor();
+		acceptor.bind(ssock, hub);
+		acceptor.start();
+
+		hubAddress = new InetSocketAddress("localhost", ssock.getLocalPort());
+		connector = new CountingConnector(hubAddress);
+		RemotingEndPoint endPoint = new RemotingEndPoint(uid, connector);
+		endPoint.setStripes(2);
+		Thread t = new Thread(endPoint);
+		t.setDaemon(true);
+		t.start();
+
+		remoteExecutor = hub.getExecutionService(uid);
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		// stripe is attached right after primary stream
+		for(int i = 0; i != 50 && connector.streams.size() < 2; ++i) {
+			Thread.sleep(100);
+		}
+		Assert.assertEquals(2, connector.streams.size());
+	}
+
+	@After
+	public void shutdown() {
+		hub.dropAllSessions();
+		acceptor.close();
+	}
+
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void bulk_calls_are_sent_over_stripe() throws Exception {
+		SinkImpl sink = new SinkImpl();
+		CountingStream primary = connector.streams.get(0);
+		CountingStream stripe = connector.streams.get(1);
+
+		long p = primary.written.get();
+		Assert.assertEquals("abc", remoteExecutor.submit(new Echo("abc")).get());
+		remoteExecutor.submit(new Push(sink, 1 << 20)).get();
+
+		Assert.assertEquals(1 << 20, sink.received.get());
+		Assert.assertTrue("Bulk data expected on stripe", stripe.written.get() > 1 << 20);
+		Assert.assertTrue("Only control traffic expected on primary stream", primary.written.get() - p < 64 << 10);
+	}
+
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void session_survives_stripe_loss() throws Exception {
+		SinkImpl sink = new SinkImpl();
+		Future<Void> pending = remoteExecutor.submit(new Hold(sink, 1 << 20));
+		Assert.assertTrue(sink.holding.await(5, TimeUnit.SECONDS));
+
+		connector.streams.get(1).close();
+		try {
+			pending.get(5, TimeUnit.SECONDS);
+			Assert.fail("Call pending on lost stripe should fail");
+		}
+		catch(ExecutionException e) {
+			// expected
+		}
+		sink.release.countDown();
+
+		Assert.assertEquals("abc", remoteExecutor.submit(new Echo("abc")).get());
+		// bulk calls are falling back to primary stream
+		remoteExecutor.submit(new Push(sink, 1 << 20)).get();
+		Assert.assertEquals(1 << 20, sink.received.get());
+	}
+
+	@Test
+	public void stripe_arriving_before_primary_is_kept() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		String uid = LegacySpore.uidOf(hub.allocateSession("late-primary", new SessionEventListener() {
+			@Override
+			public void reconnected(DuplexStream stream) {
+			}
+
+			@Override
+			public void interrupted(DuplexStream stream) {
+			}
+
+			@Override
+			public void connected(DuplexStream stream) {
+				latch.countDown();
+			}
+
+			@Override
+			public void closed() {
+			}
+		}));
+
+		Socket early = new Socket();
+		early.connect(hubAddress);
+		early.getOutputStream().write(uid.getBytes());
+		early.getOutputStream().write(1);
+		early.getOutputStream().flush();
+		early.setSoTimeout(500);
+		assertOpen(early);
+
+		RemotingEndPoint endPoint = new RemotingEndPoint(uid, new CountingConnector(hubAddress));
+		endPoint.setStripes(2);
+		Thread t = new Thread(endPoint);
+		t.setDaemon(true);
+		t.start();
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+		// stripe is attached to connected session, not dropped
+		assertOpen(early);
+		hub.dropSession(uid);
+		early.setSoTimeout(5000);
+		Assert.assertEquals(-1, early.getInputStream().read());
+		early.close();
+	}
+
+	private static void assertOpen(Socket socket) throws IOException {
+		try {
+			int b = socket.getInputStream().read();
+			Assert.fail("Stream is expected to be open, but read returned " + b);
+		}
+		catch(SocketTimeoutException e) {
+			// expected
+		}
+	}
+
+	public interface Sink extends Remote {
+
+		public void push(byte[] data);
+
+		public void hold(byte[] data) throws InterruptedException;
+	}
+
+	public static class SinkImpl implements Sink {
+
+		final AtomicLong received = new AtomicLong();
+		final CountDownLatch holding = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public void push(byte[] data) {
+			received.addAndGet(data.length);
+		}
+
+		@Override
+		public void hold(byte[] data) throws InterruptedException {
+			holding.countDown();
+			release.await();
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public static class Push implements Callable<Void>, Serializable {
+
+		private final Sink sink;
+		private final int size;
+
+		public Push(Sink sink, int size) {
+			this.sink = sink;
+			this.size = size;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			sink.push(new byte[size]);
+			return null;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public static class Hold implements Callable<Void>, Serializable {
+
+		private final Sink sink;
+		private final int size;
+
+		public Hold(Sink sink, int size) {
+			this.sink = sink;
+			this.size = size;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			sink.hold(new byte[size]);
+			return null;
+		}
+	}
+
+	private static class CountingConnector implements DuplexStreamConnector {
+
+		private final InetSocketAddress address;
+		final List<CountingStream> streams = new CopyOnWriteArrayList<CountingStream>();
+
+		public CountingConnector(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		@Override
+		public DuplexStream connect() throws IOException {
+			Socket socket = new Socket();
+			socket.connect(address);
+			CountingStream stream = new CountingStream(new SocketStream(socket));
+			streams.add(stream);
+			return stream;
+		}
+	}
+
+	private static class CountingStream implements DuplexStream {
+
+		private final DuplexStream delegate;
+		private final OutputStream output;
+		final AtomicLong written = new AtomicLong();
+
+		public CountingStream(DuplexStream delegate) throws IOException {
+			this.delegate = delegate;
+			this.output = new FilterOutputStream(delegate.getOutput()) {
+				@Override
+				public void write(int b) throws IOException {
+					written.incrementAndGet();
+					out.write(b);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					written.addAndGet(len);
+					out.write(b, off, len);
+				}
+			};
+		}
+
+		@Override
+		public InputStream getInput() throws IOException {
+			return delegate.getInput();
+		}
+
+		@Override
+		public OutputStream getOutput() throws IOException {
+			return output;
+		}
+
+		@Override
+		public boolean isClosed() {
+			return delegate.isClosed();
+		}
+
+		@Override
+		public void close() throws IOException {
+			delegate.close();
+		}
+
+		@Override
+		public String toString() {
+			return delegate.toString();
+		}
+	}
+}
@@ -48,8 +48,8 @@ public class RemotingHubTest {
 	private RemotingEndPoint endPoint1;
 	private RemotingEndPoint endPoint2;
 	private SimpleSocketAcceptor acceptor;
-	private AdvancedExecutor remoteExecutor1;
-	private AdvancedExecutor remoteExecutor2;
+	protected AdvancedExecutor remoteExecutor1;
+	protected AdvancedExecutor remoteExecutor2;
 	
 	@Before
 	public void initHub() throws InterruptedException, BrokenBarrierException, TimeoutException {
@@ -84,11 +84,7 @@ public class RemotingHubTest {
 		String uid2 = LegacySpore.uidOf(hub.allocateSession("side2", sessionListener));
 		
 		
-		acceptor = new SimpleSocketAcceptor();
-		ServerSocket ssock = openServerSocket();
-		
-		acceptor.bind(ssock, hub);
-		acceptor.start();
+		startAcceptor(hub);
 		
 		endPoint1 = new RemotingEndPoint(uid1, new InetSocketAddress("localhost", hubPort));
 		new Thread(endPoint1).start();
@@ -103,6 +99,18 @@ public class RemotingHubTest {
 		latch.await(5000000, TimeUnit.MILLISECONDS);		
 	}
 
+	protected void startAcceptor(RemotingHub hub) {
+		acceptor = new SimpleSocketAcceptor();
+		ServerSocket ssock = openServerSocket();
+		
+		acceptor.bind(ssock, hub);
+		acceptor.start();
+	}
+
+	protected void stopAcceptor() {
+		acceptor.close();
+	}
+
 	protected ServerSocket openServerSocket() {
 		ServerSocket ssock;
 		try {
@@ -116,7 +124,7 @@ public class RemotingHubTest {
 	
 	@After
 	public void shutdown() {
-		acceptor.close();
+		stopAcceptor();
 	}
 	
 	@Test
@@ -0,0 +1,290 @@
+package org.gridkit.zerormi;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.gridkit.util.concurrent.FutureEx;
+import org.gridkit.zerormi.zlog.ZLogFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RmiCallDeadlineTest {
+
+	RmiGateway left;
+	RmiGateway right;
+	GatewayPair pair;
+
+	@Before
+	public void connect() throws Exception {
+		left = new RmiGateway("left");
+		// calls to same object are queued behind each other
+		Map<String, Object> props = new HashMap<String, Object>();
+		props.put(RmiDispatcher.PROP_ORDERED, "true");
+		right = new RmiGateway("right", new SmartRmiMarshaler(), ZLogFactory.getDefaultRootLogger(), props);
+		pair = new GatewayPair(left, right);
+	}
+
+	@After
+	public void disconnect() {
+		CallDeadline.clear();
+		if (pair != null) {
+			pair.shutdown();
+		}
+	}
+
+	/**
+	 * Sleeper is created on right side, implementation is reachable by test, as both sides share JVM.
+	 */
+	private Sleeper remoteSleeper() throws InterruptedException, ExecutionException {
+		return left.getRemoteExecutorService().submit(new Callable<Sleeper>() {
+			@Override
+			public Sleeper call() throws Exception {
+				SleeperImpl.last = new SleeperImpl();
+				return SleeperImpl.last;
+			}
+		}).get();
+	}
+
+	@Test
+	public void deadline_fails_call_and_interrupts_callee() throws Exception {
+		Sleeper sleeper = remoteSleeper();
+		SleeperImpl impl = SleeperImpl.last;
+
+		long started = System.nanoTime();
+		CallDeadline.set(300, TimeUnit.MILLISECONDS);
+		try {
+			sleeper.sleep(10000);
+			Assert.fail("Timeout expected");
+		}
+		catch(RemoteException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Call timed out"));
+		}
+		finally {
+			CallDeadline.clear();
+		}
+		Assert.assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(5));
+		Assert.assertTrue("Callee should be interrupted", impl.interrupted.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(1, left.getMetrics().getOutboundTimeouts());
+
+		// connection is usable and late result is ignored
+		Assert.assertEquals(2, sleeper.sleep(0));
+		Assert.assertEquals(0, left.getMetrics().getOutboundInFlight());
+	}
+
+	@Test
+	public void interrupted_caller_keeps_interrupt_status() throws Exception {
+		final Sleeper sleeper = remoteSleeper();
+		SleeperImpl impl = SleeperImpl.last;
+
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final AtomicBoolean interrupted = new AtomicBoolean();
+		Thread caller = new Thread() {
+			@Override
+			public void run() {
+				try {
+					// InterruptedException is not declared
+					sleeper.nap(10000);
+				}
+				catch(Throwable e) {
+					error.set(e);
+				}
+				interrupted.set(Thread.currentThread().isInterrupted());
+			}
+		};
+		caller.start();
+		Assert.assertTrue(impl.started.await(5, TimeUnit.SECONDS));
+		caller.interrupt();
+		caller.join(5000);
+
+		Assert.assertTrue(String.valueOf(error.get()), error.get() instanceof UndeclaredRemoteException);
+		Assert.assertTrue(error.get().getCause() instanceof InterruptedException);
+		Assert.assertTrue("Interrupt status should be kept", interrupted.get());
+		Assert.assertTrue("Callee should be interrupted", impl.interrupted.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void cancel_interrupts_callee() throws Exception {
+		Sleeper sleeper = remoteSleeper();
+		SleeperImpl impl = SleeperImpl.last;
+
+		FutureEx<Integer> future = RemoteStub.remoteSubmit(sleeper, SLEEP, 10000L);
+		Assert.assertTrue(impl.started.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(future.cancel(true));
+		Assert.assertTrue("Callee should be interrupted", impl.interrupted.await(5, TimeUnit.SECONDS));
+		try {
+			future.get();
+			Assert.fail("Cancellation expected");
+		}
+		catch(CancellationException e) {
+			// expected
+		}
+		Assert.assertEquals(1, left.getMetrics().getOutboundCancels());
+		Assert.assertEquals(1, right.getMetrics().getInboundCancels());
+	}
+
+	@Test
+	public void completed_call_releases_deadline_task() throws Exception {
+		Sleeper sleeper = remoteSleeper();
+
+		CallDeadline.set(60, TimeUnit.SECONDS);
+		try {
+			for(int i = 0; i != 100; ++i) {
+				RemoteStub.remoteSubmit(sleeper, SLEEP, 0L).get();
+			}
+		}
+		finally {
+			CallDeadline.clear();
+		}
+
+		Field f = RmiChannel1.class.getDeclaredField("DEADLINE_TIMER");
+		f.setAccessible(true);
+		ScheduledThreadPoolExecutor timer = (ScheduledThreadPoolExecutor) f.get(null);
+		Assert.assertEquals(0, timer.getQueue().size());
+	}
+
+	@Test
+	public void expired_call_is_not_dispatched() throws Exception {
+		Sleeper sleeper = remoteSleeper();
+		SleeperImpl impl = SleeperImpl.last;
+
+		FutureEx<Integer> first = RemoteStub.remoteSubmit(sleeper, SLEEP, 1000L);
+		Assert.assertTrue(impl.started.await(5, TimeUnit.SECONDS));
+
+		// second call is queued behind first one
+		CallDeadline.set(200, TimeUnit.MILLISECONDS);
+		FutureEx<Integer> second = RemoteStub.remoteSubmit(sleeper, SLEEP, 0L);
+		CallDeadline.clear();
+		try {
+			second.get(5, TimeUnit.SECONDS);
+			Assert.fail("Timeout expected");
+		}
+		catch(ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof RemoteException);
+		}
+
+		Assert.assertEquals(Integer.valueOf(1), first.get());
+		// dropped call is answered, so caller has nothing pending
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while(right.getMetrics().getInboundInFlight() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0, right.getMetrics().getInboundInFlight());
+		Assert.assertEquals(1, impl.calls.get());
+		Assert.assertEquals(1, right.getMetrics().getInboundCancels() + right.getMetrics().getInboundExpired());
+	}
+
+	@Test
+	public void large_call_keeps_its_place_in_order() throws Exception {
+		Sleeper sleeper = remoteSleeper();
+
+		// payload of first call is decoded by dispatcher thread, slowly
+		FutureEx<Integer> large = RemoteStub.remoteSubmit(sleeper, ACCEPT, new RmiChannelPipeTest.SlowPayload());
+		FutureEx<Integer> small = RemoteStub.remoteSubmit(sleeper, ACCEPT, "small");
+
+		Assert.assertEquals(Integer.valueOf(1), large.get(5, TimeUnit.SECONDS));
+		Assert.assertEquals(Integer.valueOf(2), small.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void cancel_does_not_overtake_large_call() throws Exception {
+		Sleeper sleeper = remoteSleeper();
+		SleeperImpl impl = SleeperImpl.last;
+
+		FutureEx<Integer> large = RemoteStub.remoteSubmit(sleeper, ACCEPT, new RmiChannelPipeTest.SlowPayload());
+		Assert.assertTrue(large.cancel(true));
+
+		// wait for call to be either cancelled or executed
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while(right.getMetrics().getInboundCancels() == 0 && impl.calls.get() == 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		while(right.getMetrics().getInboundInFlight() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0, right.getMetrics().getInboundInFlight());
+		Assert.assertEquals(1, right.getMetrics().getInboundCancels());
+		Assert.assertEquals("Cancelled call should not be executed", 0, impl.calls.get());
+	}
+
+	static final Method SLEEP;
+	static final Method ACCEPT;
+	static {
+		try {
+			SLEEP = Sleeper.class.getMethod("sleep", long.class);
+			ACCEPT = Sleeper.class.getMethod("accept", Object.class);
+		} catch (NoSuchMethodException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static interface Sleeper extends Remote {
+
+		/**
+		 * @return number of calls
+		 */
+		public int sleep(long millis) throws RemoteException, InterruptedException;
+
+		/**
+		 * @return number of calls
+		 */
+		public int accept(Object payload) throws RemoteException;
+
+		/**
+		 * Same as {@link #sleep(long)}, but interrupt is not declared.
+		 */
+		public int nap(long millis) throws RemoteException;
+	}
+
+	public static class SleeperImpl implements Sleeper {
+
+		static volatile SleeperImpl last;
+
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch interrupted = new CountDownLatch(1);
+
+		@Override
+		public int sleep(long millis) throws InterruptedException {
+			int n = calls.incrementAndGet();
+			started.countDown();
+			try {
+				Thread.sleep(millis);
+			}
+			catch(InterruptedException e) {
+				interrupted.countDown();
+				throw e;
+			}
+			return n;
+		}
+
+		@Override
+		public int accept(Object payload) {
+			return calls.incrementAndGet();
+		}
+
+		@Override
+		public int nap(long millis) {
+			try {
+				return sleep(millis);
+			}
+			catch(InterruptedException e) {
+				return -1;
+			}
+		}
+	}
+}
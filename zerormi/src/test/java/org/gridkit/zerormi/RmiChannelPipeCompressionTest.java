@@ -0,0 +1,37 @@
+package org.gridkit.zerormi;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.gridkit.zerormi.zlog.ZLogFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs {@link RmiChannelPipeTest} with stream compression enabled.
+ */
+public class RmiChannelPipeCompressionTest extends RmiChannelPipeTest {
+
+	@Override
+	protected RmiGateway createGateway(String name) {
+		Map<String, Object> props = new HashMap<String, Object>();
+		props.put(RmiGateway.PROP_COMPRESSION, "true");
+		return new RmiGateway(name, new SmartRmiMarshaler(), ZLogFactory.getDefaultRootLogger(), props);
+	}
+
+	@Test
+	public void compressible_payload_is_compressed() throws InterruptedException, ExecutionException {
+		char[] text = new char[100000];
+		Arrays.fill(text, 'x');
+		String payload = new String(text);
+
+		Assert.assertEquals(payload, left.getRemoteExecutorService().submit(new Echo<String>(payload)).get());
+
+		CompressionCounters counters = left.getCompressionCounters();
+		Assert.assertTrue(counters.toString(), counters.getOutboundRatio() > 10);
+		Assert.assertTrue(counters.toString(), counters.getInboundRatio() > 10);
+		Assert.assertTrue(counters.toString(), counters.getCompressedBlocks() > 0);
+	}
+}
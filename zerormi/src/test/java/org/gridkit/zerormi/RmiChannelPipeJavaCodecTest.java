@@ -0,0 +1,19 @@
+package org.gridkit.zerormi;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.gridkit.zerormi.zlog.ZLogFactory;
+
+/**
+ * Runs {@link RmiChannelPipeTest} with legacy Java serialization codec.
+ */
+public class RmiChannelPipeJavaCodecTest extends RmiChannelPipeTest {
+
+	@Override
+	protected RmiGateway createGateway(String name) {
+		Map<String, Object> props = new HashMap<String, Object>();
+		props.put(RmiGateway.PROP_CODEC, JavaRmiCodec.NAME);
+		return new RmiGateway(name, new SmartRmiMarshaler(), ZLogFactory.getDefaultRootLogger(), props);
+	}
+}
@@ -15,21 +15,36 @@
  */
 package org.gridkit.zerormi;
 
+import java.io.Closeable;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.gridkit.util.concurrent.FutureEx;
 import org.junit.After;
@@ -41,6 +56,8 @@ public class RmiChannelPipeTest {
 
 	DuplexStream leftSock;
 	DuplexStream rightSock;
+	/** Allows to stall writes of right side */
+	JamOutputStream rightJam;
 
 	{
 		Object[] pair1 = createSocketPair();
@@ -49,8 +66,9 @@ public class RmiChannelPipeTest {
 		Object[] pair2 = createSocketPair();
 		InputStream rightIn = (InputStream) pair2[0];
 		OutputStream leftOut = (OutputStream) pair2[1];
+		rightJam = new JamOutputStream(rightOut);
 		leftSock = new NamedStreamPair("LEFT", leftIn, leftOut);
-		rightSock = new NamedStreamPair("RIGHT", rightIn, rightOut);
+		rightSock = new NamedStreamPair("RIGHT", rightIn, rightJam);
 	}
 
 	RmiGateway left;
@@ -61,7 +79,7 @@ public class RmiChannelPipeTest {
 			@Override
 			public void run() {
 				try {
-					RmiGateway l = new RmiGateway("l");
+					RmiGateway l = createGateway("l");
 					l.connect(leftSock);
 					left = l;
 				} catch (IOException e) {
@@ -74,7 +92,7 @@ public class RmiChannelPipeTest {
 			@Override
 			public void run() {
 				try {
-					RmiGateway r = new RmiGateway("r");
+					RmiGateway r = createGateway("r");
 					r.connect(rightSock);
 					right = r;
 				} catch (IOException e) {
@@ -94,6 +112,10 @@ public class RmiChannelPipeTest {
 		}		
 	}
 	
+	protected RmiGateway createGateway(String name) {
+		return new RmiGateway(name);
+	}
+
 	@After
 	public void stopRmi() {
 		left.shutdown(null);
@@ -186,12 +208,249 @@ public class RmiChannelPipeTest {
 	}
 	    
 	
+	@Test
+	public void concurrent_calls() throws InterruptedException, ExecutionException {
+		final int threads = 8;
+		final int calls = 200;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for(int i = 0; i != threads; ++i) {
+				final int base = i * calls;
+				results.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						int n = 0;
+						for(int j = 0; j != calls; ++j) {
+							// mix small and large messages
+							Object payload = j % 10 == 0 ? (Object) new byte[64 << 10] : (Object) (base + j);
+							Object echo = left.getRemoteExecutorService().submit(new Echo<Object>(payload)).get();
+							if (payload instanceof Integer) {
+								Assert.assertEquals(payload, echo);
+							}
+							else {
+								Assert.assertEquals(64 << 10, ((byte[]) echo).length);
+							}
+							++n;
+						}
+						return n;
+					}
+				}));
+			}
+			for(Future<Integer> f: results) {
+				Assert.assertEquals(Integer.valueOf(calls), f.get());
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		ping();
+	}
+
+	@Test
+	public void large_message_does_not_block_small_ones() throws InterruptedException, ExecutionException {
+		Future<SlowPayload> slow = left.getRemoteExecutorService().submit(new Echo<SlowPayload>(new SlowPayload()));
+		long start = System.nanoTime();
+		ping();
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		Assert.assertTrue("Ping took " + elapsed + "ms", elapsed < SlowPayload.DELAY_MS);
+		Assert.assertEquals(16 << 10, slow.get().padding.length);
+	}
+
+	@Test
+	public void large_binary_payload() throws InterruptedException, ExecutionException {
+		byte[] data = new byte[8 << 20];
+		new Random(1).nextBytes(data);
+		byte[] small = new byte[] {1, 2, 3};
+
+		Object[] result = left.getRemoteExecutorService().submit(new Echo<Object[]>(new Object[]{data, small, data})).get();
+
+		Assert.assertArrayEquals(data, (byte[]) result[0]);
+		Assert.assertArrayEquals(small, (byte[]) result[1]);
+		Assert.assertSame(result[0], result[2]);
+	}
+
+	@Test
+	public void binary_payload_is_copied() throws InterruptedException, ExecutionException, NoSuchMethodException {
+		BinaryEcho proxy = left.getRemoteExecutorService().submit(new Callable<BinaryEcho>() {
+			@Override
+			public BinaryEcho call() throws Exception {
+				return new BinaryEchoImpl();
+			}
+		}).get();
+
+		byte[] data = new byte[1 << 20];
+		new Random(3).nextBytes(data);
+		byte[] expected = data.clone();
+
+		FutureEx<byte[]> echo = RemoteStub.remoteSubmit(proxy, BinaryEcho.class.getMethod("echo", byte[].class), data);
+		// caller may reuse its buffer once call is sent
+		Arrays.fill(data, (byte) 0);
+
+		Assert.assertArrayEquals(expected, echo.get());
+	}
+
+	@Test
+	public void call_metrics_are_recorded() throws InterruptedException, ExecutionException {
+		byte[] data = new byte[1 << 20];
+		left.getRemoteExecutorService().submit(new Echo<Object>(data)).get();
+
+		RmiMetrics.MethodMetrics caller = findMethod(left.getMetrics(), "remoteCall");
+		Assert.assertEquals(1, caller.getOutboundCalls());
+		Assert.assertEquals(0, caller.getOutboundErrors());
+		Assert.assertEquals(1, caller.getEndToEnd().getCount());
+		Assert.assertEquals(1, caller.getSerialize().getCount());
+		Assert.assertEquals(0, left.getMetrics().getOutboundInFlight());
+		Assert.assertTrue(left.getMetrics().getBytesOut(RmiMetrics.MessageType.BINARY) >= data.length);
+		Assert.assertTrue(left.getMetrics().getBytesIn(RmiMetrics.MessageType.BINARY) >= data.length);
+		Assert.assertEquals(1, left.getMetrics().getMessagesOut(RmiMetrics.MessageType.CALL));
+
+		RmiMetrics.MethodMetrics callee = findMethod(right.getMetrics(), "remoteCall");
+		Assert.assertEquals(1, callee.getInboundCalls());
+		Assert.assertEquals(1, callee.getExecute().getCount());
+		Assert.assertEquals(1, callee.getQueueWait().getCount());
+		Assert.assertTrue(callee.getEndToEnd().getCount() == 0);
+		Assert.assertTrue(caller.getEndToEnd().getMaxNanos() >= callee.getExecute().getMaxNanos());
+	}
+
+	@Test
+	public void class_lookups_are_cached() throws InterruptedException, ExecutionException {
+		left.getRemoteExecutorService().submit(new Echo<Object>(new ArrayList<Integer>(Arrays.asList(1, 2)))).get();
+		long misses = right.getMetrics().getClassCacheMisses();
+		for(int i = 0; i != 10; ++i) {
+			left.getRemoteExecutorService().submit(new Echo<Object>(new ArrayList<Integer>(Arrays.asList(1, 2)))).get();
+		}
+		Assert.assertEquals(misses, right.getMetrics().getClassCacheMisses());
+		Assert.assertTrue(right.getMetrics().getClassCacheHits() >= 20);
+	}
+
+	@Test
+	public void keep_alive_rtt_is_recorded() throws Exception {
+		long received = left.getLastReceivedNanos();
+		Assert.assertTrue(left.sendKeepAlive());
+		// right side answers and probes back
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while(System.nanoTime() < deadline
+				&& (left.getMetrics().getKeepAliveRtt().getCount() == 0 || right.getMetrics().getKeepAliveRtt().getCount() == 0)) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1, left.getMetrics().getKeepAliveRtt().getCount());
+		Assert.assertEquals(1, right.getMetrics().getKeepAliveRtt().getCount());
+		Assert.assertTrue(left.getMetrics().getLastKeepAliveRttNanos() >= 0);
+		Assert.assertTrue(left.getLastReceivedNanos() - received > 0);
+		// no calls were made
+		Assert.assertEquals(0, left.getMetrics().getMessagesOut(RmiMetrics.MessageType.CALL));
+	}
+
+	@Test
+	public void keep_alive_answer_does_not_block_reader() throws Exception {
+		ping();
+		rightJam.jam();
+		try {
+			long received = right.getLastReceivedNanos();
+			Assert.assertTrue(left.sendKeepAlive());
+			awaitReceived(right, received);
+			// answer is stuck in stalled stream, reader should keep reading anyway
+			received = right.getLastReceivedNanos();
+			Assert.assertTrue(left.sendKeepAlive());
+			awaitReceived(right, received);
+		}
+		finally {
+			rightJam.release();
+		}
+		ping();
+	}
+
+	private static void awaitReceived(RmiGateway gateway, long received) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while(gateway.getLastReceivedNanos() == received) {
+			if (System.nanoTime() > deadline) {
+				Assert.fail("Frame has not been read");
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	private static RmiMetrics.MethodMetrics findMethod(RmiMetrics metrics, String name) {
+		for(RmiMetrics.MethodMetrics mm: metrics.getMethods()) {
+			if (name.equals(mm.getSignature().getMethodName())) {
+				return mm;
+			}
+		}
+		Assert.fail("No metrics for " + name + " " + metrics.getMethods());
+		return null;
+	}
+
+	@Test
+	public void byte_buffer_payload() throws InterruptedException, ExecutionException {
+		byte[] data = new byte[1 << 20];
+		new Random(2).nextBytes(data);
+		ByteBuffer heap = ByteBuffer.wrap(data, 16, data.length - 32);
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data);
+		direct.flip();
+
+		Object[] result = left.getRemoteExecutorService().submit(new Echo<Object[]>(new Object[]{heap, direct})).get();
+
+		Assert.assertEquals(heap, result[0]);
+		Assert.assertEquals(direct, result[1]);
+		// sender buffers are not affected
+		Assert.assertEquals(16, heap.position());
+		Assert.assertEquals(0, direct.position());
+	}
+
 	@Test
 	public void verify_auto_export() throws InterruptedException, IOException, ExecutionException {
 		Future<String> task = left.getRemoteExecutorService().submit(new ProxyAdapter<String>(new NotSerializable()));
 		Assert.assertEquals("NotSerializable", task.get());
 	}
 
+	@Test
+	public void concurrent_export_of_same_object() throws InterruptedException, ExecutionException {
+		final Counter counter = new CounterImpl();
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for(int i = 0; i != 8; ++i) {
+				results.add(pool.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						for(int j = 0; j != 50; ++j) {
+							// reference is exported by left side and resolved back to original object
+							if (left.getRemoteExecutorService().submit(new Echo<Counter>(counter)).get() != counter) {
+								return false;
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for(Future<Boolean> f: results) {
+				Assert.assertTrue(f.get());
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void collected_proxies_are_released() throws InterruptedException, ExecutionException {
+		for(int i = 0; i != 10; ++i) {
+			Future<String> task = left.getRemoteExecutorService().submit(new ProxyAdapter<String>(new NotSerializable()));
+			Assert.assertEquals("NotSerializable", task.get());
+		}
+		Assert.assertTrue(left.getExportCounters().getLiveExports() >= 10);
+		long deadline = System.currentTimeMillis() + 30000;
+		// proxies on right side should be collected and released in batches
+		while(left.getExportCounters().getReleasedExports() < 10) {
+			Assert.assertTrue("Exports are not released " + left.getExportCounters(), System.currentTimeMillis() < deadline);
+			System.gc();
+			Thread.sleep(100);
+		}
+		Assert.assertTrue(right.getExportCounters().getCollectedProxies() >= 10);
+	}
+
 	@Test
 	public void verify_async_proxy_call() throws InterruptedException, IOException, ExecutionException, SecurityException, NoSuchMethodException {
 	    ProxyCallable<String> proxy = left.getRemoteExecutorService().submit(new Callable<ProxyCallable<String>>() {
@@ -207,6 +466,328 @@ public class RmiChannelPipeTest {
 	    Assert.assertEquals("NotSerializable", result.get());
 	}
 	
+	@Test
+	public void verify_batch_call() throws InterruptedException, ExecutionException, SecurityException, NoSuchMethodException {
+		Counter counter = left.getRemoteExecutorService().submit(new Callable<Counter>() {
+			@Override
+			public Counter call() throws Exception {
+				return new CounterImpl();
+			}
+		}).get();
+		
+		Method next = Counter.class.getMethod("next");
+		Method add = Counter.class.getMethod("add", int.class);
+		RemoteBatch batch = left.createBatch();
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for(int i = 0; i != 10; ++i) {
+			results.add(batch.<Integer>add(counter, next));
+		}
+		Future<Integer> failed = batch.add(counter, add, -1);
+		results.add(batch.<Integer>add(counter, add, 100));
+		Assert.assertEquals(12, batch.size());
+		
+		batch.submit().get();
+		
+		Assert.assertEquals(0, batch.size());
+		for(int i = 0; i != 10; ++i) {
+			Assert.assertEquals(Integer.valueOf(i + 1), results.get(i).get());
+		}
+		Assert.assertEquals(Integer.valueOf(110), results.get(10).get());
+		try {
+			failed.get();
+			Assert.fail("Exception expected");
+		}
+		catch(ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+	}
+	
+	@Test
+	public void generated_stub_call() throws InterruptedException, ExecutionException, IOException {
+		Primitives proxy = left.getRemoteExecutorService().submit(new Callable<Primitives>() {
+			@Override
+			public Primitives call() throws Exception {
+				return new PrimitivesImpl();
+			}
+		}).get();
+
+		Assert.assertTrue(proxy instanceof GeneratedStub);
+		Assert.assertTrue(RemoteStub.isRemoteStub(proxy));
+		Assert.assertEquals(3.5d, proxy.sum(1, 2l, 0.5d, true, 'x'), 0d);
+		Assert.assertEquals(0d, proxy.sum(1, 2l, 0.5d, false, 'x'), 0d);
+		Assert.assertArrayEquals(new int[]{3, 2, 1}, proxy.reverse(new int[]{1, 2, 3}));
+		proxy.touch();
+		Assert.assertEquals(1, proxy.touched());
+		try {
+			proxy.fail("boom");
+			Assert.fail("Exception expected");
+		}
+		catch(IOException e) {
+			Assert.assertEquals("boom", e.getMessage());
+		}
+		Assert.assertFalse(proxy.equals(null));
+		Assert.assertNotNull(proxy.toString());
+	}
+
+	@Test
+	public void generated_stub_wraps_undeclared_exceptions() throws InterruptedException, ExecutionException {
+		Primitives proxy = left.getRemoteExecutorService().submit(new Callable<Primitives>() {
+			@Override
+			public Primitives call() throws Exception {
+				return new PrimitivesImpl();
+			}
+		}).get();
+		Assert.assertTrue(proxy instanceof GeneratedStub);
+
+		left.shutdown(null);
+		try {
+			proxy.touch();
+			Assert.fail("Exception expected");
+		}
+		catch(UndeclaredThrowableException e) {
+			// same as java.lang.reflect.Proxy
+			Assert.assertTrue(e.getCause() instanceof RemoteException);
+		}
+		try {
+			proxy.fail("boom");
+			Assert.fail("Exception expected");
+		}
+		catch(IOException e) {
+			// declared exceptions are thrown as is
+			Assert.assertTrue(e instanceof RemoteException);
+		}
+	}
+
+	@Test
+	public void stub_class_is_shared_by_proxies() throws InterruptedException, ExecutionException {
+		Callable<Counter> factory = new Callable<Counter>() {
+			@Override
+			public Counter call() throws Exception {
+				return new CounterImpl();
+			}
+		};
+		Counter c1 = left.getRemoteExecutorService().submit(factory).get();
+		Counter c2 = left.getRemoteExecutorService().submit(factory).get();
+		Assert.assertNotSame(c1, c2);
+		Assert.assertSame(c1.getClass(), c2.getClass());
+		Assert.assertEquals(1, c1.next());
+		Assert.assertEquals(1, c2.next());
+	}
+
+	@Test
+	public void non_public_interface_uses_jdk_proxy() throws InterruptedException, ExecutionException {
+		Hidden proxy = left.getRemoteExecutorService().submit(new Callable<Hidden>() {
+			@Override
+			public Hidden call() throws Exception {
+				return new HiddenImpl();
+			}
+		}).get();
+		Assert.assertTrue(java.lang.reflect.Proxy.isProxyClass(proxy.getClass()));
+		Assert.assertTrue(RemoteStub.isRemoteStub(proxy));
+		Assert.assertEquals("hidden", proxy.get());
+	}
+
+	@Test
+	public void verify_remote_iterator() throws InterruptedException, ExecutionException {
+		Iterator<Integer> it = left.getRemoteExecutorService().submit(new Callable<Iterator<Integer>>() {
+			@Override
+			public Iterator<Integer> call() throws Exception {
+				return RemoteIterators.export(new Range(10000), 100, 3);
+			}
+		}).get();
+		
+		int n = 0;
+		while(it.hasNext()) {
+			Assert.assertEquals(Integer.valueOf(n++), it.next());
+		}
+		Assert.assertEquals(10000, n);
+	}
+
+	@Test
+	public void verify_remote_iterator_early_close() throws InterruptedException, ExecutionException, IOException {
+		Iterator<Integer> it = left.getRemoteExecutorService().submit(new Callable<Iterator<Integer>>() {
+			@Override
+			public Iterator<Integer> call() throws Exception {
+				return RemoteIterators.export(new Range(Integer.MAX_VALUE));
+			}
+		}).get();
+		
+		for(int i = 0; i != 1000; ++i) {
+			Assert.assertEquals(Integer.valueOf(i), it.next());
+		}
+		((Closeable) it).close();
+		Assert.assertFalse(it.hasNext());
+		ping();
+	}
+	
+	static class Range implements Iterator<Integer> {
+		
+		final int limit;
+		int n;
+
+		public Range(int limit) {
+			this.limit = limit;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return n < limit;
+		}
+
+		@Override
+		public Integer next() {
+			return n++;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	static class JamOutputStream extends FilterOutputStream {
+
+		private volatile CountDownLatch gate;
+
+		public JamOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void jam() {
+			gate = new CountDownLatch(1);
+		}
+
+		public void release() {
+			CountDownLatch g = gate;
+			gate = null;
+			if (g != null) {
+				g.countDown();
+			}
+		}
+
+		private void pass() throws IOException {
+			CountDownLatch g = gate;
+			if (g != null) {
+				try {
+					g.await();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			pass();
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			pass();
+			out.write(b, off, len);
+		}
+	}
+
+	public static interface BinaryEcho extends Remote {
+
+		public byte[] echo(byte[] data);
+	}
+
+	public static class BinaryEchoImpl implements BinaryEcho {
+
+		@Override
+		public byte[] echo(byte[] data) {
+			return data;
+		}
+	}
+
+	public static interface Primitives extends Remote {
+
+		public double sum(int a, long b, double c, boolean enabled, char ch);
+
+		public int[] reverse(int[] data);
+
+		public void touch();
+
+		public int touched();
+
+		public void fail(String message) throws IOException;
+	}
+
+	public static class PrimitivesImpl implements Primitives {
+
+		int touched;
+
+		@Override
+		public double sum(int a, long b, double c, boolean enabled, char ch) {
+			return enabled ? a + b + c : 0;
+		}
+
+		@Override
+		public int[] reverse(int[] data) {
+			int[] r = new int[data.length];
+			for(int i = 0; i != data.length; ++i) {
+				r[i] = data[data.length - 1 - i];
+			}
+			return r;
+		}
+
+		@Override
+		public void touch() {
+			++touched;
+		}
+
+		@Override
+		public int touched() {
+			return touched;
+		}
+
+		@Override
+		public void fail(String message) throws IOException {
+			throw new IOException(message);
+		}
+	}
+
+	static interface Hidden extends Remote {
+
+		public String get();
+	}
+
+	static class HiddenImpl implements Hidden {
+
+		@Override
+		public String get() {
+			return "hidden";
+		}
+	}
+
+	public static interface Counter extends Remote {
+		
+		public int next();
+		
+		public int add(int n);
+	}
+	
+	public static class CounterImpl implements Counter {
+		
+		int value;
+		
+		@Override
+		public int next() {
+			return ++value;
+		}
+		
+		@Override
+		public int add(int n) {
+			if (n < 0) {
+				throw new IllegalArgumentException("Negative increment");
+			}
+			value += n;
+			return value;
+		}
+	}
+	
 	public static class Echo<V> implements Callable<V>, Serializable {
 
 		private V sound;
@@ -221,6 +802,22 @@ public class RmiChannelPipeTest {
 		}
 	}
 
+	public static class SlowPayload implements Serializable {
+		
+		static final long DELAY_MS = 1000;
+		
+		byte[] padding = new byte[16 << 10];
+		
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			in.defaultReadObject();
+			try {
+				Thread.sleep(DELAY_MS);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
 	public static class SelfIdentity implements Callable<SelfIdentity>, Serializable {
 		
 		public SelfIdentity() {
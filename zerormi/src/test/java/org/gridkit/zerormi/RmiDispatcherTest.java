@@ -0,0 +1,176 @@
+package org.gridkit.zerormi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.gridkit.zerormi.zlog.LogLevel;
+import org.gridkit.zerormi.zlog.LogStream;
+import org.gridkit.zerormi.zlog.ZLogFactory;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class RmiDispatcherTest {
+
+	LogStream log = ZLogFactory.getDefaultRootLogger().get("test", LogLevel.INFO);
+
+	RmiDispatcher dispatcher;
+
+	@After
+	public void shutdown() {
+		if (dispatcher != null) {
+			dispatcher.shutdown();
+		}
+	}
+
+	@Test
+	public void pool_is_bounded() throws InterruptedException {
+		Map<String, Object> props = new HashMap<String, Object>();
+		props.put(RmiDispatcher.PROP_THREADS, "2");
+		props.put(RmiDispatcher.PROP_QUEUE, "1");
+		dispatcher = new RmiDispatcher("test", props, log);
+
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(3);
+		for(int i = 0; i != 3; ++i) {
+			dispatcher.execute(new Blocker(release, done));
+		}
+		try {
+			dispatcher.execute(new Blocker(release, done));
+			fail("Rejection expected");
+		}
+		catch(RejectedExecutionException e) {
+			// expected
+		}
+
+		// let workers pick up tasks
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while(dispatcher.getActiveCount() < 2 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, dispatcher.getThreadCount());
+		assertEquals(2, dispatcher.getActiveCount());
+		assertEquals(1, dispatcher.getQueueDepth());
+		assertEquals(1, dispatcher.getRejectedCount());
+
+		release.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		assertEquals(3, dispatcher.getCompletedCount());
+		assertEquals(0, dispatcher.getActiveCount());
+		assertEquals(0, dispatcher.getQueueDepth());
+	}
+
+	@Test
+	public void calls_to_same_object_are_ordered() throws InterruptedException {
+		Map<String, Object> props = new HashMap<String, Object>();
+		props.put(RmiDispatcher.PROP_ORDERED, "true");
+		dispatcher = new RmiDispatcher("test", props, log);
+
+		final List<Integer> trace = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch done = new CountDownLatch(100);
+		for(int i = 0; i != 100; ++i) {
+			final int n = i;
+			dispatcher.execute("A", new Runnable() {
+				@Override
+				public void run() {
+					trace.add(n);
+					done.countDown();
+				}
+			});
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		for(int i = 0; i != 100; ++i) {
+			assertEquals(Integer.valueOf(i), trace.get(i));
+		}
+	}
+
+	@Test
+	public void ordered_calls_are_bounded() throws InterruptedException {
+		Map<String, Object> props = new HashMap<String, Object>();
+		props.put(RmiDispatcher.PROP_ORDERED, "true");
+		props.put(RmiDispatcher.PROP_QUEUE, "2");
+		dispatcher = new RmiDispatcher("test", props, log);
+
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(3);
+		dispatcher.execute("A", new Blocker(release, done));
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while(dispatcher.getActiveCount() < 1 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		dispatcher.execute("A", new Blocker(release, done));
+		dispatcher.execute("A", new Blocker(release, done));
+		try {
+			dispatcher.execute("A", new Blocker(release, done));
+			fail("Rejection expected");
+		}
+		catch(RejectedExecutionException e) {
+			// expected
+		}
+		assertEquals(2, dispatcher.getQueueDepth());
+		assertEquals(1, dispatcher.getRejectedCount());
+
+		release.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void virtual_thread_mode() throws InterruptedException {
+		Assume.assumeTrue(isVirtualThreadsSupported());
+		Map<String, Object> props = new HashMap<String, Object>();
+		props.put(RmiDispatcher.PROP_MODE, RmiDispatcher.MODE_VIRTUAL);
+		dispatcher = new RmiDispatcher("test", props, log);
+
+		assertTrue(dispatcher.isVirtualThreads());
+		final CountDownLatch done = new CountDownLatch(1);
+		dispatcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+	}
+
+	private static boolean isVirtualThreadsSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch(NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	static class Blocker implements Runnable {
+
+		final CountDownLatch release;
+		final CountDownLatch done;
+
+		public Blocker(CountDownLatch release, CountDownLatch done) {
+			this.release = release;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				// ignore
+			}
+			done.countDown();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.zerormi;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.gridkit.zerormi.RmiChannelPipeTest.Counter;
+import org.gridkit.zerormi.RmiChannelPipeTest.CounterImpl;
+import org.gridkit.zerormi.zlog.ZLogFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Lease expiry does not depend on garbage collection, proxy is held strongly
+ * by test and only renewal period of holder side is varied.
+ */
+public class RmiLeaseTest {
+
+	RmiGateway left;
+	RmiGateway right;
+
+	/**
+	 * @param renewalPeriod DGC period of left side, holding proxies
+	 */
+	private void connect(long renewalPeriod) throws Exception {
+		Map<String, Object> lprops = new HashMap<String, Object>();
+		lprops.put(RmiChannel1.PROP_DGC_PERIOD, String.valueOf(renewalPeriod));
+		left = new RmiGateway("left", new SmartRmiMarshaler(), ZLogFactory.getDefaultRootLogger(), lprops);
+		// objects exported by right side expire quickly
+		Map<String, Object> rprops = new HashMap<String, Object>();
+		rprops.put(RmiChannel1.PROP_LEASE_TIMEOUT, "300");
+		rprops.put(RmiChannel1.PROP_DGC_PERIOD, "20");
+		right = new RmiGateway("right", new SmartRmiMarshaler(), ZLogFactory.getDefaultRootLogger(), rprops);
+		new GatewayPair(left, right);
+	}
+
+	@After
+	public void disconnect() {
+		if (left != null) {
+			left.shutdown(null);
+		}
+		if (right != null) {
+			right.shutdown(null);
+		}
+	}
+
+	private Counter remoteCounter() throws InterruptedException, ExecutionException {
+		return left.getRemoteExecutorService().submit(new Callable<Counter>() {
+			@Override
+			public Counter call() throws Exception {
+				return new CounterImpl();
+			}
+		}).get();
+	}
+
+	@Test
+	public void lease_expires_without_renewal() throws Exception {
+		// left side never renews
+		connect(3600000);
+		Counter counter = remoteCounter();
+		Assert.assertEquals(1, counter.next());
+		long exports = right.getExportCounters().getLiveExports();
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while(right.getExportCounters().getExpiredExports() == 0) {
+			Assert.assertTrue("Lease has not expired " + right.getExportCounters(), System.currentTimeMillis() < deadline);
+			Thread.sleep(20);
+		}
+		Assert.assertTrue(right.getExportCounters().getLiveExports() < exports);
+		Assert.assertEquals(0, left.getExportCounters().getLeaseMessagesSent());
+
+		try {
+			RemoteStub.remoteSubmit(counter, Counter.class.getMethod("next")).get();
+			Assert.fail("Exception expected");
+		}
+		catch(ExecutionException e) {
+			Assert.assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("has not been exported"));
+		}
+	}
+
+	@Test
+	public void renewed_lease_does_not_expire() throws Exception {
+		connect(20);
+		Counter counter = remoteCounter();
+		Assert.assertEquals(1, counter.next());
+
+		// several lease timeouts
+		Thread.sleep(1000);
+		Assert.assertEquals(0, right.getExportCounters().getExpiredExports());
+		Assert.assertTrue(right.getExportCounters().getLeaseMessagesReceived() > 0);
+		Assert.assertEquals(2, counter.next());
+	}
+}
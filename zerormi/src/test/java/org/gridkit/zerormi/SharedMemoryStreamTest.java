@@ -0,0 +1,342 @@
+package org.gridkit.zerormi;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.gridkit.zerormi.RmiGateway.StreamErrorHandler;
+import org.gridkit.zerormi.hub.RemotingEndPoint;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class SharedMemoryStreamTest {
+
+	private ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void simple_roundtrip() throws IOException {
+		SharedMemoryStream master = SharedMemoryStream.create(4096);
+		DuplexStream slave = new SharedMemoryConnector(master.getFile().getPath()).connect();
+
+		master.getOutput().write(new byte[]{1, 2, 3});
+		slave.getOutput().write(42);
+
+		byte[] buf = new byte[3];
+		new DataInputStream(slave.getInput()).readFully(buf);
+		Assert.assertArrayEquals(new byte[]{1, 2, 3}, buf);
+		Assert.assertEquals(42, master.getInput().read());
+
+		master.close();
+		slave.close();
+	}
+
+	@Test
+	public void ring_file_is_private() throws IOException {
+		SharedMemoryStream master = SharedMemoryStream.create(4096);
+		try {
+			Assume.assumeTrue(Files.getFileStore(master.getFile().toPath()).supportsFileAttributeView("posix"));
+			Assert.assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(master.getFile().toPath()));
+		}
+		finally {
+			master.close();
+		}
+	}
+
+	@Test(expected = EOFException.class)
+	public void closed_stream_is_not_readable() throws IOException {
+		SharedMemoryStream master = SharedMemoryStream.create(4096);
+		DuplexStream slave = new SharedMemoryConnector(master.getFile().getPath()).connect();
+		slave.getOutput().write(1);
+		master.close();
+		slave.close();
+		// mapping is released, so stream should not touch memory
+		master.getInput().read();
+	}
+
+	@Test(expected = IOException.class)
+	public void ring_could_be_attached_once() throws IOException {
+		SharedMemoryStream master = SharedMemoryStream.create(4096);
+		SharedMemoryConnector connector = new SharedMemoryConnector(master.getFile().getPath());
+		connector.connect();
+		try {
+			connector.connect();
+		}
+		finally {
+			master.close();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void used_ring_falls_back_to_socket() throws IOException {
+		SharedMemoryStream master = SharedMemoryStream.create(4096);
+		ServerSocket ss = new ServerSocket();
+		try {
+			ss.bind(new InetSocketAddress("127.0.0.1", 0));
+			SharedMemoryConnector connector = new SharedMemoryConnector(master.getFile().getPath(), new SocketConnector(ss.getLocalSocketAddress()));
+			DuplexStream ring = connector.connect();
+			Assert.assertTrue(ring.toString().startsWith("shmem:"));
+
+			DuplexStream second = connector.connect();
+			Socket sock = ss.accept();
+			second.getOutput().write(42);
+			second.getOutput().flush();
+			Assert.assertEquals(42, sock.getInputStream().read());
+
+			sock.close();
+			second.close();
+			ring.close();
+		}
+		finally {
+			ss.close();
+			master.close();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void end_point_reconnects_after_ring_is_lost() throws Exception {
+		final SharedMemoryStream ring = SharedMemoryStream.create(SharedMemoryStream.getDefaultRingSize());
+		ServerSocket ss = new ServerSocket();
+		ss.bind(new InetSocketAddress("127.0.0.1", 0));
+		ss.setSoTimeout(20000);
+
+		final Semaphore lost = new Semaphore(0);
+		RmiGateway master = new RmiGateway("master");
+		// keep gateway alive after transport loss, like hub does
+		master.setStreamErrorHandler(new StreamErrorHandler() {
+			@Override
+			public void streamError(DuplexStream socket, Object stream, Exception error) {
+				lost.release();
+			}
+
+			@Override
+			public void streamClosed(DuplexStream socket, Object stream, Exception error) {
+				lost.release();
+			}
+		});
+
+		SharedMemoryConnector connector = new SharedMemoryConnector(ring.getFile().getPath(), new SocketConnector(ss.getLocalSocketAddress()));
+		final RemotingEndPoint endPoint = new RemotingEndPoint(null, new DroppingConnector(connector));
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				endPoint.run();
+			}
+		});
+
+		try {
+			master.connect(ring);
+			Assert.assertEquals("ring", master.getRemoteExecutorService().submit(new Echo("ring")).get());
+
+			// drop transport, slave should come back over socket
+			ring.close();
+			Socket sock = ss.accept();
+			// gateway is disconnected before handler is notified
+			lost.acquire();
+			master.connect(new SocketStream(sock));
+			Assert.assertEquals("socket", master.getRemoteExecutorService().submit(new Echo("socket")).get());
+		}
+		finally {
+			master.shutdown(null);
+			ss.close();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void data_larger_than_ring() throws Exception {
+		final SharedMemoryStream master = SharedMemoryStream.create(4096);
+		final DuplexStream slave = new SharedMemoryConnector(master.getFile().getPath()).connect();
+
+		final byte[] data = new byte[1 << 20];
+		new Random(1).nextBytes(data);
+
+		Future<byte[]> received = executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				byte[] buf = new byte[data.length];
+				new DataInputStream(slave.getInput()).readFully(buf);
+				return buf;
+			}
+		});
+
+		OutputStream out = master.getOutput();
+		Random rnd = new Random(2);
+		int n = 0;
+		while(n < data.length) {
+			int len = Math.min(data.length - n, rnd.nextInt(10000));
+			out.write(data, n, len);
+			n += len;
+		}
+		Assert.assertTrue(Arrays.equals(data, received.get()));
+	}
+
+	@Test(timeout = 30000)
+	public void pending_data_is_read_before_eof() throws IOException, InterruptedException, ExecutionException {
+		SharedMemoryStream master = SharedMemoryStream.create(4096);
+		final DuplexStream slave = new SharedMemoryConnector(master.getFile().getPath()).connect();
+
+		master.getOutput().write(new byte[]{1, 2, 3});
+		master.close();
+
+		InputStream in = slave.getInput();
+		Assert.assertEquals(1, in.read());
+		Assert.assertEquals(2, in.read());
+		Assert.assertEquals(3, in.read());
+		Assert.assertEquals(-1, in.read());
+		try {
+			slave.getOutput().write(1);
+			Assert.fail("Exception expected");
+		}
+		catch(IOException e) {
+			Assert.assertTrue(IOHelper.isSocketTerminationException(e));
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void rmi_over_shared_memory() throws Exception {
+		final SharedMemoryStream master = SharedMemoryStream.create(SharedMemoryStream.getDefaultRingSize());
+		final DuplexStream slave = new SharedMemoryConnector(master.getFile().getPath()).connect();
+
+		final RmiGateway left = new RmiGateway("left");
+		final RmiGateway right = new RmiGateway("right");
+		Future<?> lc = executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				left.connect(master);
+				return null;
+			}
+		});
+		right.connect(slave);
+		lc.get();
+
+		try {
+			for(int i = 0; i != 1000; ++i) {
+				Assert.assertEquals("ping" + i, left.getRemoteExecutorService().submit(new Echo("ping" + i)).get());
+			}
+		}
+		finally {
+			left.shutdown(null);
+			right.shutdown(null);
+		}
+	}
+
+	private static class SocketConnector implements DuplexStreamConnector {
+
+		private final SocketAddress address;
+
+		public SocketConnector(SocketAddress address) {
+			this.address = address;
+		}
+
+		@Override
+		public DuplexStream connect() throws IOException {
+			Socket socket = new Socket();
+			socket.connect(address);
+			return new SocketStream(socket);
+		}
+	}
+
+	/**
+	 * Orderly end of stream is a termination request for gateway,
+	 * so it is reported as connection reset to simulate transport drop.
+	 */
+	private static class DroppingConnector implements DuplexStreamConnector {
+
+		private final DuplexStreamConnector connector;
+
+		public DroppingConnector(DuplexStreamConnector connector) {
+			this.connector = connector;
+		}
+
+		@Override
+		public DuplexStream connect() throws IOException {
+			final DuplexStream stream = connector.connect();
+			final InputStream input = new FilterInputStream(stream.getInput()) {
+
+				@Override
+				public int read() throws IOException {
+					return check(super.read());
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					return check(super.read(b, off, len));
+				}
+
+				private int check(int n) throws IOException {
+					if (n < 0) {
+						throw new SocketException("Connection reset");
+					}
+					return n;
+				}
+			};
+			return new DuplexStream() {
+
+				@Override
+				public InputStream getInput() throws IOException {
+					return input;
+				}
+
+				@Override
+				public OutputStream getOutput() throws IOException {
+					return stream.getOutput();
+				}
+
+				@Override
+				public boolean isClosed() {
+					return stream.isClosed();
+				}
+
+				@Override
+				public void close() throws IOException {
+					stream.close();
+				}
+
+				@Override
+				public String toString() {
+					return stream.toString();
+				}
+			};
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public static class Echo implements Callable<String>, java.io.Serializable {
+
+		private final String text;
+
+		public Echo(String text) {
+			this.text = text;
+		}
+
+		@Override
+		public String call() {
+			return text;
+		}
+	}
+}